@@ -0,0 +1,138 @@
+package nu.nerd.perf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nu.nerd.perf.CountEntitiesTask;
+import nu.nerd.perf.MetricsSnapshot;
+import nu.nerd.perf.NerdPerf;
+
+// ----------------------------------------------------------------------------
+/**
+ * Benchmarks {@link CountEntitiesTask} over a synthetic world.
+ *
+ * scan() measures counting the whole world, as one scan would across several
+ * ticks, including rebuilding the index of player positions when entities are
+ * attributed to players. step() measures one batch of BATCH_ENTITIES entities,
+ * which is the unit of work that the time limit is checked against.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountEntitiesBenchmark {
+    // ------------------------------------------------------------------------
+    /**
+     * Build the world.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        Fixtures.configure(hotspots);
+        NerdPerf.CONFIG.ATTRIBUTION = (players > 0);
+        int chunks = Math.max(1, entities / 20);
+        _world = Fixtures.world("world", Fixtures.entities(entities, chunks, SEED), new Chunk[0],
+                                Fixtures.players(players, chunks, SEED));
+        _snapshot = MetricsSnapshot.obtain();
+        _metrics = _snapshot.addWorld(_world);
+        if (_metrics.attribution != null) {
+            _metrics.attribution.reset(_world);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count all entities in the world.
+     *
+     * @return the metrics, to defeat dead code elimination.
+     */
+    @Benchmark
+    public MetricsSnapshot.WorldMetrics scan() {
+        if (_metrics.attribution != null) {
+            _metrics.attribution.reset(_world);
+        }
+        CountEntitiesTask task = new CountEntitiesTask(_world, _metrics);
+        while (task.getAsBoolean()) {
+        }
+        return _metrics;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count one batch of entities, starting a new scan when the previous one
+     * finishes.
+     *
+     * @return true if the scan has more work to do.
+     */
+    @Benchmark
+    public boolean step() {
+        if (_task == null) {
+            _task = new CountEntitiesTask(_world, _metrics);
+        }
+        boolean more = _task.getAsBoolean();
+        if (!more) {
+            _task = null;
+        }
+        return more;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The number of entities in the world.
+     */
+    @Param({ "10000", "50000", "200000" })
+    public int entities;
+
+    /**
+     * Whether entities are also counted per chunk to find hotspots.
+     */
+    @Param({ "false", "true" })
+    public boolean hotspots;
+
+    /**
+     * The number of players that entities are attributed to, or 0 to not
+     * attribute entities.
+     */
+    @Param({ "0", "100" })
+    public int players;
+
+    /**
+     * Random seed of the fixture, fixed so that runs are comparable.
+     */
+    protected static final long SEED = 1;
+
+    /**
+     * The world counted.
+     */
+    protected World _world;
+
+    /**
+     * The snapshot holding _metrics.
+     */
+    protected MetricsSnapshot _snapshot;
+
+    /**
+     * Where counts are stored.
+     */
+    protected MetricsSnapshot.WorldMetrics _metrics;
+
+    /**
+     * The scan in progress in step(), or null.
+     */
+    protected CountEntitiesTask _task;
+} // class CountEntitiesBenchmark
@@ -0,0 +1,192 @@
+package nu.nerd.perf.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nu.nerd.perf.CountTileEntitiesTask;
+import nu.nerd.perf.MetricsSnapshot;
+import nu.nerd.perf.SnapshotTileEntitiesTask;
+
+// ----------------------------------------------------------------------------
+/**
+ * Benchmarks {@link CountTileEntitiesTask} and
+ * {@link SnapshotTileEntitiesTask} over a synthetic world.
+ *
+ * scan() measures counting the whole world, as one scan would across several
+ * ticks. step() measures one batch of BATCH_CHUNKS chunks, which is the unit
+ * of work that the time limit is checked against.
+ *
+ * snapshotScan() measures capturing and counting the whole world with
+ * snapshots, including waiting for the pool. snapshotStep() measures
+ * capturing one batch, which is all that happens in the main thread; the
+ * pool's counting continues in the background until the last step of a scan,
+ * which waits for it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountTileEntitiesBenchmark {
+    // ------------------------------------------------------------------------
+    /**
+     * Build the world.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        Fixtures.configure(hotspots);
+        _world = Fixtures.world("world", new ArrayList<Entity>(),
+                                Fixtures.chunks(chunks, TILE_ENTITIES_PER_CHUNK, SEED));
+        _snapshot = MetricsSnapshot.obtain();
+        _metrics = _snapshot.addWorld(_world);
+        _pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop the pool.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        _pool.shutdownNow();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count tile entities in all loaded chunks.
+     *
+     * @return the metrics, to defeat dead code elimination.
+     */
+    @Benchmark
+    public MetricsSnapshot.WorldMetrics scan() {
+        CountTileEntitiesTask task = new CountTileEntitiesTask(_world, _metrics);
+        while (task.getAsBoolean()) {
+        }
+        return _metrics;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count tile entities in one batch of chunks, starting a new scan when
+     * the previous one finishes.
+     *
+     * @return true if the scan has more work to do.
+     */
+    @Benchmark
+    public boolean step() {
+        if (_task == null) {
+            _task = new CountTileEntitiesTask(_world, _metrics);
+        }
+        boolean more = _task.getAsBoolean();
+        if (!more) {
+            _task = null;
+        }
+        return more;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Capture and count snapshots of all loaded chunks.
+     *
+     * @return the metrics, to defeat dead code elimination.
+     */
+    @Benchmark
+    public MetricsSnapshot.WorldMetrics snapshotScan() {
+        SnapshotTileEntitiesTask task = new SnapshotTileEntitiesTask(_world, _metrics, _pool);
+        while (task.getAsBoolean()) {
+        }
+        task.getResult().join();
+        return _metrics;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Capture snapshots of one batch of chunks, starting a new scan when the
+     * previous one has been counted.
+     *
+     * @return true if the scan has more work to do.
+     */
+    @Benchmark
+    public boolean snapshotStep() {
+        if (_snapshotTask == null) {
+            _snapshotTask = new SnapshotTileEntitiesTask(_world, _metrics, _pool);
+        }
+        boolean more = _snapshotTask.getAsBoolean();
+        if (!more) {
+            _snapshotTask.getResult().join();
+            _snapshotTask = null;
+        }
+        return more;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The number of loaded chunks in the world.
+     */
+    @Param({ "5000", "20000" })
+    public int chunks;
+
+    /**
+     * Whether the densest chunks are found.
+     */
+    @Param({ "false", "true" })
+    public boolean hotspots;
+
+    /**
+     * Average number of tile entities per chunk, of all types.
+     */
+    protected static final int TILE_ENTITIES_PER_CHUNK = 8;
+
+    /**
+     * Random seed of the fixture, fixed so that runs are comparable.
+     */
+    protected static final long SEED = 1;
+
+    /**
+     * The world counted.
+     */
+    protected World _world;
+
+    /**
+     * The snapshot holding _metrics.
+     */
+    protected MetricsSnapshot _snapshot;
+
+    /**
+     * Where counts are stored.
+     */
+    protected MetricsSnapshot.WorldMetrics _metrics;
+
+    /**
+     * The scan in progress in step(), or null.
+     */
+    protected CountTileEntitiesTask _task;
+
+    /**
+     * The scan in progress in snapshotStep(), or null.
+     */
+    protected SnapshotTileEntitiesTask _snapshotTask;
+
+    /**
+     * The pool that counts snapshots.
+     */
+    protected ForkJoinPool _pool;
+} // class CountTileEntitiesBenchmark
@@ -0,0 +1,345 @@
+package nu.nerd.perf.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Player;
+
+import nu.nerd.perf.NerdPerf;
+
+// ----------------------------------------------------------------------------
+/**
+ * Synthetic Worlds, Chunks, Entities and tile entities for benchmarks.
+ *
+ * The Bukkit types are interfaces, implemented here by dynamic proxies that
+ * answer only the methods the counting tasks call. Proxy dispatch adds a
+ * roughly constant cost per call, so results are best compared with each
+ * other rather than read as absolute server costs.
+ */
+public final class Fixtures {
+    // ------------------------------------------------------------------------
+    /**
+     * Configure {@link NerdPerf#CONFIG} and {@link NerdPerf#BUDGET} as the
+     * default config.yml would, without loading the plugin.
+     *
+     * @param hotspots whether to report the densest chunks.
+     */
+    public static void configure(boolean hotspots) {
+        NerdPerf.CONFIG.TASK_TIME_LIMIT_MILLIS = 5;
+        NerdPerf.CONFIG.BATCH_ENTITIES = 100;
+        NerdPerf.CONFIG.BATCH_CHUNKS = 30;
+        NerdPerf.CONFIG.ADAPTIVE = false;
+        NerdPerf.CONFIG.DEBUG_COUNTS = false;
+        NerdPerf.CONFIG.HOTSPOTS = hotspots;
+        NerdPerf.CONFIG.HOTSPOTS_LIMIT = 10;
+        NerdPerf.CONFIG.setTileEntityTypes(Arrays.asList(Material.HOPPER, Material.FURNACE,
+                                                         Material.CHEST, Material.SPAWNER));
+        NerdPerf.BUDGET.configure();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a World.
+     *
+     * @param name the world name.
+     * @param entities the entities in the world.
+     * @param chunks the loaded chunks.
+     * @return the World.
+     */
+    public static World world(String name, List<Entity> entities, Chunk[] chunks) {
+        return world(name, entities, chunks, new ArrayList<Player>());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a World with players in it.
+     *
+     * @param name the world name.
+     * @param entities the entities in the world.
+     * @param chunks the loaded chunks.
+     * @param players the players in the world.
+     * @return the World.
+     */
+    public static World world(String name, List<Entity> entities, Chunk[] chunks, List<Player> players) {
+        return proxy(World.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+            case "getName":
+                return name;
+            case "getViewDistance":
+                return 10;
+            case "getEntities":
+                return entities;
+            case "getLoadedChunks":
+                return chunks;
+            case "getPlayers":
+                return players;
+            default:
+                return objectMethod(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return entities of commonly encountered types, scattered at random
+     * over a square of chunks centred on the origin.
+     *
+     * @param count the number of entities.
+     * @param chunks the number of chunks they are scattered over.
+     * @param seed the random seed.
+     * @return the entities.
+     */
+    public static List<Entity> entities(int count, int chunks, long seed) {
+        Random random = new Random(seed);
+        int halfSide = (int) Math.ceil(Math.sqrt(chunks)) * 16 / 2;
+        List<Entity> entities = new ArrayList<Entity>(count);
+        for (int i = 0; i < count; ++i) {
+            EntityType type = ENTITY_TYPES[random.nextInt(ENTITY_TYPES.length)];
+            double x = random.nextDouble() * 2 * halfSide - halfSide;
+            double y = 64 + random.nextDouble() * 64;
+            double z = random.nextDouble() * 2 * halfSide - halfSide;
+            entities.add(entity(type, x, y, z));
+        }
+        return entities;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return players scattered at random over a square of chunks centred on
+     * the origin.
+     *
+     * @param count the number of players.
+     * @param chunks the number of chunks they are scattered over.
+     * @param seed the random seed.
+     * @return the players.
+     */
+    public static List<Player> players(int count, int chunks, long seed) {
+        Random random = new Random(seed);
+        int halfSide = (int) Math.ceil(Math.sqrt(chunks)) * 16 / 2;
+        List<Player> players = new ArrayList<Player>(count);
+        for (int i = 0; i < count; ++i) {
+            String name = "player" + i;
+            double x = random.nextDouble() * 2 * halfSide - halfSide;
+            double z = random.nextDouble() * 2 * halfSide - halfSide;
+            players.add(proxy(Player.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                case "getName":
+                    return name;
+                case "getLocation":
+                    Location location = (Location) args[0];
+                    location.setX(x);
+                    location.setY(64);
+                    location.setZ(z);
+                    return location;
+                default:
+                    return objectMethod(proxy, method.getName(), args);
+                }
+            }));
+        }
+        return players;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a square of loaded chunks centred on the origin, each containing
+     * tile entities of commonly encountered types, some of which are not
+     * counted.
+     *
+     * @param count the number of chunks.
+     * @param tileEntitiesPerChunk the average number of tile entities in a
+     *        chunk.
+     * @param seed the random seed.
+     * @return the chunks.
+     */
+    public static Chunk[] chunks(int count, int tileEntitiesPerChunk, long seed) {
+        Random random = new Random(seed);
+        int side = (int) Math.ceil(Math.sqrt(count));
+        Chunk[] chunks = new Chunk[count];
+        for (int i = 0; i < count; ++i) {
+            BlockState[] tileEntities = new BlockState[random.nextInt(2 * tileEntitiesPerChunk + 1)];
+            for (int j = 0; j < tileEntities.length; ++j) {
+                tileEntities[j] = tileEntity(TILE_ENTITY_TYPES[random.nextInt(TILE_ENTITY_TYPES.length)]);
+            }
+            chunks[i] = chunk(i % side - side / 2, i / side - side / 2, tileEntities);
+        }
+        return chunks;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an Entity.
+     *
+     * @param type the type.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @param z the z coordinate.
+     * @return the Entity.
+     */
+    public static Entity entity(EntityType type, double x, double y, double z) {
+        return proxy(Entity.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+            case "getType":
+                return type;
+            case "getLocation":
+                if (args != null && args.length == 1 && args[0] != null) {
+                    Location location = (Location) args[0];
+                    location.setX(x);
+                    location.setY(y);
+                    location.setZ(z);
+                    return location;
+                }
+                return new Location(null, x, y, z);
+            default:
+                return objectMethod(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a loaded Chunk.
+     *
+     * @param x the chunk x coordinate.
+     * @param z the chunk z coordinate.
+     * @param tileEntities the tile entities in the chunk.
+     * @return the Chunk.
+     */
+    public static Chunk chunk(int x, int z, BlockState[] tileEntities) {
+        return proxy(Chunk.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+            case "getX":
+                return x;
+            case "getZ":
+                return z;
+            case "isLoaded":
+                return true;
+            case "getTileEntities":
+                return tileEntities;
+            case "getChunkSnapshot":
+                return snapshot(x, z, tileEntities);
+            default:
+                return objectMethod(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a ChunkSnapshot of a chunk whose only non-empty section is the
+     * bottom one, filled with stone apart from one block for each tile
+     * entity, starting from the bottom corner.
+     *
+     * @param x the chunk x coordinate.
+     * @param z the chunk z coordinate.
+     * @param tileEntities the tile entities in the chunk.
+     * @return the ChunkSnapshot.
+     */
+    public static ChunkSnapshot snapshot(int x, int z, BlockState[] tileEntities) {
+        Material[] blocks = new Material[tileEntities.length];
+        for (int i = 0; i < blocks.length; ++i) {
+            blocks[i] = tileEntities[i].getType();
+        }
+        return proxy(ChunkSnapshot.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+            case "getX":
+                return x;
+            case "getZ":
+                return z;
+            case "isSectionEmpty":
+                return (Integer) args[0] != 0;
+            case "getBlockType":
+                int index = ((Integer) args[1] << 8) | ((Integer) args[2] << 4) | (Integer) args[0];
+                return (index < blocks.length) ? blocks[index] : Material.STONE;
+            default:
+                return objectMethod(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a tile entity.
+     *
+     * @param type the block type.
+     * @return the tile entity.
+     */
+    public static BlockState tileEntity(Material type) {
+        return proxy(BlockState.class, (proxy, method, args) -> {
+            if (method.getName().equals("getType")) {
+                return type;
+            }
+            return objectMethod(proxy, method.getName(), args);
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a dynamic proxy implementing an interface.
+     *
+     * @param type the interface.
+     * @param handler the invocation handler.
+     * @return the proxy.
+     */
+    protected static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(Fixtures.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Implement the methods of Object for a proxy, using identity semantics.
+     *
+     * @param proxy the proxy.
+     * @param name the method name.
+     * @param args the method arguments.
+     * @return the result of the method.
+     * @throws UnsupportedOperationException for methods not of Object.
+     */
+    protected static Object objectMethod(Object proxy, String name, Object[] args) {
+        switch (name) {
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        case "equals":
+            return proxy == args[0];
+        case "toString":
+            return "Fixture@" + Integer.toHexString(System.identityHashCode(proxy));
+        default:
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Entity types that the synthetic entities are drawn from.
+     */
+    protected static final EntityType[] ENTITY_TYPES = {
+        EntityType.DROPPED_ITEM, EntityType.DROPPED_ITEM, EntityType.COW, EntityType.PIG,
+        EntityType.ITEM_FRAME, EntityType.ZOMBIE, EntityType.VILLAGER, EntityType.ARMOR_STAND
+    };
+
+    /**
+     * Tile entity types that the synthetic tile entities are drawn from.
+     */
+    protected static final Material[] TILE_ENTITY_TYPES = {
+        Material.HOPPER, Material.HOPPER, Material.CHEST, Material.CHEST, Material.FURNACE,
+        Material.BARREL, Material.DISPENSER, Material.SPAWNER
+    };
+
+    // ------------------------------------------------------------------------
+    /**
+     * Not instantiable.
+     */
+    private Fixtures() {
+    }
+} // class Fixtures
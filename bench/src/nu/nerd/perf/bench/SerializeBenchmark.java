@@ -0,0 +1,131 @@
+package nu.nerd.perf.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.World;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nu.nerd.perf.CountEntitiesTask;
+import nu.nerd.perf.CountTileEntitiesTask;
+import nu.nerd.perf.JSONWriter;
+import nu.nerd.perf.MetricsSnapshot;
+import nu.nerd.perf.OpenMetricsFormat;
+import nu.nerd.perf.TPSTask;
+import nu.nerd.perf.TextBuffer;
+
+// ----------------------------------------------------------------------------
+/**
+ * Benchmarks encoding a populated {@link MetricsSnapshot} as JSON and as
+ * OpenMetrics text, into a reused buffer as the query server does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializeBenchmark {
+    // ------------------------------------------------------------------------
+    /**
+     * Fill a snapshot by counting synthetic worlds.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        Fixtures.configure(hotspots);
+        _snapshot = MetricsSnapshot.obtain();
+        _snapshot.players = 100;
+        _snapshot.tps = 19.95f;
+        for (int i = 0; i < _snapshot.tick.length; ++i) {
+            TPSTask.Stats stats = _snapshot.tick[i];
+            stats.ticks = TPSTask.WINDOW_SECONDS[i] * 20;
+            stats.tps = 19.9;
+            stats.meanMillis = 50.2;
+            stats.p50Millis = 49.9;
+            stats.p95Millis = 53.1;
+            stats.p99Millis = 61.7;
+            stats.maxMillis = 412.3;
+        }
+        _snapshot.memoryUsed = 6000;
+        _snapshot.memoryMax = 12000;
+
+        for (int w = 0; w < WORLDS; ++w) {
+            World world = Fixtures.world("world" + w, Fixtures.entities(20000, 2000, w),
+                                         Fixtures.chunks(2000, 8, w));
+            MetricsSnapshot.WorldMetrics metrics = _snapshot.addWorld(world);
+            CountEntitiesTask entities = new CountEntitiesTask(world, metrics);
+            while (entities.getAsBoolean()) {
+            }
+            CountTileEntitiesTask tileEntities = new CountTileEntitiesTask(world, metrics);
+            while (tileEntities.getAsBoolean()) {
+            }
+        }
+
+        _text = new TextBuffer(65536);
+        _json = new JSONWriter(_text);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode the snapshot as JSON.
+     *
+     * @return the number of bytes encoded.
+     */
+    @Benchmark
+    public int json() {
+        _text.clear();
+        _json.reset();
+        _snapshot.writeJSON(_json);
+        return _text.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode the snapshot as OpenMetrics text.
+     *
+     * @return the number of bytes encoded.
+     */
+    @Benchmark
+    public int openMetrics() {
+        _text.clear();
+        OpenMetricsFormat.write(_snapshot, _text);
+        return _text.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Whether the snapshot includes hotspots.
+     */
+    @Param({ "false", "true" })
+    public boolean hotspots;
+
+    /**
+     * The number of worlds in the snapshot.
+     */
+    protected static final int WORLDS = 3;
+
+    /**
+     * The encoded snapshot.
+     */
+    protected MetricsSnapshot _snapshot;
+
+    /**
+     * Reused output buffer.
+     */
+    protected TextBuffer _text;
+
+    /**
+     * Writes JSON to _text.
+     */
+    protected JSONWriter _json;
+} // class SerializeBenchmark
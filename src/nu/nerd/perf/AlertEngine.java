@@ -0,0 +1,179 @@
+package nu.nerd.perf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+
+// ----------------------------------------------------------------------------
+/**
+ * Evaluates the configured {@link AlertRule}s against every snapshot that a
+ * scan completes, and takes the rules' actions when they fire or resolve.
+ *
+ * Rules see the snapshots of every scan, whether requested by a client, the
+ * history, the push exporter or a background refresh, and ignore snapshots
+ * that do not contain their metric. So that rules are evaluated even when
+ * nothing else is scanning, the engine also requests the metrics that the
+ * rules need every alerts.interval-seconds. Since requests share scans and
+ * cached results, this costs nothing extra while the server is being queried
+ * more often than that.
+ *
+ * Evaluation can happen in the main thread or a counting pool thread, and
+ * synchronizes on this instance. It costs one accessor call and a comparison
+ * per rule, and does not allocate unless a rule fires or resolves.
+ */
+public class AlertEngine {
+    // ------------------------------------------------------------------------
+    /**
+     * Apply the current configuration, replacing the rules and (re)scheduling
+     * the evaluation task.
+     *
+     * The state of the previous rules is discarded.
+     *
+     * This method must be called in the main thread.
+     */
+    public void configure() {
+        stop();
+
+        int top = 0;
+        HashMap<String, Integer> worlds = new HashMap<String, Integer>();
+        for (AlertRule rule : NerdPerf.CONFIG.ALERT_RULES) {
+            if (rule.getWorld() != null) {
+                worlds.merge(rule.getWorld(), rule.getField(), (a, b) -> a | b);
+            } else {
+                top |= rule.getFlag();
+            }
+        }
+        synchronized (this) {
+            _rules = new ArrayList<AlertRule>(NerdPerf.CONFIG.ALERT_RULES);
+            _selection = new MetricsSelection(top, worlds);
+        }
+
+        if (!_rules.isEmpty() && NerdPerf.CONFIG.ALERTS_INTERVAL_SECONDS > 0) {
+            long periodTicks = NerdPerf.CONFIG.ALERTS_INTERVAL_SECONDS * 20L;
+            _taskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(NerdPerf.PLUGIN, this::request,
+                                                                      periodTicks, periodTicks);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop the evaluation task, if scheduled.
+     *
+     * This method must be called in the main thread.
+     */
+    public void stop() {
+        if (_taskId != -1) {
+            Bukkit.getScheduler().cancelTask(_taskId);
+            _taskId = -1;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the rules.
+     *
+     * @return a copy of the list of rules.
+     */
+    public synchronized List<AlertRule> getRules() {
+        return new ArrayList<AlertRule>(_rules);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Evaluate every rule against a newly completed snapshot.
+     *
+     * This method can be called from any thread.
+     *
+     * @param metrics the snapshot.
+     */
+    public synchronized void evaluate(MetricsSnapshot metrics) {
+        long now = System.nanoTime();
+        for (int i = 0; i < _rules.size(); ++i) {
+            AlertRule rule = _rules.get(i);
+            int result = rule.evaluate(metrics, now);
+            if (result != AlertRule.UNCHANGED) {
+                notify(rule, result == AlertRule.FIRED);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Request the metrics that the rules need, so that they are evaluated
+     * when the scan completes, unless the previous request is still pending.
+     */
+    protected void request() {
+        if (_pending) {
+            return;
+        }
+        _pending = true;
+        NerdPerf.PLUGIN.requestMetrics(_selection).whenComplete((metrics, ex) -> {
+            _pending = false;
+            if (metrics != null) {
+                metrics.release();
+            } else if (NerdPerf.CONFIG.DEBUG_OVERHEAD) {
+                NerdPerf.PLUGIN.getLogger().info("Alert evaluation skipped: " + ex);
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Take a rule's actions when it fires or resolves.
+     *
+     * @param rule the rule.
+     * @param fired true if the rule fired, false if it resolved.
+     */
+    protected void notify(AlertRule rule, boolean fired) {
+        String value = String.format("%.2f", rule.getValue());
+        String message = fired ? "Alert " + rule.getName() + " firing: " + rule.getMetric() + " is " + value +
+                                 ", " + rule.describe() + "."
+                               : "Alert " + rule.getName() + " resolved: " + rule.getMetric() + " is " + value + ".";
+
+        if ((rule.getActions() & AlertRule.LOG) != 0) {
+            if (fired) {
+                NerdPerf.PLUGIN.getLogger().warning(message);
+            } else {
+                NerdPerf.PLUGIN.getLogger().info(message);
+            }
+        }
+        if ((rule.getActions() & AlertRule.BROADCAST) != 0) {
+            String broadcast = (fired ? ChatColor.RED : ChatColor.GREEN) + "[NerdPerf] " + message;
+            if (Bukkit.isPrimaryThread()) {
+                Bukkit.broadcast(broadcast, "nerdperf.admin");
+            } else {
+                Bukkit.getScheduler().runTask(NerdPerf.PLUGIN, () -> Bukkit.broadcast(broadcast, "nerdperf.admin"));
+            }
+        }
+        if ((rule.getActions() & AlertRule.PUSH) != 0) {
+            PushExporter exporter = NerdPerf.PLUGIN.getPushExporter();
+            if (exporter != null) {
+                exporter.alert(rule.getName(), fired);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The rules; guarded by this instance.
+     */
+    protected List<AlertRule> _rules = new ArrayList<AlertRule>();
+
+    /**
+     * The metrics that the rules need.
+     */
+    protected MetricsSelection _selection;
+
+    /**
+     * The ID of the evaluation task, or -1 if not scheduled.
+     */
+    protected int _taskId = -1;
+
+    /**
+     * True while a request for metrics is pending.
+     */
+    protected volatile boolean _pending;
+} // class AlertEngine
@@ -0,0 +1,618 @@
+package nu.nerd.perf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToDoubleBiFunction;
+import java.util.function.ToDoubleFunction;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.EntityType;
+
+// ----------------------------------------------------------------------------
+/**
+ * A threshold alert on one metric, with hysteresis and a cooldown, and its
+ * current state.
+ *
+ * A rule is defined in the configuration by a metric path, a threshold that
+ * the metric must be above or below to breach the rule, the time it must stay
+ * in breach before the rule fires, and a clear level that the metric must
+ * cross back over before the rule resolves. Setting the clear level a little
+ * way inside the threshold stops a metric that hovers around the threshold
+ * from firing the rule repeatedly.
+ *
+ * The metric path is compiled once, when the configuration is loaded, into an
+ * accessor that reads the value directly from the fields of a
+ * {@link MetricsSnapshot}, so evaluating a rule does not parse, allocate or
+ * look anything up by name, other than finding a world among the few in the
+ * snapshot.
+ *
+ * Rules are not thread-safe; {@link AlertEngine} serializes evaluation.
+ */
+public class AlertRule {
+    // ------------------------------------------------------------------------
+    /**
+     * Result of {@link #evaluate(MetricsSnapshot, long)} when the rule does
+     * not need to notify anyone.
+     */
+    public static final int UNCHANGED = 0;
+
+    /**
+     * Result of {@link #evaluate(MetricsSnapshot, long)} when the rule fires.
+     */
+    public static final int FIRED = 1;
+
+    /**
+     * Result of {@link #evaluate(MetricsSnapshot, long)} when a rule that
+     * fired resolves.
+     */
+    public static final int RESOLVED = 2;
+
+    /**
+     * Action flag: log the alert to the console.
+     */
+    public static final int LOG = 1;
+
+    /**
+     * Action flag: broadcast the alert to players with the nerdperf.admin
+     * permission.
+     */
+    public static final int BROADCAST = 2;
+
+    /**
+     * Action flag: write the alert state to the push sink.
+     */
+    public static final int PUSH = 4;
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse a rule from its configuration section.
+     *
+     * @param section the section, whose name is the name of the rule.
+     * @return the rule.
+     * @throws IllegalArgumentException if the rule is invalid.
+     */
+    public static AlertRule parse(ConfigurationSection section) {
+        AlertRule rule = new AlertRule(section.getName(), section.getString("metric"));
+        boolean above = section.contains("above");
+        boolean below = section.contains("below");
+        if (above == below) {
+            throw new IllegalArgumentException("exactly one of above or below must be set");
+        }
+        rule._above = above;
+        rule._threshold = section.getDouble(above ? "above" : "below");
+        rule._clear = section.getDouble("clear", rule._threshold);
+        if (above ? rule._clear > rule._threshold : rule._clear < rule._threshold) {
+            throw new IllegalArgumentException("clear must not be " + (above ? "above" : "below") +
+                                               " the threshold");
+        }
+        rule._forNanos = Math.max(0, section.getInt("for-seconds", 0)) * 1_000_000_000L;
+        rule._cooldownNanos = Math.max(0, section.getInt("cooldown-seconds", 0)) * 1_000_000_000L;
+
+        List<String> actions = section.isList("actions") ? section.getStringList("actions") : null;
+        if (actions == null || actions.isEmpty()) {
+            rule._actions = LOG;
+        } else {
+            for (String action : actions) {
+                switch (action.toLowerCase()) {
+                case "log":
+                    rule._actions |= LOG;
+                    break;
+                case "broadcast":
+                    rule._actions |= BROADCAST;
+                    break;
+                case "push":
+                    rule._actions |= PUSH;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown action: " + action);
+                }
+            }
+        }
+        return rule;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param name the name of the rule.
+     * @param metric the metric path.
+     * @throws IllegalArgumentException if the metric path is invalid.
+     */
+    protected AlertRule(String name, String metric) {
+        if (metric == null) {
+            throw new IllegalArgumentException("no metric");
+        }
+        _name = name;
+        _metric = metric;
+        _accessor = compile(metric);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of the rule.
+     *
+     * @return the name.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the metric path.
+     *
+     * @return the metric path.
+     */
+    public String getMetric() {
+        return _metric;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link MetricsSelection} overall flag of the metric.
+     *
+     * @return the flag, or 0 if the metric is per-world.
+     */
+    public int getFlag() {
+        return _flag;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the world of a per-world metric.
+     *
+     * @return the world name, or null if the metric is not per-world.
+     */
+    public String getWorld() {
+        return _world;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the {@link MetricsSelection} field flag of a per-world metric.
+     *
+     * @return the field flag, or 0 if the metric is not per-world.
+     */
+    public int getField() {
+        return _field;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the actions taken when the rule fires or resolves.
+     *
+     * @return a bitwise OR of {@link #LOG}, {@link #BROADCAST} and
+     *         {@link #PUSH}.
+     */
+    public int getActions() {
+        return _actions;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the most recently evaluated value of the metric.
+     *
+     * @return the value, or NaN if not yet evaluated.
+     */
+    public double getValue() {
+        return _value;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the rule has fired and not yet resolved.
+     *
+     * @return true if the rule is firing.
+     */
+    public boolean isFiring() {
+        return _state == STATE_FIRING;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a description of the rule's condition, such as
+     * "below 15.0 for 30 s".
+     *
+     * @return the description.
+     */
+    public String describe() {
+        String condition = (_above ? "above " : "below ") + _threshold;
+        return (_forNanos == 0) ? condition : condition + " for " + (_forNanos / 1_000_000_000L) + " s";
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Evaluate the rule against a snapshot, advancing its state.
+     *
+     * Snapshots that do not contain the metric leave the state unchanged.
+     *
+     * @param metrics the snapshot.
+     * @param nowNanos the current System.nanoTime() value.
+     * @return {@link #FIRED} or {@link #RESOLVED} if the rule's actions
+     *         should be taken, otherwise {@link #UNCHANGED}.
+     */
+    public int evaluate(MetricsSnapshot metrics, long nowNanos) {
+        double value = _accessor.applyAsDouble(metrics);
+        if (Double.isNaN(value)) {
+            return UNCHANGED;
+        }
+        _value = value;
+
+        switch (_state) {
+        case STATE_OK:
+            if (!isBreached(value)) {
+                return UNCHANGED;
+            }
+            _state = STATE_PENDING;
+            _pendingSinceNanos = nowNanos;
+            // Fall through, in case the rule fires immediately.
+
+        case STATE_PENDING:
+            if (!isBreached(value)) {
+                _state = STATE_OK;
+                return UNCHANGED;
+            }
+            if (nowNanos - _pendingSinceNanos < _forNanos) {
+                return UNCHANGED;
+            }
+            _state = STATE_FIRING;
+            _notified = (_lastFiredNanos == 0 || nowNanos - _lastFiredNanos >= _cooldownNanos);
+            if (!_notified) {
+                return UNCHANGED;
+            }
+            _lastFiredNanos = nowNanos;
+            return FIRED;
+
+        default:
+            if (_above ? value >= _clear : value <= _clear) {
+                return UNCHANGED;
+            }
+            _state = STATE_OK;
+            return _notified ? RESOLVED : UNCHANGED;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if a value breaches the threshold.
+     *
+     * @param value the value.
+     * @return true if the value breaches the threshold.
+     */
+    protected boolean isBreached(double value) {
+        return _above ? value > _threshold : value < _threshold;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compile a metric path into an accessor, and set the flags used to
+     * select it.
+     *
+     * @param metric the metric path.
+     * @return the accessor, which returns NaN if the metric is not in a
+     *         snapshot.
+     * @throws IllegalArgumentException if the metric path is invalid or names
+     *         a world that is not measured.
+     */
+    protected ToDoubleFunction<MetricsSnapshot> compile(String metric) {
+        switch (metric) {
+        case "tps":
+            return overall(MetricsSelection.TPS, m -> m.tps);
+        case "players":
+            return overall(MetricsSelection.PLAYERS, m -> m.players);
+        case "memory.used":
+            return overall(MetricsSelection.MEMORY, m -> m.memoryUsed);
+        case "memory.max":
+            return overall(MetricsSelection.MEMORY, m -> m.memoryMax);
+        case "memory.percent":
+            return overall(MetricsSelection.MEMORY, m -> 100.0 * m.memoryUsed / m.memoryMax);
+        case "memory.allocation_rate":
+            return overall(MetricsSelection.MEMORY, m -> m.gc.allocationRate / 1048576);
+        case "memory.old_gen_after_gc":
+            return overall(MetricsSelection.MEMORY,
+                           m -> (m.gc.oldGenAfterGC < 0) ? Double.NaN : m.gc.oldGenAfterGC / 1048576.0);
+        case "memory.old_gen_after_gc_percent":
+            return overall(MetricsSelection.MEMORY,
+                           m -> (m.gc.oldGenAfterGC < 0) ? Double.NaN
+                                                         : 100.0 * m.gc.oldGenAfterGC / (m.memoryMax * 1048576.0));
+        }
+
+        String[] parts = metric.split("\\.");
+        if (parts[0].equals("tick") && parts.length == 3) {
+            int window = indexOf(TPSTask.WINDOW_NAMES, parts[1]);
+            ToDoubleFunction<TPSTask.Stats> stat = tickStat(parts[2]);
+            if (window >= 0 && stat != null) {
+                return overall(MetricsSelection.TICK, m -> stat.applyAsDouble(m.tick[window]));
+            }
+        } else if (parts[0].equals("worlds")) {
+            // World names may contain dots, so find the field from the end.
+            for (int i = parts.length - 1; i >= 2 && i >= parts.length - 2; --i) {
+                ToDoubleBiFunction<MetricsSnapshot, MetricsSnapshot.WorldMetrics> field =
+                    worldField(parts[i], parts.length - 1 - i, parts[parts.length - 1]);
+                if (field != null) {
+                    _world = String.join(".", Arrays.copyOfRange(parts, 1, i));
+                    if (!NerdPerf.CONFIG.WORLD_NAMES.contains(_world)) {
+                        throw new IllegalArgumentException("unknown world: " + _world);
+                    }
+                    String world = _world;
+                    int flag = _field;
+                    return m -> {
+                        for (int w = 0; w < m.getWorldCount(); ++w) {
+                            MetricsSnapshot.WorldMetrics worldMetrics = m.getWorld(w);
+                            if (worldMetrics.name.equals(world)) {
+                                return ((worldMetrics.fields & flag) != 0) ? field.applyAsDouble(m, worldMetrics)
+                                                                           : Double.NaN;
+                            }
+                        }
+                        return Double.NaN;
+                    };
+                }
+            }
+        }
+        throw new IllegalArgumentException("unknown metric: " + metric);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an accessor of an overall metric that is NaN unless the metric
+     * is in the snapshot's selection.
+     *
+     * @param flag the {@link MetricsSelection} overall flag.
+     * @param accessor reads the metric.
+     * @return the accessor.
+     */
+    protected ToDoubleFunction<MetricsSnapshot> overall(int flag, ToDoubleFunction<MetricsSnapshot> accessor) {
+        _flag = flag;
+        return m -> m.selection.includes(flag) ? accessor.applyAsDouble(m) : Double.NaN;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the accessor of a tick duration statistic.
+     *
+     * @param name the statistic name, as in the JSON.
+     * @return the accessor, or null if the name is invalid.
+     */
+    protected static ToDoubleFunction<TPSTask.Stats> tickStat(String name) {
+        switch (name) {
+        case "tps":
+            return s -> s.tps;
+        case "mean_ms":
+            return s -> s.meanMillis;
+        case "p50_ms":
+            return s -> s.p50Millis;
+        case "p95_ms":
+            return s -> s.p95Millis;
+        case "p99_ms":
+            return s -> s.p99Millis;
+        case "max_ms":
+            return s -> s.maxMillis;
+        default:
+            return null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the accessor of a per-world metric, and set its field flag.
+     *
+     * @param name the field name, as in the JSON.
+     * @param subparts the number of path components after the field name,
+     *        0 or 1.
+     * @param subpart the last path component, naming a type or rate if
+     *        subparts is 1.
+     * @return the accessor, which reads the metric from a snapshot and the
+     *         metrics of the world in it, or null if the field is invalid.
+     */
+    protected ToDoubleBiFunction<MetricsSnapshot, MetricsSnapshot.WorldMetrics> worldField(String name, int subparts,
+                                                                                         String subpart) {
+        if (subparts == 0) {
+            switch (name) {
+            case "view_distance":
+                _field = MetricsSelection.VIEW_DISTANCE;
+                return (m, w) -> w.viewDistance;
+            case "chunks":
+                _field = MetricsSelection.CHUNKS;
+                return (m, w) -> w.chunks;
+            case "hoppers":
+                _field = MetricsSelection.HOPPERS;
+                return (m, w) -> (m.hopperIndex < 0) ? Double.NaN : w.tileEntities[m.hopperIndex];
+            case "entities":
+                _field = MetricsSelection.ENTITIES;
+                return (m, w) -> sum(w.entities);
+            case "tile_entities":
+                _field = MetricsSelection.TILE_ENTITIES;
+                return (m, w) -> sum(w.tileEntities);
+            default:
+                return null;
+            }
+        }
+
+        switch (name) {
+        case "entities":
+            EntityType entityType;
+            try {
+                entityType = EntityType.valueOf(subpart);
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+            int ordinal = entityType.ordinal();
+            _field = MetricsSelection.ENTITIES;
+            return (m, w) -> w.entities[ordinal];
+        case "tile_entities":
+            // The index is checked against the snapshot, in case the
+            // configured types change.
+            Material material = Material.matchMaterial(subpart);
+            int index = (material == null) ? -1 : NerdPerf.CONFIG.TILE_ENTITY_TYPES.indexOf(material);
+            if (index < 0) {
+                return null;
+            }
+            String typeName = material.name();
+            _field = MetricsSelection.TILE_ENTITIES;
+            return (m, w) -> (index < m.tileEntityTypeNames.length && m.tileEntityTypeNames[index].equals(typeName))
+                ? w.tileEntities[index]
+                : Double.NaN;
+        case "chunk_rates":
+            ToDoubleBiFunction<MetricsSnapshot, MetricsSnapshot.WorldMetrics> rate;
+            switch (subpart) {
+            case "loads":
+                rate = (m, w) -> w.chunkLoadsPerSecond;
+                break;
+            case "unloads":
+                rate = (m, w) -> w.chunkUnloadsPerSecond;
+                break;
+            case "generations":
+                rate = (m, w) -> w.chunkGenerationsPerSecond;
+                break;
+            default:
+                return null;
+            }
+            _field = MetricsSelection.CHUNK_RATES;
+            return rate;
+        default:
+            return null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of a string in an array.
+     *
+     * @param array the array.
+     * @param value the string.
+     * @return the index, or -1 if not found.
+     */
+    protected static int indexOf(String[] array, String value) {
+        for (int i = 0; i < array.length; ++i) {
+            if (array[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the sum of an array of counts.
+     *
+     * @param counts the counts.
+     * @return the sum.
+     */
+    protected static double sum(int[] counts) {
+        long sum = 0;
+        for (int count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * State: the metric is within the threshold.
+     */
+    protected static final int STATE_OK = 0;
+
+    /**
+     * State: the metric has breached the threshold, but not for long enough
+     * to fire.
+     */
+    protected static final int STATE_PENDING = 1;
+
+    /**
+     * State: the rule has fired and the metric has not yet crossed the clear
+     * level.
+     */
+    protected static final int STATE_FIRING = 2;
+
+    /**
+     * The name of the rule.
+     */
+    protected final String _name;
+
+    /**
+     * The metric path.
+     */
+    protected final String _metric;
+
+    /**
+     * Reads the metric from a snapshot.
+     */
+    protected final ToDoubleFunction<MetricsSnapshot> _accessor;
+
+    /**
+     * The {@link MetricsSelection} overall flag of the metric, or 0 if it is
+     * per-world.
+     */
+    protected int _flag;
+
+    /**
+     * The world of a per-world metric, or null.
+     */
+    protected String _world;
+
+    /**
+     * The {@link MetricsSelection} field flag of a per-world metric, or 0.
+     */
+    protected int _field;
+
+    /**
+     * True if the rule is breached above the threshold, false if below.
+     */
+    protected boolean _above;
+
+    /**
+     * The threshold.
+     */
+    protected double _threshold;
+
+    /**
+     * The level that the metric must cross back over to resolve the rule.
+     */
+    protected double _clear;
+
+    /**
+     * The time, in nanoseconds, that the metric must stay in breach before
+     * the rule fires.
+     */
+    protected long _forNanos;
+
+    /**
+     * The minimum time, in nanoseconds, between notifications of the rule
+     * firing.
+     */
+    protected long _cooldownNanos;
+
+    /**
+     * The actions taken when the rule fires or resolves.
+     */
+    protected int _actions;
+
+    /**
+     * The current state.
+     */
+    protected int _state = STATE_OK;
+
+    /**
+     * The System.nanoTime() value when the metric was first seen in breach.
+     */
+    protected long _pendingSinceNanos;
+
+    /**
+     * The System.nanoTime() value when the rule last notified of firing, or
+     * 0 if it never has.
+     */
+    protected long _lastFiredNanos;
+
+    /**
+     * True if the current firing was notified, rather than suppressed by the
+     * cooldown, so that its resolution is notified too.
+     */
+    protected boolean _notified;
+
+    /**
+     * The most recently evaluated value.
+     */
+    protected double _value = Double.NaN;
+} // class AlertRule
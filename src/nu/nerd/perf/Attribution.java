@@ -0,0 +1,223 @@
+package nu.nerd.perf;
+
+import java.util.Arrays;
+
+import org.bukkit.World;
+
+// ----------------------------------------------------------------------------
+/**
+ * Counts of the entities, tile entities and loaded chunks in a world that are
+ * attributed to each online player, being nearer to that player than to any
+ * other and within the world's view distance of them, and of those that are
+ * unattended.
+ *
+ * A {@link PlayerIndex} of the players' positions is built once per scan, by
+ * {@link #reset(World)}, so that the counting tasks attribute each object in
+ * O(log p) time for p players in the world.
+ *
+ * Entities are attributed by the main thread while tile entities and chunks
+ * may be attributed by another thread, so the two families are counted in
+ * separate arrays.
+ */
+public class Attribution {
+    // ------------------------------------------------------------------------
+    /**
+     * Discard the previous counts and index the current positions of the
+     * world's players.
+     *
+     * This method must be called in the main thread.
+     *
+     * @param world the world.
+     */
+    public void reset(World world) {
+        _index.rebuild(world.getPlayers());
+        _viewDistance = world.getViewDistance();
+        int size = _index.size() + 1;
+        if (_entities.length != size) {
+            _entities = new int[size];
+            _tileEntities = new int[size];
+            _chunks = new int[size];
+        } else {
+            Arrays.fill(_entities, 0);
+            Arrays.fill(_tileEntities, 0);
+            Arrays.fill(_chunks, 0);
+        }
+        entitiesCounted = false;
+        tileEntitiesCounted = false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Attribute an entity.
+     *
+     * @param chunkX the X coordinate of the entity's chunk.
+     * @param chunkZ the Z coordinate of the entity's chunk.
+     */
+    public void addEntity(int chunkX, int chunkZ) {
+        ++_entities[slot(chunkX, chunkZ)];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Attribute a loaded chunk and its counted tile entities.
+     *
+     * @param chunkX the chunk X coordinate.
+     * @param chunkZ the chunk Z coordinate.
+     * @param tileEntities the number of counted tile entities in the chunk.
+     */
+    public void addChunk(int chunkX, int chunkZ, int tileEntities) {
+        int slot = slot(chunkX, chunkZ);
+        ++_chunks[slot];
+        _tileEntities[slot] += tileEntities;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the counts as a JSON object with per-player counts in "players"
+     * and the rest in "unattended".
+     *
+     * Only families that were counted are written.
+     *
+     * @param out the JSON writer.
+     */
+    public void writeJSON(JSONWriter out) {
+        out.beginObject();
+        out.key("players").beginObject();
+        for (int player = 0; player < _index.size(); ++player) {
+            out.key(_index.getName(player));
+            writeCounts(out, player);
+        }
+        out.endObject();
+        out.key("unattended");
+        writeCounts(out, _index.size());
+        out.endObject();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of players that objects are attributed to.
+     *
+     * @return the number of players.
+     */
+    public int getPlayerCount() {
+        return _index.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of a player.
+     *
+     * @param player the player index, less than getPlayerCount().
+     * @return the player's name.
+     */
+    public String getPlayerName(int player) {
+        return _index.getName(player);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of entities attributed to a player.
+     *
+     * @param player the player index, or getPlayerCount() for unattended
+     *        entities.
+     * @return the number of entities.
+     */
+    public int getEntities(int player) {
+        return _entities[player];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of counted tile entities attributed to a player.
+     *
+     * @param player the player index, or getPlayerCount() for unattended
+     *        tile entities.
+     * @return the number of tile entities.
+     */
+    public int getTileEntities(int player) {
+        return _tileEntities[player];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of loaded chunks attributed to a player.
+     *
+     * @param player the player index, or getPlayerCount() for unattended
+     *        chunks.
+     * @return the number of chunks.
+     */
+    public int getChunks(int player) {
+        return _chunks[player];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the counts in one slot as a JSON object.
+     *
+     * @param out the JSON writer.
+     * @param slot the player index, or the player count for unattended.
+     */
+    protected void writeCounts(JSONWriter out, int slot) {
+        out.beginObject();
+        if (tileEntitiesCounted) {
+            out.field("chunks", _chunks[slot]);
+            out.field("tile_entities", _tileEntities[slot]);
+        }
+        if (entitiesCounted) {
+            out.field("entities", _entities[slot]);
+        }
+        out.endObject();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the slot that a chunk is attributed to.
+     *
+     * @param chunkX the chunk X coordinate.
+     * @param chunkZ the chunk Z coordinate.
+     * @return the index of the nearest player within the view distance, or
+     *         the player count if there is none.
+     */
+    protected int slot(int chunkX, int chunkZ) {
+        int player = _index.nearest(chunkX, chunkZ, _viewDistance);
+        return (player < 0) ? _index.size() : player;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * True once the entities in the world have been attributed.
+     */
+    public boolean entitiesCounted;
+
+    /**
+     * True once the tile entities and chunks in the world have been
+     * attributed.
+     */
+    public boolean tileEntitiesCounted;
+
+    /**
+     * Index of player positions.
+     */
+    protected final PlayerIndex _index = new PlayerIndex();
+
+    /**
+     * The world's view distance, in chunks, as of the last reset.
+     */
+    protected int _viewDistance;
+
+    /**
+     * Entity counts, indexed by player, with unattended entities last.
+     */
+    protected int[] _entities = new int[0];
+
+    /**
+     * Tile entity counts, indexed by player, with unattended tile entities
+     * last.
+     */
+    protected int[] _tileEntities = new int[0];
+
+    /**
+     * Loaded chunk counts, indexed by player, with unattended chunks last.
+     */
+    protected int[] _chunks = new int[0];
+} // class Attribution
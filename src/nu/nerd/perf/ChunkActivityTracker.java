@@ -0,0 +1,194 @@
+package nu.nerd.perf;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures the rates at which chunks are loaded, unloaded and generated in
+ * each world, to expose chunk churn, such as that caused by players flying
+ * with elytra.
+ *
+ * Chunk events increment striped counters, which are cheap to update however
+ * often chunks churn. Once per second, a synchronous task records each
+ * world's totals in a ring, and rates are computed on demand over the last
+ * {@value #RATE_WINDOW_SECONDS} seconds, the same window as the TPS, so that
+ * churn can be correlated with TPS drops. Since the ring records the time of
+ * each sample, rates remain accurate when lag delays the sampling task.
+ *
+ * Counters can be incremented from any thread. The other methods must be
+ * called in the main thread.
+ */
+public class ChunkActivityTracker implements Listener {
+    // ------------------------------------------------------------------------
+    /**
+     * Start sampling the counters once per second.
+     */
+    public void start() {
+        Bukkit.getScheduler().scheduleSyncRepeatingTask(NerdPerf.PLUGIN, this::sample, 20, 20);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the chunk rates of a world in its metrics.
+     *
+     * Rates are 0 until the world's counters have been sampled.
+     *
+     * @param world the world.
+     * @param metrics the metrics of the world.
+     */
+    public void getRates(World world, MetricsSnapshot.WorldMetrics metrics) {
+        WorldActivity activity = _worlds.get(world.getName());
+        if (activity == null || activity.samples == 0) {
+            metrics.chunkLoadsPerSecond = 0;
+            metrics.chunkUnloadsPerSecond = 0;
+            metrics.chunkGenerationsPerSecond = 0;
+            return;
+        }
+
+        int oldest = (activity.samples < RATE_SAMPLES) ? 0 : activity.index;
+        double seconds = (System.nanoTime() - activity.times[oldest]) * 1e-9;
+        if (seconds <= 0) {
+            seconds = 1;
+        }
+        metrics.chunkLoadsPerSecond = (activity.loads.sum() - activity.loadTotals[oldest]) / seconds;
+        metrics.chunkUnloadsPerSecond = (activity.unloads.sum() - activity.unloadTotals[oldest]) / seconds;
+        metrics.chunkGenerationsPerSecond = (activity.generations.sum() - activity.generationTotals[oldest]) /
+                                            seconds;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count loaded chunks, and newly generated chunks among them.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        WorldActivity activity = getActivity(event.getWorld());
+        activity.loads.increment();
+        if (event.isNewChunk()) {
+            activity.generations.increment();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count unloaded chunks.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        getActivity(event.getWorld()).unloads.increment();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop tracking unloaded worlds.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        _worlds.remove(event.getWorld().getName());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The counters and sampled totals of one world.
+     */
+    protected static class WorldActivity {
+        /**
+         * Number of chunks loaded, including generated chunks.
+         */
+        final LongAdder loads = new LongAdder();
+
+        /**
+         * Number of chunks unloaded.
+         */
+        final LongAdder unloads = new LongAdder();
+
+        /**
+         * Number of chunks generated.
+         */
+        final LongAdder generations = new LongAdder();
+
+        /**
+         * Ring of System.nanoTime() values when the counters were sampled.
+         */
+        final long[] times = new long[RATE_SAMPLES];
+
+        /**
+         * Ring of sampled load totals, corresponding to times.
+         */
+        final long[] loadTotals = new long[RATE_SAMPLES];
+
+        /**
+         * Ring of sampled unload totals, corresponding to times.
+         */
+        final long[] unloadTotals = new long[RATE_SAMPLES];
+
+        /**
+         * Ring of sampled generation totals, corresponding to times.
+         */
+        final long[] generationTotals = new long[RATE_SAMPLES];
+
+        /**
+         * Index in the rings where the next sample will be written.
+         */
+        int index;
+
+        /**
+         * Number of valid samples in the rings.
+         */
+        int samples;
+    } // class WorldActivity
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the activity of a world, creating it if necessary.
+     *
+     * @param world the world.
+     * @return the activity.
+     */
+    protected WorldActivity getActivity(World world) {
+        return _worlds.computeIfAbsent(world.getName(), name -> new WorldActivity());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the totals of every world in its ring.
+     */
+    protected void sample() {
+        long now = System.nanoTime();
+        for (WorldActivity activity : _worlds.values()) {
+            activity.times[activity.index] = now;
+            activity.loadTotals[activity.index] = activity.loads.sum();
+            activity.unloadTotals[activity.index] = activity.unloads.sum();
+            activity.generationTotals[activity.index] = activity.generations.sum();
+            activity.index = (activity.index + 1) % RATE_SAMPLES;
+            activity.samples = Math.min(activity.samples + 1, RATE_SAMPLES);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Duration, in seconds, of the window over which rates are computed.
+     */
+    protected static final int RATE_WINDOW_SECONDS = 10;
+
+    /**
+     * Number of samples in each ring, one more than the window so that the
+     * oldest sample is a full window before the most recent.
+     */
+    protected static final int RATE_SAMPLES = RATE_WINDOW_SECONDS + 1;
+
+    /**
+     * Activity of each world, by world name.
+     */
+    protected final ConcurrentHashMap<String, WorldActivity> _worlds = new ConcurrentHashMap<String, WorldActivity>();
+} // class ChunkActivityTracker
@@ -0,0 +1,89 @@
+package nu.nerd.perf;
+
+// ----------------------------------------------------------------------------
+/**
+ * Static methods for packing chunk coordinates into primitive long keys, for
+ * use with {@link LongIntHashMap}.
+ *
+ * A chunk key packs the 24-bit chunk X and Z coordinates into the low 48 bits
+ * of a long, which covers the entire range of valid chunk coordinates. A typed
+ * key additionally packs a 16-bit type index (such as an EntityType ordinal or
+ * an index into {@link Configuration#TILE_ENTITY_TYPES}) into the low bits, so
+ * that counts of several types in one chunk can share a map.
+ */
+public final class ChunkKeys {
+    // ------------------------------------------------------------------------
+    /**
+     * Return the key of the chunk with the specified coordinates.
+     *
+     * @param chunkX the chunk X coordinate.
+     * @param chunkZ the chunk Z coordinate.
+     * @return the chunk key.
+     */
+    public static long of(int chunkX, int chunkZ) {
+        return ((long) (chunkX & 0xFFFFFF) << 24) | (chunkZ & 0xFFFFFF);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the X coordinate of the chunk with the specified key.
+     *
+     * @param chunkKey the chunk key.
+     * @return the chunk X coordinate.
+     */
+    public static int x(long chunkKey) {
+        return (int) (chunkKey << 16 >> 40);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the Z coordinate of the chunk with the specified key.
+     *
+     * @param chunkKey the chunk key.
+     * @return the chunk Z coordinate.
+     */
+    public static int z(long chunkKey) {
+        return (int) (chunkKey << 40 >> 40);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a typed key combining a chunk key with a type index.
+     *
+     * @param chunkKey the chunk key.
+     * @param type the type index, in the range [0, 65535].
+     * @return the typed key.
+     */
+    public static long withType(long chunkKey, int type) {
+        return (chunkKey << 16) | (type & 0xFFFF);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the chunk key part of a typed key.
+     *
+     * @param typedKey the typed key.
+     * @return the chunk key.
+     */
+    public static long chunkOf(long typedKey) {
+        return typedKey >>> 16;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the type index part of a typed key.
+     *
+     * @param typedKey the typed key.
+     * @return the type index.
+     */
+    public static int typeOf(long typedKey) {
+        return (int) (typedKey & 0xFFFF);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Not instantiable.
+     */
+    private ChunkKeys() {
+    }
+} // class ChunkKeys
@@ -1,12 +1,17 @@
 package nu.nerd.perf;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Material;
 import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 
 // ----------------------------------------------------------------------------
@@ -45,6 +50,40 @@ public class Configuration {
      */
     public int BIND_PORT;
 
+    /**
+     * Port to serve HTTP requests for OpenMetrics text on, or 0 to disable.
+     */
+    public int HTTP_PORT;
+
+    /**
+     * Maximum number of concurrently connected query clients.
+     */
+    public int QUERY_MAX_CLIENTS;
+
+    /**
+     * Maximum time, in milliseconds, that a client can wait for metrics to be
+     * computed before it is disconnected.
+     */
+    public int QUERY_TIMEOUT_MILLIS;
+
+    /**
+     * Maximum time, in milliseconds, allowed to send metrics to a client
+     * before it is disconnected.
+     */
+    public int QUERY_WRITE_TIMEOUT_MILLIS;
+
+    /**
+     * Maximum time, in milliseconds, to wait for a client of the main port to
+     * send a line selecting metrics, before sending it all metrics.
+     */
+    public int QUERY_REQUEST_WAIT_MILLIS;
+
+    /**
+     * Maximum age, in milliseconds, of cached metrics that can be returned to
+     * a client without computing them afresh.
+     */
+    public int CACHE_MAX_AGE_MILLIS;
+
     /**
      * Time limit, in milliseconds, of any metrics gathering task.
      */
@@ -62,11 +101,227 @@ public class Configuration {
      */
     public int BATCH_CHUNKS;
 
+    /**
+     * If true, the time limit and batch sizes of counting tasks adapt to the
+     * server's load.
+     */
+    public boolean ADAPTIVE;
+
+    /**
+     * Minimum adaptive time limit, in milliseconds.
+     */
+    public int ADAPTIVE_MIN_MILLIS;
+
+    /**
+     * Maximum adaptive time limit, in milliseconds.
+     */
+    public int ADAPTIVE_MAX_MILLIS;
+
+    /**
+     * TPS below which counting tasks are paused, when adaptive.
+     */
+    public double ADAPTIVE_TPS_FLOOR;
+
+    /**
+     * If true, entity counts are maintained incrementally from events rather
+     * than by scanning all entities on every query.
+     */
+    public boolean INCREMENTAL_ENTITIES;
+
+    /**
+     * If true, tile entity counts are maintained incrementally from events
+     * rather than by scanning all loaded chunks on every query.
+     */
+    public boolean INCREMENTAL_TILE_ENTITIES;
+
+    /**
+     * Period, in seconds, between full recounts of incrementally maintained
+     * counts, to correct drift.
+     */
+    public int INCREMENTAL_RECONCILE_SECONDS;
+
+    /**
+     * If true, count tile entities in chunk snapshots in a thread pool,
+     * rather than in the main thread.
+     */
+    public boolean PARALLEL_TILE_ENTITIES;
+
+    /**
+     * Number of threads that count chunk snapshots.
+     */
+    public int PARALLEL_THREADS;
+
+    /**
+     * Interval, in seconds, between background refreshes of entity counts,
+     * or 0 to count entities on every query.
+     */
+    public int REFRESH_ENTITIES_SECONDS;
+
+    /**
+     * Interval, in seconds, between background refreshes of tile entity
+     * counts, or 0 to count tile entities on every query.
+     */
+    public int REFRESH_TILE_ENTITIES_SECONDS;
+
+    /**
+     * If true, entities and tile entities are also counted per chunk and the
+     * densest chunks are reported.
+     */
+    public boolean HOTSPOTS;
+
+    /**
+     * Number of densest chunks reported per world and type.
+     */
+    public int HOTSPOTS_LIMIT;
+
+    /**
+     * If true, entities, tile entities and loaded chunks are attributed to
+     * the nearest player within view distance.
+     */
+    public boolean ATTRIBUTION;
+
+    /**
+     * Interval, in seconds, between samples recorded in the history, or 0 to
+     * disable sampling.
+     */
+    public int HISTORY_INTERVAL_SECONDS;
+
+    /**
+     * Number of samples retained in the history.
+     */
+    public int HISTORY_SAMPLES;
+
+    /**
+     * If true, history samples are also written to the on-disk journal.
+     */
+    public boolean JOURNAL_ENABLED;
+
+    /**
+     * Size, in KB, of each journal file.
+     */
+    public int JOURNAL_MAX_FILE_KB;
+
+    /**
+     * Maximum age, in hours, of a journal file before a new one is started.
+     */
+    public int JOURNAL_MAX_FILE_AGE_HOURS;
+
+    /**
+     * Number of journal files kept.
+     */
+    public int JOURNAL_MAX_FILES;
+
+    /**
+     * If true, time the event listeners and scheduler tasks of every plugin.
+     */
+    public boolean PROFILER_ENABLED;
+
+    /**
+     * Duration, in seconds, of the window over which plugin costs are
+     * reported.
+     */
+    public int PROFILER_WINDOW_SECONDS;
+
+    /**
+     * Number of most expensive plugins reported.
+     */
+    public int PROFILER_TOP;
+
+    /**
+     * Protocol of the sink that metrics are pushed to: "none", "statsd",
+     * "graphite" or "influx".
+     */
+    public String PUSH_PROTOCOL;
+
+    /**
+     * Host name or address of the push sink.
+     */
+    public String PUSH_HOST;
+
+    /**
+     * Port of the push sink.
+     */
+    public int PUSH_PORT;
+
+    /**
+     * Interval between pushes, in seconds.
+     */
+    public int PUSH_INTERVAL_SECONDS;
+
+    /**
+     * Prefix of pushed metric names; may be empty.
+     */
+    public String PUSH_PREFIX;
+
+    /**
+     * Maximum size of a StatsD datagram, in bytes.
+     */
+    public int PUSH_MAX_PACKET_BYTES;
+
+    /**
+     * If true, the main thread's stack is sampled during lag spikes.
+     */
+    public boolean SPIKES_ENABLED;
+
+    /**
+     * Tick duration, in milliseconds, above which the main thread is sampled.
+     */
+    public int SPIKES_THRESHOLD_MILLIS;
+
+    /**
+     * Interval between stack samples, in milliseconds.
+     */
+    public int SPIKES_SAMPLE_INTERVAL_MILLIS;
+
+    /**
+     * Maximum number of stack samples taken in one spike.
+     */
+    public int SPIKES_MAX_SAMPLES;
+
+    /**
+     * Number of most recent spike captures retained.
+     */
+    public int SPIKES_CAPTURES;
+
+    /**
+     * Interval, in seconds, between requests for the metrics that alert rules
+     * need, or 0 to only evaluate rules against scans requested otherwise.
+     */
+    public int ALERTS_INTERVAL_SECONDS;
+
+    /**
+     * Alert rules, in the order configured.
+     */
+    public List<AlertRule> ALERT_RULES = new ArrayList<AlertRule>();
+
+    /**
+     * Types of tile entity to count. This always includes HOPPER.
+     *
+     * A new list is published on reload, and the old one is never modified,
+     * so a task that reads this and TILE_ENTITY_INDEX together can keep using
+     * them after a reload.
+     */
+    public List<Material> TILE_ENTITY_TYPES = new ArrayList<Material>();
+
+    /**
+     * Lookup table from Material ordinal to the index of that Material in
+     * TILE_ENTITY_TYPES, or -1 if not counted.
+     *
+     * Like TILE_ENTITY_TYPES, a new array is published on reload.
+     */
+    public int[] TILE_ENTITY_INDEX = new int[Material.values().length];
+
     /**
      * Worlds where metrics are gathered.
      */
     public List<World> WORLDS = new ArrayList<World>();
 
+    /**
+     * Names of the WORLDS, replaced rather than modified on reload so that it
+     * can be read by the query server thread.
+     */
+    public volatile Set<String> WORLD_NAMES = Collections.emptySet();
+
     // ------------------------------------------------------------------------
     /**
      * Reload the configuration file.
@@ -80,9 +335,69 @@ public class Configuration {
         DEBUG_COUNTS = getConfig().getBoolean("debug.counts");
         BIND_ADDRESS = getConfig().getString("bind.address");
         BIND_PORT = getConfig().getInt("bind.port");
+        HTTP_PORT = Math.max(0, getConfig().getInt("http.port"));
+        QUERY_MAX_CLIENTS = Math.max(1, getConfig().getInt("query.max-clients"));
+        QUERY_TIMEOUT_MILLIS = Math.max(100, getConfig().getInt("query.timeout-millis"));
+        QUERY_WRITE_TIMEOUT_MILLIS = Math.max(100, getConfig().getInt("query.write-timeout-millis"));
+        QUERY_REQUEST_WAIT_MILLIS = Math.max(0, getConfig().getInt("query.request-wait-millis"));
+        CACHE_MAX_AGE_MILLIS = Math.max(0, getConfig().getInt("cache.max-age-millis"));
         TASK_TIME_LIMIT_MILLIS = getConfig().getInt("task-time-limit-millis");
         BATCH_ENTITIES = Math.max(10, getConfig().getInt("batch.entities"));
         BATCH_CHUNKS = Math.max(10, getConfig().getInt("batch.chunks"));
+        ADAPTIVE = getConfig().getBoolean("adaptive.enabled");
+        ADAPTIVE_MIN_MILLIS = Math.max(1, getConfig().getInt("adaptive.min-time-limit-millis"));
+        ADAPTIVE_MAX_MILLIS = Math.max(ADAPTIVE_MIN_MILLIS, getConfig().getInt("adaptive.max-time-limit-millis"));
+        ADAPTIVE_TPS_FLOOR = getConfig().getDouble("adaptive.tps-floor");
+        INCREMENTAL_ENTITIES = getConfig().getBoolean("incremental.entities");
+        INCREMENTAL_TILE_ENTITIES = getConfig().getBoolean("incremental.tile-entities");
+        INCREMENTAL_RECONCILE_SECONDS = Math.max(1, getConfig().getInt("incremental.reconcile-period-seconds"));
+        PARALLEL_TILE_ENTITIES = getConfig().getBoolean("parallel.tile-entities");
+        PARALLEL_THREADS = getConfig().getInt("parallel.threads");
+        if (PARALLEL_THREADS <= 0) {
+            PARALLEL_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        }
+        HOTSPOTS = getConfig().getBoolean("hotspots.enabled");
+        HOTSPOTS_LIMIT = Math.max(1, getConfig().getInt("hotspots.limit"));
+        ATTRIBUTION = getConfig().getBoolean("attribution.enabled");
+        REFRESH_ENTITIES_SECONDS = Math.max(0, getConfig().getInt("refresh.entities-seconds"));
+        REFRESH_TILE_ENTITIES_SECONDS = Math.max(0, getConfig().getInt("refresh.tile-entities-seconds"));
+        HISTORY_INTERVAL_SECONDS = Math.max(0, getConfig().getInt("history.interval-seconds"));
+        HISTORY_SAMPLES = Math.max(1, getConfig().getInt("history.samples"));
+        JOURNAL_ENABLED = getConfig().getBoolean("journal.enabled");
+        JOURNAL_MAX_FILE_KB = Math.min(1024 * 1024, Math.max(16, getConfig().getInt("journal.max-file-kb")));
+        JOURNAL_MAX_FILE_AGE_HOURS = Math.max(1, getConfig().getInt("journal.max-file-age-hours"));
+        JOURNAL_MAX_FILES = Math.max(1, getConfig().getInt("journal.max-files"));
+        PROFILER_ENABLED = getConfig().getBoolean("profiler.enabled");
+        PROFILER_WINDOW_SECONDS = Math.max(1, getConfig().getInt("profiler.window-seconds"));
+        PROFILER_TOP = Math.max(1, getConfig().getInt("profiler.top"));
+        PUSH_PROTOCOL = getConfig().getString("push.protocol").toLowerCase();
+        if (!PUSH_PROTOCOL.equals("none") && !PUSH_PROTOCOL.equals(PushExporter.STATSD) &&
+            !PUSH_PROTOCOL.equals(PushExporter.GRAPHITE) && !PUSH_PROTOCOL.equals(PushExporter.INFLUX)) {
+            getLogger().warning("Invalid push protocol: " + PUSH_PROTOCOL);
+            PUSH_PROTOCOL = "none";
+        }
+        PUSH_HOST = getConfig().getString("push.host");
+        PUSH_PORT = getConfig().getInt("push.port");
+        PUSH_INTERVAL_SECONDS = Math.max(1, getConfig().getInt("push.interval-seconds"));
+        PUSH_PREFIX = getConfig().getString("push.prefix");
+        PUSH_MAX_PACKET_BYTES = Math.min(65507, Math.max(512, getConfig().getInt("push.max-packet-bytes")));
+        SPIKES_ENABLED = getConfig().getBoolean("spikes.enabled");
+        SPIKES_THRESHOLD_MILLIS = Math.max(60, getConfig().getInt("spikes.threshold-millis"));
+        SPIKES_SAMPLE_INTERVAL_MILLIS = Math.max(1, getConfig().getInt("spikes.sample-interval-millis"));
+        SPIKES_MAX_SAMPLES = Math.max(1, getConfig().getInt("spikes.max-samples"));
+        SPIKES_CAPTURES = Math.max(1, getConfig().getInt("spikes.captures"));
+        ALERTS_INTERVAL_SECONDS = Math.max(0, getConfig().getInt("alerts.interval-seconds"));
+
+        List<Material> tileEntityTypes = new ArrayList<Material>();
+        for (String materialName : getConfig().getStringList("tile-entities")) {
+            Material material = Material.matchMaterial(materialName);
+            if (material == null) {
+                getLogger().warning("Invalid tile entity material: " + materialName);
+            } else {
+                tileEntityTypes.add(material);
+            }
+        }
+        setTileEntityTypes(tileEntityTypes);
 
         WORLDS.clear();
         for (String worldName : getConfig().getStringList("worlds")) {
@@ -93,6 +408,24 @@ public class Configuration {
                 WORLDS.add(world);
             }
         }
+        WORLD_NAMES = Collections.unmodifiableSet(WORLDS.stream().map(World::getName).collect(Collectors.toSet()));
+
+        ALERT_RULES.clear();
+        ConfigurationSection rules = getConfig().getConfigurationSection("alerts.rules");
+        if (rules != null) {
+            for (String ruleName : rules.getKeys(false)) {
+                ConfigurationSection section = rules.getConfigurationSection(ruleName);
+                if (section == null) {
+                    getLogger().warning("Invalid alert rule " + ruleName + ": not a section");
+                    continue;
+                }
+                try {
+                    ALERT_RULES.add(AlertRule.parse(section));
+                } catch (IllegalArgumentException ex) {
+                    getLogger().warning("Invalid alert rule " + ruleName + ": " + ex.getMessage());
+                }
+            }
+        }
 
         if (DEBUG_CONFIG) {
             getLogger().info("Configuration:");
@@ -101,13 +434,89 @@ public class Configuration {
             getLogger().info("DEBUG_COUNTS: " + DEBUG_COUNTS);
             getLogger().info("BIND_ADDRESS: " + BIND_ADDRESS);
             getLogger().info("BIND_PORT: " + BIND_PORT);
+            getLogger().info("HTTP_PORT: " + HTTP_PORT);
+            getLogger().info("QUERY_MAX_CLIENTS: " + QUERY_MAX_CLIENTS);
+            getLogger().info("QUERY_TIMEOUT_MILLIS: " + QUERY_TIMEOUT_MILLIS);
+            getLogger().info("QUERY_WRITE_TIMEOUT_MILLIS: " + QUERY_WRITE_TIMEOUT_MILLIS);
+            getLogger().info("QUERY_REQUEST_WAIT_MILLIS: " + QUERY_REQUEST_WAIT_MILLIS);
+            getLogger().info("CACHE_MAX_AGE_MILLIS: " + CACHE_MAX_AGE_MILLIS);
             getLogger().info("TASK_TIME_LIMIT_MILLIS: " + TASK_TIME_LIMIT_MILLIS);
             getLogger().info("BATCH_ENTITIES: " + BATCH_ENTITIES);
             getLogger().info("BATCH_CHUNKS: " + BATCH_CHUNKS);
+            getLogger().info("ADAPTIVE: " + ADAPTIVE);
+            getLogger().info("ADAPTIVE_MIN_MILLIS: " + ADAPTIVE_MIN_MILLIS);
+            getLogger().info("ADAPTIVE_MAX_MILLIS: " + ADAPTIVE_MAX_MILLIS);
+            getLogger().info("ADAPTIVE_TPS_FLOOR: " + ADAPTIVE_TPS_FLOOR);
+            getLogger().info("INCREMENTAL_ENTITIES: " + INCREMENTAL_ENTITIES);
+            getLogger().info("INCREMENTAL_TILE_ENTITIES: " + INCREMENTAL_TILE_ENTITIES);
+            getLogger().info("INCREMENTAL_RECONCILE_SECONDS: " + INCREMENTAL_RECONCILE_SECONDS);
+            getLogger().info("PARALLEL_TILE_ENTITIES: " + PARALLEL_TILE_ENTITIES);
+            getLogger().info("PARALLEL_THREADS: " + PARALLEL_THREADS);
+            getLogger().info("HOTSPOTS: " + HOTSPOTS);
+            getLogger().info("HOTSPOTS_LIMIT: " + HOTSPOTS_LIMIT);
+            getLogger().info("ATTRIBUTION: " + ATTRIBUTION);
+            getLogger().info("REFRESH_ENTITIES_SECONDS: " + REFRESH_ENTITIES_SECONDS);
+            getLogger().info("REFRESH_TILE_ENTITIES_SECONDS: " + REFRESH_TILE_ENTITIES_SECONDS);
+            getLogger().info("HISTORY_INTERVAL_SECONDS: " + HISTORY_INTERVAL_SECONDS);
+            getLogger().info("HISTORY_SAMPLES: " + HISTORY_SAMPLES);
+            getLogger().info("JOURNAL_ENABLED: " + JOURNAL_ENABLED);
+            getLogger().info("JOURNAL_MAX_FILE_KB: " + JOURNAL_MAX_FILE_KB);
+            getLogger().info("JOURNAL_MAX_FILE_AGE_HOURS: " + JOURNAL_MAX_FILE_AGE_HOURS);
+            getLogger().info("JOURNAL_MAX_FILES: " + JOURNAL_MAX_FILES);
+            getLogger().info("PROFILER_ENABLED: " + PROFILER_ENABLED);
+            getLogger().info("PROFILER_WINDOW_SECONDS: " + PROFILER_WINDOW_SECONDS);
+            getLogger().info("PROFILER_TOP: " + PROFILER_TOP);
+            getLogger().info("PUSH_PROTOCOL: " + PUSH_PROTOCOL);
+            getLogger().info("PUSH_HOST: " + PUSH_HOST);
+            getLogger().info("PUSH_PORT: " + PUSH_PORT);
+            getLogger().info("PUSH_INTERVAL_SECONDS: " + PUSH_INTERVAL_SECONDS);
+            getLogger().info("PUSH_PREFIX: " + PUSH_PREFIX);
+            getLogger().info("PUSH_MAX_PACKET_BYTES: " + PUSH_MAX_PACKET_BYTES);
+            getLogger().info("SPIKES_ENABLED: " + SPIKES_ENABLED);
+            getLogger().info("SPIKES_THRESHOLD_MILLIS: " + SPIKES_THRESHOLD_MILLIS);
+            getLogger().info("SPIKES_SAMPLE_INTERVAL_MILLIS: " + SPIKES_SAMPLE_INTERVAL_MILLIS);
+            getLogger().info("SPIKES_MAX_SAMPLES: " + SPIKES_MAX_SAMPLES);
+            getLogger().info("SPIKES_CAPTURES: " + SPIKES_CAPTURES);
+            getLogger().info("ALERTS_INTERVAL_SECONDS: " + ALERTS_INTERVAL_SECONDS);
+            for (AlertRule rule : ALERT_RULES) {
+                getLogger().info("ALERT_RULES: " + rule.getName() + ": " + rule.getMetric() + " " + rule.describe());
+            }
+            getLogger().info("TILE_ENTITY_TYPES: " +
+                             TILE_ENTITY_TYPES.stream().map(Material::name).collect(Collectors.joining(", ")));
             getLogger().info("WORLDS: " + WORLDS.stream().map(World::getName).collect(Collectors.joining(", ")));
         }
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Set the types of tile entity to count, and publish a new
+     * TILE_ENTITY_TYPES and TILE_ENTITY_INDEX.
+     *
+     * HOPPER is always counted, and duplicates are ignored. This is public so
+     * that the counting tasks can be configured without loading the plugin,
+     * as the benchmarks do.
+     *
+     * @param types the types of tile entity.
+     */
+    public void setTileEntityTypes(List<Material> types) {
+        List<Material> tileEntityTypes = new ArrayList<Material>();
+        for (Material material : types) {
+            if (!tileEntityTypes.contains(material)) {
+                tileEntityTypes.add(material);
+            }
+        }
+        if (!tileEntityTypes.contains(Material.HOPPER)) {
+            tileEntityTypes.add(Material.HOPPER);
+        }
+        int[] tileEntityIndex = new int[Material.values().length];
+        Arrays.fill(tileEntityIndex, -1);
+        for (int i = 0; i < tileEntityTypes.size(); ++i) {
+            tileEntityIndex[tileEntityTypes.get(i).ordinal()] = i;
+        }
+        TILE_ENTITY_TYPES = tileEntityTypes;
+        TILE_ENTITY_INDEX = tileEntityIndex;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return the plugin's FileConfiguration.
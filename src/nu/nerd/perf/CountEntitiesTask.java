@@ -4,31 +4,44 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.function.BooleanSupplier;
 
+import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.entity.Entity;
-import org.bukkit.entity.EntityType;
-import org.json.simple.JSONObject;
 
 // ----------------------------------------------------------------------------
 /**
- * A time-limited task that counts entities in a specified world and adds the
- * result to a JSONObject.
+ * A time-limited task that counts entities in a specified world and stores
+ * the result in a {@link MetricsSnapshot.WorldMetrics}.
  */
 public class CountEntitiesTask implements BooleanSupplier {
     // ------------------------------------------------------------------------
     /**
      * Constructor.
      *
-     * @param loadedChunks an array of all loaded chunks in the World to be
-     *        counted.
-     * @param worldObject the JSONObject (corresponding to the World) where the
-     *        results will be stored.
+     * If the metrics have non-null
+     * {@link MetricsSnapshot.WorldMetrics#entityHotspots}, entities are also
+     * counted per chunk to find the densest chunks. If they have a non-null
+     * {@link MetricsSnapshot.WorldMetrics#attribution}, which must already be
+     * reset, entities are also attributed to players.
+     *
+     * @param world the World to be counted.
+     * @param metrics the metrics of the World, where the results will be
+     *        stored, or null if storeCounts() is overridden.
      */
-    public CountEntitiesTask(World world, JSONObject entitiesObject) {
+    public CountEntitiesTask(World world, MetricsSnapshot.WorldMetrics metrics) {
         _world = world;
         _index = 0;
-        _counts = new int[EntityType.values().length];
-        _entitiesObject = entitiesObject;
+        _counts = new int[MetricsSnapshot.ENTITY_TYPES.length];
+        _metrics = metrics;
+        if (metrics != null && metrics.entityHotspots != null) {
+            _chunkCounts = new LongIntHashMap(1024);
+        }
+        if (metrics != null) {
+            _attribution = metrics.attribution;
+        }
+        if (_chunkCounts != null || _attribution != null) {
+            _location = new Location(world, 0, 0, 0);
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -44,15 +57,30 @@ public class CountEntitiesTask implements BooleanSupplier {
             List<Entity> entities = _world.getEntities();
             _entities = (entities instanceof ArrayList) ? (ArrayList<Entity>) entities
                                                        : new ArrayList<Entity>(entities);
+            entitiesListed();
             return true;
         }
 
+        long start = System.nanoTime();
         int startIndex = _index;
-        int iterations = Math.min(_entities.size() - _index, NerdPerf.CONFIG.BATCH_ENTITIES);
+        int iterations = Math.min(_entities.size() - _index, NerdPerf.BUDGET.getEntityBatch());
         for (int i = 0; i < iterations; ++i) {
             Entity entity = _entities.get(_index++);
-            ++_counts[entity.getType().ordinal()];
+            int type = entity.getType().ordinal();
+            ++_counts[type];
+            if (_location != null) {
+                entity.getLocation(_location);
+                int chunkX = _location.getBlockX() >> 4;
+                int chunkZ = _location.getBlockZ() >> 4;
+                if (_chunkCounts != null) {
+                    _chunkCounts.add(ChunkKeys.withType(ChunkKeys.of(chunkX, chunkZ), type), 1);
+                }
+                if (_attribution != null) {
+                    _attribution.addEntity(chunkX, chunkZ);
+                }
+            }
         }
+        NerdPerf.BUDGET.recordEntities(iterations, System.nanoTime() - start);
 
         if (NerdPerf.CONFIG.DEBUG_COUNTS) {
             NerdPerf.PLUGIN.getLogger().info("Entities count in " + _world.getName() +
@@ -61,11 +89,17 @@ public class CountEntitiesTask implements BooleanSupplier {
 
         boolean more = (_index < _entities.size());
         if (!more) {
-            for (EntityType entityType : EntityType.values()) {
-                _entitiesObject.put(entityType.name(), _counts[entityType.ordinal()]);
+            storeCounts(_counts);
+            if (_chunkCounts != null) {
+                storeHotspots(_chunkCounts);
+            }
+            if (_attribution != null) {
+                _attribution.entitiesCounted = true;
             }
             _world = null;
             _entities = null;
+            _chunkCounts = null;
+            _attribution = null;
         }
 
         return more;
@@ -73,10 +107,38 @@ public class CountEntitiesTask implements BooleanSupplier {
 
     // ------------------------------------------------------------------------
     /**
-     * Maximum number of chunks to count in any one call to process().
+     * Called once the list of entities to count has been taken from the World.
+     *
+     * Entities added to or removed from the World after this point are not
+     * reflected in the counts.
+     */
+    protected void entitiesListed() {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Store the final counts.
+     *
+     * @param counts the counts, indexed by EntityType ordinal.
+     */
+    protected void storeCounts(int[] counts) {
+        _metrics.setEntities(counts);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Store the densest chunks.
+     *
+     * @param chunkCounts the counts, keyed by
+     *        {@link ChunkKeys#withType(long, int)} with the EntityType ordinal
+     *        as the type.
      */
-    static final int MAX_ITERATIONS = 100;
+    protected void storeHotspots(LongIntHashMap chunkCounts) {
+        _metrics.entityHotspots.compute(chunkCounts, MetricsSnapshot.ENTITY_TYPES.length,
+                                        NerdPerf.CONFIG.HOTSPOTS_LIMIT);
+    }
 
+    // ------------------------------------------------------------------------
     /**
      * The World whose entities will be counted.
      */
@@ -88,7 +150,7 @@ public class CountEntitiesTask implements BooleanSupplier {
     protected ArrayList<Entity> _entities;
 
     /**
-     * Index (into _chunks) of next Entity.
+     * Index (into _entities) of next Entity to count.
      */
     protected int _index;
 
@@ -98,7 +160,23 @@ public class CountEntitiesTask implements BooleanSupplier {
     protected int[] _counts;
 
     /**
-     * JSONObject where results will be stored.
+     * Metrics where results will be stored.
+     */
+    protected MetricsSnapshot.WorldMetrics _metrics;
+
+    /**
+     * Counts per chunk and EntityType, or null if not counting per chunk.
+     */
+    protected LongIntHashMap _chunkCounts;
+
+    /**
+     * Attribution of entities to players, or null if not attributing.
+     */
+    protected Attribution _attribution;
+
+    /**
+     * Location reused to find the chunk containing each entity without
+     * allocation, or null if not needed.
      */
-    protected JSONObject _entitiesObject;
+    protected Location _location;
 } // class CountEntitiesTask
\ No newline at end of file
@@ -0,0 +1,187 @@
+package nu.nerd.perf;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.BlockState;
+
+// ----------------------------------------------------------------------------
+/**
+ * A time-limited task that counts tile entities of the types listed in
+ * {@link Configuration#TILE_ENTITY_TYPES} in a specified world and stores the
+ * result in a {@link MetricsSnapshot.WorldMetrics}.
+ */
+public class CountTileEntitiesTask implements BooleanSupplier {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * If the metrics have non-null
+     * {@link MetricsSnapshot.WorldMetrics#tileEntityHotspots}, the densest
+     * chunks are also found. If they have a non-null
+     * {@link MetricsSnapshot.WorldMetrics#attribution}, which must already be
+     * reset, chunks and their tile entities are also attributed to players.
+     *
+     * @param world the World to be counted.
+     * @param metrics the metrics of the World, where the results will be
+     *        stored, or null if storeCounts() is overridden.
+     */
+    public CountTileEntitiesTask(World world, MetricsSnapshot.WorldMetrics metrics) {
+        _world = world;
+        _index = 0;
+        _typeIndex = NerdPerf.CONFIG.TILE_ENTITY_INDEX;
+        _counts = new int[NerdPerf.CONFIG.TILE_ENTITY_TYPES.size()];
+        _chunkCounts = new int[_counts.length];
+        _metrics = metrics;
+        if (metrics != null && metrics.tileEntityHotspots != null) {
+            _hotspots = new LongIntHashMap(1024);
+        }
+        if (metrics != null) {
+            _attribution = metrics.attribution;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.function.BooleanSupplier#getAsBoolean()
+     *
+     *      This method must return true if there is more work to be done.
+     */
+    @Override
+    public boolean getAsBoolean() {
+        if (_chunks == null) {
+            _chunks = _world.getLoadedChunks();
+            return true;
+        }
+
+        long start = System.nanoTime();
+        int startIndex = _index;
+        int iterations = Math.min(_chunks.length - _index, NerdPerf.BUDGET.getChunkBatch());
+        for (int i = 0; i < iterations; ++i) {
+            Chunk chunk = _chunks[_index++];
+            // Don't reload chunks unloaded since the scan began.
+            if (!chunk.isLoaded()) {
+                continue;
+            }
+
+            Arrays.fill(_chunkCounts, 0);
+            for (BlockState tileEntity : chunk.getTileEntities()) {
+                int type = _typeIndex[tileEntity.getType().ordinal()];
+                if (type >= 0) {
+                    ++_chunkCounts[type];
+                }
+            }
+            long chunkKey = ChunkKeys.of(chunk.getX(), chunk.getZ());
+            int chunkTotal = 0;
+            for (int type = 0; type < _counts.length; ++type) {
+                _counts[type] += _chunkCounts[type];
+                chunkTotal += _chunkCounts[type];
+                if (_hotspots != null && _chunkCounts[type] > 0) {
+                    _hotspots.put(ChunkKeys.withType(chunkKey, type), _chunkCounts[type]);
+                }
+            }
+            if (_attribution != null) {
+                _attribution.addChunk(chunk.getX(), chunk.getZ(), chunkTotal);
+            }
+            chunkCounted(chunk, _chunkCounts);
+        }
+        NerdPerf.BUDGET.recordChunks(iterations, System.nanoTime() - start);
+
+        if (NerdPerf.CONFIG.DEBUG_COUNTS) {
+            NerdPerf.PLUGIN.getLogger().info("Tile entity count in " + _world.getName() +
+                                              " progressed " + (_index - startIndex) + " chunks");
+        }
+
+        boolean more = (_index < _chunks.length);
+        if (!more) {
+            storeCounts(_chunks.length, _counts);
+            if (_hotspots != null) {
+                _metrics.tileEntityHotspots.compute(_hotspots, _counts.length, NerdPerf.CONFIG.HOTSPOTS_LIMIT);
+            }
+            if (_attribution != null) {
+                _attribution.tileEntitiesCounted = true;
+            }
+            _chunks = null;
+            _hotspots = null;
+            _attribution = null;
+        }
+
+        return more;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Called after the tile entities in each chunk have been counted.
+     *
+     * @param chunk the Chunk.
+     * @param chunkCounts the counts of tile entities in that Chunk, indexed in
+     *        the same order as {@link Configuration#TILE_ENTITY_TYPES}. The
+     *        array is reused for the next chunk.
+     */
+    protected void chunkCounted(Chunk chunk, int[] chunkCounts) {
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Store the final counts.
+     *
+     * @param chunks the number of loaded chunks.
+     * @param counts the counts, indexed in the same order as
+     *        {@link Configuration#TILE_ENTITY_TYPES}.
+     */
+    protected void storeCounts(int chunks, int[] counts) {
+        _metrics.setTileEntities(chunks, counts);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The World whose tile entities will be counted.
+     */
+    protected World _world;
+
+    /**
+     * Array of loaded chunks in the World.
+     */
+    protected Chunk[] _chunks;
+
+    /**
+     * Index (into _chunks) of next Chunk to count.
+     */
+    protected int _index;
+
+    /**
+     * Lookup table from Material ordinal to the index of the type in the
+     * counts, or -1 if not counted; the {@link Configuration#TILE_ENTITY_INDEX}
+     * published when the task was created.
+     */
+    protected final int[] _typeIndex;
+
+    /**
+     * Total counts of each type of tile entity, sized for _typeIndex.
+     */
+    protected int[] _counts;
+
+    /**
+     * Counts of each type of tile entity in the current Chunk.
+     */
+    protected int[] _chunkCounts;
+
+    /**
+     * Metrics where results will be stored.
+     */
+    protected MetricsSnapshot.WorldMetrics _metrics;
+
+    /**
+     * Counts per chunk and tile entity type, or null if not reporting the
+     * densest chunks.
+     */
+    protected LongIntHashMap _hotspots;
+
+    /**
+     * Attribution of chunks and tile entities to players, or null if not
+     * attributing.
+     */
+    protected Attribution _attribution;
+} // class CountTileEntitiesTask
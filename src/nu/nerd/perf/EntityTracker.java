@@ -0,0 +1,350 @@
+package nu.nerd.perf;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.EntityType;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityPickupItemEvent;
+import org.bukkit.event.entity.EntitySpawnEvent;
+import org.bukkit.event.entity.ItemDespawnEvent;
+import org.bukkit.event.entity.ItemMergeEvent;
+import org.bukkit.event.hanging.HangingBreakEvent;
+import org.bukkit.event.inventory.InventoryPickupItemEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.vehicle.VehicleDestroyEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+// ----------------------------------------------------------------------------
+/**
+ * Maintains live counts of entities of each type in each configured world,
+ * updated from events, so that a query can read the counts without scanning
+ * the world's entities.
+ *
+ * Bukkit has no event that reliably reports every entity that is removed from
+ * a world, so the counts will drift. To correct that drift, all entities in
+ * each world are periodically recounted by a time-limited task, at a much
+ * lower rate than queries would typically scan them.
+ *
+ * The initial counts are taken by the same time-limited recount, so that
+ * enabling tracking or reloading the configuration does not count every
+ * entity in a single tick. Until that first recount of a world completes, its
+ * counts are not reported and queries count its entities as usual.
+ *
+ * All methods must be called in the main thread.
+ */
+public class EntityTracker implements Listener {
+    // ------------------------------------------------------------------------
+    /**
+     * Start or stop tracking according to the current configuration.
+     *
+     * When enabled, the entities of each configured world are counted by a
+     * time-limited task, spread over as many ticks as necessary. A recount
+     * still in progress is abandoned.
+     */
+    public void configure() {
+        if (_reconcileTaskId != -1) {
+            Bukkit.getScheduler().cancelTask(_reconcileTaskId);
+            _reconcileTaskId = -1;
+        }
+        if (_reconcile != null) {
+            _reconcile.cancel(false);
+            _reconcile = null;
+        }
+        _counts.clear();
+        _filled.clear();
+        _pending.clear();
+
+        if (NerdPerf.CONFIG.INCREMENTAL_ENTITIES) {
+            for (World world : NerdPerf.CONFIG.WORLDS) {
+                _counts.put(world, new int[EntityType.values().length]);
+            }
+            reconcile();
+
+            long periodTicks = 20L * NerdPerf.CONFIG.INCREMENTAL_RECONCILE_SECONDS;
+            _reconcileTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(NerdPerf.PLUGIN, this::reconcile,
+                                                                               periodTicks, periodTicks);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the live entity counts for the specified world.
+     *
+     * The returned array must not be modified.
+     *
+     * @param world the World.
+     * @return the counts, indexed by EntityType ordinal, or null if the world
+     *         is not tracked or is still being counted.
+     */
+    public int[] getCounts(World world) {
+        return _filled.contains(world) ? _counts.get(world) : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Recount the entities in all tracked worlds, spread over as many ticks as
+     * necessary, to fill new counts and correct drift in the counts.
+     *
+     * Changes to the counts that are made by events after a world's entities
+     * have been listed for recounting are carried over into the corrected
+     * counts.
+     */
+    protected void reconcile() {
+        if (_reconcile != null) {
+            return;
+        }
+
+        LinkedList<BooleanSupplier> steps = new LinkedList<BooleanSupplier>();
+        for (World world : _counts.keySet()) {
+            steps.add(new CountEntitiesTask(world, null) {
+                @Override
+                protected void entitiesListed() {
+                    _pending.put(world, new int[EntityType.values().length]);
+                }
+
+                @Override
+                protected void storeCounts(int[] counts) {
+                    int[] pending = _pending.remove(world);
+                    int[] tracked = EntityTracker.this._counts.get(world);
+                    if (pending != null && tracked != null) {
+                        for (int i = 0; i < counts.length; ++i) {
+                            tracked[i] = counts[i] + pending[i];
+                        }
+                        _filled.add(world);
+                    }
+                }
+            });
+        }
+        CompletableFuture<Void> reconcile = new CompletableFuture<Void>();
+        steps.add(() -> {
+            reconcile.complete(null);
+            return false;
+        });
+        reconcile.whenComplete((ignored, ex) -> {
+            if (_reconcile == reconcile) {
+                _reconcile = null;
+            }
+        });
+
+        _reconcile = reconcile;
+        Bukkit.getScheduler().scheduleSyncDelayedTask(NerdPerf.PLUGIN,
+                                                      new SynchronousTimeLimitedTask(steps, reconcile));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Adjust the count of entities of the specified type in the specified
+     * world.
+     *
+     * @param world the World.
+     * @param type the type of entity.
+     * @param delta the amount to add to the count.
+     */
+    protected void adjust(World world, EntityType type, int delta) {
+        int[] counts = _counts.get(world);
+        if (counts != null) {
+            counts[type.ordinal()] += delta;
+            int[] pending = _pending.get(world);
+            if (pending != null) {
+                pending[type.ordinal()] += delta;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Adjust the counts of all entities in a chunk that has been loaded or is
+     * being unloaded.
+     *
+     * @param chunk the Chunk.
+     * @param delta +1 for a load, -1 for an unload.
+     */
+    protected void adjustChunk(Chunk chunk, int delta) {
+        World world = chunk.getWorld();
+        if (_counts.containsKey(world)) {
+            for (Entity entity : chunk.getEntities()) {
+                adjust(world, entity.getType(), delta);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count entities that are added to the world, except players.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntitySpawn(EntitySpawnEvent event) {
+        adjust(event.getEntity().getWorld(), event.getEntityType(), +1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount entities that die, except players, who remain in the world until
+     * they respawn.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityDeath(EntityDeathEvent event) {
+        if (!(event.getEntity() instanceof Player)) {
+            adjust(event.getEntity().getWorld(), event.getEntityType(), -1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount items that despawn.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemDespawn(ItemDespawnEvent event) {
+        adjust(event.getEntity().getWorld(), EntityType.DROPPED_ITEM, -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount items that are merged into another item.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onItemMerge(ItemMergeEvent event) {
+        adjust(event.getEntity().getWorld(), EntityType.DROPPED_ITEM, -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount items that are entirely picked up by an entity.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityPickupItem(EntityPickupItemEvent event) {
+        if (event.getRemaining() == 0) {
+            adjust(event.getItem().getWorld(), EntityType.DROPPED_ITEM, -1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount items that are picked up by a hopper or hopper minecart.
+     *
+     * Partial pickups are miscounted until the next reconciliation.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onInventoryPickupItem(InventoryPickupItemEvent event) {
+        adjust(event.getItem().getWorld(), EntityType.DROPPED_ITEM, -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount destroyed vehicles.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onVehicleDestroy(VehicleDestroyEvent event) {
+        adjust(event.getVehicle().getWorld(), event.getVehicle().getType(), -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount broken hanging entities (paintings, item frames, leashes).
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onHangingBreak(HangingBreakEvent event) {
+        adjust(event.getEntity().getWorld(), event.getEntity().getType(), -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count players when they join.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        adjust(event.getPlayer().getWorld(), EntityType.PLAYER, +1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount players when they leave.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        adjust(event.getPlayer().getWorld(), EntityType.PLAYER, -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move players between worlds.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        adjust(event.getFrom(), EntityType.PLAYER, -1);
+        adjust(event.getPlayer().getWorld(), EntityType.PLAYER, +1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count entities loaded with a chunk.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        adjustChunk(event.getChunk(), +1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount entities unloaded with a chunk.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        adjustChunk(event.getChunk(), -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop tracking unloaded worlds.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        _counts.remove(event.getWorld());
+        _filled.remove(event.getWorld());
+        _pending.remove(event.getWorld());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Live entity counts of each tracked World, indexed by EntityType ordinal.
+     */
+    protected HashMap<World, int[]> _counts = new HashMap<World, int[]>();
+
+    /**
+     * Changes to the counts of each World made since its entities were listed
+     * for reconciliation, indexed by EntityType ordinal.
+     */
+    protected HashMap<World, int[]> _pending = new HashMap<World, int[]>();
+
+    /**
+     * Worlds whose counts have been filled by a completed recount.
+     */
+    protected HashSet<World> _filled = new HashSet<World>();
+
+    /**
+     * Completed when the reconciliation in progress finishes, or null if
+     * there is none. Cancelling it abandons the reconciliation.
+     */
+    protected CompletableFuture<Void> _reconcile;
+
+    /**
+     * ID of the repeating reconciliation task, or -1 if not scheduled.
+     */
+    protected int _reconcileTaskId = -1;
+} // class EntityTracker
@@ -0,0 +1,407 @@
+package nu.nerd.perf;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+// ----------------------------------------------------------------------------
+/**
+ * Monitors garbage collection and memory pools through JMX.
+ *
+ * Collection counts and durations are read from each
+ * GarbageCollectorMXBean, and the duration of the most recent collection of
+ * each collector is taken from GC notifications. Pool usage, and usage after
+ * the most recent collection, are read from each MemoryPoolMXBean.
+ *
+ * The allocation rate is estimated from GC notifications: the growth of the
+ * heap between the end of one collection and the start of the next is the
+ * amount allocated in between. It is averaged over the last
+ * {@value #ALLOCATION_WINDOW_SECONDS} seconds.
+ *
+ * All of this is gathered by a background thread once per second and by the
+ * JMX notification thread; {@link #getStats(Stats)} only copies the latest
+ * values.
+ */
+public class GCMonitor {
+    // ------------------------------------------------------------------------
+    /**
+     * GC and memory pool statistics.
+     *
+     * Arrays are indexed in the same order as their corresponding names
+     * array. Memory quantities are in bytes, with -1 signifying undefined.
+     */
+    public static class Stats {
+        /**
+         * Garbage collector names.
+         */
+        public String[] collectorNames = new String[0];
+
+        /**
+         * Number of collections by each collector.
+         */
+        public long[] collections = new long[0];
+
+        /**
+         * Accumulated collection time of each collector, in milliseconds.
+         */
+        public long[] collectionMillis = new long[0];
+
+        /**
+         * Duration of the most recent collection by each collector, in
+         * milliseconds, or -1 if unknown.
+         */
+        public long[] lastCollectionMillis = new long[0];
+
+        /**
+         * Memory pool names.
+         */
+        public String[] poolNames = new String[0];
+
+        /**
+         * Used bytes in each pool.
+         */
+        public long[] poolUsed = new long[0];
+
+        /**
+         * Committed bytes in each pool.
+         */
+        public long[] poolCommitted = new long[0];
+
+        /**
+         * Maximum size of each pool, or -1 if undefined.
+         */
+        public long[] poolMax = new long[0];
+
+        /**
+         * Used bytes in each pool after the most recent collection, or -1 if
+         * not applicable to the pool.
+         */
+        public long[] poolUsedAfterGC = new long[0];
+
+        /**
+         * Total used bytes in the old generation pools after the most recent
+         * collection, or -1 if the collector has no identifiable old
+         * generation.
+         */
+        public long oldGenAfterGC = -1;
+
+        /**
+         * Allocation rate in bytes per second.
+         */
+        public double allocationRate;
+
+        // --------------------------------------------------------------------
+        /**
+         * Copy the values of another instance into this one, reusing this
+         * instance's arrays where they are the right size.
+         *
+         * @param other the instance to copy.
+         */
+        public void copy(Stats other) {
+            collectorNames = other.collectorNames;
+            collections = copy(other.collections, collections);
+            collectionMillis = copy(other.collectionMillis, collectionMillis);
+            lastCollectionMillis = copy(other.lastCollectionMillis, lastCollectionMillis);
+            poolNames = other.poolNames;
+            poolUsed = copy(other.poolUsed, poolUsed);
+            poolCommitted = copy(other.poolCommitted, poolCommitted);
+            poolMax = copy(other.poolMax, poolMax);
+            poolUsedAfterGC = copy(other.poolUsedAfterGC, poolUsedAfterGC);
+            oldGenAfterGC = other.oldGenAfterGC;
+            allocationRate = other.allocationRate;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Copy an array, reusing the destination if it is the right size.
+         *
+         * @param from the source.
+         * @param to the destination.
+         * @return the destination, or a new array.
+         */
+        protected static long[] copy(long[] from, long[] to) {
+            if (to.length != from.length) {
+                return from.clone();
+            }
+            System.arraycopy(from, 0, to, 0, from.length);
+            return to;
+        }
+    } // class Stats
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public GCMonitor() {
+        _collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        _pools = ManagementFactory.getMemoryPoolMXBeans();
+
+        _stats.collectorNames = new String[_collectors.size()];
+        for (int i = 0; i < _collectors.size(); ++i) {
+            _stats.collectorNames[i] = _collectors.get(i).getName();
+        }
+        _stats.collections = new long[_collectors.size()];
+        _stats.collectionMillis = new long[_collectors.size()];
+        _stats.lastCollectionMillis = new long[_collectors.size()];
+        Arrays.fill(_stats.lastCollectionMillis, -1);
+
+        _stats.poolNames = new String[_pools.size()];
+        _oldGen = new boolean[_pools.size()];
+        _heap = new boolean[_pools.size()];
+        for (int i = 0; i < _pools.size(); ++i) {
+            MemoryPoolMXBean pool = _pools.get(i);
+            _stats.poolNames[i] = pool.getName();
+            _heap[i] = (pool.getType() == MemoryType.HEAP);
+            _oldGen[i] = _heap[i] && (pool.getName().contains("Old") || pool.getName().contains("Tenured"));
+        }
+        _stats.poolUsed = new long[_pools.size()];
+        _stats.poolCommitted = new long[_pools.size()];
+        _stats.poolMax = new long[_pools.size()];
+        _stats.poolUsedAfterGC = new long[_pools.size()];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start listening for GC notifications and sampling once per second.
+     */
+    public synchronized void start() {
+        stop();
+        _heapAfterGC = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        _allocated = 0;
+        _allocationIndex = 0;
+        _allocationSamples = 0;
+
+        _listener = this::handleNotification;
+        for (GarbageCollectorMXBean collector : _collectors) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(_listener, null, null);
+            }
+        }
+
+        _sampler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "NerdPerf GC Monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _sampler.scheduleAtFixedRate(this::sample, 0, 1, TimeUnit.SECONDS);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop listening for GC notifications and stop sampling.
+     */
+    public synchronized void stop() {
+        if (_listener != null) {
+            for (GarbageCollectorMXBean collector : _collectors) {
+                if (collector instanceof NotificationEmitter) {
+                    try {
+                        ((NotificationEmitter) collector).removeNotificationListener(_listener);
+                    } catch (ListenerNotFoundException ex) {
+                    }
+                }
+            }
+            _listener = null;
+        }
+        if (_sampler != null) {
+            _sampler.shutdownNow();
+            _sampler = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Copy the latest statistics.
+     *
+     * @param stats the instance to copy into.
+     */
+    public synchronized void getStats(Stats stats) {
+        stats.copy(_stats);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the duration of a collection and the heap growth since the
+     * previous collection.
+     *
+     * This is called in the JMX notification thread.
+     *
+     * @param notification the notification.
+     * @param handback unused.
+     */
+    protected void handleNotification(Notification notification, Object handback) {
+        if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+            return;
+        }
+
+        CompositeData data = (CompositeData) notification.getUserData();
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(data);
+        long before = heapUsed(info.getGcInfo().getMemoryUsageBeforeGc());
+        long after = heapUsed(info.getGcInfo().getMemoryUsageAfterGc());
+        synchronized (this) {
+            for (int i = 0; i < _stats.collectorNames.length; ++i) {
+                if (_stats.collectorNames[i].equals(info.getGcName())) {
+                    _stats.lastCollectionMillis[i] = info.getGcInfo().getDuration();
+                }
+            }
+            _allocated += Math.max(0, before - _heapAfterGC);
+            _heapAfterGC = after;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total usage of heap pools in a map from pool name to usage.
+     *
+     * @param usage the usage of each pool.
+     * @return the total used bytes of heap pools.
+     */
+    protected long heapUsed(Map<String, MemoryUsage> usage) {
+        long used = 0;
+        for (int i = 0; i < _pools.size(); ++i) {
+            MemoryUsage poolUsage = usage.get(_stats.poolNames[i]);
+            if (_heap[i] && poolUsage != null) {
+                used += poolUsage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read collector and pool statistics and update the allocation rate.
+     *
+     * This is called once per second in the sampling thread.
+     */
+    protected void sample() {
+        long now = System.nanoTime();
+        long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        synchronized (this) {
+            for (int i = 0; i < _collectors.size(); ++i) {
+                GarbageCollectorMXBean collector = _collectors.get(i);
+                _stats.collections[i] = Math.max(0, collector.getCollectionCount());
+                _stats.collectionMillis[i] = Math.max(0, collector.getCollectionTime());
+            }
+
+            long oldGenAfterGC = 0;
+            boolean hasOldGen = false;
+            for (int i = 0; i < _pools.size(); ++i) {
+                MemoryPoolMXBean pool = _pools.get(i);
+                MemoryUsage usage = pool.getUsage();
+                _stats.poolUsed[i] = usage.getUsed();
+                _stats.poolCommitted[i] = usage.getCommitted();
+                _stats.poolMax[i] = usage.getMax();
+                MemoryUsage afterGC = pool.getCollectionUsage();
+                _stats.poolUsedAfterGC[i] = (afterGC != null) ? afterGC.getUsed() : -1;
+                if (_oldGen[i] && afterGC != null) {
+                    oldGenAfterGC += afterGC.getUsed();
+                    hasOldGen = true;
+                }
+            }
+            _stats.oldGenAfterGC = hasOldGen ? oldGenAfterGC : -1;
+
+            // Allocated bytes to date, including those not yet collected.
+            long allocated = _allocated + Math.max(0, heapUsed - _heapAfterGC);
+            int oldest = (_allocationSamples < ALLOCATION_SAMPLES) ? 0 : _allocationIndex;
+            if (_allocationSamples > 0) {
+                double seconds = (now - _allocationTimes[oldest]) * 1e-9;
+                _stats.allocationRate = (seconds > 0) ? (allocated - _allocationTotals[oldest]) / seconds : 0;
+            }
+            _allocationTimes[_allocationIndex] = now;
+            _allocationTotals[_allocationIndex] = allocated;
+            _allocationIndex = (_allocationIndex + 1) % ALLOCATION_SAMPLES;
+            _allocationSamples = Math.min(_allocationSamples + 1, ALLOCATION_SAMPLES);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Period in seconds over which the allocation rate is averaged.
+     */
+    protected static final int ALLOCATION_WINDOW_SECONDS = 10;
+
+    /**
+     * Number of allocation samples retained: one per second of the window,
+     * plus the sample at its start.
+     */
+    protected static final int ALLOCATION_SAMPLES = ALLOCATION_WINDOW_SECONDS + 1;
+
+    /**
+     * Garbage collectors.
+     */
+    protected final List<GarbageCollectorMXBean> _collectors;
+
+    /**
+     * Memory pools.
+     */
+    protected final List<MemoryPoolMXBean> _pools;
+
+    /**
+     * True for each pool that is part of the heap.
+     */
+    protected final boolean[] _heap;
+
+    /**
+     * True for each pool that is part of the old generation.
+     */
+    protected final boolean[] _oldGen;
+
+    /**
+     * The latest statistics.
+     */
+    protected final Stats _stats = new Stats();
+
+    /**
+     * Listener registered for GC notifications, or null if not started.
+     */
+    protected NotificationListener _listener;
+
+    /**
+     * Thread that samples once per second, or null if not started.
+     */
+    protected ScheduledThreadPoolExecutor _sampler;
+
+    /**
+     * Bytes allocated up to the start of the most recent collection.
+     */
+    protected long _allocated;
+
+    /**
+     * Heap used bytes at the end of the most recent collection.
+     */
+    protected long _heapAfterGC;
+
+    /**
+     * Ring of System.nanoTime() values at which allocation was sampled.
+     */
+    protected final long[] _allocationTimes = new long[ALLOCATION_SAMPLES];
+
+    /**
+     * Ring of allocated byte totals, corresponding to _allocationTimes.
+     */
+    protected final long[] _allocationTotals = new long[ALLOCATION_SAMPLES];
+
+    /**
+     * Index of the next allocation sample to overwrite.
+     */
+    protected int _allocationIndex;
+
+    /**
+     * Number of valid allocation samples.
+     */
+    protected int _allocationSamples;
+} // class GCMonitor
@@ -0,0 +1,228 @@
+package nu.nerd.perf;
+
+// ----------------------------------------------------------------------------
+/**
+ * The chunks with the highest counts of entities or tile entities in a world,
+ * both overall and for each type of object counted.
+ *
+ * Instances are reused from one scan to the next: compute() discards the
+ * previous results and retains the arrays that held them.
+ */
+public class Hotspots {
+    // ------------------------------------------------------------------------
+    /**
+     * Find the densest chunks.
+     *
+     * @param typedCounts counts keyed by {@link ChunkKeys#withType(long, int)}.
+     * @param types the number of types; counts with a higher type index are
+     *        included in the totals only.
+     * @param limit the maximum number of chunks in each list.
+     */
+    public void compute(LongIntHashMap typedCounts, int types, int limit) {
+        if (_byType.length != types) {
+            _byType = new TopN[types];
+        }
+        for (int type = 0; type < types; ++type) {
+            if (_byType[type] != null) {
+                _byType[type].reset(limit);
+            }
+        }
+        _chunkTotals.clear();
+
+        for (int slot = 0; slot < typedCounts.capacity(); ++slot) {
+            if (typedCounts.isUsed(slot)) {
+                long typedKey = typedCounts.keyAt(slot);
+                int count = typedCounts.valueAt(slot);
+                long chunkKey = ChunkKeys.chunkOf(typedKey);
+                int type = ChunkKeys.typeOf(typedKey);
+                _chunkTotals.add(chunkKey, count);
+                if (type < types) {
+                    if (_byType[type] == null) {
+                        _byType[type] = new TopN(limit);
+                    }
+                    _byType[type].offer(chunkKey, count);
+                }
+            }
+        }
+
+        _total.reset(limit);
+        for (int slot = 0; slot < _chunkTotals.capacity(); ++slot) {
+            if (_chunkTotals.isUsed(slot)) {
+                _total.offer(_chunkTotals.keyAt(slot), _chunkTotals.valueAt(slot));
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace these results with a copy of another instance's results.
+     *
+     * @param other the instance to copy.
+     */
+    public void copyFrom(Hotspots other) {
+        if (_byType.length != other._byType.length) {
+            _byType = new TopN[other._byType.length];
+        }
+        for (int type = 0; type < _byType.length; ++type) {
+            if (other._byType[type] == null) {
+                _byType[type] = null;
+            } else {
+                if (_byType[type] == null) {
+                    _byType[type] = new TopN(other._byType[type]._keys.length);
+                }
+                _byType[type].copyFrom(other._byType[type]);
+            }
+        }
+        _total.copyFrom(other._total);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the densest chunks as a JSON object.
+     *
+     * The object has the form:
+     *
+     * <pre>
+     * {
+     *   "total": [ { "x": chunkX, "z": chunkZ, "count": n }, ... ],
+     *   "by_type": { "TYPE": [ { "x": chunkX, "z": chunkZ, "count": n }, ... ] }
+     * }
+     * </pre>
+     *
+     * where each array is sorted by descending count. Types with no objects
+     * are omitted from "by_type".
+     *
+     * @param out the writer.
+     * @param typeNames the name of each type, indexed by type index.
+     */
+    public void writeJSON(JSONWriter out, String[] typeNames) {
+        out.beginObject();
+        out.key("total");
+        _total.writeJSON(out);
+        out.key("by_type").beginObject();
+        for (int type = 0; type < _byType.length; ++type) {
+            if (_byType[type] != null && _byType[type]._size > 0) {
+                out.key(typeNames[type]);
+                _byType[type].writeJSON(out);
+            }
+        }
+        out.endObject();
+        out.endObject();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Maintains the N chunks with the highest counts offered, sorted by
+     * descending count.
+     */
+    protected static class TopN {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param limit the maximum number of chunks retained.
+         */
+        TopN(int limit) {
+            reset(limit);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Discard all retained chunks.
+         *
+         * @param limit the maximum number of chunks retained.
+         */
+        void reset(int limit) {
+            if (_keys == null || _keys.length != limit) {
+                _keys = new long[limit];
+                _counts = new int[limit];
+            }
+            _size = 0;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Retain the same chunks as another instance.
+         *
+         * @param other the instance to copy.
+         */
+        void copyFrom(TopN other) {
+            reset(other._keys.length);
+            System.arraycopy(other._keys, 0, _keys, 0, other._size);
+            System.arraycopy(other._counts, 0, _counts, 0, other._size);
+            _size = other._size;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Offer a chunk count, which is retained if it is among the highest N.
+         *
+         * @param chunkKey the chunk key.
+         * @param count the count.
+         */
+        void offer(long chunkKey, int count) {
+            if (count <= 0 || (_size == _keys.length && count <= _counts[_size - 1])) {
+                return;
+            }
+
+            int i = (_size < _keys.length) ? _size++ : _size - 1;
+            for (; i > 0 && _counts[i - 1] < count; --i) {
+                _keys[i] = _keys[i - 1];
+                _counts[i] = _counts[i - 1];
+            }
+            _keys[i] = chunkKey;
+            _counts[i] = count;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Write the retained chunks as a JSON array.
+         *
+         * @param out the writer.
+         */
+        void writeJSON(JSONWriter out) {
+            out.beginArray();
+            for (int i = 0; i < _size; ++i) {
+                out.beginObject();
+                out.field("x", ChunkKeys.x(_keys[i]));
+                out.field("z", ChunkKeys.z(_keys[i]));
+                out.field("count", _counts[i]);
+                out.endObject();
+            }
+            out.endArray();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Retained chunk keys, sorted by descending count.
+         */
+        long[] _keys;
+
+        /**
+         * Retained counts, sorted by descending count.
+         */
+        int[] _counts;
+
+        /**
+         * Number of retained chunks.
+         */
+        int _size;
+    } // class TopN
+
+    // ------------------------------------------------------------------------
+    /**
+     * The densest chunks overall.
+     */
+    protected final TopN _total = new TopN(1);
+
+    /**
+     * The densest chunks for each type, indexed by type; elements are null
+     * until a chunk containing that type is found.
+     */
+    protected TopN[] _byType = new TopN[0];
+
+    /**
+     * Scratch map from chunk key to total count, reused by compute().
+     */
+    protected final LongIntHashMap _chunkTotals = new LongIntHashMap();
+} // class Hotspots
@@ -0,0 +1,285 @@
+package nu.nerd.perf;
+
+import java.util.Arrays;
+
+// ----------------------------------------------------------------------------
+/**
+ * Writes JSON directly into a {@link TextBuffer}, without building a tree of
+ * objects.
+ *
+ * The writer inserts separators between members and array elements itself;
+ * callers only need to match each begin call with the corresponding end call.
+ * Non-finite floating point values, which JSON cannot represent, are written
+ * as null.
+ *
+ * This class is not thread-safe.
+ */
+public class JSONWriter {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param out the buffer that JSON will be appended to.
+     */
+    public JSONWriter(TextBuffer out) {
+        _out = out;
+        reset();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reset the nesting state, so that a new document can be written.
+     */
+    public void reset() {
+        _depth = 0;
+        _first[0] = true;
+        _afterKey = false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin an object.
+     *
+     * @return this.
+     */
+    public JSONWriter beginObject() {
+        return begin('{');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * End the current object.
+     *
+     * @return this.
+     */
+    public JSONWriter endObject() {
+        return end('}');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin an array.
+     *
+     * @return this.
+     */
+    public JSONWriter beginArray() {
+        return begin('[');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * End the current array.
+     *
+     * @return this.
+     */
+    public JSONWriter endArray() {
+        return end(']');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the name of the next member of the current object.
+     *
+     * @param name the name.
+     * @return this.
+     */
+    public JSONWriter key(String name) {
+        separate();
+        writeString(name);
+        _out.append(':');
+        _afterKey = true;
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write an integer value.
+     *
+     * @param value the value.
+     * @return this.
+     */
+    public JSONWriter value(long value) {
+        separate();
+        _out.append(value);
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a floating point value.
+     *
+     * @param value the value.
+     * @return this.
+     */
+    public JSONWriter value(double value) {
+        separate();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            _out.append("null");
+        } else {
+            _out.append(value);
+        }
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a null value.
+     *
+     * @return this.
+     */
+    public JSONWriter nullValue() {
+        separate();
+        _out.append("null");
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a string value.
+     *
+     * @param value the value.
+     * @return this.
+     */
+    public JSONWriter value(String value) {
+        separate();
+        writeString(value);
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write an object member with an integer value.
+     *
+     * @param name the name.
+     * @param value the value.
+     * @return this.
+     */
+    public JSONWriter field(String name, long value) {
+        return key(name).value(value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write an object member with a floating point value.
+     *
+     * @param name the name.
+     * @param value the value.
+     * @return this.
+     */
+    public JSONWriter field(String name, double value) {
+        return key(name).value(value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin an object or array.
+     *
+     * @param bracket the opening bracket.
+     * @return this.
+     */
+    protected JSONWriter begin(char bracket) {
+        separate();
+        _out.append(bracket);
+        if (++_depth == _first.length) {
+            _first = Arrays.copyOf(_first, _first.length * 2);
+        }
+        _first[_depth] = true;
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * End an object or array.
+     *
+     * @param bracket the closing bracket.
+     * @return this.
+     */
+    protected JSONWriter end(char bracket) {
+        --_depth;
+        _out.append(bracket);
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a comma before the next value or member, unless it is the first
+     * in its object or array, or it is the value of a member whose name was
+     * just written.
+     */
+    protected void separate() {
+        if (_afterKey) {
+            _afterKey = false;
+        } else if (_first[_depth]) {
+            _first[_depth] = false;
+        } else {
+            _out.append(',');
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a quoted, escaped string.
+     *
+     * @param text the string.
+     */
+    protected void writeString(String text) {
+        _out.append('"');
+        int start = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                _out.append(text, start, i);
+                _out.append('\\');
+                switch (c) {
+                case '"':
+                case '\\':
+                    _out.append(c);
+                    break;
+                case '\n':
+                    _out.append('n');
+                    break;
+                case '\r':
+                    _out.append('r');
+                    break;
+                case '\t':
+                    _out.append('t');
+                    break;
+                default:
+                    _out.append('u').append('0').append('0');
+                    _out.append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                    break;
+                }
+                start = i + 1;
+            }
+        }
+        _out.append(text, start, text.length());
+        _out.append('"');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Hexadecimal digits, for escaping control characters.
+     */
+    protected static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * The buffer that JSON is appended to.
+     */
+    protected final TextBuffer _out;
+
+    /**
+     * For each nesting depth, true if no value or member has yet been written
+     * in the object or array at that depth.
+     */
+    protected boolean[] _first = new boolean[16];
+
+    /**
+     * Current nesting depth; 0 is the top level.
+     */
+    protected int _depth;
+
+    /**
+     * True if a member name has just been written and its value is next.
+     */
+    protected boolean _afterKey;
+} // class JSONWriter
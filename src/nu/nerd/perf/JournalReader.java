@@ -0,0 +1,333 @@
+package nu.nerd.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// ----------------------------------------------------------------------------
+/**
+ * Reads a journal file written by {@link MetricsJournal}.
+ *
+ * A journal file consists of a {@value #HEADER_BYTES} byte header followed by
+ * fixed-size records. All values are big-endian.
+ *
+ * The header holds, in order: the magic number {@code NPJ1} (int), the format
+ * version (int), the record size in bytes (int), the capacity in records
+ * (int), the creation time in milliseconds since the epoch (long), the number
+ * of records written (int), and the number of worlds (int), followed by each
+ * world name as a length (short) and UTF-8 bytes.
+ *
+ * Each record holds the sample time (long), TPS (float), 95th percentile tick
+ * duration over the last minute in milliseconds (float), players (int), used
+ * and maximum heap in MB (int, int) and 4 bytes of padding, followed by the
+ * loaded chunks, entities and tile entities (3 ints) of each world in header
+ * order.
+ */
+public class JournalReader {
+    // ------------------------------------------------------------------------
+    /**
+     * Open a journal file.
+     *
+     * @param file the file.
+     * @throws IOException if the file cannot be read or is not a journal.
+     */
+    public JournalReader(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            _buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        }
+        if (_buffer.capacity() < HEADER_BYTES || _buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a journal file");
+        }
+        if (_buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " has unsupported version " + _buffer.getInt(4));
+        }
+
+        _recordBytes = _buffer.getInt(8);
+        int capacity = _buffer.getInt(12);
+        _created = _buffer.getLong(16);
+        _recordCount = Math.min(_buffer.getInt(COUNT_OFFSET), capacity);
+        int worlds = _buffer.getInt(WORLDS_OFFSET);
+        if (worlds < 0 || worlds > (HEADER_BYTES - NAMES_OFFSET) / 2) {
+            throw new IOException(file + " has a corrupt journal header");
+        }
+        _worldNames = new String[worlds];
+        _buffer.position(NAMES_OFFSET);
+        for (int w = 0; w < _worldNames.length; ++w) {
+            int length = (HEADER_BYTES - _buffer.position() >= 2) ? _buffer.getShort() : -1;
+            if (length < 0 || length > HEADER_BYTES - _buffer.position()) {
+                throw new IOException(file + " has a corrupt journal header");
+            }
+            byte[] name = new byte[length];
+            _buffer.get(name);
+            _worldNames[w] = new String(name, StandardCharsets.UTF_8);
+        }
+        if (_recordCount < 0 || _recordBytes != recordBytes(_worldNames.length) ||
+            HEADER_BYTES + (long) _recordCount * _recordBytes > _buffer.capacity()) {
+            throw new IOException(file + " is corrupt");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the size of a record with the specified number of worlds.
+     *
+     * @param worlds the number of worlds.
+     * @return the size of a record in bytes.
+     */
+    public static int recordBytes(int worlds) {
+        return 32 + 12 * worlds;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the creation time of the file.
+     *
+     * @return the creation time in milliseconds since the epoch.
+     */
+    public long getCreated() {
+        return _created;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the names of the worlds in each record.
+     *
+     * @return the world names, indexed by world index.
+     */
+    public String[] getWorldNames() {
+        return _worldNames;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of records in the file.
+     *
+     * @return the number of records.
+     */
+    public int getRecordCount() {
+        return _recordCount;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the first record at or after the specified time.
+     *
+     * @param time the time in milliseconds since the epoch.
+     * @return the index of the record, or getRecordCount() if there is none.
+     */
+    public int findRecord(long time) {
+        int low = 0;
+        int high = _recordCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTime(mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time of a sample.
+     *
+     * @param record the record index.
+     * @return the time in milliseconds since the epoch.
+     */
+    public long getTime(int record) {
+        return _buffer.getLong(offset(record));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the TPS averaged over 10 seconds.
+     *
+     * @param record the record index.
+     * @return the TPS.
+     */
+    public float getTPS(int record) {
+        return _buffer.getFloat(offset(record) + 8);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the 95th percentile tick duration over the preceding minute.
+     *
+     * @param record the record index.
+     * @return the duration in milliseconds.
+     */
+    public float getTickP95Millis(int record) {
+        return _buffer.getFloat(offset(record) + 12);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of connected players.
+     *
+     * @param record the record index.
+     * @return the number of players.
+     */
+    public int getPlayers(int record) {
+        return _buffer.getInt(offset(record) + 16);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the used heap space.
+     *
+     * @param record the record index.
+     * @return the used heap in MB.
+     */
+    public int getMemoryUsed(int record) {
+        return _buffer.getInt(offset(record) + 20);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the maximum heap space.
+     *
+     * @param record the record index.
+     * @return the maximum heap in MB.
+     */
+    public int getMemoryMax(int record) {
+        return _buffer.getInt(offset(record) + 24);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of loaded chunks in a world.
+     *
+     * @param record the record index.
+     * @param world the world index.
+     * @return the number of loaded chunks.
+     */
+    public int getChunks(int record, int world) {
+        return _buffer.getInt(offset(record) + 32 + 12 * world);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of entities in a world.
+     *
+     * @param record the record index.
+     * @param world the world index.
+     * @return the number of entities.
+     */
+    public int getEntities(int record, int world) {
+        return _buffer.getInt(offset(record) + 36 + 12 * world);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of counted tile entities in a world.
+     *
+     * @param record the record index.
+     * @param world the world index.
+     * @return the number of tile entities.
+     */
+    public int getTileEntities(int record, int world) {
+        return _buffer.getInt(offset(record) + 40 + 12 * world);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the records at or after the specified time as JSON objects, each
+     * as one element of the enclosing array.
+     *
+     * @param out the writer, positioned within an array.
+     * @param since the earliest time in milliseconds since the epoch.
+     */
+    public void writeJSON(JSONWriter out, long since) {
+        for (int r = findRecord(since); r < _recordCount; ++r) {
+            out.beginObject();
+            out.field("time", getTime(r));
+            out.field("tps", getTPS(r));
+            out.field("tick_p95_ms", getTickP95Millis(r));
+            out.field("players", getPlayers(r));
+            out.field("memory_used", getMemoryUsed(r));
+            out.field("memory_max", getMemoryMax(r));
+            out.key("worlds").beginObject();
+            for (int w = 0; w < _worldNames.length; ++w) {
+                out.key(_worldNames[w]).beginObject();
+                out.field("chunks", getChunks(r, w));
+                out.field("entities", getEntities(r, w));
+                out.field("tile_entities", getTileEntities(r, w));
+                out.endObject();
+            }
+            out.endObject();
+            out.endObject();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the offset of a record in the file.
+     *
+     * @param record the record index.
+     * @return the offset.
+     */
+    protected int offset(int record) {
+        return HEADER_BYTES + record * _recordBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Magic number at the start of every journal file: "NPJ1".
+     */
+    public static final int MAGIC = 0x4E504A31;
+
+    /**
+     * Version of the file format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Size of the file header in bytes.
+     */
+    public static final int HEADER_BYTES = 4096;
+
+    /**
+     * Offset of the record count in the header.
+     */
+    public static final int COUNT_OFFSET = 24;
+
+    /**
+     * Offset of the number of worlds in the header.
+     */
+    public static final int WORLDS_OFFSET = 28;
+
+    /**
+     * Offset of the first world name in the header.
+     */
+    public static final int NAMES_OFFSET = 32;
+
+    /**
+     * The mapped file.
+     */
+    protected final ByteBuffer _buffer;
+
+    /**
+     * Size of a record in bytes.
+     */
+    protected final int _recordBytes;
+
+    /**
+     * Creation time in milliseconds since the epoch.
+     */
+    protected final long _created;
+
+    /**
+     * Number of records.
+     */
+    protected final int _recordCount;
+
+    /**
+     * World names, in record order.
+     */
+    protected final String[] _worldNames;
+} // class JournalReader
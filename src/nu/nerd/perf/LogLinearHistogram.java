@@ -0,0 +1,202 @@
+package nu.nerd.perf;
+
+import java.util.Arrays;
+
+// ----------------------------------------------------------------------------
+/**
+ * A histogram of non-negative long values with log-linear buckets.
+ *
+ * Each power of two range of values is divided into 16 equal-width buckets,
+ * so that quantiles are reported as the midpoint of a bucket, with a relative
+ * error of at most 1/32 (about 3%). Values below 16 are recorded exactly.
+ * The histogram does not allocate after construction.
+ *
+ * This class is not thread-safe.
+ */
+public class LogLinearHistogram {
+    // ------------------------------------------------------------------------
+    /**
+     * Record a value.
+     *
+     * @param value the value; negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        ++_buckets[bucketIndex(value)];
+        ++_count;
+        _sum += value;
+        if (value > _max) {
+            _max = value;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add all values recorded in another histogram to this one.
+     *
+     * @param other the other histogram.
+     */
+    public void add(LogLinearHistogram other) {
+        for (int i = 0; i < _buckets.length; ++i) {
+            _buckets[i] += other._buckets[i];
+        }
+        _count += other._count;
+        _sum += other._sum;
+        if (other._max > _max) {
+            _max = other._max;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove all recorded values.
+     */
+    public void reset() {
+        Arrays.fill(_buckets, 0);
+        _count = 0;
+        _sum = 0;
+        _max = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of recorded values.
+     *
+     * @return the number of recorded values.
+     */
+    public long getCount() {
+        return _count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the sum of recorded values.
+     *
+     * @return the sum of recorded values.
+     */
+    public long getSum() {
+        return _sum;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the mean of recorded values.
+     *
+     * @return the mean of recorded values, or 0 if there are none.
+     */
+    public double getMean() {
+        return _count == 0 ? 0 : (double) _sum / _count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the largest recorded value.
+     *
+     * @return the largest recorded value, or 0 if there are none.
+     */
+    public long getMax() {
+        return _max;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an estimate of the value at the specified quantile.
+     *
+     * @param quantile the quantile, in the range [0, 1].
+     * @return the midpoint of the bucket containing the quantile, but no more
+     *         than the largest recorded value, or 0 if there are no recorded
+     *         values.
+     */
+    public long getQuantile(double quantile) {
+        if (_count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * _count));
+        long seen = 0;
+        for (int i = 0; i < _buckets.length; ++i) {
+            seen += _buckets[i];
+            if (seen >= rank) {
+                return Math.min(_max, (bucketLowerBound(i) + bucketUpperBound(i)) / 2);
+            }
+        }
+        return _max;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the bucket that holds the specified value.
+     *
+     * @param value the non-negative value.
+     * @return the bucket index.
+     */
+    protected static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the lowest value that falls in the specified bucket.
+     *
+     * @param index the bucket index.
+     * @return the lowest value in the bucket.
+     */
+    protected static long bucketLowerBound(int index) {
+        return (index == 0) ? 0 : bucketUpperBound(index - 1) + 1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the highest value that falls in the specified bucket.
+     *
+     * @param index the bucket index.
+     * @return the highest value in the bucket.
+     */
+    protected static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Log base 2 of the number of buckets per power of two.
+     */
+    protected static final int SUB_BUCKET_BITS = 4;
+
+    /**
+     * Number of buckets per power of two.
+     */
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Count of values in each bucket.
+     */
+    protected final long[] _buckets = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+
+    /**
+     * Number of recorded values.
+     */
+    protected long _count;
+
+    /**
+     * Sum of recorded values.
+     */
+    protected long _sum;
+
+    /**
+     * Largest recorded value.
+     */
+    protected long _max;
+} // class LogLinearHistogram
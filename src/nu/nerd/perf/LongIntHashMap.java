@@ -0,0 +1,306 @@
+package nu.nerd.perf;
+
+import java.util.Arrays;
+
+// ----------------------------------------------------------------------------
+/**
+ * A hash map from primitive long keys to primitive int values, using open
+ * addressing with linear probing.
+ *
+ * Unlike HashMap&lt;Long, Integer&gt;, this map does not box keys or values, and
+ * the only allocation it performs is when its tables grow.
+ *
+ * Absent keys are treated as having the value 0.
+ *
+ * Entries can be iterated by slot index from 0 to {@link #capacity()} - 1,
+ * skipping slots where {@link #isUsed(int)} returns false. The map must not be
+ * modified during iteration.
+ */
+public class LongIntHashMap {
+    // ------------------------------------------------------------------------
+    /**
+     * Default constructor.
+     */
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Construct a map sized to hold the specified number of entries without
+     * growing.
+     *
+     * @param expectedSize the expected number of entries.
+     */
+    public LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * MAX_LOAD < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of entries in the map.
+     *
+     * @return the number of entries in the map.
+     */
+    public int size() {
+        return _size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value associated with a key.
+     *
+     * @param key the key.
+     * @return the value, or 0 if the key is absent.
+     */
+    public int get(long key) {
+        int slot = find(key);
+        return slot < 0 ? 0 : _values[slot];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the map contains the specified key.
+     *
+     * @param key the key.
+     * @return true if the map contains the specified key.
+     */
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Associate a value with a key.
+     *
+     * @param key the key.
+     * @param value the value.
+     */
+    public void put(long key, int value) {
+        // insert() may grow the tables, so it must be called before _values
+        // is dereferenced.
+        int slot = insert(key);
+        _values[slot] = value;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add to the value associated with a key, adding the key if absent.
+     *
+     * @param key the key.
+     * @param delta the amount to add.
+     * @return the new value.
+     */
+    public int add(long key, int delta) {
+        int slot = insert(key);
+        return _values[slot] += delta;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a key.
+     *
+     * @param key the key.
+     * @return the value that was associated with the key, or 0 if absent.
+     */
+    public int remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return 0;
+        }
+
+        int value = _values[slot];
+        --_size;
+
+        // Shift back subsequent entries in the same probe sequence so that
+        // lookups never need to skip over deleted slots.
+        int mask = _keys.length - 1;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; _used[next]; next = (next + 1) & mask) {
+            int home = hash(_keys[next]);
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                _keys[gap] = _keys[next];
+                _values[gap] = _values[next];
+                gap = next;
+            }
+        }
+        _used[gap] = false;
+        _values[gap] = 0;
+        return value;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove all entries, retaining the current capacity.
+     */
+    public void clear() {
+        Arrays.fill(_used, false);
+        Arrays.fill(_values, 0);
+        _size = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of slots, for iteration.
+     *
+     * @return the number of slots.
+     */
+    public int capacity() {
+        return _keys.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the specified slot holds an entry.
+     *
+     * @param slot the slot index.
+     * @return true if the specified slot holds an entry.
+     */
+    public boolean isUsed(int slot) {
+        return _used[slot];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the key in the specified slot.
+     *
+     * @param slot the slot index, which must be in use.
+     * @return the key.
+     */
+    public long keyAt(int slot) {
+        return _keys[slot];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the value in the specified slot.
+     *
+     * @param slot the slot index, which must be in use.
+     * @return the value.
+     */
+    public int valueAt(int slot) {
+        return _values[slot];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the slot containing the key, or -1 if absent.
+     *
+     * @param key the key.
+     * @return the slot containing the key, or -1 if absent.
+     */
+    protected int find(long key) {
+        int mask = _keys.length - 1;
+        for (int slot = hash(key); _used[slot]; slot = (slot + 1) & mask) {
+            if (_keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the slot containing the key, adding the key with a value of 0 if
+     * absent.
+     *
+     * @param key the key.
+     * @return the slot containing the key.
+     */
+    protected int insert(long key) {
+        int mask = _keys.length - 1;
+        int slot = hash(key);
+        for (; _used[slot]; slot = (slot + 1) & mask) {
+            if (_keys[slot] == key) {
+                return slot;
+            }
+        }
+
+        if (_size + 1 > _keys.length * MAX_LOAD) {
+            grow();
+            return insert(key);
+        }
+
+        _used[slot] = true;
+        _keys[slot] = key;
+        _values[slot] = 0;
+        ++_size;
+        return slot;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Double the capacity of the tables and rehash all entries.
+     */
+    protected void grow() {
+        long[] oldKeys = _keys;
+        int[] oldValues = _values;
+        boolean[] oldUsed = _used;
+        allocate(oldKeys.length * 2);
+        _size = 0;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldUsed[i]) {
+                _values[insert(oldKeys[i])] = oldValues[i];
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Allocate empty tables of the specified capacity.
+     *
+     * @param capacity the capacity, which must be a power of two.
+     */
+    protected void allocate(int capacity) {
+        _keys = new long[capacity];
+        _values = new int[capacity];
+        _used = new boolean[capacity];
+        _shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the home slot of a key.
+     *
+     * @param key the key.
+     * @return the home slot of the key.
+     */
+    protected int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> _shift);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Maximum fraction of slots that are used before the tables grow.
+     */
+    protected static final float MAX_LOAD = 0.5f;
+
+    /**
+     * Keys, indexed by slot.
+     */
+    protected long[] _keys;
+
+    /**
+     * Values, indexed by slot.
+     */
+    protected int[] _values;
+
+    /**
+     * True for slots that hold an entry.
+     */
+    protected boolean[] _used;
+
+    /**
+     * Number of entries.
+     */
+    protected int _size;
+
+    /**
+     * Right shift applied to the scrambled key to get its home slot.
+     */
+    protected int _shift;
+} // class LongIntHashMap
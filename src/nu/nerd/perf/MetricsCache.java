@@ -0,0 +1,315 @@
+package nu.nerd.perf;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.bukkit.Bukkit;
+
+// ----------------------------------------------------------------------------
+/**
+ * Caches the most recently computed metrics of each requested
+ * {@link MetricsSelection} and shares a single in-flight scan between all
+ * clients that ask for the same selection while it is running.
+ *
+ * Clients that ask for metrics within {@link Configuration#CACHE_MAX_AGE_MILLIS}
+ * of a completed scan whose selection covers theirs are given the cached
+ * result without involving the main thread at all. Otherwise, a scan of their
+ * selection is scheduled (unless one is already in progress) and the client's
+ * future completes when the scan does.
+ *
+ * Every request gets its own future, so cancelling one request, or letting it
+ * time out, has no effect on other requests attached to the same scan. When
+ * every request attached to a scan has been cancelled or has timed out, the
+ * scan itself is cancelled and abandoned at the start of its next slice.
+ *
+ * A cached {@link MetricsSnapshot} is shared between clients and must not be
+ * modified once the scan that computed it has completed. The cache holds one
+ * reference to it, and each request that it completes is given another, which
+ * the requester must release.
+ */
+public class MetricsCache {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public MetricsCache() {
+        _timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "NerdPerf Metrics Timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _timer.setRemoveOnCancelPolicy(true);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Request all metrics.
+     *
+     * @return a future that is completed with the metrics.
+     * @see #requestMetrics(MetricsSelection)
+     */
+    public CompletableFuture<MetricsSnapshot> requestMetrics() {
+        return requestMetrics(MetricsSelection.ALL);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Request metrics, returning a future that will be completed with cached
+     * metrics, if any fresh enough metrics cover the selection, or otherwise
+     * with the result of the next scan of the selection.
+     *
+     * The completed metrics may include more than was selected; the
+     * requester should encode only the selected metrics.
+     *
+     * The future will complete exceptionally with a TimeoutException if the
+     * scan takes longer than {@link Configuration#QUERY_TIMEOUT_MILLIS}.
+     * Dependent actions of the future may run in the main server thread, so
+     * they should do no more than hand off the result to the thread that will
+     * use it.
+     *
+     * This method can be called from any thread.
+     *
+     * @param selection the metrics to compute.
+     * @return a future that is completed with the metrics.
+     */
+    public CompletableFuture<MetricsSnapshot> requestMetrics(MetricsSelection selection) {
+        CompletableFuture<MetricsSnapshot> request = new CompletableFuture<MetricsSnapshot>();
+        Entry entry = null;
+        CompletableFuture<MetricsSnapshot> scan;
+        synchronized (this) {
+            for (Iterator<Entry> it = _entries.iterator(); it.hasNext();) {
+                Entry e = it.next();
+                if (isFresh(e)) {
+                    if (e.selection.covers(selection)) {
+                        e.metrics.retain();
+                        request.complete(e.metrics);
+                        return request;
+                    }
+                } else if (e.scan == null) {
+                    // Stale and idle: drop it so that one-off selections
+                    // don't accumulate.
+                    if (e.metrics != null) {
+                        e.metrics.release();
+                    }
+                    it.remove();
+                    continue;
+                }
+                if (e.selection.equals(selection)) {
+                    entry = e;
+                }
+            }
+
+            if (entry == null) {
+                entry = new Entry(selection);
+                _entries.add(entry);
+            }
+            if (entry.scan == null) {
+                Entry scanned = entry;
+                CompletableFuture<MetricsSnapshot> newScan = new CompletableFuture<MetricsSnapshot>();
+                newScan.whenComplete((metrics, ex) -> scanCompleted(scanned, newScan, metrics, ex));
+                entry.scan = newScan;
+                long queuedNanos = System.nanoTime();
+                Bukkit.getScheduler().scheduleSyncDelayedTask(NerdPerf.PLUGIN, () -> {
+                    NerdPerf.OVERHEAD.recordQueueWait(System.nanoTime() - queuedNanos);
+                    NerdPerf.PLUGIN.scanMetrics(newScan, selection);
+                });
+            }
+            scan = entry.scan;
+            entry.waiters.add(request);
+        }
+
+        Entry attached = entry;
+        ScheduledFuture<?> timeout = _timer.schedule(() -> {
+            request.completeExceptionally(new TimeoutException("metrics not computed in time"));
+        }, NerdPerf.CONFIG.QUERY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        request.whenComplete((metrics, ex) -> {
+            timeout.cancel(false);
+            if (ex != null) {
+                detach(attached, scan, request);
+            }
+        });
+        return request;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Discard the cached metrics so that the next request triggers a scan.
+     *
+     * This is used when the configuration is reloaded, since the set of worlds
+     * being measured may have changed.
+     */
+    public synchronized void invalidate() {
+        for (Iterator<Entry> it = _entries.iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.metrics != null) {
+                entry.metrics.release();
+                entry.metrics = null;
+            }
+            if (entry.scan == null) {
+                it.remove();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Cancel any scans in progress and stop the timeout thread.
+     *
+     * This is called when the plugin is disabled.
+     */
+    public void shutdown() {
+        ArrayList<CompletableFuture<MetricsSnapshot>> scans = new ArrayList<CompletableFuture<MetricsSnapshot>>();
+        synchronized (this) {
+            for (Entry entry : _entries) {
+                if (entry.scan != null) {
+                    scans.add(entry.scan);
+                }
+            }
+        }
+        for (CompletableFuture<MetricsSnapshot> scan : scans) {
+            scan.cancel(false);
+        }
+        _timer.shutdownNow();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The cached metrics and in-flight scan of one selection.
+     */
+    protected static class Entry {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param selection the selected metrics.
+         */
+        Entry(MetricsSelection selection) {
+            this.selection = selection;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The selected metrics.
+         */
+        final MetricsSelection selection;
+
+        /**
+         * The most recently computed metrics, or null if not yet computed.
+         */
+        MetricsSnapshot metrics;
+
+        /**
+         * The System.nanoTime() value when metrics was computed.
+         */
+        long metricsNanos;
+
+        /**
+         * The future completed by the scan in progress, or null if there is
+         * no scan in progress.
+         */
+        CompletableFuture<MetricsSnapshot> scan;
+
+        /**
+         * Requests attached to scan that have not been cancelled or timed
+         * out.
+         */
+        final ArrayList<CompletableFuture<MetricsSnapshot>> waiters =
+            new ArrayList<CompletableFuture<MetricsSnapshot>>();
+    } // class Entry
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if an entry's cached metrics are no older than the
+     * configured maximum age.
+     *
+     * @param entry the entry.
+     * @return true if the cached metrics are no older than the configured
+     *         maximum age.
+     */
+    protected static boolean isFresh(Entry entry) {
+        return entry.metrics != null &&
+               System.nanoTime() - entry.metricsNanos <= NerdPerf.CONFIG.CACHE_MAX_AGE_MILLIS * 1_000_000L;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle completion of a scan, whether successful or not, by caching its
+     * result and completing the requests waiting for it.
+     *
+     * The scan's reference to the metrics is transferred to the cache, and
+     * each waiting request is given a reference of its own.
+     *
+     * @param entry the entry of the scanned selection.
+     * @param scan the scan.
+     * @param metrics the computed metrics, or null if the scan was cancelled
+     *        or failed.
+     * @param ex the reason the scan failed, or null if it succeeded.
+     */
+    protected synchronized void scanCompleted(Entry entry, CompletableFuture<MetricsSnapshot> scan,
+                                              MetricsSnapshot metrics, Throwable ex) {
+        if (entry.scan != scan) {
+            return;
+        }
+        entry.scan = null;
+
+        if (metrics != null) {
+            if (entry.metrics != null) {
+                entry.metrics.release();
+            }
+            entry.metrics = metrics;
+            entry.metricsNanos = System.nanoTime();
+        } else if (entry.metrics == null) {
+            _entries.remove(entry);
+        }
+
+        for (CompletableFuture<MetricsSnapshot> request : entry.waiters) {
+            if (metrics != null) {
+                metrics.retain();
+                if (!request.complete(metrics)) {
+                    metrics.release();
+                }
+            } else {
+                request.completeExceptionally(ex != null ? ex : new CancellationException());
+            }
+        }
+        entry.waiters.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle cancellation or timeout of one request attached to a scan, and
+     * cancel the scan if no requests remain attached to it.
+     *
+     * @param entry the entry of the scanned selection.
+     * @param scan the scan.
+     * @param request the request.
+     */
+    protected void detach(Entry entry, CompletableFuture<MetricsSnapshot> scan,
+                          CompletableFuture<MetricsSnapshot> request) {
+        synchronized (this) {
+            if (entry.scan != scan || !entry.waiters.remove(request) || !entry.waiters.isEmpty()) {
+                return;
+            }
+        }
+        scan.cancel(false);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Cached metrics and in-flight scans, one per distinct selection that has
+     * been requested recently.
+     */
+    protected final ArrayList<Entry> _entries = new ArrayList<Entry>();
+
+    /**
+     * Thread that times out requests.
+     */
+    protected ScheduledThreadPoolExecutor _timer;
+} // class MetricsCache
@@ -0,0 +1,379 @@
+package nu.nerd.perf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import org.bukkit.Bukkit;
+
+// ----------------------------------------------------------------------------
+/**
+ * Samples metrics at a configured interval into a fixed-size ring of
+ * primitive arrays, so that recent history can be queried after the fact.
+ *
+ * Each sample records the time, TPS, the 95th percentile tick duration over
+ * the last minute, players and used heap, and for each world the number of
+ * loaded chunks, entities and tile entities. Samples are taken through
+ * {@link NerdPerf#requestMetrics(MetricsSelection)}, selecting only those
+ * metrics, so they share scans with queries and may be up to
+ * cache.max-age-millis old. Sampling is disabled by default, since each
+ * sample that is not answered from the cache counts the entities and tile
+ * entities of every world in the main thread.
+ *
+ * Per-world values of worlds that were not in a sample are stored as -1 and
+ * reported as null.
+ *
+ * Recording happens in whichever thread completes the scan (usually the
+ * main thread) and encoding in the query server thread; both synchronize on
+ * this instance.
+ */
+public class MetricsHistory {
+    // ------------------------------------------------------------------------
+    /**
+     * Apply the current configuration, (re)scheduling the sampling task.
+     *
+     * Recorded samples are retained unless the configured number of samples
+     * has changed.
+     *
+     * This method must be called in the main thread.
+     */
+    public void configure() {
+        if (_sampleTaskId != -1) {
+            Bukkit.getScheduler().cancelTask(_sampleTaskId);
+            _sampleTaskId = -1;
+        }
+
+        synchronized (this) {
+            if (_times.length != NerdPerf.CONFIG.HISTORY_SAMPLES) {
+                allocate(NerdPerf.CONFIG.HISTORY_SAMPLES);
+            }
+        }
+
+        if (NerdPerf.CONFIG.HISTORY_INTERVAL_SECONDS > 0) {
+            long periodTicks = NerdPerf.CONFIG.HISTORY_INTERVAL_SECONDS * 20L;
+            _sampleTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(NerdPerf.PLUGIN, this::sample,
+                                                                            periodTicks, periodTicks);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Request metrics and record them, and append them to the journal, when
+     * they are available.
+     *
+     * If the previous sample is still being measured, as when scans take
+     * longer than the sampling interval, this sample is skipped rather than
+     * queueing another scan.
+     */
+    protected void sample() {
+        if (_sample != null && !_sample.isDone()) {
+            return;
+        }
+        _sample = NerdPerf.PLUGIN.requestMetrics(SELECTION);
+        _sample.whenComplete((metrics, ex) -> {
+            if (metrics != null) {
+                long time = System.currentTimeMillis();
+                record(time, metrics);
+                NerdPerf.PLUGIN.getJournal().append(time, metrics);
+                metrics.release();
+            } else if (NerdPerf.CONFIG.DEBUG_OVERHEAD) {
+                NerdPerf.PLUGIN.getLogger().info("History sample skipped: " + ex);
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a sample, overwriting the oldest if the ring is full.
+     *
+     * @param time the time of the sample, in milliseconds since the epoch.
+     * @param metrics the metrics.
+     */
+    public synchronized void record(long time, MetricsSnapshot metrics) {
+        int capacity = _times.length;
+        if (capacity == 0) {
+            return;
+        }
+
+        int slot = _next;
+        _next = (_next + 1) % capacity;
+        _count = Math.min(_count + 1, capacity);
+
+        _times[slot] = time;
+        _tps[slot] = metrics.tps;
+        _tickP95Millis[slot] = (float) metrics.tick[0].p95Millis;
+        _players[slot] = metrics.players;
+        _memoryUsed[slot] = (int) metrics.memoryUsed;
+
+        for (WorldHistory world : _worlds) {
+            world.clear(slot);
+        }
+        for (int w = 0; w < metrics.getWorldCount(); ++w) {
+            MetricsSnapshot.WorldMetrics worldMetrics = metrics.getWorld(w);
+            WorldHistory world = getWorldHistory(worldMetrics.name);
+            world.chunks[slot] = worldMetrics.chunks;
+            world.entities[slot] = sum(worldMetrics.entities);
+            world.tileEntities[slot] = sum(worldMetrics.tileEntities);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the samples recorded since the specified time as a JSON object.
+     *
+     * Each metric is an array with one element per sample, oldest first, in
+     * the same order as the "time" array.
+     *
+     * @param out the writer.
+     * @param since the earliest sample time to include, in milliseconds since
+     *        the epoch.
+     * @param worldName the name of the only world to include, or null to
+     *        include all worlds.
+     */
+    public synchronized void writeJSON(JSONWriter out, long since, String worldName) {
+        int capacity = _times.length;
+        int oldest = (capacity == 0) ? 0 : (_next - _count + capacity) % capacity;
+        int skip = 0;
+        while (skip < _count && _times[(oldest + skip) % capacity] < since) {
+            ++skip;
+        }
+        int first = (capacity == 0) ? 0 : (oldest + skip) % capacity;
+        int count = _count - skip;
+
+        out.beginObject();
+        out.field("interval_seconds", NerdPerf.CONFIG.HISTORY_INTERVAL_SECONDS);
+        out.key("time").beginArray();
+        for (int i = 0; i < count; ++i) {
+            out.value(_times[(first + i) % capacity]);
+        }
+        out.endArray();
+        writeArray(out, "tps", _tps, first, count);
+        writeArray(out, "tick_p95_ms", _tickP95Millis, first, count);
+        writeArray(out, "players", _players, first, count);
+        writeArray(out, "memory_used", _memoryUsed, first, count);
+
+        out.key("worlds").beginObject();
+        for (WorldHistory world : _worlds) {
+            if (worldName == null || world.name.equals(worldName)) {
+                out.key(world.name).beginObject();
+                writeArray(out, "chunks", world.chunks, first, count);
+                writeArray(out, "entities", world.entities, first, count);
+                writeArray(out, "tile_entities", world.tileEntities, first, count);
+                out.endObject();
+            }
+        }
+        out.endObject();
+        out.endObject();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The recorded values of one world.
+     */
+    protected static class WorldHistory {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param name the world name.
+         * @param capacity the number of samples.
+         */
+        WorldHistory(String name, int capacity) {
+            this.name = name;
+            chunks = new int[capacity];
+            entities = new int[capacity];
+            tileEntities = new int[capacity];
+            Arrays.fill(chunks, -1);
+            Arrays.fill(entities, -1);
+            Arrays.fill(tileEntities, -1);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Mark a sample as having no values for this world.
+         *
+         * @param slot the index of the sample.
+         */
+        void clear(int slot) {
+            chunks[slot] = -1;
+            entities[slot] = -1;
+            tileEntities[slot] = -1;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The world name.
+         */
+        final String name;
+
+        /**
+         * Loaded chunks, indexed by slot.
+         */
+        final int[] chunks;
+
+        /**
+         * Total entities, indexed by slot.
+         */
+        final int[] entities;
+
+        /**
+         * Total counted tile entities, indexed by slot.
+         */
+        final int[] tileEntities;
+    } // class WorldHistory
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the history of the named world, adding it if absent.
+     *
+     * @param name the world name.
+     * @return the history of the world.
+     */
+    protected WorldHistory getWorldHistory(String name) {
+        for (WorldHistory world : _worlds) {
+            if (world.name.equals(name)) {
+                return world;
+            }
+        }
+        WorldHistory world = new WorldHistory(name, _times.length);
+        _worlds.add(world);
+        return world;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Discard all samples and allocate the ring with the specified capacity.
+     *
+     * @param capacity the number of samples retained.
+     */
+    protected void allocate(int capacity) {
+        _times = new long[capacity];
+        _tps = new float[capacity];
+        _tickP95Millis = new float[capacity];
+        _players = new int[capacity];
+        _memoryUsed = new int[capacity];
+        _worlds.clear();
+        _next = 0;
+        _count = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a member whose value is an array of samples.
+     *
+     * @param out the writer.
+     * @param name the member name.
+     * @param values the ring of values.
+     * @param first the slot of the first sample.
+     * @param count the number of samples.
+     */
+    protected static void writeArray(JSONWriter out, String name, float[] values, int first, int count) {
+        out.key(name).beginArray();
+        for (int i = 0; i < count; ++i) {
+            out.value(values[(first + i) % values.length]);
+        }
+        out.endArray();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a member whose value is an array of samples, with negative values
+     * written as null.
+     *
+     * @param out the writer.
+     * @param name the member name.
+     * @param values the ring of values.
+     * @param first the slot of the first sample.
+     * @param count the number of samples.
+     */
+    protected static void writeArray(JSONWriter out, String name, int[] values, int first, int count) {
+        out.key(name).beginArray();
+        for (int i = 0; i < count; ++i) {
+            int value = values[(first + i) % values.length];
+            if (value < 0) {
+                out.nullValue();
+            } else {
+                out.value(value);
+            }
+        }
+        out.endArray();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the sum of an array of counts.
+     *
+     * @param counts the counts.
+     * @return the sum.
+     */
+    protected static int sum(int[] counts) {
+        int sum = 0;
+        for (int count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The metrics recorded in a sample, which exclude hotspots, attribution
+     * and the plugin profiler report.
+     */
+    protected static final MetricsSelection SELECTION = new MetricsSelection(
+        MetricsSelection.PLAYERS | MetricsSelection.TPS | MetricsSelection.TICK | MetricsSelection.MEMORY,
+        Collections.singletonMap(MetricsSelection.ANY_WORLD,
+                                 MetricsSelection.CHUNKS | MetricsSelection.ENTITIES | MetricsSelection.TILE_ENTITIES));
+
+    /**
+     * Sample times, in milliseconds since the epoch, indexed by slot.
+     */
+    protected long[] _times = new long[0];
+
+    /**
+     * TPS averaged over 10 seconds, indexed by slot.
+     */
+    protected float[] _tps = new float[0];
+
+    /**
+     * 95th percentile tick duration over the last minute, in milliseconds,
+     * indexed by slot.
+     */
+    protected float[] _tickP95Millis = new float[0];
+
+    /**
+     * Connected players, indexed by slot.
+     */
+    protected int[] _players = new int[0];
+
+    /**
+     * Used heap in MB, indexed by slot.
+     */
+    protected int[] _memoryUsed = new int[0];
+
+    /**
+     * Per-world values, in the order worlds were first sampled.
+     */
+    protected final ArrayList<WorldHistory> _worlds = new ArrayList<WorldHistory>();
+
+    /**
+     * Slot that the next sample will be recorded in.
+     */
+    protected int _next;
+
+    /**
+     * Number of valid samples.
+     */
+    protected int _count;
+
+    /**
+     * ID of the repeating sampling task, or -1 if not scheduled.
+     */
+    protected int _sampleTaskId = -1;
+
+    /**
+     * The metrics requested by the latest sample, or null if none has been
+     * taken; only accessed in the main thread.
+     */
+    protected CompletableFuture<MetricsSnapshot> _sample;
+} // class MetricsHistory
@@ -0,0 +1,458 @@
+package nu.nerd.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// ----------------------------------------------------------------------------
+/**
+ * Appends each sample recorded in the {@link MetricsHistory} to a binary
+ * journal in the plugin's data folder, so that the metrics leading up to a
+ * crash or restart can be replayed with a {@link JournalReader}.
+ *
+ * Each journal file is preallocated to journal.max-file-kb, memory-mapped and
+ * filled with fixed-size records; the file layout is described by
+ * {@link JournalReader}. A new file is started when the current one is full,
+ * older than journal.max-file-age-hours, or was created for a different set
+ * of worlds, and on every restart. Only the newest journal.max-files files
+ * are kept.
+ *
+ * All file I/O happens in a dedicated thread. The caller's only cost is
+ * retaining the snapshot and queueing it. Records are written to the mapped
+ * file without calling force(), so they survive a crash of the server process
+ * but not necessarily of the operating system.
+ */
+public class MetricsJournal {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public MetricsJournal() {
+        _executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            r -> {
+                Thread thread = new Thread(r, "NerdPerf Journal");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply the current configuration.
+     *
+     * This method must be called in the main thread.
+     */
+    public void configure() {
+        boolean enabled = NerdPerf.CONFIG.JOURNAL_ENABLED;
+        File directory = new File(NerdPerf.PLUGIN.getDataFolder(), DIRECTORY);
+        long maxFileBytes = NerdPerf.CONFIG.JOURNAL_MAX_FILE_KB * 1024L;
+        long maxFileAgeMillis = NerdPerf.CONFIG.JOURNAL_MAX_FILE_AGE_HOURS * 3_600_000L;
+        int maxFiles = NerdPerf.CONFIG.JOURNAL_MAX_FILES;
+        submit(() -> {
+            _enabled = enabled;
+            _directory = directory;
+            _maxFileBytes = maxFileBytes;
+            _maxFileAgeMillis = maxFileAgeMillis;
+            _maxFiles = maxFiles;
+            if (!_enabled || _file != null && _file.capacity != capacityFor(maxFileBytes, _worldNames)) {
+                closeFile();
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a sample to the journal.
+     *
+     * The snapshot is retained until it has been written.
+     *
+     * @param time the time of the sample, in milliseconds since the epoch.
+     * @param metrics the metrics; the caller must hold a reference.
+     */
+    public void append(long time, MetricsSnapshot metrics) {
+        metrics.retain();
+        if (!submit(() -> {
+            try {
+                if (_enabled) {
+                    write(time, metrics);
+                }
+            } finally {
+                metrics.release();
+            }
+        })) {
+            metrics.release();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the journal files, oldest first.
+     *
+     * @return the journal files.
+     */
+    public List<File> getFiles() {
+        return listFiles(new File(NerdPerf.PLUGIN.getDataFolder(), DIRECTORY));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop the journal thread, waiting briefly for queued records to be
+     * written.
+     */
+    public void shutdown() {
+        submit(this::closeFile);
+        _executor.shutdown();
+        try {
+            _executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Run a task in the journal thread.
+     *
+     * @param task the task.
+     * @return true if the task was queued; false if the journal is shut down.
+     */
+    protected boolean submit(Runnable task) {
+        try {
+            _executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    NerdPerf.PLUGIN.getLogger().severe("Journal: " + ex);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a record, starting a new file first if necessary.
+     *
+     * This method runs in the journal thread.
+     *
+     * @param time the time of the sample.
+     * @param metrics the metrics.
+     */
+    protected void write(long time, MetricsSnapshot metrics) {
+        if (_file == null || _file.isFull() || time - _file.created >= _maxFileAgeMillis ||
+            !sameWorlds(metrics)) {
+            closeFile();
+            String[] worldNames = new String[metrics.getWorldCount()];
+            for (int w = 0; w < worldNames.length; ++w) {
+                worldNames[w] = metrics.getWorld(w).name;
+            }
+            try {
+                openFile(time, worldNames);
+            } catch (IOException | RuntimeException ex) {
+                // Retrying every sample would log, and might leave a file, each time.
+                _enabled = false;
+                NerdPerf.PLUGIN.getLogger().severe("Journal: unable to create file: " + ex.getMessage() +
+                                                   "; journal disabled until reloaded.");
+                return;
+            }
+        }
+        _file.append(time, metrics);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the current file has the same worlds, in the same order,
+     * as a snapshot.
+     *
+     * @param metrics the snapshot.
+     * @return true if the worlds are the same.
+     */
+    protected boolean sameWorlds(MetricsSnapshot metrics) {
+        if (_worldNames.length != metrics.getWorldCount()) {
+            return false;
+        }
+        for (int w = 0; w < _worldNames.length; ++w) {
+            if (!_worldNames[w].equals(metrics.getWorld(w).name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create, preallocate and map a new journal file, then delete the oldest
+     * files in excess of the configured maximum.
+     *
+     * If the file cannot be set up, it is deleted.
+     *
+     * @param time the creation time.
+     * @param worldNames the names of the worlds in each record.
+     * @throws IOException if the file cannot be created.
+     */
+    protected void openFile(long time, String[] worldNames) throws IOException {
+        if (!fitsHeader(worldNames)) {
+            throw new IOException("too many worlds for the journal header");
+        }
+        if (!_directory.isDirectory() && !_directory.mkdirs()) {
+            throw new IOException("cannot create " + _directory);
+        }
+
+        String name = PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(time));
+        File path = new File(_directory, name + SUFFIX);
+        for (int i = 1; path.exists(); ++i) {
+            path = new File(_directory, name + "-" + i + SUFFIX);
+        }
+
+        int capacity = capacityFor(_maxFileBytes, worldNames);
+        int recordBytes = JournalReader.recordBytes(worldNames.length);
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            long length = JournalReader.HEADER_BYTES + (long) capacity * recordBytes;
+            file.setLength(length);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            _file = new JournalFile(buffer, time, worldNames, capacity);
+        } catch (IOException | RuntimeException ex) {
+            path.delete();
+            throw ex;
+        }
+        _worldNames = worldNames;
+
+        List<File> files = listFiles(_directory);
+        for (int i = 0; i < files.size() - _maxFiles; ++i) {
+            files.get(i).delete();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop writing to the current file.
+     *
+     * The mapping is released when it is garbage collected.
+     */
+    protected void closeFile() {
+        _file = null;
+        _worldNames = NO_WORLDS;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if the names of the worlds fit in a file header.
+     *
+     * @param worldNames the world names.
+     * @return true if the names fit.
+     */
+    protected static boolean fitsHeader(String[] worldNames) {
+        int bytes = JournalReader.NAMES_OFFSET;
+        for (String worldName : worldNames) {
+            bytes += 2 + worldName.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return bytes <= JournalReader.HEADER_BYTES;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of records that fit in a file of the configured size,
+     * which is at least 1.
+     *
+     * @param maxFileBytes the maximum file size.
+     * @param worldNames the world names.
+     * @return the number of records.
+     */
+    protected static int capacityFor(long maxFileBytes, String[] worldNames) {
+        long records = (maxFileBytes - JournalReader.HEADER_BYTES) / JournalReader.recordBytes(worldNames.length);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, records));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the journal files in a directory, oldest first.
+     *
+     * @param directory the directory.
+     * @return the journal files.
+     */
+    protected static List<File> listFiles(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        // Names embed the creation time, so they sort chronologically.
+        Arrays.sort(files);
+        return new ArrayList<File>(Arrays.asList(files));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * An open, memory-mapped journal file.
+     */
+    protected static class JournalFile {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor; writes the header.
+         *
+         * @param buffer the mapped file.
+         * @param created the creation time.
+         * @param worldNames the names of the worlds in each record.
+         * @param capacity the number of records the file can hold.
+         */
+        JournalFile(MappedByteBuffer buffer, long created, String[] worldNames, int capacity) {
+            this.buffer = buffer;
+            this.created = created;
+            this.recordBytes = JournalReader.recordBytes(worldNames.length);
+            this.capacity = capacity;
+
+            buffer.putInt(JournalReader.MAGIC);
+            buffer.putInt(JournalReader.VERSION);
+            buffer.putInt(recordBytes);
+            buffer.putInt(capacity);
+            buffer.putLong(created);
+            buffer.putInt(0);
+            buffer.putInt(worldNames.length);
+            for (String worldName : worldNames) {
+                byte[] bytes = worldName.getBytes(StandardCharsets.UTF_8);
+                if (buffer.position() + 2 + bytes.length > JournalReader.HEADER_BYTES) {
+                    throw new IllegalStateException("too many worlds for the journal header");
+                }
+                buffer.putShort((short) bytes.length);
+                buffer.put(bytes);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return true if the file can hold no more records.
+         *
+         * @return true if the file is full.
+         */
+        boolean isFull() {
+            return count == capacity;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Append a record, then update the record count in the header so that
+         * a reader never sees a partly written record.
+         *
+         * @param time the time of the sample.
+         * @param metrics the metrics.
+         */
+        void append(long time, MetricsSnapshot metrics) {
+            buffer.position(JournalReader.HEADER_BYTES + count * recordBytes);
+            buffer.putLong(time);
+            buffer.putFloat(metrics.tps);
+            buffer.putFloat((float) metrics.tick[0].p95Millis);
+            buffer.putInt(metrics.players);
+            buffer.putInt((int) metrics.memoryUsed);
+            buffer.putInt((int) metrics.memoryMax);
+            buffer.putInt(0);
+            for (int w = 0; w < metrics.getWorldCount(); ++w) {
+                MetricsSnapshot.WorldMetrics world = metrics.getWorld(w);
+                buffer.putInt(world.chunks);
+                buffer.putInt(MetricsHistory.sum(world.entities));
+                buffer.putInt(MetricsHistory.sum(world.tileEntities));
+            }
+            buffer.putInt(JournalReader.COUNT_OFFSET, ++count);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The mapped file.
+         */
+        final MappedByteBuffer buffer;
+
+        /**
+         * Creation time, in milliseconds since the epoch.
+         */
+        final long created;
+
+        /**
+         * Size of one record in bytes.
+         */
+        final int recordBytes;
+
+        /**
+         * Number of records the file can hold.
+         */
+        final int capacity;
+
+        /**
+         * Number of records written.
+         */
+        int count;
+    } // class JournalFile
+
+    // ------------------------------------------------------------------------
+    /**
+     * Subdirectory of the plugin's data folder containing journal files.
+     */
+    protected static final String DIRECTORY = "journal";
+
+    /**
+     * Prefix of journal file names.
+     */
+    protected static final String PREFIX = "metrics-";
+
+    /**
+     * Suffix of journal file names.
+     */
+    protected static final String SUFFIX = ".journal";
+
+    /**
+     * Empty list of world names.
+     */
+    protected static final String[] NO_WORLDS = new String[0];
+
+    /**
+     * Runs all file I/O.
+     */
+    protected final ExecutorService _executor;
+
+    /**
+     * True if samples are written. This and the following fields are only
+     * accessed in the journal thread.
+     */
+    protected boolean _enabled;
+
+    /**
+     * Directory containing journal files.
+     */
+    protected File _directory;
+
+    /**
+     * Maximum file size in bytes.
+     */
+    protected long _maxFileBytes;
+
+    /**
+     * Maximum age of a file in milliseconds before a new one is started.
+     */
+    protected long _maxFileAgeMillis;
+
+    /**
+     * Maximum number of files kept.
+     */
+    protected int _maxFiles;
+
+    /**
+     * The file being written, or null if a new one must be started.
+     */
+    protected JournalFile _file;
+
+    /**
+     * Names of the worlds in each record of _file.
+     */
+    protected String[] _worldNames = NO_WORLDS;
+} // class MetricsJournal
@@ -0,0 +1,486 @@
+package nu.nerd.perf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+import java.util.function.DoubleSupplier;
+import java.util.regex.Pattern;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.PluginDisableEvent;
+import org.bukkit.plugin.Plugin;
+
+// ----------------------------------------------------------------------------
+/**
+ * Registry of metrics published by other plugins, which are collected by
+ * every scan that selects "collectors" and exported through the same query
+ * server formats as the built-in metrics.
+ *
+ * Other plugins obtain the registry from Bukkit's ServicesManager:
+ *
+ * <pre>
+ * MetricsRegistry registry = Bukkit.getServicesManager().load(MetricsRegistry.class);
+ * MetricsRegistry.Counter lookups = registry.registerCounter(this, "lookups", "Claim lookups.");
+ * registry.registerGauge(this, "claims", "Number of claims.", () -&gt; claims.size());
+ * </pre>
+ *
+ * Three kinds of metric can be registered:
+ * <ul>
+ * <li>counters, which are incremented from any thread at the cost of a
+ * LongAdder update and read when metrics are scanned,</li>
+ * <li>gauges, whose value is read in the main thread when a scan starts, and
+ * which must therefore be cheap, and</li>
+ * <li>scan gauges, which compute their value in time-sliced steps that share
+ * the scan's per-tick time budget with the built-in counting tasks.</li>
+ * </ul>
+ *
+ * Metric names must be lower case, start with a letter and contain only
+ * letters, digits and underscores. They are exported under the plugin's
+ * name: in JSON as "collectors": {"Plugin": {"name": value}}, and in
+ * OpenMetrics as nerdperf_collector_plugin_name, which cannot clash with a
+ * built-in metric family, and to the push sink as collector_plugin_name. A
+ * plugin's metrics are unregistered automatically when it is disabled.
+ *
+ * Registration methods can be called from any thread.
+ */
+public class MetricsRegistry implements Listener {
+    // ------------------------------------------------------------------------
+    /**
+     * Computes the value of a scan gauge in time-sliced steps.
+     */
+    @FunctionalInterface
+    public interface ScanCollector {
+        /**
+         * Begin computing the value for one scan.
+         *
+         * This method is called in the main thread when a scan starts. The
+         * returned step is called repeatedly in the main thread, with other
+         * scan steps, until it returns false, and should do a small, bounded
+         * amount of work on each call.
+         *
+         * @param result accepts the computed value; it should be called before
+         *        the step returns false. The value is undefined if it is not
+         *        called.
+         * @return the step, or null if the value was accepted immediately.
+         */
+        BooleanSupplier start(DoubleConsumer result);
+    } // interface ScanCollector
+
+    // ------------------------------------------------------------------------
+    /**
+     * A registered metric.
+     */
+    public static abstract class Metric {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param plugin the plugin that registered the metric.
+         * @param name the name of the metric.
+         * @param help the help text.
+         */
+        Metric(Plugin plugin, String name, String help) {
+            this.plugin = plugin;
+            this.name = name;
+            this.help = help.replace("\\", "\\\\").replace("\n", "\\n");
+            qualifiedName = "collector_" + plugin.getName().toLowerCase().replaceAll("[^a-z0-9_]", "_") + "_" + name;
+            exportedName = "nerdperf_" + qualifiedName;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return true if the metric is a counter, rather than a gauge.
+         *
+         * @return true if the metric is a counter.
+         */
+        public boolean isCounter() {
+            return false;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Begin collecting the value of the metric for one scan.
+         *
+         * @param result accepts the value.
+         * @return a step to run with the scan's other steps, or null.
+         */
+        abstract BooleanSupplier collect(DoubleConsumer result);
+
+        // --------------------------------------------------------------------
+        /**
+         * The plugin that registered the metric.
+         */
+        public final Plugin plugin;
+
+        /**
+         * The name of the metric, unique within the plugin.
+         */
+        public final String name;
+
+        /**
+         * The help text, escaped for OpenMetrics.
+         */
+        public final String help;
+
+        /**
+         * The name of the metric qualified by "collector_" and the plugin
+         * name, lower case with non-alphanumeric characters replaced by
+         * underscores. The prefix keeps it distinct from the names of the
+         * built-in metrics.
+         */
+        public final String qualifiedName;
+
+        /**
+         * The OpenMetrics name of the metric family.
+         */
+        public final String exportedName;
+
+        /**
+         * True once collection has failed and been logged.
+         */
+        volatile boolean failed;
+    } // class Metric
+
+    // ------------------------------------------------------------------------
+    /**
+     * A monotonically increasing counter.
+     */
+    public static final class Counter extends Metric {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param plugin the plugin that registered the metric.
+         * @param name the name of the metric.
+         * @param help the help text.
+         */
+        Counter(Plugin plugin, String name, String help) {
+            super(plugin, name, help);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Add one to the counter.
+         *
+         * This method can be called from any thread.
+         */
+        public void increment() {
+            _count.increment();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Add to the counter.
+         *
+         * This method can be called from any thread.
+         *
+         * @param amount the amount to add, which should not be negative.
+         */
+        public void add(long amount) {
+            _count.add(amount);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see nu.nerd.perf.MetricsRegistry.Metric#isCounter()
+         */
+        @Override
+        public boolean isCounter() {
+            return true;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see nu.nerd.perf.MetricsRegistry.Metric#collect(java.util.function.DoubleConsumer)
+         */
+        @Override
+        BooleanSupplier collect(DoubleConsumer result) {
+            result.accept(_count.sum());
+            return null;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The count.
+         */
+        final LongAdder _count = new LongAdder();
+    } // class Counter
+
+    // ------------------------------------------------------------------------
+    /**
+     * A gauge read when a scan starts.
+     */
+    protected static final class Gauge extends Metric {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param plugin the plugin that registered the metric.
+         * @param name the name of the metric.
+         * @param help the help text.
+         * @param value supplies the value.
+         */
+        Gauge(Plugin plugin, String name, String help, DoubleSupplier value) {
+            super(plugin, name, help);
+            _value = value;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see nu.nerd.perf.MetricsRegistry.Metric#collect(java.util.function.DoubleConsumer)
+         */
+        @Override
+        BooleanSupplier collect(DoubleConsumer result) {
+            result.accept(_value.getAsDouble());
+            return null;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Supplies the value.
+         */
+        final DoubleSupplier _value;
+    } // class Gauge
+
+    // ------------------------------------------------------------------------
+    /**
+     * A gauge computed in time-sliced steps.
+     */
+    protected static final class ScanGauge extends Metric {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param plugin the plugin that registered the metric.
+         * @param name the name of the metric.
+         * @param help the help text.
+         * @param collector computes the value.
+         */
+        ScanGauge(Plugin plugin, String name, String help, ScanCollector collector) {
+            super(plugin, name, help);
+            _collector = collector;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see nu.nerd.perf.MetricsRegistry.Metric#collect(java.util.function.DoubleConsumer)
+         */
+        @Override
+        BooleanSupplier collect(DoubleConsumer result) {
+            return _collector.start(result);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Computes the value.
+         */
+        final ScanCollector _collector;
+    } // class ScanGauge
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register a counter.
+     *
+     * @param plugin the plugin publishing the metric.
+     * @param name the name of the metric, without a "_total" suffix.
+     * @param help a description of the metric.
+     * @return the counter, to be incremented by the plugin.
+     * @throws IllegalArgumentException if the name is invalid or already
+     *         registered by the plugin.
+     */
+    public Counter registerCounter(Plugin plugin, String name, String help) {
+        Counter counter = new Counter(plugin, checkName(name), help);
+        register(counter);
+        return counter;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register a gauge whose value is read in the main thread whenever a scan
+     * starts.
+     *
+     * @param plugin the plugin publishing the metric.
+     * @param name the name of the metric.
+     * @param help a description of the metric.
+     * @param value supplies the value; it must be cheap to call.
+     * @return the registered metric.
+     * @throws IllegalArgumentException if the name is invalid or already
+     *         registered by the plugin.
+     */
+    public Metric registerGauge(Plugin plugin, String name, String help, DoubleSupplier value) {
+        Metric gauge = new Gauge(plugin, checkName(name), help, value);
+        register(gauge);
+        return gauge;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Register a gauge whose value is computed by time-sliced steps that run
+     * in the main thread as part of each scan, within the scan's time budget.
+     *
+     * @param plugin the plugin publishing the metric.
+     * @param name the name of the metric.
+     * @param help a description of the metric.
+     * @param collector computes the value.
+     * @return the registered metric.
+     * @throws IllegalArgumentException if the name is invalid or already
+     *         registered by the plugin.
+     */
+    public Metric registerScanGauge(Plugin plugin, String name, String help, ScanCollector collector) {
+        Metric gauge = new ScanGauge(plugin, checkName(name), help, collector);
+        register(gauge);
+        return gauge;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Unregister a metric.
+     *
+     * @param metric the metric.
+     */
+    public synchronized void unregister(Metric metric) {
+        ArrayList<Metric> metrics = new ArrayList<Metric>(_metrics);
+        metrics.remove(metric);
+        _metrics = Collections.unmodifiableList(metrics);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Unregister all metrics of a plugin.
+     *
+     * @param plugin the plugin.
+     */
+    public synchronized void unregisterAll(Plugin plugin) {
+        ArrayList<Metric> metrics = new ArrayList<Metric>(_metrics);
+        metrics.removeIf(metric -> metric.plugin == plugin);
+        _metrics = Collections.unmodifiableList(metrics);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the registered metrics, grouped by plugin in order of
+     * registration.
+     *
+     * @return an unmodifiable snapshot of the registered metrics.
+     */
+    public List<Metric> getMetrics() {
+        return _metrics;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin collecting the value of a metric for one scan, guarding the scan
+     * against exceptions thrown by the publishing plugin.
+     *
+     * A metric whose collection throws is left undefined in that scan, and
+     * the first failure of each metric is logged.
+     *
+     * This method must be called in the main thread.
+     *
+     * @param metric the metric.
+     * @param result accepts the value.
+     * @return a step to run with the scan's other steps, or null.
+     */
+    public BooleanSupplier collect(Metric metric, DoubleConsumer result) {
+        BooleanSupplier step;
+        try {
+            step = metric.collect(result);
+        } catch (RuntimeException ex) {
+            collectionFailed(metric, ex);
+            return null;
+        }
+        if (step == null) {
+            return null;
+        }
+        return () -> {
+            try {
+                return step.getAsBoolean();
+            } catch (RuntimeException ex) {
+                collectionFailed(metric, ex);
+                return false;
+            }
+        };
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Unregister the metrics of plugins when they are disabled.
+     *
+     * @param event the event.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPluginDisable(PluginDisableEvent event) {
+        unregisterAll(event.getPlugin());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a metric, keeping each plugin's metrics together.
+     *
+     * @param metric the metric.
+     * @throws IllegalArgumentException if the plugin has already registered a
+     *         metric with the same name.
+     */
+    protected synchronized void register(Metric metric) {
+        ArrayList<Metric> metrics = new ArrayList<Metric>(_metrics);
+        int index = metrics.size();
+        for (int i = 0; i < metrics.size(); ++i) {
+            Metric other = metrics.get(i);
+            if (other.exportedName.equals(metric.exportedName)) {
+                throw new IllegalArgumentException("metric already registered: " + metric.exportedName);
+            }
+            if (other.plugin == metric.plugin) {
+                index = i + 1;
+            }
+        }
+        metrics.add(index, metric);
+        _metrics = Collections.unmodifiableList(metrics);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Log the first failure to collect a metric.
+     *
+     * @param metric the metric.
+     * @param ex the exception thrown by the publishing plugin.
+     */
+    protected void collectionFailed(Metric metric, RuntimeException ex) {
+        if (!metric.failed) {
+            metric.failed = true;
+            NerdPerf.PLUGIN.getLogger().warning("Collecting " + metric.plugin.getName() + " metric " +
+                                                metric.name + " failed: " + ex);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Check that a metric name is valid.
+     *
+     * @param name the name.
+     * @return the name.
+     * @throws IllegalArgumentException if the name is invalid.
+     */
+    protected static String checkName(String name) {
+        if (!NAME_PATTERN.matcher(name).matches() || name.endsWith("_total")) {
+            throw new IllegalArgumentException("invalid metric name: " + name);
+        }
+        return name;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The pattern that metric names must match.
+     */
+    protected static final Pattern NAME_PATTERN = Pattern.compile("[a-z][a-z0-9_]*");
+
+    /**
+     * The registered metrics, grouped by plugin; replaced, never modified,
+     * so that scans can iterate over it without locking.
+     */
+    protected volatile List<Metric> _metrics = Collections.emptyList();
+} // class MetricsRegistry
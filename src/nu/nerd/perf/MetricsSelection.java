@@ -0,0 +1,352 @@
+package nu.nerd.perf;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// ----------------------------------------------------------------------------
+/**
+ * An immutable selection of the metrics to compute and report.
+ *
+ * A selection is parsed from a comma-separated list of paths in the JSON
+ * output, such as {@code tps,players,worlds.world.entities}. The paths that
+ * can be selected are:
+ * <ul>
+ * <li>{@code players}, {@code tps}, {@code tick}, {@code memory},
+ * {@code plugins} and {@code collectors},</li>
+ * <li>{@code worlds}, for every metric of every world,</li>
+ * <li>{@code worlds.<world>}, for every metric of one world, and</li>
+ * <li>{@code worlds.<world>.<field>}, for one metric of one world, where the
+ * field is one of {@code view_distance}, {@code chunks},
+ * {@code chunk_rates}, {@code hoppers}, {@code tile_entities},
+ * {@code entities}, {@code hotspots} or {@code attribution}.</li>
+ * </ul>
+ * The world name {@code *} stands for every world. Otherwise, the world must
+ * be one where metrics are gathered; world names may contain dots.
+ *
+ * The selection determines which counting steps a scan performs: the cheap
+ * overall metrics are always gathered, but entities and tile entities are
+ * only counted in worlds where they are selected.
+ */
+public final class MetricsSelection {
+    // ------------------------------------------------------------------------
+    /**
+     * Parse a selection of metrics of the configured worlds.
+     *
+     * @param paths the comma-separated paths; if null or blank, all metrics
+     *        are selected.
+     * @return the selection.
+     * @throws IllegalArgumentException if a path is not recognised.
+     */
+    public static MetricsSelection parse(String paths) {
+        return parse(paths, NerdPerf.CONFIG.WORLD_NAMES);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse a selection.
+     *
+     * @param paths the comma-separated paths; if null or blank, all metrics
+     *        are selected.
+     * @param worldNames the names of the worlds that may be selected, other
+     *        than {@link #ANY_WORLD}.
+     * @return the selection.
+     * @throws IllegalArgumentException if a path is not recognised or names
+     *         a world that is not in worldNames.
+     */
+    public static MetricsSelection parse(String paths, Set<String> worldNames) {
+        if (paths == null || paths.trim().isEmpty()) {
+            return ALL;
+        }
+
+        int top = 0;
+        HashMap<String, Integer> worlds = new HashMap<String, Integer>();
+        for (String item : paths.split(",")) {
+            String path = item.trim();
+            int topFlag = topFlag(path);
+            if (topFlag != 0) {
+                top |= topFlag;
+            } else if (path.equals("worlds")) {
+                worlds.merge(ANY_WORLD, ALL_FIELDS, (a, b) -> a | b);
+            } else if (path.startsWith("worlds.") && path.length() > 7) {
+                // The whole rest of the path is tried as a world name first,
+                // since world names may contain dots.
+                String rest = path.substring(7);
+                int dot = rest.lastIndexOf('.');
+                if (rest.equals(ANY_WORLD) || worldNames.contains(rest)) {
+                    worlds.merge(rest, ALL_FIELDS, (a, b) -> a | b);
+                } else if (dot < 0) {
+                    throw new IllegalArgumentException("unknown world: " + rest);
+                } else {
+                    String world = rest.substring(0, dot);
+                    String fieldName = rest.substring(dot + 1);
+                    int field = fieldFlag(fieldName);
+                    if (!world.equals(ANY_WORLD) && !worldNames.contains(world)) {
+                        throw new IllegalArgumentException("unknown world: " + (field != 0 ? world : rest));
+                    }
+                    if (field == 0) {
+                        throw new IllegalArgumentException("unknown field: " + fieldName);
+                    }
+                    worlds.merge(world, field, (a, b) -> a | b);
+                }
+            } else {
+                throw new IllegalArgumentException("unknown metric: " + path);
+            }
+        }
+        return new MetricsSelection(top, worlds);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if an overall metric is selected.
+     *
+     * @param flag one of {@link #PLAYERS}, {@link #TPS}, {@link #TICK},
+     *        {@link #MEMORY}, {@link #PLUGINS} or {@link #COLLECTORS}.
+     * @return true if the metric is selected.
+     */
+    public boolean includes(int flag) {
+        return (_top & flag) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the selected metrics of a world.
+     *
+     * @param worldName the world name.
+     * @return a bitwise OR of the selected field flags, such as
+     *         {@link #ENTITIES}, or 0 if the world is not selected.
+     */
+    public int getWorldFields(String worldName) {
+        Integer any = _worlds.get(ANY_WORLD);
+        Integer named = _worlds.get(worldName);
+        return (any == null ? 0 : any) | (named == null ? 0 : named);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if every metric in another selection is also in this one,
+     * so that metrics computed for this selection can answer a request for
+     * the other.
+     *
+     * @param other the other selection.
+     * @return true if this selection covers the other.
+     */
+    public boolean covers(MetricsSelection other) {
+        if ((other._top & ~_top) != 0) {
+            return false;
+        }
+        for (Map.Entry<String, Integer> world : other._worlds.entrySet()) {
+            int fields = world.getKey().equals(ANY_WORLD) ? _worlds.getOrDefault(ANY_WORLD, 0)
+                                                          : getWorldFields(world.getKey());
+            if ((world.getValue() & ~fields) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof MetricsSelection)) {
+            return false;
+        }
+        MetricsSelection selection = (MetricsSelection) other;
+        return _top == selection._top && _worlds.equals(selection._worlds);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return 31 * _top + _worlds.hashCode();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the selection as a list of paths, for logging.
+     *
+     * @return the selection as a list of paths.
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < TOP_NAMES.length; ++i) {
+            if ((_top & (1 << i)) != 0) {
+                s.append(s.length() == 0 ? "" : ",").append(TOP_NAMES[i]);
+            }
+        }
+        for (Map.Entry<String, Integer> world : new TreeMap<String, Integer>(_worlds).entrySet()) {
+            for (int i = 0; i < FIELD_NAMES.length; ++i) {
+                if ((world.getValue() & (1 << i)) != 0) {
+                    s.append(s.length() == 0 ? "" : ",");
+                    s.append("worlds.").append(world.getKey()).append('.').append(FIELD_NAMES[i]);
+                }
+            }
+        }
+        return s.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param top the selected overall metrics.
+     * @param worlds the selected fields of each world, by world name.
+     */
+    protected MetricsSelection(int top, Map<String, Integer> worlds) {
+        _top = top;
+        _worlds = Collections.unmodifiableMap(worlds);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the flag of an overall metric.
+     *
+     * @param name the name of the metric.
+     * @return the flag, or 0 if the name is not an overall metric.
+     */
+    protected static int topFlag(String name) {
+        for (int i = 0; i < TOP_NAMES.length; ++i) {
+            if (TOP_NAMES[i].equals(name)) {
+                return 1 << i;
+            }
+        }
+        return 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the flag of a per-world metric.
+     *
+     * @param name the name of the metric.
+     * @return the flag, or 0 if the name is not a per-world metric.
+     */
+    protected static int fieldFlag(String name) {
+        for (int i = 0; i < FIELD_NAMES.length; ++i) {
+            if (FIELD_NAMES[i].equals(name)) {
+                return 1 << i;
+            }
+        }
+        return 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Flag selecting the number of players.
+     */
+    public static final int PLAYERS = 1;
+
+    /**
+     * Flag selecting the TPS.
+     */
+    public static final int TPS = 2;
+
+    /**
+     * Flag selecting the tick duration statistics.
+     */
+    public static final int TICK = 4;
+
+    /**
+     * Flag selecting memory and GC statistics.
+     */
+    public static final int MEMORY = 8;
+
+    /**
+     * Flag selecting the plugin profiler report.
+     */
+    public static final int PLUGINS = 16;
+
+    /**
+     * Flag selecting the metrics published by other plugins through the
+     * {@link MetricsRegistry}.
+     */
+    public static final int COLLECTORS = 32;
+
+    /**
+     * Flag selecting a world's view distance.
+     */
+    public static final int VIEW_DISTANCE = 1;
+
+    /**
+     * Flag selecting a world's loaded chunk count.
+     */
+    public static final int CHUNKS = 2;
+
+    /**
+     * Flag selecting a world's hopper count.
+     */
+    public static final int HOPPERS = 4;
+
+    /**
+     * Flag selecting a world's tile entity counts.
+     */
+    public static final int TILE_ENTITIES = 8;
+
+    /**
+     * Flag selecting a world's entity counts.
+     */
+    public static final int ENTITIES = 16;
+
+    /**
+     * Flag selecting a world's hotspots, if hotspots are enabled.
+     */
+    public static final int HOTSPOTS = 32;
+
+    /**
+     * Flag selecting a world's chunk load, unload and generation rates.
+     */
+    public static final int CHUNK_RATES = 64;
+
+    /**
+     * Flag selecting the attribution of a world's entities, tile entities and
+     * chunks to players, if attribution is enabled.
+     */
+    public static final int ATTRIBUTION = 128;
+
+    /**
+     * All per-world flags.
+     */
+    public static final int ALL_FIELDS = 255;
+
+    /**
+     * The world name standing for every world.
+     */
+    public static final String ANY_WORLD = "*";
+
+    /**
+     * Names of the overall metrics, indexed by flag bit.
+     */
+    protected static final String[] TOP_NAMES = { "players", "tps", "tick", "memory", "plugins", "collectors" };
+
+    /**
+     * Names of the per-world metrics, indexed by flag bit.
+     */
+    protected static final String[] FIELD_NAMES = {
+        "view_distance", "chunks", "hoppers", "tile_entities", "entities", "hotspots", "chunk_rates",
+        "attribution"
+    };
+
+    /**
+     * The selection of every metric.
+     */
+    public static final MetricsSelection ALL = new MetricsSelection(
+        PLAYERS | TPS | TICK | MEMORY | PLUGINS | COLLECTORS, Collections.singletonMap(ANY_WORLD, ALL_FIELDS));
+
+    /**
+     * Selected overall metrics.
+     */
+    protected final int _top;
+
+    /**
+     * Selected fields of each world, by world name or {@link #ANY_WORLD}.
+     */
+    protected final Map<String, Integer> _worlds;
+} // class MetricsSelection
@@ -0,0 +1,729 @@
+package nu.nerd.perf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.entity.EntityType;
+
+// ----------------------------------------------------------------------------
+/**
+ * The metrics computed by one scan, held in primitive fields and arrays.
+ *
+ * Entity counts are indexed by EntityType ordinal and tile entity counts by
+ * index into {@link Configuration#TILE_ENTITY_TYPES}, as it was when the
+ * snapshot was obtained. The snapshot is encoded by a {@link JSONWriter} or
+ * {@link OpenMetricsFormat} without building any intermediate objects.
+ *
+ * A snapshot only holds the per-world metrics of its {@link #selection}; the
+ * overall metrics are always filled, since they are cheap to gather.
+ *
+ * Snapshots are pooled and reused, so they are reference counted. A snapshot
+ * is filled in the main thread and must not be modified once published. Every
+ * holder of a reference (the {@link MetricsCache}, and each recipient of
+ * {@link NerdPerf#requestMetrics()}) must call {@link #release()} when it has
+ * finished with the snapshot, after which the snapshot may be refilled by a
+ * subsequent scan. Snapshots that are never released are simply garbage
+ * collected.
+ */
+public class MetricsSnapshot {
+    // ------------------------------------------------------------------------
+    /**
+     * The metrics of one world.
+     */
+    public static class WorldMetrics {
+        /**
+         * The world name.
+         */
+        public String name;
+
+        /**
+         * The view distance in chunks.
+         */
+        public int viewDistance;
+
+        /**
+         * The number of loaded chunks.
+         */
+        public int chunks;
+
+        /**
+         * Chunks loaded per second, including generated chunks.
+         */
+        public double chunkLoadsPerSecond;
+
+        /**
+         * Chunks unloaded per second.
+         */
+        public double chunkUnloadsPerSecond;
+
+        /**
+         * Chunks generated per second.
+         */
+        public double chunkGenerationsPerSecond;
+
+        /**
+         * Entity counts, indexed by EntityType ordinal.
+         */
+        public final int[] entities = new int[ENTITY_TYPES.length];
+
+        /**
+         * Tile entity counts, indexed in the same order as the snapshot's
+         * tileEntityTypeNames.
+         */
+        public int[] tileEntities;
+
+        /**
+         * The chunks with the most entities, or null if hotspots are not
+         * being reported.
+         */
+        public Hotspots entityHotspots;
+
+        /**
+         * The chunks with the most tile entities, or null if hotspots are not
+         * being reported.
+         */
+        public Hotspots tileEntityHotspots;
+
+        /**
+         * The entities, tile entities and chunks attributed to each player,
+         * or null if attribution is not being reported.
+         */
+        public Attribution attribution;
+
+        /**
+         * The metrics computed for this world, as a bitwise OR of
+         * {@link MetricsSelection} field flags.
+         */
+        public int fields;
+
+        // --------------------------------------------------------------------
+        /**
+         * Copy entity counts into this instance.
+         *
+         * Counts maintained from events may transiently be negative; those
+         * are stored as 0.
+         *
+         * @param counts the counts, indexed by EntityType ordinal.
+         */
+        public void setEntities(int[] counts) {
+            for (int i = 0; i < entities.length; ++i) {
+                entities[i] = Math.max(0, counts[i]);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Copy tile entity counts into this instance.
+         *
+         * @param loadedChunks the number of loaded chunks.
+         * @param counts the counts, indexed in the same order as
+         *        {@link Configuration#TILE_ENTITY_TYPES}.
+         */
+        public void setTileEntities(int loadedChunks, int[] counts) {
+            chunks = loadedChunks;
+            System.arraycopy(counts, 0, tileEntities, 0, tileEntities.length);
+        }
+    } // class WorldMetrics
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor; use {@link #obtain()} to get a snapshot.
+     */
+    protected MetricsSnapshot() {
+        for (int i = 0; i < tick.length; ++i) {
+            tick[i] = new TPSTask.Stats();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a snapshot with one reference, reset to be filled according to
+     * the current configuration.
+     *
+     * This method must be called in the main thread.
+     *
+     * @return the snapshot.
+     */
+    public static MetricsSnapshot obtain() {
+        MetricsSnapshot snapshot = POOL.poll();
+        if (snapshot == null) {
+            snapshot = new MetricsSnapshot();
+        }
+        snapshot._references.set(1);
+        snapshot.reset();
+        return snapshot;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a reference to this snapshot.
+     *
+     * The caller must already hold a reference.
+     */
+    public void retain() {
+        _references.incrementAndGet();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Remove a reference to this snapshot, returning it to the pool when no
+     * references remain.
+     */
+    public void release() {
+        if (_references.decrementAndGet() == 0 && POOL.size() < MAX_POOLED) {
+            POOL.offer(this);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a number that uniquely identifies the scan that filled this
+     * snapshot.
+     *
+     * Since snapshots are reused, this distinguishes successive contents of
+     * the same instance.
+     *
+     * @return the sequence number.
+     */
+    public long getSequence() {
+        return _sequence;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of worlds in this snapshot.
+     *
+     * @return the number of worlds.
+     */
+    public int getWorldCount() {
+        return _worldCount;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the metrics of a world.
+     *
+     * @param index the index of the world, less than getWorldCount().
+     * @return the metrics of the world.
+     */
+    public WorldMetrics getWorld(int index) {
+        return _worlds[index];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of metrics collected from other plugins in this
+     * snapshot.
+     *
+     * @return the number of collected metrics.
+     */
+    public int getCollectedCount() {
+        return _collectedCount;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a metric collected from another plugin.
+     *
+     * @param index the index of the metric, less than getCollectedCount().
+     * @return the metric; its value is collectedValues[index].
+     */
+    public MetricsRegistry.Metric getCollected(int index) {
+        return _collected[index];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a metric collected from another plugin to this snapshot, with an
+     * undefined (NaN) value.
+     *
+     * @param metric the metric.
+     * @return the index of the metric's value in collectedValues.
+     */
+    public int addCollected(MetricsRegistry.Metric metric) {
+        if (_collectedCount == _collected.length) {
+            int capacity = Math.max(8, _collected.length * 2);
+            _collected = Arrays.copyOf(_collected, capacity);
+            collectedValues = Arrays.copyOf(collectedValues, capacity);
+        }
+        _collected[_collectedCount] = metric;
+        collectedValues[_collectedCount] = Double.NaN;
+        return _collectedCount++;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Add a world to this snapshot.
+     *
+     * @param world the World.
+     * @return the metrics of the world, with the name and view distance set
+     *         and all counts zeroed.
+     */
+    public WorldMetrics addWorld(World world) {
+        if (_worldCount == _worlds.length) {
+            WorldMetrics[] worlds = new WorldMetrics[Math.max(4, _worlds.length * 2)];
+            System.arraycopy(_worlds, 0, worlds, 0, _worlds.length);
+            _worlds = worlds;
+        }
+        WorldMetrics metrics = _worlds[_worldCount];
+        if (metrics == null) {
+            metrics = _worlds[_worldCount] = new WorldMetrics();
+        }
+        ++_worldCount;
+
+        metrics.name = world.getName();
+        metrics.viewDistance = world.getViewDistance();
+        metrics.chunks = 0;
+        metrics.chunkLoadsPerSecond = 0;
+        metrics.chunkUnloadsPerSecond = 0;
+        metrics.chunkGenerationsPerSecond = 0;
+        metrics.fields = MetricsSelection.ALL_FIELDS;
+        Arrays.fill(metrics.entities, 0);
+        if (metrics.tileEntities == null || metrics.tileEntities.length != tileEntityTypeNames.length) {
+            metrics.tileEntities = new int[tileEntityTypeNames.length];
+        } else {
+            Arrays.fill(metrics.tileEntities, 0);
+        }
+        if (hotspots) {
+            // A scan that selects only one family discards the other's
+            // Hotspots, so they are recreated independently.
+            if (metrics.entityHotspots == null) {
+                metrics.entityHotspots = new Hotspots();
+            }
+            if (metrics.tileEntityHotspots == null) {
+                metrics.tileEntityHotspots = new Hotspots();
+            }
+        } else {
+            metrics.entityHotspots = null;
+            metrics.tileEntityHotspots = null;
+        }
+        if (attribution) {
+            if (metrics.attribution == null) {
+                metrics.attribution = new Attribution();
+            }
+        } else {
+            metrics.attribution = null;
+        }
+        return metrics;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write this snapshot's selected metrics as a JSON object.
+     *
+     * @param out the writer.
+     */
+    public void writeJSON(JSONWriter out) {
+        writeJSON(out, selection);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the specified metrics of this snapshot as a JSON object.
+     *
+     * @param out the writer.
+     * @param selected the metrics to write; metrics that are not in this
+     *        snapshot's selection are omitted.
+     */
+    public void writeJSON(JSONWriter out, MetricsSelection selected) {
+        out.beginObject();
+        if (selected.includes(MetricsSelection.PLAYERS)) {
+            out.field("players", players);
+        }
+        if (selected.includes(MetricsSelection.TPS)) {
+            out.field("tps", tps);
+        }
+
+        if (selected.includes(MetricsSelection.TICK)) {
+            out.key("tick").beginObject();
+            for (int i = 0; i < tick.length; ++i) {
+                TPSTask.Stats stats = tick[i];
+                out.key(TPSTask.WINDOW_NAMES[i]).beginObject();
+                out.field("ticks", stats.ticks);
+                out.field("tps", stats.tps);
+                out.field("mean_ms", stats.meanMillis);
+                out.field("p50_ms", stats.p50Millis);
+                out.field("p95_ms", stats.p95Millis);
+                out.field("p99_ms", stats.p99Millis);
+                out.field("max_ms", stats.maxMillis);
+                out.endObject();
+            }
+            out.endObject();
+        }
+
+        if (selected.includes(MetricsSelection.MEMORY)) {
+            out.key("memory").beginObject();
+            out.field("used", memoryUsed);
+            out.field("max", memoryMax);
+            out.field("percent", 100.0 * memoryUsed / memoryMax);
+            out.field("allocation_rate", gc.allocationRate / 1048576);
+            out.field("old_gen_after_gc", megabytes(gc.oldGenAfterGC));
+            out.key("pools").beginObject();
+            for (int i = 0; i < gc.poolNames.length; ++i) {
+                out.key(gc.poolNames[i]).beginObject();
+                out.field("used", megabytes(gc.poolUsed[i]));
+                out.field("committed", megabytes(gc.poolCommitted[i]));
+                out.field("max", megabytes(gc.poolMax[i]));
+                out.field("used_after_gc", megabytes(gc.poolUsedAfterGC[i]));
+                out.endObject();
+            }
+            out.endObject();
+            out.key("gc").beginObject();
+            for (int i = 0; i < gc.collectorNames.length; ++i) {
+                out.key(gc.collectorNames[i]).beginObject();
+                out.field("count", gc.collections[i]);
+                out.field("time_ms", gc.collectionMillis[i]);
+                out.field("last_ms", gc.lastCollectionMillis[i]);
+                out.endObject();
+            }
+            out.endObject();
+            out.endObject();
+        }
+
+        if (plugins != null && selected.includes(MetricsSelection.PLUGINS)) {
+            out.key("plugins");
+            plugins.writeJSON(out);
+        }
+
+        if (selected.includes(MetricsSelection.COLLECTORS)) {
+            out.key("collectors").beginObject();
+            for (int i = 0; i < _collectedCount; ++i) {
+                MetricsRegistry.Metric metric = _collected[i];
+                if (i == 0 || _collected[i - 1].plugin != metric.plugin) {
+                    out.key(metric.plugin.getName()).beginObject();
+                }
+                out.key(metric.name).value(collectedValues[i]);
+                if (i + 1 == _collectedCount || _collected[i + 1].plugin != metric.plugin) {
+                    out.endObject();
+                }
+            }
+            out.endObject();
+        }
+
+        int entityFields = MetricsSelection.ENTITIES | MetricsSelection.HOTSPOTS;
+        int tileEntityFields = MetricsSelection.HOPPERS | MetricsSelection.TILE_ENTITIES | MetricsSelection.HOTSPOTS;
+        boolean entitiesAged = entitiesAgeSeconds >= 0 && isSelected(selected, entityFields);
+        boolean tileEntitiesAged = tileEntitiesAgeSeconds >= 0 && isSelected(selected, tileEntityFields);
+        if (entitiesAged || tileEntitiesAged) {
+            out.key("age_seconds").beginObject();
+            if (entitiesAged) {
+                out.field("entities", entitiesAgeSeconds);
+            }
+            if (tileEntitiesAged) {
+                out.field("tile_entities", tileEntitiesAgeSeconds);
+            }
+            out.endObject();
+        }
+
+        out.key("worlds").beginObject();
+        for (int w = 0; w < _worldCount; ++w) {
+            WorldMetrics world = _worlds[w];
+            int fields = world.fields & selected.getWorldFields(world.name);
+            if (fields == 0) {
+                continue;
+            }
+
+            out.key(world.name).beginObject();
+            if ((fields & MetricsSelection.VIEW_DISTANCE) != 0) {
+                out.field("view_distance", world.viewDistance);
+            }
+            if ((fields & MetricsSelection.CHUNKS) != 0) {
+                out.field("chunks", world.chunks);
+            }
+            if ((fields & MetricsSelection.CHUNK_RATES) != 0) {
+                out.key("chunk_rates").beginObject();
+                out.field("loads", world.chunkLoadsPerSecond);
+                out.field("unloads", world.chunkUnloadsPerSecond);
+                out.field("generations", world.chunkGenerationsPerSecond);
+                out.endObject();
+            }
+            if ((fields & MetricsSelection.HOPPERS) != 0) {
+                out.field("hoppers", world.tileEntities[hopperIndex]);
+            }
+
+            if ((fields & MetricsSelection.TILE_ENTITIES) != 0) {
+                out.key("tile_entities").beginObject();
+                for (int i = 0; i < world.tileEntities.length; ++i) {
+                    out.field(tileEntityTypeNames[i], world.tileEntities[i]);
+                }
+                out.endObject();
+            }
+
+            if ((fields & MetricsSelection.ENTITIES) != 0) {
+                out.key("entities").beginObject();
+                for (int i = 0; i < world.entities.length; ++i) {
+                    out.field(ENTITY_TYPE_NAMES[i], world.entities[i]);
+                }
+                out.endObject();
+            }
+
+            if ((fields & MetricsSelection.HOTSPOTS) != 0 &&
+                (world.entityHotspots != null || world.tileEntityHotspots != null)) {
+                out.key("hotspots").beginObject();
+                if (world.entityHotspots != null) {
+                    out.key("entities");
+                    world.entityHotspots.writeJSON(out, ENTITY_TYPE_NAMES);
+                }
+                if (world.tileEntityHotspots != null) {
+                    out.key("tile_entities");
+                    world.tileEntityHotspots.writeJSON(out, tileEntityTypeNames);
+                }
+                out.endObject();
+            }
+
+            if ((fields & MetricsSelection.ATTRIBUTION) != 0 && world.attribution != null) {
+                out.key("attribution");
+                world.attribution.writeJSON(out);
+            }
+            out.endObject();
+        }
+        out.endObject();
+
+        out.key("nerdperf").beginObject();
+        out.field("window_seconds", overhead.windowSeconds);
+        out.field("time_limit_ms", overhead.timeLimitMillis);
+        writeSummary(out, "slice_ms", overhead.sliceMillis);
+        writeSummary(out, "slices_per_scan", overhead.scanSlices);
+        writeSummary(out, "scan_ms", overhead.scanMillis);
+        writeSummary(out, "queue_wait_ms", overhead.queueWaitMillis);
+        writeSummary(out, "serialized_bytes", overhead.serializedBytes);
+        out.endObject();
+        out.endObject();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if any of the specified per-world metrics are selected and
+     * computed in any world.
+     *
+     * @param selected the selected metrics.
+     * @param fields the {@link MetricsSelection} field flags.
+     * @return true if any of the metrics are selected in any world.
+     */
+    public boolean isSelected(MetricsSelection selected, int fields) {
+        for (int w = 0; w < _worldCount; ++w) {
+            WorldMetrics world = _worlds[w];
+            if ((world.fields & selected.getWorldFields(world.name) & fields) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write statistics of NerdPerf's overhead as a JSON object field.
+     *
+     * @param out the writer.
+     * @param key the field name.
+     * @param summary the statistics.
+     */
+    protected static void writeSummary(JSONWriter out, String key, OverheadMonitor.Summary summary) {
+        out.key(key).beginObject();
+        out.field("count", summary.count);
+        out.field("mean", summary.mean);
+        out.field("p50", summary.p50);
+        out.field("p95", summary.p95);
+        out.field("p99", summary.p99);
+        out.field("max", summary.max);
+        out.endObject();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Convert bytes to whole MB, preserving -1 as undefined.
+     *
+     * @param bytes the number of bytes, or -1.
+     * @return the number of MB, or -1.
+     */
+    protected static long megabytes(long bytes) {
+        return (bytes < 0) ? -1 : bytes / 1048576;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Prepare this snapshot to be filled by a new scan.
+     */
+    protected void reset() {
+        _sequence = SEQUENCE.incrementAndGet();
+        _worldCount = 0;
+        Arrays.fill(_collected, 0, _collectedCount, null);
+        _collectedCount = 0;
+        plugins = null;
+        entitiesAgeSeconds = -1;
+        tileEntitiesAgeSeconds = -1;
+        selection = MetricsSelection.ALL;
+        hotspots = NerdPerf.CONFIG.HOTSPOTS;
+        attribution = NerdPerf.CONFIG.ATTRIBUTION;
+
+        List<Material> types = NerdPerf.CONFIG.TILE_ENTITY_TYPES;
+        boolean typesChanged = (tileEntityTypeNames.length != types.size());
+        for (int i = 0; !typesChanged && i < tileEntityTypeNames.length; ++i) {
+            typesChanged = !tileEntityTypeNames[i].equals(types.get(i).name());
+        }
+        if (typesChanged) {
+            tileEntityTypeNames = new String[types.size()];
+            for (int i = 0; i < tileEntityTypeNames.length; ++i) {
+                tileEntityTypeNames[i] = types.get(i).name();
+            }
+        }
+        hopperIndex = types.indexOf(Material.HOPPER);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * All EntityTypes, indexed by ordinal.
+     */
+    public static final EntityType[] ENTITY_TYPES = EntityType.values();
+
+    /**
+     * The names of all EntityTypes, indexed by ordinal.
+     */
+    public static final String[] ENTITY_TYPE_NAMES = new String[ENTITY_TYPES.length];
+    static {
+        for (int i = 0; i < ENTITY_TYPES.length; ++i) {
+            ENTITY_TYPE_NAMES[i] = ENTITY_TYPES[i].name();
+        }
+    }
+
+    /**
+     * The number of connected players.
+     */
+    public int players;
+
+    /**
+     * Ticks per second averaged over the last 10 seconds.
+     */
+    public float tps;
+
+    /**
+     * Tick duration statistics, indexed in the same order as
+     * {@link TPSTask#WINDOW_SECONDS}.
+     */
+    public final TPSTask.Stats[] tick = new TPSTask.Stats[TPSTask.WINDOW_SECONDS.length];
+
+    /**
+     * Used heap space in MB.
+     */
+    public long memoryUsed;
+
+    /**
+     * Maximum heap space in MB.
+     */
+    public long memoryMax;
+
+    /**
+     * Garbage collection and memory pool statistics.
+     */
+    public final GCMonitor.Stats gc = new GCMonitor.Stats();
+
+    /**
+     * The metrics computed by the scan that filled this snapshot.
+     */
+    public MetricsSelection selection = MetricsSelection.ALL;
+
+    /**
+     * Per-plugin costs over the last profiler window, or null if the profiler
+     * is disabled.
+     */
+    public PluginProfiler.Report plugins;
+
+    /**
+     * Values of the metrics collected from other plugins, indexed as
+     * {@link #getCollected(int)}; NaN if undefined.
+     */
+    public double[] collectedValues = new double[0];
+
+    /**
+     * Age in seconds of the oldest entity counts in the snapshot, which may
+     * have been refreshed in the background; 0 if they were all counted by
+     * this scan, or -1 if no entities were counted.
+     */
+    public double entitiesAgeSeconds;
+
+    /**
+     * Age in seconds of the oldest tile entity counts in the snapshot, which
+     * may have been refreshed in the background; 0 if they were all counted
+     * by this scan, or -1 if no tile entities were counted.
+     */
+    public double tileEntitiesAgeSeconds;
+
+    /**
+     * NerdPerf's own overhead, as of the completion of the scan; always
+     * written, regardless of the selection.
+     */
+    public final OverheadMonitor.Stats overhead = new OverheadMonitor.Stats();
+
+    /**
+     * True if the densest chunks are reported.
+     */
+    public boolean hotspots;
+
+    /**
+     * True if entities, tile entities and chunks are attributed to players.
+     */
+    public boolean attribution;
+
+    /**
+     * The names of the tile entity types counted, in the order of
+     * {@link WorldMetrics#tileEntities}.
+     */
+    public String[] tileEntityTypeNames = new String[0];
+
+    /**
+     * The index of HOPPER in tileEntityTypeNames.
+     */
+    public int hopperIndex;
+
+    /**
+     * Maximum number of released snapshots retained for reuse.
+     */
+    protected static final int MAX_POOLED = 4;
+
+    /**
+     * Released snapshots available for reuse.
+     */
+    protected static final ConcurrentLinkedQueue<MetricsSnapshot> POOL = new ConcurrentLinkedQueue<MetricsSnapshot>();
+
+    /**
+     * Source of sequence numbers.
+     */
+    protected static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * Number of holders of this snapshot.
+     */
+    protected final AtomicInteger _references = new AtomicInteger();
+
+    /**
+     * Sequence number of the scan that filled this snapshot.
+     */
+    protected long _sequence;
+
+    /**
+     * Metrics of each world; only the first _worldCount are valid. Elements
+     * beyond that are retained for reuse.
+     */
+    protected WorldMetrics[] _worlds = new WorldMetrics[0];
+
+    /**
+     * Number of valid elements of _worlds.
+     */
+    protected int _worldCount;
+
+    /**
+     * Metrics collected from other plugins; only the first _collectedCount
+     * are valid.
+     */
+    protected MetricsRegistry.Metric[] _collected = new MetricsRegistry.Metric[0];
+
+    /**
+     * Number of valid elements of _collected.
+     */
+    protected int _collectedCount;
+} // class MetricsSnapshot
@@ -1,7 +1,16 @@
 package nu.nerd.perf;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.LinkedList;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.function.BooleanSupplier;
 
 import org.bukkit.Bukkit;
@@ -9,8 +18,8 @@ import org.bukkit.ChatColor;
 import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.json.simple.JSONObject;
 
 // ----------------------------------------------------------------------------
 /**
@@ -23,6 +32,16 @@ public class NerdPerf extends JavaPlugin {
      */
     public static final Configuration CONFIG = new Configuration();
 
+    /**
+     * Main thread time budget of the counting tasks.
+     */
+    public static final TickBudget BUDGET = new TickBudget();
+
+    /**
+     * Accounts for the cost of this plugin.
+     */
+    public static final OverheadMonitor OVERHEAD = new OverheadMonitor();
+
     /**
      * This plugin as a singleton.
      */
@@ -38,14 +57,77 @@ public class NerdPerf extends JavaPlugin {
         if (command.getName().equalsIgnoreCase(getName())) {
             if (args.length == 1 && args[0].equalsIgnoreCase("reload")) {
                 CONFIG.reload();
+                BUDGET.configure();
+                _entityTracker.configure();
+                _tileEntityIndex.configure();
+                _cache.invalidate();
+                configurePool();
+                _history.configure();
+                _journal.configure();
+                _profiler.configure();
+                _refresher.configure();
                 startServer();
+                startPushExporter();
+                _spikeSampler.configure(_tpsTask);
+                _alerts.configure();
                 sender.sendMessage(ChatColor.GOLD + getName() + " configuration reloaded.");
                 return true;
             }
+            if (args.length >= 1 && args.length <= 2 && args[0].equalsIgnoreCase("journal")) {
+                int minutes = DEFAULT_JOURNAL_MINUTES;
+                if (args.length == 2) {
+                    try {
+                        minutes = Math.max(1, Integer.parseInt(args[1]));
+                    } catch (NumberFormatException ex) {
+                        sender.sendMessage(ChatColor.RED + "The number of minutes must be an integer.");
+                        return true;
+                    }
+                }
+                showJournal(sender, minutes);
+                return true;
+            }
+            if (args.length == 1 && args[0].equalsIgnoreCase("plugins")) {
+                showPlugins(sender);
+                return true;
+            }
+            if (args.length == 1 && args[0].equalsIgnoreCase("spikes")) {
+                showSpikes(sender);
+                return true;
+            }
+            if (args.length == 2 && args[0].equalsIgnoreCase("spikes") && args[1].equalsIgnoreCase("save")) {
+                saveSpikes(sender);
+                return true;
+            }
+            if (args.length == 1 && args[0].equalsIgnoreCase("alerts")) {
+                showAlerts(sender);
+                return true;
+            }
         } else if (command.getName().equalsIgnoreCase("lag")) {
             long memUsed = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1048576;
             long memMax = Runtime.getRuntime().maxMemory() / 1048576;
             sender.sendMessage(String.format("TPS: %5.2f Mem: %dM/%dM", _tpsTask.getTPS(), memUsed, memMax));
+            for (int i = 0; i < TPSTask.WINDOW_SECONDS.length; ++i) {
+                TPSTask.Stats stats = _tpsTask.getStats(TPSTask.WINDOW_SECONDS[i]);
+                sender.sendMessage(String.format("%3s: TPS %5.2f, tick ms mean %.1f p50 %.1f p95 %.1f p99 %.1f " +
+                                                 "max %.1f",
+                                                 TPSTask.WINDOW_NAMES[i], stats.tps, stats.meanMillis, stats.p50Millis,
+                                                 stats.p95Millis, stats.p99Millis, stats.maxMillis));
+            }
+            GCMonitor.Stats gc = new GCMonitor.Stats();
+            _gcMonitor.getStats(gc);
+            StringBuilder gcLine = new StringBuilder();
+            gcLine.append(String.format("Alloc: %.0fM/s", gc.allocationRate / 1048576));
+            if (gc.oldGenAfterGC >= 0) {
+                gcLine.append(String.format(" Old gen after GC: %dM", gc.oldGenAfterGC / 1048576));
+            }
+            for (int i = 0; i < gc.collectorNames.length; ++i) {
+                gcLine.append(String.format("; %s: %d in %.1fs", gc.collectorNames[i], gc.collections[i],
+                                            gc.collectionMillis[i] / 1000.0));
+                if (gc.lastCollectionMillis[i] >= 0) {
+                    gcLine.append(String.format(", last %dms", gc.lastCollectionMillis[i]));
+                }
+            }
+            sender.sendMessage(gcLine.toString());
             return true;
         }
 
@@ -63,10 +145,28 @@ public class NerdPerf extends JavaPlugin {
 
         saveDefaultConfig();
         CONFIG.reload();
+        BUDGET.configure();
+        getServer().getPluginManager().registerEvents(_entityTracker, this);
+        getServer().getPluginManager().registerEvents(_tileEntityIndex, this);
+        getServer().getPluginManager().registerEvents(_registry, this);
+        getServer().getPluginManager().registerEvents(_chunkActivity, this);
+        getServer().getServicesManager().register(MetricsRegistry.class, _registry, this, ServicePriority.Normal);
+        _entityTracker.configure();
+        _tileEntityIndex.configure();
+        configurePool();
         startServer();
 
         _tpsTask = new TPSTask();
-        Bukkit.getScheduler().scheduleSyncRepeatingTask(this, _tpsTask, 20, 20);
+        Bukkit.getScheduler().scheduleSyncRepeatingTask(this, _tpsTask, 1, 1);
+        _gcMonitor.start();
+        _chunkActivity.start();
+        _journal.configure();
+        _history.configure();
+        _profiler.configure();
+        _refresher.configure();
+        startPushExporter();
+        _spikeSampler.configure(_tpsTask);
+        _alerts.configure();
     }
 
     // ------------------------------------------------------------------------
@@ -75,99 +175,499 @@ public class NerdPerf extends JavaPlugin {
      */
     @Override
     public void onDisable() {
+        _profiler.uninstall();
+        _refresher.cancel();
+        _spikeSampler.stop();
         Bukkit.getScheduler().cancelTasks(this);
         stopServer();
+        stopPushExporter();
+        _cache.shutdown();
+        if (_pool != null) {
+            _pool.shutdownNow();
+            _pool = null;
+        }
+        _journal.shutdown();
+        _gcMonitor.stop();
+        getServer().getServicesManager().unregisterAll(this);
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Start gathering metrics and schedule synchronous tasks to complete the
-     * process.
+     * Request metrics, returning a future that will be completed with them.
+     *
+     * Recently computed metrics are returned from the cache. Otherwise, the
+     * future will be completed by a scan that is shared with all other
+     * requests made while it is in progress.
+     *
+     * This method can be called from any thread.
      *
-     * The metrics will be added to the _metrics queue as a JSONObject that will
-     * be returned to the client.
+     * The caller must {@link MetricsSnapshot#release()} the snapshot that
+     * completes the future once it has finished with it.
+     *
+     * @return a future that is completed with the metrics, or completed
+     *         exceptionally with a TimeoutException if they cannot be
+     *         computed within the configured query timeout.
+     * @see MetricsCache#requestMetrics()
      */
-    @SuppressWarnings("unchecked")
-    public void requestMetrics() {
-        long start = System.nanoTime();
+    public CompletableFuture<MetricsSnapshot> requestMetrics() {
+        return _cache.requestMetrics();
+    }
 
-        JSONObject results = new JSONObject();
-        results.put("players", Bukkit.getOnlinePlayers().size());
-        results.put("tps", _tpsTask.getTPS());
+    // ------------------------------------------------------------------------
+    /**
+     * Request a selection of metrics, returning a future that will be
+     * completed with them.
+     *
+     * Only the counting that the selection needs is done, so a request that
+     * selects no per-world counts is answered without scanning any chunks.
+     * The snapshot may contain more than was selected, if a cached snapshot
+     * covering the selection was used.
+     *
+     * @param selection the metrics to compute.
+     * @return a future that is completed with the metrics.
+     * @see #requestMetrics()
+     * @see MetricsCache#requestMetrics(MetricsSelection)
+     */
+    public CompletableFuture<MetricsSnapshot> requestMetrics(MetricsSelection selection) {
+        return _cache.requestMetrics(selection);
+    }
 
-        JSONObject memory = new JSONObject();
-        long memUsed = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1048576;
-        long memMax = Runtime.getRuntime().maxMemory() / 1048576;
-        memory.put("used", memUsed);
-        memory.put("max", memMax);
-        memory.put("percent", 100.0 * memUsed / memMax);
-        results.put("memory", memory);
+    // ------------------------------------------------------------------------
+    /**
+     * Return the registry of metrics published by other plugins.
+     *
+     * The registry is also available from Bukkit's ServicesManager.
+     *
+     * @return the registry.
+     */
+    public MetricsRegistry getRegistry() {
+        return _registry;
+    }
 
-        JSONObject jsonAllWorlds = getJSONObject(results, "worlds");
-        LinkedList<BooleanSupplier> steps = new LinkedList<BooleanSupplier>();
-        for (World world : CONFIG.WORLDS) {
-            JSONObject jsonWorld = getJSONObject(jsonAllWorlds, world.getName());
-            jsonWorld.put("view_distance", world.getViewDistance());
-            steps.add(new CountEntitiesTask(world, getJSONObject(jsonWorld, "entities")));
-            steps.add(new CountHoppersTask(world, jsonWorld));
-        }
-        steps.add(new BooleanSupplier() {
-            @Override
-            public boolean getAsBoolean() {
+    // ------------------------------------------------------------------------
+    /**
+     * Return the history of sampled metrics.
+     *
+     * @return the history of sampled metrics.
+     */
+    public MetricsHistory getHistory() {
+        return _history;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the on-disk journal of sampled metrics.
+     *
+     * @return the journal.
+     */
+    public MetricsJournal getJournal() {
+        return _journal;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the sampler of the main thread's stack during lag spikes.
+     *
+     * @return the spike sampler.
+     */
+    public SpikeSampler getSpikeSampler() {
+        return _spikeSampler;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the exporter that pushes metrics to the configured sink.
+     *
+     * @return the push exporter, or null if pushing is disabled.
+     */
+    public PushExporter getPushExporter() {
+        return _pushExporter;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Show a command sender the journal records of the specified number of
+     * preceding minutes, most recent last.
+     *
+     * The journal files are read asynchronously and the results are sent in
+     * the main thread.
+     *
+     * @param sender the command sender.
+     * @param minutes the number of minutes.
+     */
+    protected void showJournal(CommandSender sender, int minutes) {
+        long since = System.currentTimeMillis() - minutes * 60_000L;
+        List<File> files = _journal.getFiles();
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            ArrayList<String> lines = new ArrayList<String>();
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            for (File file : files) {
+                JournalReader journal;
                 try {
-                    _metrics.add(results);
-                } catch (IllegalStateException ex) {
-                    getLogger().warning("Cannot add metrics to the queue.");
+                    journal = new JournalReader(file);
+                } catch (IOException ex) {
+                    lines.add(ChatColor.RED + ex.getMessage());
+                    continue;
+                }
+                String[] worldNames = journal.getWorldNames();
+                for (int r = journal.findRecord(since); r < journal.getRecordCount(); ++r) {
+                    StringBuilder line = new StringBuilder();
+                    line.append(String.format("%s TPS %5.2f p95 %.1f ms, %d players, %dM/%dM",
+                                              format.format(new Date(journal.getTime(r))), journal.getTPS(r),
+                                              journal.getTickP95Millis(r), journal.getPlayers(r),
+                                              journal.getMemoryUsed(r), journal.getMemoryMax(r)));
+                    for (int w = 0; w < worldNames.length; ++w) {
+                        line.append(String.format("; %s: %d chunks, %d entities, %d tile entities",
+                                                  worldNames[w], journal.getChunks(r, w),
+                                                  journal.getEntities(r, w), journal.getTileEntities(r, w)));
+                    }
+                    lines.add(line.toString());
                 }
-                return false;
             }
+
+            Bukkit.getScheduler().runTask(this, () -> {
+                int omitted = Math.max(0, lines.size() - MAX_JOURNAL_LINES);
+                sender.sendMessage(ChatColor.GOLD + "Journal of the last " + minutes + " minutes" +
+                                   (omitted > 0 ? " (" + omitted + " earlier records omitted):" : ":"));
+                for (String line : lines.subList(omitted, lines.size())) {
+                    sender.sendMessage(line);
+                }
+                if (lines.isEmpty()) {
+                    sender.sendMessage(ChatColor.GRAY + "No records.");
+                }
+            });
         });
-        Bukkit.getScheduler().scheduleSyncDelayedTask(this, new SynchronousTimeLimitedTask(steps));
+    }
 
-        if (CONFIG.DEBUG_OVERHEAD) {
-            double elapsedMillis = 1e-6 * (System.nanoTime() - start);
-            getLogger().info("Metrics setup took " + elapsedMillis + " ms.");
+    // ------------------------------------------------------------------------
+    /**
+     * Show a command sender the plugins whose listeners and tasks cost the
+     * most time per tick over the last profiler window.
+     *
+     * @param sender the command sender.
+     */
+    protected void showPlugins(CommandSender sender) {
+        PluginProfiler.Report report = _profiler.getReport();
+        if (report == null) {
+            sender.sendMessage(ChatColor.RED + "The profiler is disabled. Set profiler.enabled to true to enable it.");
+            return;
+        }
+        if (report.ticks == 0) {
+            sender.sendMessage(ChatColor.GRAY + "The first profiler window has not yet completed.");
+            return;
+        }
+
+        sender.sendMessage(String.format("%sPlugin cost per tick over the last %.0f seconds (%d ticks):",
+                                         ChatColor.GOLD, report.seconds, report.ticks));
+        for (int i = 0; i < report.size(); ++i) {
+            sender.sendMessage(String.format("%s: %.2f ms (%.1f%%); events %d, max %.1f ms; tasks %d, max %.1f ms",
+                                             report.names[i], report.millisPerTick(i),
+                                             100 * report.millisPerTick(i) / 50,
+                                             report.eventCalls[i], 1e-6 * report.eventMaxNanos[i],
+                                             report.taskRuns[i], 1e-6 * report.taskMaxNanos[i]));
+        }
+        if (report.size() == 0) {
+            sender.sendMessage(ChatColor.GRAY + "No listener calls or tasks were timed.");
         }
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return the JSON object that is the child of the specified parent with the
-     * specified name.
+     * Show a command sender the retained lag spike captures, most recent
+     * first, with the frame where each spent the most time.
      *
-     * @param parent the parent JSONObject.
-     * @param name the name of the child.
-     * @return the child with the specified name, which will be created and
-     *         added to the parent as necessary.
+     * @param sender the command sender.
      */
-    @SuppressWarnings("unchecked")
-    protected JSONObject getJSONObject(JSONObject parent, String name) {
-        JSONObject child = (JSONObject) parent.get(name);
-        if (child == null) {
-            child = new JSONObject();
-            parent.put(name, child);
+    protected void showSpikes(CommandSender sender) {
+        List<SpikeSampler.Capture> captures = _spikeSampler.getCaptures();
+        if (!CONFIG.SPIKES_ENABLED) {
+            sender.sendMessage(ChatColor.RED + "Spike sampling is disabled. Set spikes.enabled to true to enable it.");
+            return;
         }
-        return child;
+        if (captures.isEmpty()) {
+            sender.sendMessage(ChatColor.GRAY + "No spikes have been captured.");
+            return;
+        }
+
+        sender.sendMessage(ChatColor.GOLD + "Lag spikes over " + CONFIG.SPIKES_THRESHOLD_MILLIS +
+                           " ms, most recent first:");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (int i = 0; i < captures.size(); ++i) {
+            SpikeSampler.Capture capture = captures.get(i);
+            sender.sendMessage(String.format("#%d %s: %d%s ms, %d samples; hottest: %s", i,
+                                             format.format(new Date(capture.startMillis)), capture.durationMillis,
+                                             capture.truncated ? "+" : "", capture.samples,
+                                             capture.getHottestFrame()));
+        }
+        sender.sendMessage(ChatColor.GRAY + "Use /nerdperf spikes save to write them as folded stacks.");
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Block and wait for a JSONObject to be added to the results queue, then
-     * take it.
+     * Show a command sender the alert rules, firing rules first, with the
+     * last evaluated value of each rule's metric.
      *
-     * This method is called by the clients of the {@link QueryServer} in order
-     * to wait for results.
+     * @param sender the command sender.
+     */
+    protected void showAlerts(CommandSender sender) {
+        List<AlertRule> rules = _alerts.getRules();
+        if (rules.isEmpty()) {
+            sender.sendMessage(ChatColor.GRAY + "No alert rules are configured.");
+            return;
+        }
+
+        rules.sort((a, b) -> Boolean.compare(b.isFiring(), a.isFiring()));
+        sender.sendMessage(ChatColor.GOLD + "Alert rules:");
+        for (AlertRule rule : rules) {
+            String value = Double.isNaN(rule.getValue()) ? "not yet evaluated" : String.format("%.2f", rule.getValue());
+            sender.sendMessage((rule.isFiring() ? ChatColor.RED + "FIRING " : ChatColor.GREEN + "OK ") +
+                               ChatColor.WHITE + rule.getName() + ": " + rule.getMetric() + " " + rule.describe() +
+                               "; " + value);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write the retained lag spike captures as folded stacks to a new file in
+     * the spikes/ subdirectory of the plugin's data folder.
+     *
+     * The file is written asynchronously and the result is reported in the
+     * main thread.
      *
-     * @return the results JSONObject, when it is added to the queue.
+     * @param sender the command sender.
      */
-    public JSONObject awaitMetrics() {
-        synchronized (_metrics) {
-            try {
-                return _metrics.take();
-            } catch (InterruptedException ex) {
-                return null;
+    protected void saveSpikes(CommandSender sender) {
+        TextBuffer folded = new TextBuffer(65536);
+        _spikeSampler.writeFolded(folded, -1);
+        if (folded.size() == 0) {
+            sender.sendMessage(ChatColor.GRAY + "No spikes have been captured.");
+            return;
+        }
+
+        File directory = new File(getDataFolder(), "spikes");
+        File file = new File(directory, new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".folded");
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            String message;
+            directory.mkdirs();
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.getChannel().write(folded.toByteBuffer());
+                message = ChatColor.GOLD + "Spikes saved to " + file.getPath() + ".";
+            } catch (IOException ex) {
+                message = ChatColor.RED + "Unable to save spikes: " + ex.getMessage();
+            }
+            String result = message;
+            Bukkit.getScheduler().runTask(this, () -> sender.sendMessage(result));
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start gathering metrics and schedule synchronous tasks to complete the
+     * process.
+     *
+     * This method must be called in the main thread.
+     *
+     * Worlds that are not selected are omitted from the snapshot, and only
+     * the counting steps that the selected per-world metrics need are
+     * planned. Counts refreshed in the background by the
+     * {@link RefreshScheduler} are used instead of counting, where available.
+     * The cost of the scan is recorded by {@link #OVERHEAD}, and the snapshot
+     * reports the overhead statistics as of its completion. Alert rules are
+     * evaluated against the snapshot when it completes.
+     *
+     * @param scan the future to be completed with the metrics. If it is
+     *        cancelled, the scan will be abandoned.
+     * @param selection the metrics to compute.
+     */
+    protected void scanMetrics(CompletableFuture<MetricsSnapshot> scan, MetricsSelection selection) {
+        scanMetrics(scan, selection, true);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start gathering metrics and schedule synchronous tasks to complete the
+     * process.
+     *
+     * This method must be called in the main thread.
+     *
+     * @param scan the future to be completed with the metrics. If it is
+     *        cancelled, the scan will be abandoned.
+     * @param selection the metrics to compute.
+     * @param useRefreshed if true, use counts refreshed in the background,
+     *        where available; if false, count everything selected.
+     */
+    protected void scanMetrics(CompletableFuture<MetricsSnapshot> scan, MetricsSelection selection,
+                               boolean useRefreshed) {
+        if (scan.isDone()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        MetricsSnapshot snapshot = MetricsSnapshot.obtain();
+        snapshot.selection = selection;
+        snapshot.overhead.timeLimitMillis = BUDGET.getTimeLimitNanos() * 1e-6;
+        snapshot.players = Bukkit.getOnlinePlayers().size();
+        snapshot.tps = _tpsTask.getTPS();
+        for (int i = 0; i < snapshot.tick.length; ++i) {
+            _tpsTask.getStats(TPSTask.WINDOW_SECONDS[i], snapshot.tick[i]);
+        }
+        snapshot.memoryUsed = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1048576;
+        snapshot.memoryMax = Runtime.getRuntime().maxMemory() / 1048576;
+        _gcMonitor.getStats(snapshot.gc);
+        snapshot.plugins = _profiler.getReport();
+
+        LinkedList<BooleanSupplier> steps = new LinkedList<BooleanSupplier>();
+        if (selection.includes(MetricsSelection.COLLECTORS)) {
+            for (MetricsRegistry.Metric metric : _registry.getMetrics()) {
+                int index = snapshot.addCollected(metric);
+                BooleanSupplier step = _registry.collect(metric, value -> snapshot.collectedValues[index] = value);
+                if (step != null) {
+                    steps.add(step);
+                }
+            }
+        }
+        ArrayList<CompletableFuture<Void>> aggregations = new ArrayList<CompletableFuture<Void>>();
+        for (World world : CONFIG.WORLDS) {
+            int fields = selection.getWorldFields(world.getName());
+            if (fields == 0) {
+                continue;
+            }
+            MetricsSnapshot.WorldMetrics metrics = snapshot.addWorld(world);
+            metrics.fields = fields;
+            // Hotspots and attribution are found for the selected families,
+            // or for both if neither family is selected.
+            int tileEntityFields = MetricsSelection.HOPPERS | MetricsSelection.TILE_ENTITIES;
+            boolean hotspots = snapshot.hotspots && (fields & MetricsSelection.HOTSPOTS) != 0;
+            boolean attribution = snapshot.attribution && (fields & MetricsSelection.ATTRIBUTION) != 0;
+            boolean entities = (fields & MetricsSelection.ENTITIES) != 0 ||
+                               ((hotspots || attribution) && (fields & tileEntityFields) == 0);
+            boolean tileEntities = (fields & tileEntityFields) != 0 ||
+                                   ((hotspots || attribution) && (fields & MetricsSelection.ENTITIES) == 0);
+            if (!hotspots || !entities) {
+                metrics.entityHotspots = null;
+            }
+            if (!hotspots || !tileEntities) {
+                metrics.tileEntityHotspots = null;
+            }
+            if (attribution) {
+                metrics.attribution.reset(world);
+            } else {
+                metrics.attribution = null;
+            }
+
+            if (entities) {
+                // Live and refreshed entity counts don't say where the
+                // entities are relative to the players now.
+                int[] entityCounts = _entityTracker.getCounts(world);
+                long ageMillis;
+                if (entityCounts != null && !hotspots && !attribution) {
+                    metrics.setEntities(entityCounts);
+                    snapshot.entitiesAgeSeconds = Math.max(0, snapshot.entitiesAgeSeconds);
+                } else if (useRefreshed && !attribution &&
+                           (ageMillis = _refresher.fill(RefreshScheduler.ENTITIES, metrics, hotspots)) >= 0) {
+                    snapshot.entitiesAgeSeconds = Math.max(ageMillis / 1000.0, snapshot.entitiesAgeSeconds);
+                } else {
+                    steps.add(new CountEntitiesTask(world, metrics));
+                    snapshot.entitiesAgeSeconds = Math.max(0, snapshot.entitiesAgeSeconds);
+                }
+            }
+
+            if (tileEntities) {
+                int[] tileEntityCounts = _tileEntityIndex.getCounts(world);
+                long ageMillis;
+                if (tileEntityCounts != null && !attribution) {
+                    metrics.setTileEntities(_tileEntityIndex.getLoadedChunks(world), tileEntityCounts);
+                    if (hotspots) {
+                        // A pass over every indexed chunk; do it within the time limit.
+                        LongIntHashMap chunkCounts = _tileEntityIndex.getChunkCounts(world);
+                        int types = tileEntityCounts.length;
+                        steps.add(() -> {
+                            metrics.tileEntityHotspots.compute(chunkCounts, types, CONFIG.HOTSPOTS_LIMIT);
+                            return false;
+                        });
+                    }
+                    snapshot.tileEntitiesAgeSeconds = Math.max(0, snapshot.tileEntitiesAgeSeconds);
+                } else if (useRefreshed && !attribution &&
+                           (ageMillis = _refresher.fill(RefreshScheduler.TILE_ENTITIES, metrics, hotspots)) >= 0) {
+                    metrics.chunks = world.getLoadedChunks().length;
+                    snapshot.tileEntitiesAgeSeconds = Math.max(ageMillis / 1000.0, snapshot.tileEntitiesAgeSeconds);
+                } else {
+                    if (CONFIG.PARALLEL_TILE_ENTITIES) {
+                        SnapshotTileEntitiesTask task = new SnapshotTileEntitiesTask(world, metrics, _pool);
+                        steps.add(task);
+                        aggregations.add(task.getResult());
+                    } else {
+                        steps.add(new CountTileEntitiesTask(world, metrics));
+                    }
+                    snapshot.tileEntitiesAgeSeconds = Math.max(0, snapshot.tileEntitiesAgeSeconds);
+                }
+            } else if ((fields & MetricsSelection.CHUNKS) != 0) {
+                metrics.chunks = world.getLoadedChunks().length;
+            }
+            if ((fields & MetricsSelection.CHUNK_RATES) != 0) {
+                _chunkActivity.getRates(world, metrics);
             }
         }
+
+        SynchronousTimeLimitedTask task = new SynchronousTimeLimitedTask(steps, scan);
+        steps.add(new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                // Complete the scan once any counting in the pool is done too.
+                // The slices counted include the setup.
+                int slices = task.getSlices() + 1;
+                CompletableFuture<Void> counted = CompletableFuture.allOf(
+                    aggregations.toArray(new CompletableFuture<?>[aggregations.size()]));
+                counted.whenComplete((ignored, ex) -> {
+                    if (ex != null) {
+                        getLogger().severe("Measurement task failed: " + ex);
+                        scan.completeExceptionally(ex);
+                        snapshot.release();
+                        return;
+                    }
+                    OVERHEAD.recordScan(slices, System.nanoTime() - start);
+                    OVERHEAD.getStats(snapshot.overhead);
+                    _alerts.evaluate(snapshot);
+                    if (!scan.complete(snapshot)) {
+                        snapshot.release();
+                    }
+                });
+                return false;
+            }
+        });
+        Bukkit.getScheduler().scheduleSyncDelayedTask(this, task);
+
+        long elapsed = System.nanoTime() - start;
+        OVERHEAD.recordSlice(elapsed);
+        if (CONFIG.DEBUG_OVERHEAD) {
+            getLogger().info("Metrics setup took " + (elapsed * 1e-6) + " ms.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Create the pool that counts chunk snapshots, if parallel counting is
+     * enabled, replacing the current pool if the number of threads has
+     * changed.
+     *
+     * A replaced pool finishes the counting already submitted to it. Scans
+     * still capturing snapshots then count their remaining chunks in the
+     * main thread; see {@link SnapshotTileEntitiesTask}.
+     */
+    protected void configurePool() {
+        if (_pool != null && (!CONFIG.PARALLEL_TILE_ENTITIES || _pool.getParallelism() != CONFIG.PARALLEL_THREADS)) {
+            _pool.shutdown();
+            _pool = null;
+        }
+        if (_pool == null && CONFIG.PARALLEL_TILE_ENTITIES) {
+            _pool = new ForkJoinPool(CONFIG.PARALLEL_THREADS, pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("NerdPerf Counter " + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -192,8 +692,8 @@ public class NerdPerf extends JavaPlugin {
 
     // ------------------------------------------------------------------------
     /**
-     * Stop the query server, unblock the client waiting on the results queue
-     * and wait for the thread to die.
+     * Stop the query server, disconnecting any waiting clients, and wait for
+     * the thread to die.
      */
     protected void stopServer() {
         if (_server == null) {
@@ -201,7 +701,6 @@ public class NerdPerf extends JavaPlugin {
         }
 
         _server.close();
-        // Interrupt clients that are blocked waiting for results.
         _server.interrupt();
         try {
             _server.join();
@@ -212,17 +711,125 @@ public class NerdPerf extends JavaPlugin {
 
     // ------------------------------------------------------------------------
     /**
-     * Task that measures TPS, run every 20 ticks.
+     * Start pushing metrics to the configured sink, replacing any previous
+     * exporter, unless push.protocol is "none".
+     */
+    protected void startPushExporter() {
+        stopPushExporter();
+        if (CONFIG.PUSH_PROTOCOL.equals("none")) {
+            return;
+        }
+
+        _pushExporter = new PushExporter();
+        _pushExporter.start();
+        getLogger().info("Pushing " + CONFIG.PUSH_PROTOCOL + " metrics to " + CONFIG.PUSH_HOST + ":" +
+                         CONFIG.PUSH_PORT + " every " + CONFIG.PUSH_INTERVAL_SECONDS + " seconds.");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop pushing metrics, if started.
+     */
+    protected void stopPushExporter() {
+        if (_pushExporter != null) {
+            _pushExporter.shutdown();
+            _pushExporter = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Number of minutes of journal records shown by /nerdperf journal by
+     * default.
+     */
+    protected static final int DEFAULT_JOURNAL_MINUTES = 10;
+
+    /**
+     * Maximum number of journal records shown by /nerdperf journal.
+     */
+    protected static final int MAX_JOURNAL_LINES = 100;
+
+    /**
+     * Task that measures the duration of every tick.
      */
     protected TPSTask _tpsTask;
 
+    /**
+     * Gathers garbage collection and memory pool statistics.
+     */
+    protected GCMonitor _gcMonitor = new GCMonitor();
+
+    /**
+     * Times the event listeners and scheduler tasks of each plugin.
+     */
+    protected PluginProfiler _profiler = new PluginProfiler();
+
+    /**
+     * Metrics published by other plugins.
+     */
+    protected MetricsRegistry _registry = new MetricsRegistry();
+
+    /**
+     * Refreshes entity and tile entity counts on their own schedules.
+     */
+    protected RefreshScheduler _refresher = new RefreshScheduler();
+
+    /**
+     * Captures stack samples of the main thread during lag spikes.
+     */
+    protected SpikeSampler _spikeSampler = new SpikeSampler();
+
+    /**
+     * Evaluates alert rules against each completed scan.
+     */
+    protected AlertEngine _alerts = new AlertEngine();
+
+    /**
+     * Measures chunk load, unload and generation rates.
+     */
+    protected ChunkActivityTracker _chunkActivity = new ChunkActivityTracker();
+
+    /**
+     * Maintains live entity counts when incremental entity counting is
+     * enabled.
+     */
+    protected EntityTracker _entityTracker = new EntityTracker();
+
+    /**
+     * Maintains per-chunk tile entity counts when incremental tile entity
+     * counting is enabled.
+     */
+    protected TileEntityIndex _tileEntityIndex = new TileEntityIndex();
+
+    /**
+     * Counts chunk snapshots in parallel when parallel counting is enabled,
+     * or null.
+     */
+    protected ForkJoinPool _pool;
+
     /**
      * Server socket and client handling async task.
      */
     protected QueryServer _server;
 
     /**
-     * Queue of results returned to clients.
+     * Pushes metrics to a StatsD, Graphite or InfluxDB sink, or null if not
+     * configured.
+     */
+    protected PushExporter _pushExporter;
+
+    /**
+     * Cache of results returned to clients.
+     */
+    protected MetricsCache _cache = new MetricsCache();
+
+    /**
+     * Metrics sampled at regular intervals.
+     */
+    protected MetricsHistory _history = new MetricsHistory();
+
+    /**
+     * Journal of sampled metrics on disk.
      */
-    protected ArrayBlockingQueue<JSONObject> _metrics = new ArrayBlockingQueue<JSONObject>(10);
+    protected MetricsJournal _journal = new MetricsJournal();
 } // class NerdPerf
\ No newline at end of file
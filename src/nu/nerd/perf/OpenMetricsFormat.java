@@ -0,0 +1,460 @@
+package nu.nerd.perf;
+
+// ----------------------------------------------------------------------------
+/**
+ * Encodes metrics in the OpenMetrics text exposition format, as scraped by
+ * Prometheus.
+ *
+ * Each metric is a gauge, or for GC counts and times a counter, whose name is
+ * prefixed with "nerdperf_". Memory pool and GC metrics carry a "pool" or
+ * "collector" label. Per-world metrics carry a "world" label; entity and tile
+ * entity counts also carry an "entity_type" or "tile_entity_type" label.
+ * Hotspots are omitted, since chunk coordinates would make unbounded label
+ * sets. Metrics can be limited to a {@link MetricsSelection}, except for
+ * NerdPerf's own overhead, which is always written.
+ */
+public final class OpenMetricsFormat {
+    // ------------------------------------------------------------------------
+    /**
+     * The HTTP Content-Type of the encoded metrics.
+     */
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode the selected metrics of a snapshot as OpenMetrics text,
+     * terminated by "# EOF".
+     *
+     * @param metrics the metrics.
+     * @param out the buffer to append the text to.
+     */
+    public static void write(MetricsSnapshot metrics, TextBuffer out) {
+        write(metrics, metrics.selection, out);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode the specified metrics of a snapshot as OpenMetrics text,
+     * terminated by "# EOF".
+     *
+     * Per-world metrics are only written for the worlds where they are
+     * selected; a metric family none of whose samples are selected is
+     * omitted.
+     *
+     * @param metrics the metrics.
+     * @param selected the metrics to write; metrics that are not in the
+     *        snapshot's selection are omitted.
+     * @param out the buffer to append the text to.
+     */
+    public static void write(MetricsSnapshot metrics, MetricsSelection selected, TextBuffer out) {
+        if (selected.includes(MetricsSelection.PLAYERS)) {
+            gauge(out, "nerdperf_players", "Number of connected players.");
+            out.append("nerdperf_players ").append(metrics.players).append('\n');
+        }
+
+        if (selected.includes(MetricsSelection.TPS)) {
+            gauge(out, "nerdperf_tps", "Ticks per second averaged over the last 10 seconds.");
+            out.append("nerdperf_tps ").append(metrics.tps).append('\n');
+        }
+
+        if (selected.includes(MetricsSelection.TICK)) {
+            gauge(out, "nerdperf_tick_tps", "Ticks per second averaged over a window.");
+            for (int i = 0; i < metrics.tick.length; ++i) {
+                out.append("nerdperf_tick_tps{window=\"").append(TPSTask.WINDOW_NAMES[i]).append("\"} ");
+                out.append(metrics.tick[i].tps).append('\n');
+            }
+
+            gauge(out, "nerdperf_tick_duration_seconds", "Tick duration statistics over a window.");
+            for (int i = 0; i < metrics.tick.length; ++i) {
+                TPSTask.Stats stats = metrics.tick[i];
+                tickDuration(out, i, "mean", stats.meanMillis);
+                tickDuration(out, i, "p50", stats.p50Millis);
+                tickDuration(out, i, "p95", stats.p95Millis);
+                tickDuration(out, i, "p99", stats.p99Millis);
+                tickDuration(out, i, "max", stats.maxMillis);
+            }
+        }
+
+        if (selected.includes(MetricsSelection.MEMORY)) {
+            gauge(out, "nerdperf_memory_used_bytes", "Used heap space.");
+            out.append("nerdperf_memory_used_bytes ").append(metrics.memoryUsed * 1048576).append('\n');
+            gauge(out, "nerdperf_memory_max_bytes", "Maximum heap space.");
+            out.append("nerdperf_memory_max_bytes ").append(metrics.memoryMax * 1048576).append('\n');
+
+            gauge(out, "nerdperf_memory_allocation_bytes_per_second",
+                  "Heap allocation rate in bytes per second over the last 10 seconds.");
+            out.append("nerdperf_memory_allocation_bytes_per_second ").append(metrics.gc.allocationRate).append('\n');
+            if (metrics.gc.oldGenAfterGC >= 0) {
+                gauge(out, "nerdperf_memory_old_gen_after_gc_bytes",
+                      "Old generation occupancy after the last collection.");
+                out.append("nerdperf_memory_old_gen_after_gc_bytes ").append(metrics.gc.oldGenAfterGC).append('\n');
+            }
+
+            gauge(out, "nerdperf_memory_pool_used_bytes", "Used bytes in a memory pool.");
+            poolSamples(out, "nerdperf_memory_pool_used_bytes", metrics.gc, metrics.gc.poolUsed);
+            gauge(out, "nerdperf_memory_pool_committed_bytes", "Committed bytes in a memory pool.");
+            poolSamples(out, "nerdperf_memory_pool_committed_bytes", metrics.gc, metrics.gc.poolCommitted);
+            gauge(out, "nerdperf_memory_pool_max_bytes", "Maximum size of a memory pool.");
+            poolSamples(out, "nerdperf_memory_pool_max_bytes", metrics.gc, metrics.gc.poolMax);
+            gauge(out, "nerdperf_memory_pool_used_after_gc_bytes",
+                  "Used bytes in a memory pool after the last collection.");
+            poolSamples(out, "nerdperf_memory_pool_used_after_gc_bytes", metrics.gc, metrics.gc.poolUsedAfterGC);
+
+            counter(out, "nerdperf_gc_collections", "Number of garbage collections.");
+            for (int i = 0; i < metrics.gc.collectorNames.length; ++i) {
+                labelled(out, "nerdperf_gc_collections_total", "collector", metrics.gc.collectorNames[i]);
+                out.append("} ").append(metrics.gc.collections[i]).append('\n');
+            }
+            counter(out, "nerdperf_gc_collection_seconds", "Accumulated garbage collection time.");
+            for (int i = 0; i < metrics.gc.collectorNames.length; ++i) {
+                labelled(out, "nerdperf_gc_collection_seconds_total", "collector", metrics.gc.collectorNames[i]);
+                out.append("} ").append(metrics.gc.collectionMillis[i] / 1000.0).append('\n');
+            }
+            gauge(out, "nerdperf_gc_last_collection_seconds", "Duration of the most recent garbage collection.");
+            for (int i = 0; i < metrics.gc.collectorNames.length; ++i) {
+                if (metrics.gc.lastCollectionMillis[i] >= 0) {
+                    labelled(out, "nerdperf_gc_last_collection_seconds", "collector", metrics.gc.collectorNames[i]);
+                    out.append("} ").append(metrics.gc.lastCollectionMillis[i] / 1000.0).append('\n');
+                }
+            }
+        }
+
+        if (metrics.plugins != null && selected.includes(MetricsSelection.PLUGINS)) {
+            PluginProfiler.Report plugins = metrics.plugins;
+            gauge(out, "nerdperf_plugin_tick_seconds",
+                  "Average time per tick spent in a plugin's listeners and tasks.");
+            for (int i = 0; i < plugins.size(); ++i) {
+                labelled(out, "nerdperf_plugin_tick_seconds", "plugin", plugins.names[i]);
+                out.append("} ").append(plugins.millisPerTick(i) / 1000).append('\n');
+            }
+            gauge(out, "nerdperf_plugin_event_max_seconds", "Longest call of a plugin's listeners.");
+            for (int i = 0; i < plugins.size(); ++i) {
+                labelled(out, "nerdperf_plugin_event_max_seconds", "plugin", plugins.names[i]);
+                out.append("} ").append(1e-9 * plugins.eventMaxNanos[i]).append('\n');
+            }
+            gauge(out, "nerdperf_plugin_task_max_seconds", "Longest run of a plugin's scheduler tasks.");
+            for (int i = 0; i < plugins.size(); ++i) {
+                labelled(out, "nerdperf_plugin_task_max_seconds", "plugin", plugins.names[i]);
+                out.append("} ").append(1e-9 * plugins.taskMaxNanos[i]).append('\n');
+            }
+        }
+
+        if (selected.includes(MetricsSelection.COLLECTORS)) {
+            for (int i = 0; i < metrics.getCollectedCount(); ++i) {
+                MetricsRegistry.Metric metric = metrics.getCollected(i);
+                double value = metrics.collectedValues[i];
+                if (metric.isCounter()) {
+                    counter(out, metric.exportedName, metric.help);
+                    if (Double.isFinite(value)) {
+                        out.append(metric.exportedName).append("_total ").append(value).append('\n');
+                    }
+                } else {
+                    gauge(out, metric.exportedName, metric.help);
+                    if (Double.isFinite(value)) {
+                        out.append(metric.exportedName).append(' ').append(value).append('\n');
+                    }
+                }
+            }
+        }
+
+        boolean entitiesAged = metrics.entitiesAgeSeconds >= 0 &&
+                               metrics.isSelected(selected, MetricsSelection.ENTITIES);
+        int tileEntityFields = MetricsSelection.HOPPERS | MetricsSelection.TILE_ENTITIES;
+        boolean tileEntitiesAged = metrics.tileEntitiesAgeSeconds >= 0 &&
+                                   metrics.isSelected(selected, tileEntityFields);
+        if (entitiesAged || tileEntitiesAged) {
+            gauge(out, "nerdperf_counts_age_seconds", "Age of the counts of a family, refreshed in the background.");
+            if (entitiesAged) {
+                labelled(out, "nerdperf_counts_age_seconds", "family", "entities");
+                out.append("} ").append(metrics.entitiesAgeSeconds).append('\n');
+            }
+            if (tileEntitiesAged) {
+                labelled(out, "nerdperf_counts_age_seconds", "family", "tile_entities");
+                out.append("} ").append(metrics.tileEntitiesAgeSeconds).append('\n');
+            }
+        }
+
+        if (metrics.isSelected(selected, MetricsSelection.VIEW_DISTANCE)) {
+            gauge(out, "nerdperf_world_view_distance", "View distance in chunks.");
+            for (int w = 0; w < metrics.getWorldCount(); ++w) {
+                MetricsSnapshot.WorldMetrics world = metrics.getWorld(w);
+                if (isSelected(world, selected, MetricsSelection.VIEW_DISTANCE)) {
+                    worldSample(out, "nerdperf_world_view_distance", world);
+                    out.append("} ").append(world.viewDistance).append('\n');
+                }
+            }
+        }
+
+        if (metrics.isSelected(selected, MetricsSelection.CHUNKS)) {
+            gauge(out, "nerdperf_world_chunks", "Number of loaded chunks.");
+            for (int w = 0; w < metrics.getWorldCount(); ++w) {
+                MetricsSnapshot.WorldMetrics world = metrics.getWorld(w);
+                if (isSelected(world, selected, MetricsSelection.CHUNKS)) {
+                    worldSample(out, "nerdperf_world_chunks", world);
+                    out.append("} ").append(world.chunks).append('\n');
+                }
+            }
+        }
+
+        if (metrics.isSelected(selected, MetricsSelection.CHUNK_RATES)) {
+            gauge(out, "nerdperf_world_chunk_events_per_second",
+                  "Chunks loaded, unloaded and generated per second over the last 10 seconds.");
+            for (int w = 0; w < metrics.getWorldCount(); ++w) {
+                MetricsSnapshot.WorldMetrics world = metrics.getWorld(w);
+                if (isSelected(world, selected, MetricsSelection.CHUNK_RATES)) {
+                    worldSample(out, "nerdperf_world_chunk_events_per_second", world);
+                    out.append(",event=\"load\"} ").append(world.chunkLoadsPerSecond).append('\n');
+                    worldSample(out, "nerdperf_world_chunk_events_per_second", world);
+                    out.append(",event=\"unload\"} ").append(world.chunkUnloadsPerSecond).append('\n');
+                    worldSample(out, "nerdperf_world_chunk_events_per_second", world);
+                    out.append(",event=\"generate\"} ").append(world.chunkGenerationsPerSecond).append('\n');
+                }
+            }
+        }
+
+        if (metrics.isSelected(selected, MetricsSelection.ENTITIES)) {
+            gauge(out, "nerdperf_world_entities", "Number of entities by type.");
+            for (int w = 0; w < metrics.getWorldCount(); ++w) {
+                MetricsSnapshot.WorldMetrics world = metrics.getWorld(w);
+                if (!isSelected(world, selected, MetricsSelection.ENTITIES)) {
+                    continue;
+                }
+                for (int i = 0; i < world.entities.length; ++i) {
+                    worldSample(out, "nerdperf_world_entities", world);
+                    out.append(",entity_type=\"").append(MetricsSnapshot.ENTITY_TYPE_NAMES[i]).append("\"} ");
+                    out.append(world.entities[i]).append('\n');
+                }
+            }
+        }
+
+        // Hoppers are reported as one of the tile entity types.
+        if (metrics.isSelected(selected, tileEntityFields)) {
+            gauge(out, "nerdperf_world_tile_entities", "Number of tile entities by type.");
+            for (int w = 0; w < metrics.getWorldCount(); ++w) {
+                MetricsSnapshot.WorldMetrics world = metrics.getWorld(w);
+                boolean all = isSelected(world, selected, MetricsSelection.TILE_ENTITIES);
+                if (!all && !isSelected(world, selected, MetricsSelection.HOPPERS)) {
+                    continue;
+                }
+                for (int i = 0; i < world.tileEntities.length; ++i) {
+                    if (all || i == metrics.hopperIndex) {
+                        worldSample(out, "nerdperf_world_tile_entities", world);
+                        out.append(",tile_entity_type=\"").append(metrics.tileEntityTypeNames[i]).append("\"} ");
+                        out.append(world.tileEntities[i]).append('\n');
+                    }
+                }
+            }
+        }
+
+        if (metrics.isSelected(selected, MetricsSelection.ATTRIBUTION)) {
+            gauge(out, "nerdperf_world_attributed",
+                  "Entities, tile entities and loaded chunks nearest to each player within view distance.");
+            for (int w = 0; w < metrics.getWorldCount(); ++w) {
+                MetricsSnapshot.WorldMetrics world = metrics.getWorld(w);
+                if (world.attribution != null && isSelected(world, selected, MetricsSelection.ATTRIBUTION)) {
+                    for (int player = 0; player < world.attribution.getPlayerCount(); ++player) {
+                        attributed(out, "nerdperf_world_attributed", world, player);
+                    }
+                }
+            }
+
+            gauge(out, "nerdperf_world_unattended",
+                  "Entities, tile entities and loaded chunks not within view distance of any player.");
+            for (int w = 0; w < metrics.getWorldCount(); ++w) {
+                MetricsSnapshot.WorldMetrics world = metrics.getWorld(w);
+                if (world.attribution != null && isSelected(world, selected, MetricsSelection.ATTRIBUTION)) {
+                    attributed(out, "nerdperf_world_unattended", world, world.attribution.getPlayerCount());
+                }
+            }
+        }
+
+        OverheadMonitor.Stats overhead = metrics.overhead;
+        gauge(out, "nerdperf_overhead_time_limit_seconds", "Main thread time limit per tick of the counting tasks.");
+        out.append("nerdperf_overhead_time_limit_seconds ").append(overhead.timeLimitMillis / 1000).append('\n');
+        overhead(out, "nerdperf_overhead_slice_seconds", "Main thread time per slice of NerdPerf's work.",
+                 overhead.sliceMillis, 1e-3);
+        overhead(out, "nerdperf_overhead_scan_slices", "Number of slices per scan.", overhead.scanSlices, 1);
+        overhead(out, "nerdperf_overhead_scan_seconds", "Wall clock time per scan.", overhead.scanMillis, 1e-3);
+        overhead(out, "nerdperf_overhead_queue_wait_seconds", "Time that requested scans waited to start.",
+                 overhead.queueWaitMillis, 1e-3);
+        overhead(out, "nerdperf_overhead_serialized_bytes", "Size of each encoding of metrics.",
+                 overhead.serializedBytes, 1);
+
+        out.append("# EOF\n");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the samples of the counts attributed to one player, or to no
+     * player, with a "family" label naming the kind of object counted.
+     *
+     * @param out the output.
+     * @param name the metric name.
+     * @param world the metrics of the world.
+     * @param player the player index, or the player count for unattended
+     *        objects, which have no "player" label.
+     */
+    protected static void attributed(TextBuffer out, String name, MetricsSnapshot.WorldMetrics world, int player) {
+        Attribution attribution = world.attribution;
+        boolean unattended = (player == attribution.getPlayerCount());
+        for (int family = 0; family < ATTRIBUTED_FAMILIES.length; ++family) {
+            boolean counted = (family == 0) ? attribution.entitiesCounted : attribution.tileEntitiesCounted;
+            if (!counted) {
+                continue;
+            }
+            worldSample(out, name, world);
+            if (!unattended) {
+                out.append(",player=\"").append(attribution.getPlayerName(player)).append('"');
+            }
+            out.append(",family=\"").append(ATTRIBUTED_FAMILIES[family]).append("\"} ");
+            int count = (family == 0) ? attribution.getEntities(player)
+                      : (family == 1) ? attribution.getTileEntities(player)
+                                      : attribution.getChunks(player);
+            out.append(count).append('\n');
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if any of the specified metrics of a world are selected and
+     * computed.
+     *
+     * @param world the metrics of the world.
+     * @param selected the selected metrics.
+     * @param fields the {@link MetricsSelection} field flags.
+     * @return true if any of the metrics are selected.
+     */
+    protected static boolean isSelected(MetricsSnapshot.WorldMetrics world, MetricsSelection selected, int fields) {
+        return (world.fields & selected.getWorldFields(world.name) & fields) != 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the TYPE and HELP metadata of a gauge.
+     *
+     * @param out the output.
+     * @param name the metric name.
+     * @param help the help text.
+     */
+    protected static void gauge(TextBuffer out, String name, String help) {
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the TYPE and HELP metadata of a counter.
+     *
+     * @param out the output.
+     * @param name the metric family name, without the "_total" suffix of its
+     *        samples.
+     * @param help the help text.
+     */
+    protected static void counter(TextBuffer out, String name, String help) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append one sample per memory pool with a defined value.
+     *
+     * @param out the output.
+     * @param name the metric name.
+     * @param gc the GC statistics.
+     * @param values the values, indexed in the same order as the pool names;
+     *        negative values are undefined and omitted.
+     */
+    protected static void poolSamples(TextBuffer out, String name, GCMonitor.Stats gc, long[] values) {
+        for (int i = 0; i < gc.poolNames.length; ++i) {
+            if (values[i] >= 0) {
+                labelled(out, name, "pool", gc.poolNames[i]);
+                out.append("} ").append(values[i]).append('\n');
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a sample of the tick duration gauge.
+     *
+     * @param out the output.
+     * @param window the index of the window in {@link TPSTask#WINDOW_NAMES}.
+     * @param stat the name of the statistic.
+     * @param millis the duration in milliseconds.
+     */
+    protected static void tickDuration(TextBuffer out, int window, String stat, double millis) {
+        out.append("nerdperf_tick_duration_seconds{window=\"").append(TPSTask.WINDOW_NAMES[window]);
+        out.append("\",stat=\"").append(stat).append("\"} ").append(millis / 1000).append('\n');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a gauge of statistics of NerdPerf's overhead, with a "stat"
+     * label.
+     *
+     * @param out the output.
+     * @param name the metric name.
+     * @param help the description of the metric.
+     * @param summary the statistics.
+     * @param scale the factor converting the statistics to the metric's unit.
+     */
+    protected static void overhead(TextBuffer out, String name, String help, OverheadMonitor.Summary summary,
+                                   double scale) {
+        gauge(out, name, help);
+        out.append(name).append("{stat=\"mean\"} ").append(summary.mean * scale).append('\n');
+        out.append(name).append("{stat=\"p50\"} ").append(summary.p50 * scale).append('\n');
+        out.append(name).append("{stat=\"p95\"} ").append(summary.p95 * scale).append('\n');
+        out.append(name).append("{stat=\"p99\"} ").append(summary.p99 * scale).append('\n');
+        out.append(name).append("{stat=\"max\"} ").append(summary.max * scale).append('\n');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the metric name and world label of a per-world sample, leaving
+     * the label set open for further labels.
+     *
+     * @param out the output.
+     * @param name the metric name.
+     * @param world the world.
+     */
+    protected static void worldSample(TextBuffer out, String name, MetricsSnapshot.WorldMetrics world) {
+        labelled(out, name, "world", world.name);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append the metric name and first label of a sample, leaving the label
+     * set open for further labels.
+     *
+     * @param out the output.
+     * @param name the metric name.
+     * @param label the label name.
+     * @param value the label value, which is escaped.
+     */
+    protected static void labelled(TextBuffer out, String name, String label, String value) {
+        out.append(name).append('{').append(label).append("=\"");
+        int start = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"' || c == '\n') {
+                out.append(value, start, i).append('\\').append(c == '\n' ? 'n' : c);
+                start = i + 1;
+            }
+        }
+        out.append(value, start, value.length()).append('"');
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Values of the "family" label of attributed counts.
+     */
+    protected static final String[] ATTRIBUTED_FAMILIES = { "entities", "tile_entities", "chunks" };
+
+    // ------------------------------------------------------------------------
+    /**
+     * Not instantiable.
+     */
+    private OpenMetricsFormat() {
+    }
+} // class OpenMetricsFormat
@@ -0,0 +1,311 @@
+package nu.nerd.perf;
+
+// ----------------------------------------------------------------------------
+/**
+ * Accounts for the cost of NerdPerf itself, so that it can be reported
+ * alongside the metrics it measures and used to tune the
+ * {@code task-time-limit-millis} and adaptive scheduling settings.
+ *
+ * The following are recorded in {@link LogLinearHistogram}s, which do not
+ * allocate:
+ * <ul>
+ * <li>The main thread time of every slice of a counting task, and of setting
+ * up each scan.</li>
+ * <li>The number of slices in each scan, including its setup.</li>
+ * <li>The wall clock time of each scan, from its setup until its counts,
+ * including any counted in the pool, are complete.</li>
+ * <li>The time each requested scan waits for the main thread to start it.</li>
+ * <li>The size of each encoding of metrics for a client or push sink.</li>
+ * </ul>
+ *
+ * Values are recorded into the current window, which becomes the previous
+ * window after {@value #WINDOW_SECONDS} seconds. Statistics are computed over
+ * the current and previous windows together, so they always cover between one
+ * and two windows of recent activity.
+ *
+ * This class is thread-safe; recording a value costs an uncontended lock.
+ */
+public class OverheadMonitor {
+    // ------------------------------------------------------------------------
+    /**
+     * Statistics describing one kind of recorded value.
+     */
+    public static class Summary {
+        /**
+         * Number of values recorded.
+         */
+        public long count;
+
+        /**
+         * Mean value.
+         */
+        public double mean;
+
+        /**
+         * Median value.
+         */
+        public double p50;
+
+        /**
+         * 95th percentile value.
+         */
+        public double p95;
+
+        /**
+         * 99th percentile value.
+         */
+        public double p99;
+
+        /**
+         * Largest value.
+         */
+        public double max;
+    } // class Summary
+
+    // ------------------------------------------------------------------------
+    /**
+     * Statistics describing NerdPerf's own overhead.
+     */
+    public static class Stats {
+        /**
+         * Duration in seconds covered by the statistics.
+         */
+        public double windowSeconds;
+
+        /**
+         * The main thread time limit per tick, in milliseconds, when the scan
+         * started; set by the scan rather than by {@link #getStats(Stats)}.
+         */
+        public double timeLimitMillis;
+
+        /**
+         * Main thread time per slice, in milliseconds.
+         */
+        public final Summary sliceMillis = new Summary();
+
+        /**
+         * Number of slices per scan.
+         */
+        public final Summary scanSlices = new Summary();
+
+        /**
+         * Wall clock time per scan, in milliseconds.
+         */
+        public final Summary scanMillis = new Summary();
+
+        /**
+         * Time that requested scans waited to start, in milliseconds.
+         */
+        public final Summary queueWaitMillis = new Summary();
+
+        /**
+         * Size of each encoding of metrics, in bytes.
+         */
+        public final Summary serializedBytes = new Summary();
+    } // class Stats
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     */
+    public OverheadMonitor() {
+        for (int i = 0; i < SERIES; ++i) {
+            _current[i] = new LogLinearHistogram();
+            _previous[i] = new LogLinearHistogram();
+        }
+        _currentStartNanos = _previousStartNanos = System.nanoTime();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the main thread time of one slice of work.
+     *
+     * @param nanos the elapsed time in nanoseconds.
+     */
+    public void recordSlice(long nanos) {
+        record(SLICE, nanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a completed scan.
+     *
+     * @param slices the number of slices, including setup.
+     * @param nanos the wall clock time from setup to completion in
+     *        nanoseconds.
+     */
+    public synchronized void recordScan(int slices, long nanos) {
+        record(SCAN_SLICES, slices);
+        record(SCAN, nanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the time that a requested scan waited for the main thread to
+     * start it.
+     *
+     * @param nanos the waiting time in nanoseconds.
+     */
+    public void recordQueueWait(long nanos) {
+        record(QUEUE_WAIT, nanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the size of an encoding of metrics.
+     *
+     * @param bytes the size in bytes.
+     */
+    public void recordSerialized(int bytes) {
+        record(SERIALIZED, bytes);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compute statistics over the current and previous windows.
+     *
+     * @param stats the statistics to fill; timeLimitMillis is not modified.
+     */
+    public synchronized void getStats(Stats stats) {
+        long now = System.nanoTime();
+        rotate(now);
+        stats.windowSeconds = (now - _previousStartNanos) * 1e-9;
+        summarize(SLICE, 1e-6, stats.sliceMillis);
+        summarize(SCAN_SLICES, 1, stats.scanSlices);
+        summarize(SCAN, 1e-6, stats.scanMillis);
+        summarize(QUEUE_WAIT, 1e-6, stats.queueWaitMillis);
+        summarize(SERIALIZED, 1, stats.serializedBytes);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record a value in the current window.
+     *
+     * @param series the kind of value.
+     * @param value the value.
+     */
+    protected synchronized void record(int series, long value) {
+        rotate(System.nanoTime());
+        _current[series].record(value);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start a new window if the current one has ended, discarding the
+     * previous window.
+     *
+     * If a whole window has passed since the current one ended, both are
+     * discarded, since neither describes recent activity.
+     *
+     * @param now the current System.nanoTime() value.
+     */
+    protected void rotate(long now) {
+        long elapsed = now - _currentStartNanos;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+
+        LogLinearHistogram[] discarded = _previous;
+        _previous = _current;
+        _current = discarded;
+        for (LogLinearHistogram histogram : _current) {
+            histogram.reset();
+        }
+        if (elapsed < 2 * WINDOW_NANOS) {
+            _previousStartNanos = _currentStartNanos;
+        } else {
+            for (LogLinearHistogram histogram : _previous) {
+                histogram.reset();
+            }
+            _previousStartNanos = now;
+        }
+        _currentStartNanos = now;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Summarize one kind of value over the current and previous windows.
+     *
+     * @param series the kind of value.
+     * @param scale the factor converting recorded values to reported units.
+     * @param summary the summary to fill.
+     */
+    protected void summarize(int series, double scale, Summary summary) {
+        _merged.reset();
+        _merged.add(_previous[series]);
+        _merged.add(_current[series]);
+        summary.count = _merged.getCount();
+        summary.mean = _merged.getMean() * scale;
+        summary.p50 = _merged.getQuantile(0.50) * scale;
+        summary.p95 = _merged.getQuantile(0.95) * scale;
+        summary.p99 = _merged.getQuantile(0.99) * scale;
+        summary.max = _merged.getMax() * scale;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Duration of a window in seconds.
+     */
+    protected static final int WINDOW_SECONDS = 60;
+
+    /**
+     * Duration of a window in nanoseconds.
+     */
+    protected static final long WINDOW_NANOS = WINDOW_SECONDS * 1_000_000_000L;
+
+    /**
+     * Index of the histograms of slice times.
+     */
+    protected static final int SLICE = 0;
+
+    /**
+     * Index of the histograms of slices per scan.
+     */
+    protected static final int SCAN_SLICES = 1;
+
+    /**
+     * Index of the histograms of scan times.
+     */
+    protected static final int SCAN = 2;
+
+    /**
+     * Index of the histograms of queue waiting times.
+     */
+    protected static final int QUEUE_WAIT = 3;
+
+    /**
+     * Index of the histograms of encoding sizes.
+     */
+    protected static final int SERIALIZED = 4;
+
+    /**
+     * Number of kinds of recorded value.
+     */
+    protected static final int SERIES = 5;
+
+    /**
+     * Histograms of the current window, indexed by kind of value.
+     */
+    protected LogLinearHistogram[] _current = new LogLinearHistogram[SERIES];
+
+    /**
+     * Histograms of the previous window, indexed by kind of value.
+     */
+    protected LogLinearHistogram[] _previous = new LogLinearHistogram[SERIES];
+
+    /**
+     * Histogram reused to combine the windows.
+     */
+    protected final LogLinearHistogram _merged = new LogLinearHistogram();
+
+    /**
+     * The System.nanoTime() value when the current window started.
+     */
+    protected long _currentStartNanos;
+
+    /**
+     * The System.nanoTime() value when the previous window started, or when
+     * the current window started if there is no previous window.
+     */
+    protected long _previousStartNanos;
+} // class OverheadMonitor
@@ -0,0 +1,221 @@
+package nu.nerd.perf;
+
+import java.util.List;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+// ----------------------------------------------------------------------------
+/**
+ * A 2-d tree over the chunk positions of a set of players, answering "which
+ * player is nearest to this chunk?" in O(log p) time for p players.
+ *
+ * Distances are measured between chunk coordinates as the larger of the X
+ * and Z differences, so that the chunks within a given distance of a player
+ * form the square of chunks that a view distance loads around them.
+ *
+ * The tree is stored implicitly in arrays: each range of the arrays is
+ * partitioned so that its median element splits the rest on the X axis (at
+ * even depths) or the Z axis (at odd depths). The index is rebuilt from
+ * scratch when players move, which is cheap for the few hundred players a
+ * server holds, and is not modified between rebuilds, so it can then be
+ * queried from any thread. The arrays are reused while the number of players
+ * is unchanged, so that rebuilding does not allocate.
+ */
+public class PlayerIndex {
+    // ------------------------------------------------------------------------
+    /**
+     * Rebuild the index from the current positions of players.
+     *
+     * This method must be called in the main thread.
+     *
+     * @param players the players.
+     */
+    public void rebuild(List<Player> players) {
+        int size = players.size();
+        if (_names.length != size) {
+            _names = new String[size];
+            _chunkX = new int[size];
+            _chunkZ = new int[size];
+            _tree = new int[size];
+        }
+        for (int i = 0; i < size; ++i) {
+            Player player = players.get(i);
+            player.getLocation(_location);
+            _names[i] = player.getName();
+            _chunkX[i] = _location.getBlockX() >> 4;
+            _chunkZ[i] = _location.getBlockZ() >> 4;
+            _tree[i] = i;
+        }
+        build(0, size, 0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of players in the index.
+     *
+     * @return the number of players.
+     */
+    public int size() {
+        return _names.length;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the name of a player.
+     *
+     * @param player the index of the player, less than size().
+     * @return the player's name.
+     */
+    public String getName(int player) {
+        return _names[player];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the player nearest to a chunk, within a maximum distance.
+     *
+     * @param chunkX the chunk X coordinate.
+     * @param chunkZ the chunk Z coordinate.
+     * @param maxDistance the maximum distance, in chunks.
+     * @return the index of the nearest player, or -1 if no player is within
+     *         the maximum distance.
+     */
+    public int nearest(int chunkX, int chunkZ, int maxDistance) {
+        long best = nearest(chunkX, chunkZ, 0, _tree.length, 0, ((long) (maxDistance + 1) << 32) | 0xFFFF_FFFFL);
+        return (best >>> 32) > maxDistance ? -1 : (int) best;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Order a range of player indices in _tree as a subtree.
+     *
+     * @param from the start of the range.
+     * @param to the end of the range, exclusive.
+     * @param depth the depth of the subtree's root.
+     */
+    protected void build(int from, int to, int depth) {
+        if (to - from <= 1) {
+            return;
+        }
+        int median = (from + to) >>> 1;
+        select((depth % 2 == 0) ? _chunkX : _chunkZ, from, to, median);
+        build(from, median, depth + 1);
+        build(median + 1, to, depth + 1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Partition a range of player indices in _tree about the k'th smallest
+     * coordinate on an axis (quickselect), so that no player before position
+     * k has a larger coordinate than the player at k, and none after it has a
+     * smaller one.
+     *
+     * Only the median needs to be placed, not the whole range sorted, so
+     * building the tree takes O(p log p) time.
+     *
+     * @param axis the coordinates on the axis, indexed by player.
+     * @param from the start of the range.
+     * @param to the end of the range, exclusive.
+     * @param k the position to select, within the range.
+     */
+    protected void select(int[] axis, int from, int to, int k) {
+        int low = from;
+        int high = to - 1;
+        while (low < high) {
+            int pivot = axis[_tree[(low + high) >>> 1]];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (axis[_tree[i]] < pivot) {
+                    ++i;
+                }
+                while (axis[_tree[j]] > pivot) {
+                    --j;
+                }
+                if (i <= j) {
+                    int player = _tree[i];
+                    _tree[i++] = _tree[j];
+                    _tree[j--] = player;
+                }
+            }
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Search a subtree for a player nearer to a chunk than the best found so
+     * far.
+     *
+     * The best match is packed into a long, with the distance in the upper 32
+     * bits and the player index in the lower 32, so that it can be returned
+     * without allocation.
+     *
+     * @param chunkX the chunk X coordinate.
+     * @param chunkZ the chunk Z coordinate.
+     * @param from the start of the subtree's range in _tree.
+     * @param to the end of the range, exclusive.
+     * @param depth the depth of the subtree's root.
+     * @param best the best match found so far.
+     * @return the best match, including this subtree.
+     */
+    protected long nearest(int chunkX, int chunkZ, int from, int to, int depth, long best) {
+        if (from >= to) {
+            return best;
+        }
+
+        int median = (from + to) >>> 1;
+        int player = _tree[median];
+        long distance = Math.max(Math.abs((long) chunkX - _chunkX[player]), Math.abs((long) chunkZ - _chunkZ[player]));
+        if (distance < (best >>> 32)) {
+            best = (distance << 32) | player;
+        }
+
+        long offset = (depth % 2 == 0) ? (long) chunkX - _chunkX[player] : (long) chunkZ - _chunkZ[player];
+        if (offset < 0) {
+            best = nearest(chunkX, chunkZ, from, median, depth + 1, best);
+            if (-offset < (best >>> 32)) {
+                best = nearest(chunkX, chunkZ, median + 1, to, depth + 1, best);
+            }
+        } else {
+            best = nearest(chunkX, chunkZ, median + 1, to, depth + 1, best);
+            if (offset < (best >>> 32)) {
+                best = nearest(chunkX, chunkZ, from, median, depth + 1, best);
+            }
+        }
+        return best;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Player names, indexed by player.
+     */
+    protected String[] _names = new String[0];
+
+    /**
+     * Chunk X coordinates, indexed by player.
+     */
+    protected int[] _chunkX = new int[0];
+
+    /**
+     * Chunk Z coordinates, indexed by player.
+     */
+    protected int[] _chunkZ = new int[0];
+
+    /**
+     * Player indices in tree order.
+     */
+    protected int[] _tree = new int[0];
+
+    /**
+     * Location of each player as it is indexed, reused across rebuilds.
+     */
+    protected final Location _location = new Location(null, 0, 0, 0);
+} // class PlayerIndex
@@ -0,0 +1,704 @@
+package nu.nerd.perf;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.bukkit.Bukkit;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventException;
+import org.bukkit.event.HandlerList;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.RegisteredListener;
+import org.bukkit.scheduler.BukkitTask;
+
+// ----------------------------------------------------------------------------
+/**
+ * Measures the main thread time spent in each plugin's event listeners and
+ * synchronous scheduler tasks.
+ *
+ * When installed, every RegisteredListener in every HandlerList is replaced
+ * by a {@link TimedListener} that times the original. Synchronous scheduler
+ * tasks are wrapped by replacing the Runnable or Consumer held by the
+ * server's task implementation through reflection; this depends on CraftBukkit
+ * internals and is abandoned, with a warning, if they are not as expected.
+ * Listeners registered and repeating tasks scheduled after installation are
+ * wrapped when the profiler next looks for them, once per second. Tasks that
+ * run only once are usually gone by then, so their cost is largely missed.
+ *
+ * Each plugin's calls, total and longest durations are accumulated in
+ * lock-free {@link Counters}. At the end of every window of
+ * profiler.window-seconds they are turned into a {@link Report} of the most
+ * expensive plugins and reset. Events fired asynchronously are not timed,
+ * since they do not cost the main thread anything.
+ *
+ * Installation and removal must happen in the main thread; the report can be
+ * read from any thread.
+ */
+public class PluginProfiler {
+    // ------------------------------------------------------------------------
+    /**
+     * The costs of the most expensive plugins over one window.
+     *
+     * Arrays are indexed in descending order of total time. Times are in
+     * nanoseconds.
+     */
+    public static class Report {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param size the number of plugins reported.
+         * @param ticks the number of ticks in the window.
+         * @param seconds the duration of the window in seconds.
+         */
+        public Report(int size, int ticks, double seconds) {
+            this.ticks = ticks;
+            this.seconds = seconds;
+            names = new String[size];
+            eventCalls = new long[size];
+            eventNanos = new long[size];
+            eventMaxNanos = new long[size];
+            taskRuns = new long[size];
+            taskNanos = new long[size];
+            taskMaxNanos = new long[size];
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the number of plugins reported.
+         *
+         * @return the number of plugins reported.
+         */
+        public int size() {
+            return names.length;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the average time per tick spent in a plugin's listeners and
+         * tasks.
+         *
+         * @param index the index of the plugin.
+         * @return the time in milliseconds.
+         */
+        public double millisPerTick(int index) {
+            return (ticks == 0) ? 0 : 1e-6 * (eventNanos[index] + taskNanos[index]) / ticks;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Write this report as a JSON object.
+         *
+         * @param out the writer.
+         */
+        public void writeJSON(JSONWriter out) {
+            out.beginObject();
+            out.field("window_seconds", seconds);
+            out.field("ticks", ticks);
+            out.key("top").beginArray();
+            for (int i = 0; i < names.length; ++i) {
+                out.beginObject();
+                out.key("name").value(names[i]);
+                out.field("ms_per_tick", millisPerTick(i));
+                out.field("tick_percent", 100 * millisPerTick(i) / 50);
+                out.key("events").beginObject();
+                out.field("calls", eventCalls[i]);
+                out.field("total_ms", 1e-6 * eventNanos[i]);
+                out.field("max_ms", 1e-6 * eventMaxNanos[i]);
+                out.endObject();
+                out.key("tasks").beginObject();
+                out.field("runs", taskRuns[i]);
+                out.field("total_ms", 1e-6 * taskNanos[i]);
+                out.field("max_ms", 1e-6 * taskMaxNanos[i]);
+                out.endObject();
+                out.endObject();
+            }
+            out.endArray();
+            out.endObject();
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Number of ticks in the window.
+         */
+        public final int ticks;
+
+        /**
+         * Duration of the window in seconds.
+         */
+        public final double seconds;
+
+        /**
+         * Plugin names.
+         */
+        public final String[] names;
+
+        /**
+         * Number of timed listener calls of each plugin.
+         */
+        public final long[] eventCalls;
+
+        /**
+         * Total duration of each plugin's listener calls.
+         */
+        public final long[] eventNanos;
+
+        /**
+         * Longest listener call of each plugin.
+         */
+        public final long[] eventMaxNanos;
+
+        /**
+         * Number of timed task runs of each plugin.
+         */
+        public final long[] taskRuns;
+
+        /**
+         * Total duration of each plugin's task runs.
+         */
+        public final long[] taskNanos;
+
+        /**
+         * Longest task run of each plugin.
+         */
+        public final long[] taskMaxNanos;
+    } // class Report
+
+    // ------------------------------------------------------------------------
+    /**
+     * Lock-free accumulators of one plugin's costs, shared by all of its
+     * wrapped listeners and tasks.
+     */
+    public static class Counters {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param name the plugin name.
+         */
+        Counters(String name) {
+            this.name = name;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Record a listener call.
+         *
+         * @param nanos the duration of the call.
+         */
+        void recordEvent(long nanos) {
+            eventCalls.increment();
+            eventNanos.add(nanos);
+            updateMax(eventMaxNanos, nanos);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Record a task run.
+         *
+         * @param nanos the duration of the run.
+         */
+        void recordTask(long nanos) {
+            taskRuns.increment();
+            taskNanos.add(nanos);
+            updateMax(taskMaxNanos, nanos);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Raise a maximum to a value, if it is larger.
+         *
+         * @param max the maximum.
+         * @param value the value.
+         */
+        static void updateMax(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The plugin name.
+         */
+        final String name;
+
+        /**
+         * Listener calls in the current window.
+         */
+        final LongAdder eventCalls = new LongAdder();
+
+        /**
+         * Total nanoseconds of listener calls in the current window.
+         */
+        final LongAdder eventNanos = new LongAdder();
+
+        /**
+         * Longest listener call in the current window.
+         */
+        final AtomicLong eventMaxNanos = new AtomicLong();
+
+        /**
+         * Task runs in the current window.
+         */
+        final LongAdder taskRuns = new LongAdder();
+
+        /**
+         * Total nanoseconds of task runs in the current window.
+         */
+        final LongAdder taskNanos = new LongAdder();
+
+        /**
+         * Longest task run in the current window.
+         */
+        final AtomicLong taskMaxNanos = new AtomicLong();
+    } // class Counters
+
+    // ------------------------------------------------------------------------
+    /**
+     * A RegisteredListener that times the listener it replaces.
+     */
+    protected static class TimedListener extends RegisteredListener {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param original the replaced listener.
+         * @param counters the counters of the listener's plugin.
+         */
+        TimedListener(RegisteredListener original, Counters counters) {
+            // The executor is never used, since callEvent() is overridden.
+            super(original.getListener(), (listener, event) -> {
+            }, original.getPriority(), original.getPlugin(), original.isIgnoringCancelled());
+            _original = original;
+            _counters = counters;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see org.bukkit.plugin.RegisteredListener#callEvent(org.bukkit.event.Event)
+         */
+        @Override
+        public void callEvent(Event event) throws EventException {
+            if (event.isAsynchronous()) {
+                _original.callEvent(event);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                _original.callEvent(event);
+            } finally {
+                _counters.recordEvent(System.nanoTime() - start);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The replaced listener.
+         */
+        final RegisteredListener _original;
+
+        /**
+         * The counters of the listener's plugin.
+         */
+        final Counters _counters;
+    } // class TimedListener
+
+    // ------------------------------------------------------------------------
+    /**
+     * A task body that times the Runnable it replaces.
+     */
+    protected static class TimedRunnable implements Runnable {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param original the replaced task body.
+         * @param counters the counters of the task's plugin.
+         */
+        TimedRunnable(Runnable original, Counters counters) {
+            _original = original;
+            _counters = counters;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                _original.run();
+            } finally {
+                _counters.recordTask(System.nanoTime() - start);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The replaced task body.
+         */
+        final Runnable _original;
+
+        /**
+         * The counters of the task's plugin.
+         */
+        final Counters _counters;
+    } // class TimedRunnable
+
+    // ------------------------------------------------------------------------
+    /**
+     * A task body that times the Consumer it replaces.
+     */
+    protected static class TimedConsumer implements Consumer<BukkitTask> {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param original the replaced task body.
+         * @param counters the counters of the task's plugin.
+         */
+        TimedConsumer(Consumer<BukkitTask> original, Counters counters) {
+            _original = original;
+            _counters = counters;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see java.util.function.Consumer#accept(java.lang.Object)
+         */
+        @Override
+        public void accept(BukkitTask task) {
+            long start = System.nanoTime();
+            try {
+                _original.accept(task);
+            } finally {
+                _counters.recordTask(System.nanoTime() - start);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The replaced task body.
+         */
+        final Consumer<BukkitTask> _original;
+
+        /**
+         * The counters of the task's plugin.
+         */
+        final Counters _counters;
+    } // class TimedConsumer
+
+    // ------------------------------------------------------------------------
+    /**
+     * Install or remove the profiler according to the current configuration.
+     *
+     * This method must be called in the main thread.
+     */
+    public void configure() {
+        if (NerdPerf.CONFIG.PROFILER_ENABLED) {
+            if (_taskId == -1) {
+                install();
+            }
+        } else {
+            uninstall();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Restore all wrapped listeners and tasks, and discard the report.
+     *
+     * This method must be called in the main thread.
+     */
+    public void uninstall() {
+        if (_taskId == -1) {
+            return;
+        }
+        Bukkit.getScheduler().cancelTask(_taskId);
+        _taskId = -1;
+
+        for (HandlerList handlers : HandlerList.getHandlerLists()) {
+            for (RegisteredListener listener : handlers.getRegisteredListeners()) {
+                if (listener instanceof TimedListener) {
+                    handlers.unregister(listener);
+                    handlers.register(((TimedListener) listener)._original);
+                }
+            }
+        }
+
+        if (_taskFields != null) {
+            for (BukkitTask task : Bukkit.getScheduler().getPendingTasks()) {
+                try {
+                    for (Field field : _taskFields) {
+                        Object body = field.get(task);
+                        if (body instanceof TimedRunnable) {
+                            field.set(task, ((TimedRunnable) body)._original);
+                        } else if (body instanceof TimedConsumer) {
+                            field.set(task, ((TimedConsumer) body)._original);
+                        }
+                    }
+                } catch (ReflectiveOperationException | IllegalArgumentException ex) {
+                    NerdPerf.PLUGIN.getLogger().warning("Profiler: unable to restore task " + task.getTaskId() +
+                                                        ": " + ex);
+                }
+            }
+        }
+
+        _counters.clear();
+        _report = null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the report of the most recently completed window.
+     *
+     * @return the report, or null if the profiler is not installed. Before
+     *         the first window has completed, the report is empty.
+     */
+    public Report getReport() {
+        return _report;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wrap all current listeners and tasks, and schedule the task that wraps
+     * new ones and ends each window.
+     */
+    protected void install() {
+        _report = new Report(0, 0, 0);
+        _windowStart = System.nanoTime();
+        _windowPeriods = 0;
+        wrapListeners();
+        wrapTasks();
+        _taskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(NerdPerf.PLUGIN, this::update,
+                                                                  PERIOD_TICKS, PERIOD_TICKS);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wrap new listeners and tasks, and end the window if it has run for the
+     * configured duration.
+     */
+    protected void update() {
+        long start = System.nanoTime();
+        wrapListeners();
+        wrapTasks();
+        if (++_windowPeriods * PERIOD_TICKS >= NerdPerf.CONFIG.PROFILER_WINDOW_SECONDS * 20) {
+            endWindow();
+        }
+
+        if (NerdPerf.CONFIG.DEBUG_OVERHEAD) {
+            NerdPerf.PLUGIN.getLogger().info("Profiler update took " + 1e-6 * (System.nanoTime() - start) + " ms.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace every listener that is not already timed with a
+     * {@link TimedListener}.
+     *
+     * Listeners are re-registered in their original order, so listeners of
+     * equal priority are still called in the same order.
+     */
+    protected void wrapListeners() {
+        for (HandlerList handlers : HandlerList.getHandlerLists()) {
+            RegisteredListener[] listeners = handlers.getRegisteredListeners();
+            boolean wrapped = true;
+            for (RegisteredListener listener : listeners) {
+                wrapped &= (listener instanceof TimedListener);
+            }
+            if (wrapped) {
+                continue;
+            }
+
+            for (RegisteredListener listener : listeners) {
+                handlers.unregister(listener);
+                if (listener instanceof TimedListener) {
+                    handlers.register(listener);
+                } else {
+                    handlers.register(new TimedListener(listener, getCounters(listener.getPlugin())));
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Replace the body of every synchronous pending task that is not already
+     * timed with a {@link TimedRunnable} or {@link TimedConsumer}.
+     */
+    @SuppressWarnings("unchecked")
+    protected void wrapTasks() {
+        if (_taskFields == null && !_taskFieldsSearched) {
+            findTaskFields();
+        }
+        if (_taskFields == null) {
+            return;
+        }
+
+        for (BukkitTask task : Bukkit.getScheduler().getPendingTasks()) {
+            if (!task.isSync() || task.getOwner() == null) {
+                continue;
+            }
+            try {
+                for (Field field : _taskFields) {
+                    if (!field.getDeclaringClass().isInstance(task)) {
+                        continue;
+                    }
+                    Object body = field.get(task);
+                    if (body instanceof Runnable && !(body instanceof TimedRunnable)) {
+                        field.set(task, new TimedRunnable((Runnable) body, getCounters(task.getOwner())));
+                    } else if (body instanceof Consumer && !(body instanceof TimedConsumer)) {
+                        field.set(task, new TimedConsumer((Consumer<BukkitTask>) body, getCounters(task.getOwner())));
+                    }
+                }
+            } catch (ReflectiveOperationException | IllegalArgumentException ex) {
+                NerdPerf.PLUGIN.getLogger().warning("Profiler: unable to time scheduler tasks: " + ex);
+                _taskFields = null;
+                return;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Find the fields of the server's task class that hold the task body: a
+     * Runnable or a Consumer.
+     *
+     * If there are none, or they cannot be made accessible, scheduler tasks
+     * are not timed.
+     */
+    protected void findTaskFields() {
+        _taskFieldsSearched = true;
+        BukkitTask probe = Bukkit.getScheduler().runTask(NerdPerf.PLUGIN, () -> {
+        });
+        probe.cancel();
+
+        ArrayList<Field> fields = new ArrayList<Field>();
+        for (Class<?> c = probe.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.getType() == Runnable.class || field.getType() == Consumer.class) {
+                    try {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    } catch (RuntimeException ex) {
+                        NerdPerf.PLUGIN.getLogger().warning("Profiler: unable to access " + field + ": " + ex);
+                    }
+                }
+            }
+        }
+
+        if (fields.isEmpty()) {
+            NerdPerf.PLUGIN.getLogger().warning("Profiler: scheduler tasks of type " + probe.getClass().getName() +
+                                                " cannot be timed.");
+        } else {
+            _taskFields = fields.toArray(new Field[fields.size()]);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Publish a report of the most expensive plugins in the window that has
+     * just ended, and reset the counters for the next window.
+     */
+    protected void endWindow() {
+        long now = System.nanoTime();
+        int ticks = _windowPeriods * PERIOD_TICKS;
+        double seconds = 1e-9 * (now - _windowStart);
+        _windowStart = now;
+        _windowPeriods = 0;
+
+        ArrayList<long[]> costs = new ArrayList<long[]>();
+        ArrayList<String> names = new ArrayList<String>();
+        for (Counters counters : _counters.values()) {
+            long[] cost = new long[] {
+                counters.eventCalls.sumThenReset(),
+                counters.eventNanos.sumThenReset(),
+                counters.eventMaxNanos.getAndSet(0),
+                counters.taskRuns.sumThenReset(),
+                counters.taskNanos.sumThenReset(),
+                counters.taskMaxNanos.getAndSet(0),
+                names.size()
+            };
+            if (cost[0] != 0 || cost[3] != 0) {
+                costs.add(cost);
+                names.add(counters.name);
+            }
+        }
+        costs.sort(Comparator.comparingLong((long[] cost) -> cost[1] + cost[4]).reversed());
+
+        Report report = new Report(Math.min(costs.size(), NerdPerf.CONFIG.PROFILER_TOP), ticks, seconds);
+        for (int i = 0; i < report.size(); ++i) {
+            long[] cost = costs.get(i);
+            report.names[i] = names.get((int) cost[6]);
+            report.eventCalls[i] = cost[0];
+            report.eventNanos[i] = cost[1];
+            report.eventMaxNanos[i] = cost[2];
+            report.taskRuns[i] = cost[3];
+            report.taskNanos[i] = cost[4];
+            report.taskMaxNanos[i] = cost[5];
+        }
+        _report = report;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the counters of a plugin, creating them if necessary.
+     *
+     * @param plugin the plugin.
+     * @return the counters.
+     */
+    protected Counters getCounters(Plugin plugin) {
+        return _counters.computeIfAbsent(plugin.getName(), Counters::new);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Period, in ticks, of the task that wraps new listeners and tasks.
+     */
+    protected static final int PERIOD_TICKS = 20;
+
+    /**
+     * Counters of each plugin, by plugin name.
+     */
+    protected final ConcurrentHashMap<String, Counters> _counters = new ConcurrentHashMap<String, Counters>();
+
+    /**
+     * Report of the most recently completed window, or null if not
+     * installed.
+     */
+    protected volatile Report _report;
+
+    /**
+     * System.nanoTime() at the start of the current window.
+     */
+    protected long _windowStart;
+
+    /**
+     * Number of update periods in the current window.
+     */
+    protected int _windowPeriods;
+
+    /**
+     * ID of the repeating update task, or -1 if not installed.
+     */
+    protected int _taskId = -1;
+
+    /**
+     * Fields of the server's task classes that hold task bodies, or null if
+     * tasks cannot be timed.
+     */
+    protected Field[] _taskFields;
+
+    /**
+     * True once the task fields have been searched for.
+     */
+    protected boolean _taskFieldsSearched;
+} // class PluginProfiler
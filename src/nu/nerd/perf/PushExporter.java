@@ -0,0 +1,548 @@
+package nu.nerd.perf;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// ----------------------------------------------------------------------------
+/**
+ * Periodically pushes the latest metrics to a StatsD, Graphite or InfluxDB
+ * line protocol sink, as configured by the push.* settings.
+ *
+ * Metrics are requested through {@link NerdPerf#requestMetrics()}, so pushes
+ * share scans with queries and the history, and all encoding and I/O is done
+ * by a dedicated background thread. If the sink is down, the main thread is
+ * unaffected: failed pushes are dropped, logged once per outage, and the
+ * connection is retried on the next push.
+ *
+ * StatsD gauges are sent over UDP, batched into as few datagrams of at most
+ * push.max-packet-bytes as possible. Lines are only split across datagrams
+ * if they are longer than a datagram. Graphite plaintext and InfluxDB line
+ * protocol are sent over a TCP connection that is kept open between pushes.
+ *
+ * Each instance exports with the configuration current when it was
+ * constructed; reconfiguring replaces the instance.
+ */
+public class PushExporter {
+    // ------------------------------------------------------------------------
+    /**
+     * Push protocol name of StatsD.
+     */
+    public static final String STATSD = "statsd";
+
+    /**
+     * Push protocol name of Graphite plaintext.
+     */
+    public static final String GRAPHITE = "graphite";
+
+    /**
+     * Push protocol name of InfluxDB line protocol.
+     */
+    public static final String INFLUX = "influx";
+
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * Captures the current push configuration.
+     */
+    public PushExporter() {
+        _protocol = NerdPerf.CONFIG.PUSH_PROTOCOL;
+        _host = NerdPerf.CONFIG.PUSH_HOST;
+        _port = NerdPerf.CONFIG.PUSH_PORT;
+        _intervalSeconds = NerdPerf.CONFIG.PUSH_INTERVAL_SECONDS;
+        _prefix = NerdPerf.CONFIG.PUSH_PREFIX;
+        _maxPacketBytes = NerdPerf.CONFIG.PUSH_MAX_PACKET_BYTES;
+        _executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "NerdPerf Push Exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start pushing metrics at the configured interval.
+     */
+    public void start() {
+        _executor.scheduleWithFixedDelay(this::push, _intervalSeconds, _intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop pushing metrics, interrupting any push in progress, and close the
+     * connection to the sink.
+     */
+    public void shutdown() {
+        _executor.shutdownNow();
+        try {
+            _executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+        }
+        close();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Request metrics and hand them to the exporter thread to be sent when
+     * they are available.
+     *
+     * This method runs in the exporter thread.
+     */
+    protected void push() {
+        if (_pending) {
+            return;
+        }
+        _pending = true;
+
+        NerdPerf.PLUGIN.requestMetrics().whenComplete((metrics, ex) -> {
+            try {
+                _executor.execute(() -> {
+                    _pending = false;
+                    if (metrics != null) {
+                        try {
+                            send(metrics);
+                        } finally {
+                            metrics.release();
+                        }
+                    } else if (NerdPerf.CONFIG.DEBUG_OVERHEAD) {
+                        getLogger().info("Push skipped: " + ex);
+                    }
+                });
+            } catch (RejectedExecutionException rejected) {
+                // Shut down while the metrics were being computed.
+                if (metrics != null) {
+                    metrics.release();
+                }
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode metrics and send them to the sink.
+     *
+     * This method runs in the exporter thread.
+     *
+     * @param metrics the metrics.
+     */
+    protected void send(MetricsSnapshot metrics) {
+        long start = System.nanoTime();
+        _timeMillis = System.currentTimeMillis();
+        _text.clear();
+        encode(metrics);
+        NerdPerf.OVERHEAD.recordSerialized(_text.size());
+        transmit();
+
+        if (NerdPerf.CONFIG.DEBUG_OVERHEAD) {
+            double elapsedMillis = 1e-6 * (System.nanoTime() - start);
+            getLogger().info("Pushed " + _text.size() + " bytes in " + elapsedMillis + " ms.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Send the state of an alert rule to the sink, as an "alert" metric with
+     * the value 1 when the rule fires and 0 when it resolves.
+     *
+     * This method can be called from any thread; the alert is sent by the
+     * exporter thread.
+     *
+     * @param rule the name of the rule.
+     * @param firing true if the rule fired, false if it resolved.
+     */
+    public void alert(String rule, boolean firing) {
+        try {
+            _executor.execute(() -> {
+                _timeMillis = System.currentTimeMillis();
+                _text.clear();
+                line("alert", "rule", rule, null, firing ? 1 : 0);
+                transmit();
+            });
+        } catch (RejectedExecutionException ex) {
+            // Shut down.
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Send the encoded text to the sink, logging the first failure of an
+     * outage and the recovery from it.
+     *
+     * This method runs in the exporter thread.
+     */
+    protected void transmit() {
+        try {
+            if (_protocol.equals(STATSD)) {
+                sendDatagrams();
+            } else {
+                sendStream();
+            }
+            if (_failing) {
+                _failing = false;
+                getLogger().info("Push exporter: sending to " + _host + ":" + _port + " again.");
+            }
+        } catch (IOException | RuntimeException ex) {
+            // The connection is reopened on the next push.
+            close();
+            if (!_failing) {
+                _failing = true;
+                getLogger().warning("Push exporter: unable to send to " + _host + ":" + _port + ": " + ex);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Send the encoded metrics as StatsD datagrams, each holding as many
+     * whole lines as fit in the configured packet size.
+     *
+     * A line longer than the packet size is split.
+     */
+    protected void sendDatagrams() throws IOException {
+        if (_datagram == null) {
+            DatagramChannel datagram = DatagramChannel.open();
+            try {
+                datagram.connect(new InetSocketAddress(_host, _port));
+            } catch (IOException | RuntimeException ex) {
+                // An unresolved host throws UnresolvedAddressException.
+                datagram.close();
+                throw (ex instanceof IOException) ? (IOException) ex : new IOException(ex);
+            }
+            _datagram = datagram;
+        }
+
+        int size = _text.size();
+        for (int start = 0; start < size;) {
+            int end = Math.min(size, start + _maxPacketBytes);
+            if (end < size) {
+                int newline = _text.lastIndexOf('\n', start, end);
+                if (newline >= start) {
+                    end = newline + 1;
+                }
+            }
+            _datagram.write(_text.wrap(start, end));
+            start = end;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Send the encoded metrics over the TCP connection to the sink, connecting
+     * first if necessary.
+     */
+    protected void sendStream() throws IOException {
+        if (_socket == null) {
+            SocketChannel socket = SocketChannel.open();
+            try {
+                socket.socket().connect(new InetSocketAddress(_host, _port), CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException | RuntimeException ex) {
+                socket.close();
+                throw (ex instanceof IOException) ? (IOException) ex : new IOException(ex);
+            }
+            _socket = socket;
+        }
+
+        ByteBuffer out = _text.wrap(0, _text.size());
+        while (out.hasRemaining()) {
+            _socket.write(out);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Close the connection to the sink, if open.
+     */
+    protected void close() {
+        try {
+            if (_datagram != null) {
+                _datagram.close();
+            }
+        } catch (IOException ex) {
+        }
+        try {
+            if (_socket != null) {
+                _socket.close();
+            }
+        } catch (IOException ex) {
+        }
+        _datagram = null;
+        _socket = null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Encode metrics as lines in the configured protocol.
+     *
+     * Hotspots are omitted.
+     *
+     * @param metrics the metrics.
+     */
+    protected void encode(MetricsSnapshot metrics) {
+        line("players", null, null, null, metrics.players);
+        line("tps", null, null, null, metrics.tps);
+        for (int i = 0; i < metrics.tick.length; ++i) {
+            TPSTask.Stats stats = metrics.tick[i];
+            String window = TPSTask.WINDOW_NAMES[i];
+            line("tick_tps", "window", window, null, stats.tps);
+            line("tick_mean_ms", "window", window, null, stats.meanMillis);
+            line("tick_p95_ms", "window", window, null, stats.p95Millis);
+            line("tick_p99_ms", "window", window, null, stats.p99Millis);
+            line("tick_max_ms", "window", window, null, stats.maxMillis);
+        }
+        line("memory_used_mb", null, null, null, metrics.memoryUsed);
+        line("memory_max_mb", null, null, null, metrics.memoryMax);
+        line("allocation_bytes_per_second", null, null, null, metrics.gc.allocationRate);
+        for (int i = 0; i < metrics.gc.collectorNames.length; ++i) {
+            String collector = metrics.gc.collectorNames[i];
+            line("gc_collections", "collector", collector, null, metrics.gc.collections[i]);
+            line("gc_time_ms", "collector", collector, null, metrics.gc.collectionMillis[i]);
+        }
+
+        if (metrics.plugins != null) {
+            for (int i = 0; i < metrics.plugins.size(); ++i) {
+                line("plugin_tick_ms", "plugin", metrics.plugins.names[i], null, metrics.plugins.millisPerTick(i));
+            }
+        }
+        for (int i = 0; i < metrics.getCollectedCount(); ++i) {
+            line(metrics.getCollected(i).qualifiedName, null, null, null, metrics.collectedValues[i]);
+        }
+
+        line("overhead_time_limit_ms", null, null, null, metrics.overhead.timeLimitMillis);
+        overhead("overhead_slice_ms", metrics.overhead.sliceMillis);
+        overhead("overhead_scan_slices", metrics.overhead.scanSlices);
+        overhead("overhead_scan_ms", metrics.overhead.scanMillis);
+        overhead("overhead_queue_wait_ms", metrics.overhead.queueWaitMillis);
+        overhead("overhead_serialized_bytes", metrics.overhead.serializedBytes);
+
+        for (int w = 0; w < metrics.getWorldCount(); ++w) {
+            MetricsSnapshot.WorldMetrics world = metrics.getWorld(w);
+            line("view_distance", null, null, world.name, world.viewDistance);
+            line("chunks", null, null, world.name, world.chunks);
+            line("chunk_events_per_second", "event", "load", world.name, world.chunkLoadsPerSecond);
+            line("chunk_events_per_second", "event", "unload", world.name, world.chunkUnloadsPerSecond);
+            line("chunk_events_per_second", "event", "generate", world.name, world.chunkGenerationsPerSecond);
+            for (int i = 0; i < world.entities.length; ++i) {
+                line("entities", "entity_type", MetricsSnapshot.ENTITY_TYPE_NAMES[i], world.name, world.entities[i]);
+            }
+            for (int i = 0; i < world.tileEntities.length; ++i) {
+                line("tile_entities", "tile_entity_type", metrics.tileEntityTypeNames[i], world.name,
+                     world.tileEntities[i]);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append lines for statistics of NerdPerf's overhead, with a "stat"
+     * label.
+     *
+     * @param name the metric name.
+     * @param summary the statistics.
+     */
+    protected void overhead(String name, OverheadMonitor.Summary summary) {
+        line(name, "stat", "mean", null, summary.mean);
+        line(name, "stat", "p95", null, summary.p95);
+        line(name, "stat", "p99", null, summary.p99);
+        line(name, "stat", "max", null, summary.max);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append one metric value as a line in the configured protocol.
+     *
+     * In StatsD and Graphite, the world and label value become components of
+     * the dotted metric path: prefix.world.name.label. In InfluxDB line
+     * protocol, the name becomes the measurement and the world and label
+     * become tags.
+     *
+     * @param name the metric name.
+     * @param labelName the name of the label distinguishing values of the
+     *        metric, or null.
+     * @param labelValue the value of the label, or null.
+     * @param world the world name, or null if the metric is not per-world.
+     * @param value the value; non-finite values are omitted.
+     */
+    protected void line(String name, String labelName, String labelValue, String world, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+
+        if (_protocol.equals(INFLUX)) {
+            if (!_prefix.isEmpty()) {
+                appendEscaped(_prefix).append('_');
+            }
+            appendEscaped(name);
+            if (world != null) {
+                _text.append(",world=");
+                appendEscaped(world);
+            }
+            if (labelName != null) {
+                _text.append(',').append(labelName).append('=');
+                appendEscaped(labelValue);
+            }
+            _text.append(" value=").append(value).append(' ').append(_timeMillis * 1_000_000L).append('\n');
+        } else if (_protocol.equals(GRAPHITE)) {
+            appendPath(name, labelValue, world);
+            _text.append(' ').append(value).append(' ').append(_timeMillis / 1000).append('\n');
+        } else {
+            // A negative StatsD gauge value is a decrement, so set 0 first.
+            if (value < 0) {
+                appendPath(name, labelValue, world);
+                _text.append(":0|g\n");
+            }
+            appendPath(name, labelValue, world);
+            _text.append(':').append(value).append("|g\n");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a dotted StatsD or Graphite metric path.
+     *
+     * @param name the metric name.
+     * @param labelValue the label value, or null.
+     * @param world the world name, or null.
+     */
+    protected void appendPath(String name, String labelValue, String world) {
+        if (!_prefix.isEmpty()) {
+            appendComponent(_prefix);
+            _text.append('.');
+        }
+        if (world != null) {
+            appendComponent(world);
+            _text.append('.');
+        }
+        appendComponent(name);
+        if (labelValue != null) {
+            _text.append('.');
+            appendComponent(labelValue);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append one component of a dotted metric path, replacing characters
+     * other than ASCII letters, digits, '-' and '_' with '_'.
+     *
+     * @param component the component.
+     */
+    protected void appendComponent(String component) {
+        for (int i = 0; i < component.length(); ++i) {
+            char c = component.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                            c == '-' || c == '_';
+            _text.append(valid ? c : '_');
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a measurement name or tag value in InfluxDB line protocol,
+     * escaping commas, equals signs and spaces.
+     *
+     * @param value the value.
+     * @return the text buffer.
+     */
+    protected TextBuffer appendEscaped(String value) {
+        int start = 0;
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '=' || c == ' ') {
+                _text.append(value, start, i).append('\\').append(c);
+                start = i + 1;
+            }
+        }
+        return _text.append(value, start, value.length());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the plugin's Logger.
+     *
+     * @return the plugin's Logger.
+     */
+    protected Logger getLogger() {
+        return NerdPerf.PLUGIN.getLogger();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Maximum time to wait for a TCP connection to the sink, in milliseconds.
+     */
+    protected static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The protocol: {@link #STATSD}, {@link #GRAPHITE} or {@link #INFLUX}.
+     */
+    protected final String _protocol;
+
+    /**
+     * The sink's host name or address.
+     */
+    protected final String _host;
+
+    /**
+     * The sink's port.
+     */
+    protected final int _port;
+
+    /**
+     * Interval between pushes, in seconds.
+     */
+    protected final int _intervalSeconds;
+
+    /**
+     * Prefix of metric paths and measurement names; may be empty.
+     */
+    protected final String _prefix;
+
+    /**
+     * Maximum size of a StatsD datagram, in bytes.
+     */
+    protected final int _maxPacketBytes;
+
+    /**
+     * The exporter thread, which requests, encodes and sends metrics.
+     */
+    protected final ScheduledThreadPoolExecutor _executor;
+
+    /**
+     * Buffer that metrics are encoded into; only accessed in the exporter
+     * thread.
+     */
+    protected final TextBuffer _text = new TextBuffer(65536);
+
+    /**
+     * Time of the metrics being encoded, in milliseconds since the epoch.
+     */
+    protected long _timeMillis;
+
+    /**
+     * True while a request for metrics is outstanding; only accessed in the
+     * exporter thread.
+     */
+    protected boolean _pending;
+
+    /**
+     * True if the most recent push failed; only accessed in the exporter
+     * thread.
+     */
+    protected boolean _failing;
+
+    /**
+     * The StatsD channel, or null if not open.
+     */
+    protected DatagramChannel _datagram;
+
+    /**
+     * The Graphite or InfluxDB connection, or null if not connected.
+     */
+    protected SocketChannel _socket;
+} // class PushExporter
@@ -1,26 +1,71 @@
 package nu.nerd.perf;
 
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
 import org.bukkit.Bukkit;
-import org.json.simple.JSONObject;
 
 // ----------------------------------------------------------------------------
 /**
  * TCP server that accepts query clients.
+ *
+ * All clients are handled by a single thread using non-blocking I/O. Each
+ * client makes its own request for metrics, but clients that connect while
+ * metrics are being computed are attached to the same scan by the
+ * {@link MetricsCache}, and its result is encoded once and then sent to each
+ * of them.
+ *
+ * On the main port, the client connects, the server sends the metrics as a
+ * JSON object and then closes the connection. The client may first send a
+ * line of comma-separated paths to select the metrics it wants (see
+ * {@link MetricsSelection}); a client that sends nothing for
+ * {@link Configuration#QUERY_REQUEST_WAIT_MILLIS}, or closes its output, is
+ * sent all metrics, as in earlier versions. Anything sent after the first
+ * line is ignored.
+ *
+ * If an HTTP port is configured, the same thread also serves a minimal subset
+ * of HTTP/1.1 on it: a GET request for /metrics is answered with the metrics in
+ * OpenMetrics text format, limited to the paths in the optional "select"
+ * parameter, a GET request for /history with the sampled
+ * {@link MetricsHistory} as JSON, a GET request for /journal with records
+ * from the {@link MetricsJournal} as JSON, and a GET request for /spikes with
+ * the {@link SpikeSampler}'s captures as folded stacks, after which the
+ * connection is closed. Other requests receive an error status.
  */
 public class QueryServer extends Thread {
     // ------------------------------------------------------------------------
     /**
-     * To the configured listening address and port.
+     * Constructor.
+     */
+    public QueryServer() {
+        super("NerdPerf Query Server");
+        setDaemon(true);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Bind to the configured listening address and port, and to the HTTP
+     * port if one is configured.
      */
     public void bind() throws UnknownHostException, IOException {
         close();
@@ -31,12 +76,28 @@ public class QueryServer extends Thread {
             getLogger().severe("Unknown host: " + NerdPerf.CONFIG.BIND_ADDRESS + "; defaulting to localhost.");
             address = InetAddress.getLocalHost();
         }
-        _listener = new ServerSocket(NerdPerf.CONFIG.BIND_PORT, 1, address);
+
+        _selector = Selector.open();
+        _listener = ServerSocketChannel.open();
+        _listener.configureBlocking(false);
+        _listener.bind(new InetSocketAddress(address, NerdPerf.CONFIG.BIND_PORT), NerdPerf.CONFIG.QUERY_MAX_CLIENTS);
+        _listener.register(_selector, SelectionKey.OP_ACCEPT);
+
+        if (NerdPerf.CONFIG.HTTP_PORT > 0) {
+            _httpListener = ServerSocketChannel.open();
+            _httpListener.configureBlocking(false);
+            _httpListener.bind(new InetSocketAddress(address, NerdPerf.CONFIG.HTTP_PORT),
+                               NerdPerf.CONFIG.QUERY_MAX_CLIENTS);
+            _httpListener.register(_selector, SelectionKey.OP_ACCEPT);
+        }
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Close the server socket to stop accepting further clients.
+     * Close the server sockets to stop accepting further clients.
+     *
+     * Clients that are still connected will be disconnected by the server
+     * thread when it stops.
      */
     public void close() {
         try {
@@ -45,6 +106,18 @@ public class QueryServer extends Thread {
             }
         } catch (IOException ex) {
         }
+        try {
+            if (_httpListener != null) {
+                _httpListener.close();
+            }
+        } catch (IOException ex) {
+        }
+        try {
+            if (_selector != null) {
+                _selector.close();
+            }
+        } catch (IOException ex) {
+        }
     }
 
     // ------------------------------------------------------------------------
@@ -53,36 +126,598 @@ public class QueryServer extends Thread {
      */
     @Override
     public void run() {
-        while (!_listener.isClosed()) {
-            try (
-            Socket client = _listener.accept();
-            Writer writer = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()));) {
-                if (NerdPerf.CONFIG.DEBUG_QUERIES) {
-                    getLogger().info("Accepted client: " + client.getInetAddress() + ":" + client.getPort());
-                }
+        try {
+            while (_selector.isOpen()) {
+                _selector.select(getSelectTimeout());
 
-                Bukkit.getScheduler().scheduleSyncDelayedTask(NerdPerf.PLUGIN, () -> NerdPerf.PLUGIN.requestMetrics());
-                JSONObject results = NerdPerf.PLUGIN.awaitMetrics();
-                if (results == null) {
-                    getLogger().info("Query server stopping.");
-                } else {
-                    results.writeJSONString(writer);
+                Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                    } else {
+                        Client client = (Client) key.attachment();
+                        if (key.isReadable()) {
+                            if (client._http) {
+                                readRequest(client);
+                            } else if (client._future == null && client._output == null) {
+                                readSelection(client);
+                            } else {
+                                client.read();
+                            }
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.write();
+                        }
+                    }
                 }
-                writer.close();
+
+                deliverResults();
+                deliverResponses();
+                expireClients();
+            }
+        } catch (ClosedSelectorException ex) {
+            // Closed by close().
+        } catch (IOException ex) {
+            getLogger().severe("Query server: " + ex.getMessage());
+        } finally {
+            for (Client client : _clients) {
                 client.close();
+            }
+            _clients.clear();
+            _stopped = true;
+            releaseCompleted();
+            getLogger().info("Query server stopping.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Accept a new client.
+     *
+     * Clients of the main port are given a short time to select metrics,
+     * unless that is disabled, in which case all metrics are requested
+     * immediately. HTTP clients must first send a request.
+     *
+     * @param listener the server socket channel with a pending connection.
+     */
+    protected void accept(ServerSocketChannel listener) throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) {
+            return;
+        }
+
+        if (_clients.size() >= NerdPerf.CONFIG.QUERY_MAX_CLIENTS) {
+            if (NerdPerf.CONFIG.DEBUG_QUERIES) {
+                getLogger().info("Rejected client (too many clients): " + channel.getRemoteAddress());
+            }
+            channel.close();
+            return;
+        }
+
+        if (NerdPerf.CONFIG.DEBUG_QUERIES) {
+            getLogger().info("Accepted client: " + channel.getRemoteAddress());
+        }
+
+        channel.configureBlocking(false);
+        Client client = new Client(channel, listener == _httpListener);
+        client._key = channel.register(_selector, SelectionKey.OP_READ, client);
+        _clients.add(client);
+
+        if (client._http) {
+            client._deadline = System.nanoTime() + NerdPerf.CONFIG.QUERY_TIMEOUT_MILLIS * 1_000_000L;
+        } else if (NerdPerf.CONFIG.QUERY_REQUEST_WAIT_MILLIS > 0) {
+            client._deadline = System.nanoTime() + NerdPerf.CONFIG.QUERY_REQUEST_WAIT_MILLIS * 1_000_000L;
+        } else {
+            requestMetrics(client, MetricsSelection.ALL);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read the line selecting metrics from a client of the main port and,
+     * once it is complete, request the selected metrics on the client's
+     * behalf or respond with a JSON error object.
+     *
+     * If the client closes its output first, whatever it sent is taken to be
+     * the line, so a client that sends nothing is sent all metrics.
+     *
+     * @param client the client of the main port.
+     */
+    protected void readSelection(Client client) {
+        int bytesRead;
+        try {
+            bytesRead = client._channel.read(client._input);
+        } catch (IOException ex) {
+            client.close();
+            return;
+        }
+
+        String line = client.getLine(bytesRead < 0);
+        if (line == null) {
+            if (!client._input.hasRemaining()) {
+                client._key.interestOps(client._key.interestOps() & ~SelectionKey.OP_READ);
+                respondError(client, "request too long");
+            }
+            return;
+        }
+
+        if (bytesRead < 0) {
+            client._key.interestOps(client._key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        if (NerdPerf.CONFIG.DEBUG_QUERIES) {
+            getLogger().info("Selection from " + client.getAddress() + ": " + line);
+        }
+        try {
+            requestMetrics(client, MetricsSelection.parse(line));
+        } catch (IllegalArgumentException ex) {
+            respondError(client, ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Respond to a client of the main port with a JSON object describing an
+     * error.
+     *
+     * @param client the client.
+     * @param message the error message.
+     */
+    protected void respondError(Client client, String message) {
+        _text.clear();
+        _json.reset();
+        _json.beginObject();
+        _json.key("error").value(message);
+        _json.endObject();
+        respond(client, _text.toByteBuffer());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Read an HTTP client's request and, once it is complete, either request
+     * metrics on the client's behalf or respond with an error.
+     *
+     * @param client the HTTP client.
+     */
+    protected void readRequest(Client client) {
+        int bytesRead;
+        try {
+            bytesRead = client._channel.read(client._input);
+        } catch (IOException ex) {
+            client.close();
+            return;
+        }
+
+        String requestLine = client.getRequestLine();
+        if (requestLine == null) {
+            if (bytesRead < 0) {
+                client.close();
+            } else if (!client._input.hasRemaining()) {
+                client._key.interestOps(client._key.interestOps() & ~SelectionKey.OP_READ);
+                respond(client, httpResponse("431 Request Header Fields Too Large"));
+            }
+            return;
+        }
+
+        client._key.interestOps(client._key.interestOps() & ~SelectionKey.OP_READ);
+        if (NerdPerf.CONFIG.DEBUG_QUERIES) {
+            getLogger().info("HTTP request from " + client.getAddress() + ": " + requestLine);
+        }
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+            respond(client, httpResponse("400 Bad Request"));
+            return;
+        }
+        if (!parts[0].equals("GET")) {
+            respond(client, httpResponse("405 Method Not Allowed"));
+            return;
+        }
+        int query = parts[1].indexOf('?');
+        String path = (query < 0) ? parts[1] : parts[1].substring(0, query);
+        Map<String, String> params;
+        try {
+            params = parseQuery((query < 0) ? "" : parts[1].substring(query + 1));
+        } catch (IllegalArgumentException ex) {
+            respond(client, httpResponse("400 Bad Request"));
+            return;
+        }
+
+        if (path.equals("/metrics")) {
+            try {
+                requestMetrics(client, MetricsSelection.parse(params.get("select")));
+            } catch (IllegalArgumentException ex) {
+                respond(client, httpResponse("400 Bad Request"));
+            }
+        } else if (path.equals("/history")) {
+            respondHistory(client, params);
+        } else if (path.equals("/journal")) {
+            respondJournal(client, params);
+        } else if (path.equals("/spikes")) {
+            respondSpikes(client, params);
+        } else {
+            respond(client, httpResponse("404 Not Found"));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Respond to an HTTP request for the history of sampled metrics.
+     *
+     * The optional "minutes" parameter limits the response to samples
+     * recorded in that many preceding minutes, and the optional "world"
+     * parameter limits per-world samples to the named world.
+     *
+     * @param client the client.
+     * @param params the query parameters.
+     */
+    protected void respondHistory(Client client, Map<String, String> params) {
+        long since = Long.MIN_VALUE;
+        String minutes = params.get("minutes");
+        if (minutes != null) {
+            try {
+                since = minutesAgo(Long.parseLong(minutes));
+            } catch (NumberFormatException ex) {
+                respond(client, httpResponse("400 Bad Request"));
+                return;
+            }
+        }
+
+        _text.clear();
+        _json.reset();
+        NerdPerf.PLUGIN.getHistory().writeJSON(_json, since, params.get("world"));
+        respond(client, httpResponse("200 OK", JSON_CONTENT_TYPE, _text));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Respond to an HTTP request for records from the on-disk journal.
+     *
+     * The optional "minutes" parameter (default 60) limits the response to
+     * records of that many preceding minutes.
+     *
+     * Reading the journal files can take a while, so the response is built
+     * asynchronously and handed back to the server thread for delivery,
+     * rather than delaying every other client.
+     *
+     * @param client the client.
+     * @param params the query parameters.
+     */
+    protected void respondJournal(Client client, Map<String, String> params) {
+        long minutes = 60;
+        try {
+            if (params.containsKey("minutes")) {
+                minutes = Long.parseLong(params.get("minutes"));
+            }
+        } catch (NumberFormatException ex) {
+            respond(client, httpResponse("400 Bad Request"));
+            return;
+        }
+
+        long since = minutesAgo(minutes);
+        List<File> files = NerdPerf.PLUGIN.getJournal().getFiles();
+        Bukkit.getScheduler().runTaskAsynchronously(NerdPerf.PLUGIN, () -> {
+            TextBuffer text = new TextBuffer(65536);
+            JSONWriter json = new JSONWriter(text);
+            json.beginObject();
+            json.key("samples").beginArray();
+            for (File file : files) {
+                try {
+                    new JournalReader(file).writeJSON(json, since);
+                } catch (IOException ex) {
+                    getLogger().warning("Journal: " + ex.getMessage());
+                }
+            }
+            json.endArray();
+            json.endObject();
+            client._response = httpResponse("200 OK", JSON_CONTENT_TYPE, text);
+            _responded.add(client);
+            _selector.wakeup();
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Respond to an HTTP request for the stack samples of recent lag spikes
+     * as folded stacks, which can be rendered by flame graph tools.
+     *
+     * The optional "capture" parameter selects one capture, where 0 is the
+     * most recent; otherwise all retained captures are returned, each under a
+     * root frame naming the spike.
+     *
+     * @param client the client.
+     * @param params the query parameters.
+     */
+    protected void respondSpikes(Client client, Map<String, String> params) {
+        int index = -1;
+        try {
+            if (params.containsKey("capture")) {
+                index = Math.max(0, Integer.parseInt(params.get("capture")));
+            }
+        } catch (NumberFormatException ex) {
+            respond(client, httpResponse("400 Bad Request"));
+            return;
+        }
+
+        _text.clear();
+        if (NerdPerf.PLUGIN.getSpikeSampler().writeFolded(_text, index)) {
+            respond(client, httpResponse("200 OK", TEXT_CONTENT_TYPE, _text));
+        } else {
+            respond(client, httpResponse("404 Not Found"));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parse the query string of a URL into a map from parameter name to
+     * value.
+     *
+     * @param query the query string, without the leading '?'.
+     * @return the decoded parameters; if a parameter is repeated, the last
+     *         value is used.
+     * @throws IllegalArgumentException if the query string is malformed.
+     */
+    protected static Map<String, String> parseQuery(String query) {
+        HashMap<String, String> params = new HashMap<String, String>();
+        for (String param : query.split("&")) {
+            if (param.isEmpty()) {
+                continue;
+            }
+            int equals = param.indexOf('=');
+            String name = (equals < 0) ? param : param.substring(0, equals);
+            String value = (equals < 0) ? "" : param.substring(equals + 1);
+            try {
+                params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException ex) {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+        return params;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time a number of minutes before now.
+     *
+     * @param minutes the number of minutes, which is clamped so that the
+     *        result is no earlier than the epoch.
+     * @return the time in milliseconds since the epoch.
+     */
+    protected static long minutesAgo(long minutes) {
+        long now = System.currentTimeMillis();
+        return now - Math.min(Math.max(0, minutes), now / 60_000L) * 60_000L;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Request metrics on behalf of a client and hand the client to the server
+     * thread for delivery when the request completes.
+     *
+     * @param client the client.
+     * @param selection the metrics selected by the client.
+     */
+    protected void requestMetrics(Client client, MetricsSelection selection) {
+        client._selection = selection;
+        client._future = NerdPerf.PLUGIN.requestMetrics(selection);
+        client._future.whenComplete((metrics, ex) -> {
+            _completed.add(client);
+            if (_stopped) {
+                releaseCompleted();
+            } else {
+                _selector.wakeup();
+            }
+        });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Release the metrics of clients whose requests completed after the
+     * server thread stopped delivering them.
+     *
+     * This is called by the server thread when it stops, and by any request
+     * that completes after that, so that no snapshot is left in the queue
+     * without being returned to the pool.
+     */
+    protected void releaseCompleted() {
+        for (Client client; (client = _completed.poll()) != null;) {
+            MetricsSnapshot metrics = client._future.isCompletedExceptionally() ? null : client._future.getNow(null);
+            if (metrics != null) {
+                metrics.release();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin sending metrics to clients whose requests have completed, or
+     * disconnect them if their requests failed or timed out. HTTP clients
+     * are sent an error status instead of being disconnected.
+     *
+     * Metrics are encoded once per format and selection, no matter how many
+     * clients they are sent to.
+     */
+    protected void deliverResults() {
+        for (Client client; (client = _completed.poll()) != null;) {
+            MetricsSnapshot metrics = client._future.isCompletedExceptionally() ? null : client._future.getNow(null);
+            if (!client._channel.isOpen()) {
+                if (metrics != null) {
+                    metrics.release();
+                }
+                continue;
+            }
+
+            if (metrics == null) {
                 if (NerdPerf.CONFIG.DEBUG_QUERIES) {
-                    getLogger().info("Results sent.");
+                    getLogger().info("Metrics not available for " + client.getAddress() + ".");
                 }
-            } catch (IOException ex) {
-                if (_listener != null && _listener.isClosed()) {
-                    getLogger().info("Query server stopping.");
+                if (client._http) {
+                    respond(client, httpResponse("503 Service Unavailable"));
                 } else {
-                    getLogger().severe("Query server: " + ex.getMessage());
+                    client.close();
+                }
+                continue;
+            }
+
+            if (metrics.getSequence() != _encodedSequence) {
+                _encodedSequence = metrics.getSequence();
+                _encoded = null;
+                _encodedHttp = null;
+            }
+            if (client._http) {
+                if (_encodedHttp == null || !client._selection.equals(_encodedHttpSelection)) {
+                    _text.clear();
+                    OpenMetricsFormat.write(metrics, client._selection, _text);
+                    _encodedHttp = httpResponse("200 OK", OpenMetricsFormat.CONTENT_TYPE, _text);
+                    _encodedHttpSelection = client._selection;
+                    NerdPerf.OVERHEAD.recordSerialized(_encodedHttp.remaining());
                 }
+                respond(client, _encodedHttp.duplicate());
+            } else {
+                if (_encoded == null || !client._selection.equals(_encodedSelection)) {
+                    _text.clear();
+                    _json.reset();
+                    metrics.writeJSON(_json, client._selection);
+                    _encoded = _text.toByteBuffer();
+                    _encodedSelection = client._selection;
+                    NerdPerf.OVERHEAD.recordSerialized(_encoded.remaining());
+                }
+                respond(client, _encoded.duplicate());
+            }
+            metrics.release();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Begin sending responses that were built asynchronously to their
+     * clients, unless they have since disconnected or timed out.
+     */
+    protected void deliverResponses() {
+        for (Client client; (client = _responded.poll()) != null;) {
+            if (client._channel.isOpen()) {
+                respond(client, client._response);
             }
+            client._response = null;
         }
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Begin sending output to a client, which will be disconnected once it
+     * has all been sent.
+     *
+     * @param client the client.
+     * @param output the output.
+     */
+    protected void respond(Client client, ByteBuffer output) {
+        client._output = output;
+        client._deadline = System.nanoTime() + NerdPerf.CONFIG.QUERY_WRITE_TIMEOUT_MILLIS * 1_000_000L;
+        client._key.interestOps(client._key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an HTTP response with a plain text body that repeats the status.
+     *
+     * @param status the status code and reason phrase.
+     * @return the encoded response.
+     */
+    protected static ByteBuffer httpResponse(String status) {
+        byte[] body = (status + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] header = httpHeader(status, "text/plain; charset=utf-8", body.length);
+        ByteBuffer response = ByteBuffer.allocate(header.length + body.length);
+        response.put(header).put(body);
+        response.flip();
+        return response;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return an HTTP response that closes the connection.
+     *
+     * @param status the status code and reason phrase.
+     * @param contentType the Content-Type of the body.
+     * @param body the body.
+     * @return the encoded response.
+     */
+    protected static ByteBuffer httpResponse(String status, String contentType, TextBuffer body) {
+        byte[] header = httpHeader(status, contentType, body.size());
+        ByteBuffer response = ByteBuffer.allocate(header.length + body.size());
+        response.put(header);
+        body.writeTo(response);
+        response.flip();
+        return response;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the header of an HTTP response that closes the connection.
+     *
+     * @param status the status code and reason phrase.
+     * @param contentType the Content-Type of the body.
+     * @param contentLength the length of the body in bytes.
+     * @return the encoded header, including the blank line that ends it.
+     */
+    protected static byte[] httpHeader(String status, String contentType, int contentLength) {
+        return ("HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + contentLength + "\r\n" +
+                "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Disconnect clients whose output has not been sent within the configured
+     * time limit.
+     *
+     * Also disconnect HTTP clients that have not sent a complete request
+     * within the query time limit, request all metrics for clients of the
+     * main port that have not selected any in time, and forget clients that
+     * have disconnected. Clients waiting for metrics are disconnected when
+     * their request times out.
+     */
+    protected void expireClients() {
+        long now = System.nanoTime();
+        Iterator<Client> it = _clients.iterator();
+        while (it.hasNext()) {
+            Client client = it.next();
+            if (!client._channel.isOpen()) {
+                it.remove();
+            } else if (client.isSelecting() && now - client._deadline > 0) {
+                requestMetrics(client, MetricsSelection.ALL);
+            } else if ((client._output != null || client._future == null) && now - client._deadline > 0) {
+                if (NerdPerf.CONFIG.DEBUG_QUERIES) {
+                    getLogger().info("Client timed out: " + client.getAddress());
+                }
+                client.close();
+                it.remove();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time to block in select(), in milliseconds, so that clients
+     * of the main port that have not selected metrics are sent them promptly.
+     *
+     * @return the time to block in select(), in milliseconds.
+     */
+    protected long getSelectTimeout() {
+        long now = System.nanoTime();
+        long timeout = SELECT_TIMEOUT_MILLIS;
+        for (Client client : _clients) {
+            if (client.isSelecting()) {
+                timeout = Math.min(timeout, Math.max(1, (client._deadline - now) / 1_000_000L + 1));
+            }
+        }
+        return timeout;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Return the plugin's Logger.
@@ -95,7 +730,294 @@ public class QueryServer extends Thread {
 
     // ------------------------------------------------------------------------
     /**
-     * The server socket.
+     * The state of one connected client.
+     */
+    protected static class Client {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param channel the client's socket channel.
+         * @param http true if the client connected to the HTTP port.
+         */
+        Client(SocketChannel channel, boolean http) {
+            _channel = channel;
+            _http = http;
+            _input = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return true if this is a client of the main port that may still
+         * send a line selecting metrics.
+         *
+         * @return true if the client may still select metrics.
+         */
+        boolean isSelecting() {
+            return !_http && _future == null && _output == null;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Read and discard anything sent by the client after it has selected
+         * metrics.
+         *
+         * When the client shuts down its output, stop reading but continue to
+         * send it the metrics.
+         */
+        void read() {
+            _input.clear();
+            try {
+                if (_channel.read(_input) < 0) {
+                    _key.interestOps(_key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the first line sent by a client of the main port, if it has
+         * been received in full.
+         *
+         * @param ended true if the client has closed its output, in which
+         *        case everything received so far is the line.
+         * @return the line, without its terminator, or null if it is
+         *         incomplete.
+         */
+        String getLine(boolean ended) {
+            byte[] input = _input.array();
+            int length = _input.position();
+            int end = 0;
+            while (end < length && input[end] != '\r' && input[end] != '\n') {
+                ++end;
+            }
+            return (end < length || ended) ? new String(input, 0, end, StandardCharsets.UTF_8) : null;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the first line of an HTTP client's request, if the request
+         * headers have been received in full.
+         *
+         * @return the request line, or null if the headers are incomplete.
+         */
+        String getRequestLine() {
+            byte[] input = _input.array();
+            int length = _input.position();
+            for (int i = 0; i < length; ++i) {
+                if (input[i] == '\n' && ((i + 1 < length && input[i + 1] == '\n') ||
+                                         (i + 2 < length && input[i + 1] == '\r' && input[i + 2] == '\n'))) {
+                    int end = 0;
+                    while (end < length && input[end] != '\r' && input[end] != '\n') {
+                        ++end;
+                    }
+                    return new String(input, 0, end, StandardCharsets.US_ASCII);
+                }
+            }
+            return null;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Send as much of the output as the socket will accept and close the
+         * connection once it has all been sent.
+         */
+        void write() {
+            try {
+                _channel.write(_output);
+                if (!_output.hasRemaining()) {
+                    if (NerdPerf.CONFIG.DEBUG_QUERIES) {
+                        NerdPerf.PLUGIN.getLogger().info("Results sent to " + getAddress() + ".");
+                    }
+                    close();
+                }
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Close the connection and cancel the request for metrics, if it is
+         * still pending.
+         */
+        void close() {
+            if (_future != null) {
+                _future.cancel(false);
+            }
+            try {
+                _channel.close();
+            } catch (IOException ex) {
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the client's address, for logging.
+         *
+         * @return the client's address, for logging.
+         */
+        String getAddress() {
+            try {
+                return String.valueOf(_channel.getRemoteAddress());
+            } catch (IOException ex) {
+                return "(disconnected)";
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The client's socket channel.
+         */
+        final SocketChannel _channel;
+
+        /**
+         * True if the client connected to the HTTP port.
+         */
+        final boolean _http;
+
+        /**
+         * The selection key of the client's channel.
+         */
+        SelectionKey _key;
+
+        /**
+         * Buffer that client input is read into. For HTTP clients, it
+         * accumulates the request headers; otherwise, it accumulates the line
+         * selecting metrics, and later input is discarded.
+         */
+        final ByteBuffer _input;
+
+        /**
+         * The metrics selected by the client, once it has requested them.
+         */
+        MetricsSelection _selection;
+
+        /**
+         * The client's request for metrics.
+         */
+        CompletableFuture<MetricsSnapshot> _future;
+
+        /**
+         * Encoded metrics remaining to be sent, or null if the client is still
+         * waiting for metrics.
+         */
+        ByteBuffer _output;
+
+        /**
+         * A response built asynchronously, handed to the server thread to be
+         * sent as output.
+         */
+        ByteBuffer _response;
+
+        /**
+         * The System.nanoTime() value after which the client will be
+         * disconnected if its output has not been sent, or if it is an HTTP
+         * client that has not yet sent its request or been given its
+         * response; for a client of the main port that has not selected
+         * metrics, the time after which it is sent all metrics.
+         */
+        long _deadline;
+    } // class Client
+
+    // ------------------------------------------------------------------------
+    /**
+     * Maximum time to block in select(), in milliseconds, so that client
+     * timeouts are enforced promptly.
+     */
+    protected static final long SELECT_TIMEOUT_MILLIS = 250;
+
+    /**
+     * The HTTP Content-Type of JSON responses.
+     */
+    protected static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    /**
+     * The HTTP Content-Type of plain text responses.
+     */
+    protected static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+
+    /**
+     * Maximum size of an HTTP request's headers, or of the line selecting
+     * metrics on the main port, in bytes.
+     */
+    protected static final int MAX_REQUEST_BYTES = 4096;
+
+    /**
+     * The selector used to multiplex all socket channels.
+     */
+    protected Selector _selector;
+
+    /**
+     * The server socket channel.
+     */
+    protected ServerSocketChannel _listener;
+
+    /**
+     * The HTTP server socket channel, or null if HTTP is disabled.
+     */
+    protected ServerSocketChannel _httpListener;
+
+    /**
+     * Connected clients.
+     */
+    protected ArrayList<Client> _clients = new ArrayList<Client>();
+
+    /**
+     * Clients whose requests for metrics have completed, handed off for
+     * delivery by the server thread.
+     */
+    protected ConcurrentLinkedQueue<Client> _completed = new ConcurrentLinkedQueue<Client>();
+
+    /**
+     * True once the server thread has stopped; requests that complete after
+     * that release their metrics rather than queue them for delivery.
+     */
+    protected volatile boolean _stopped;
+
+    /**
+     * Clients whose responses have been built asynchronously, handed off for
+     * delivery by the server thread.
+     */
+    protected ConcurrentLinkedQueue<Client> _responded = new ConcurrentLinkedQueue<Client>();
+
+    /**
+     * The sequence number of the metrics most recently encoded.
+     */
+    protected long _encodedSequence = -1;
+
+    /**
+     * The JSON encoding of the metrics numbered _encodedSequence, or null if
+     * not yet encoded.
+     */
+    protected ByteBuffer _encoded;
+
+    /**
+     * The selection encoded in _encoded.
+     */
+    protected MetricsSelection _encodedSelection;
+
+    /**
+     * The HTTP response containing the OpenMetrics encoding of
+     * the metrics numbered _encodedSequence, or null if not yet encoded.
+     */
+    protected ByteBuffer _encodedHttp;
+
+    /**
+     * The selection encoded in _encodedHttp.
+     */
+    protected MetricsSelection _encodedHttpSelection;
+
+    /**
+     * Buffer reused to encode metrics. Each encoding is copied out of it into
+     * an exact-size buffer shared by all clients sent that encoding.
+     */
+    protected final TextBuffer _text = new TextBuffer(65536);
+
+    /**
+     * Writes JSON into _text.
      */
-    protected ServerSocket _listener;
-} // class QueryServer
\ No newline at end of file
+    protected final JSONWriter _json = new JSONWriter(_text);
+} // class QueryServer
@@ -0,0 +1,263 @@
+package nu.nerd.perf;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import org.bukkit.Bukkit;
+
+// ----------------------------------------------------------------------------
+/**
+ * Refreshes the expensive metric families, entity and tile entity counts, on
+ * their own configured intervals, so that queries can use the latest counts
+ * rather than counting again.
+ *
+ * Each scheduled family is counted in every configured world by a background
+ * scan, run through {@link NerdPerf#scanMetrics(CompletableFuture,
+ * MetricsSelection, boolean)} within the usual tick budget. The snapshot of
+ * the most recent refresh is retained, and queries copy its counts, noting
+ * their age. Families with an interval of 0 are counted by every scan that
+ * needs them, as are worlds that have not yet been refreshed.
+ *
+ * Refreshes complete in whichever thread completes the scan, so the state of
+ * each family other than its task ID is guarded by this instance.
+ */
+public class RefreshScheduler {
+    // ------------------------------------------------------------------------
+    /**
+     * Apply the current configuration, discarding refreshed counts and
+     * (re)scheduling the refresh tasks.
+     *
+     * Refreshed counts are discarded because the configured worlds, tile
+     * entity types or hotspot setting may have changed.
+     *
+     * This method must be called in the main thread.
+     */
+    public void configure() {
+        cancel();
+        schedule(_families[ENTITIES], NerdPerf.CONFIG.REFRESH_ENTITIES_SECONDS);
+        schedule(_families[TILE_ENTITIES], NerdPerf.CONFIG.REFRESH_TILE_ENTITIES_SECONDS);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Cancel the refresh tasks and discard refreshed counts.
+     *
+     * This method must be called in the main thread.
+     */
+    public void cancel() {
+        for (Family family : _families) {
+            if (family.taskId != -1) {
+                Bukkit.getScheduler().cancelTask(family.taskId);
+                family.taskId = -1;
+            }
+            CompletableFuture<MetricsSnapshot> scan;
+            synchronized (this) {
+                scan = family.scan;
+                family.scan = null;
+                if (family.latest != null) {
+                    family.latest.release();
+                    family.latest = null;
+                }
+            }
+            if (scan != null) {
+                scan.cancel(false);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Copy the most recently refreshed counts of a family in a world into the
+     * metrics of that world.
+     *
+     * Tile entity counts are copied without the number of loaded chunks,
+     * which is cheap enough to be measured live.
+     *
+     * @param family {@link #ENTITIES} or {@link #TILE_ENTITIES}.
+     * @param metrics the metrics of the world, identified by name.
+     * @param hotspots if true, the densest chunks of the family are copied
+     *        too, and nothing is copied if they were not refreshed.
+     * @return the age of the copied counts in milliseconds, or -1 if the
+     *         family is not scheduled or has not been refreshed in the world.
+     */
+    public synchronized long fill(int family, MetricsSnapshot.WorldMetrics metrics, boolean hotspots) {
+        MetricsSnapshot latest = _families[family].latest;
+        if (latest == null) {
+            return -1;
+        }
+        for (int w = 0; w < latest.getWorldCount(); ++w) {
+            MetricsSnapshot.WorldMetrics refreshed = latest.getWorld(w);
+            if (!refreshed.name.equals(metrics.name)) {
+                continue;
+            }
+
+            if (family == ENTITIES) {
+                if (hotspots && refreshed.entityHotspots == null) {
+                    return -1;
+                }
+                metrics.setEntities(refreshed.entities);
+                if (hotspots) {
+                    metrics.entityHotspots.copyFrom(refreshed.entityHotspots);
+                }
+            } else {
+                if ((hotspots && refreshed.tileEntityHotspots == null) ||
+                    refreshed.tileEntities.length != metrics.tileEntities.length) {
+                    return -1;
+                }
+                System.arraycopy(refreshed.tileEntities, 0, metrics.tileEntities, 0, metrics.tileEntities.length);
+                if (hotspots) {
+                    metrics.tileEntityHotspots.copyFrom(refreshed.tileEntityHotspots);
+                }
+            }
+            return Math.max(0, System.currentTimeMillis() - _families[family].latestMillis);
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The schedule and latest counts of one family.
+     */
+    protected static class Family {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param name the name of the family, for logging.
+         * @param field the {@link MetricsSelection} field flag of the family.
+         */
+        Family(String name, int field) {
+            this.name = name;
+            this.field = field;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The name of the family, for logging.
+         */
+        final String name;
+
+        /**
+         * The {@link MetricsSelection} field flag of the family.
+         */
+        final int field;
+
+        /**
+         * ID of the repeating refresh task, or -1 if not scheduled.
+         */
+        int taskId = -1;
+
+        /**
+         * The refresh scan in progress, or null.
+         */
+        CompletableFuture<MetricsSnapshot> scan;
+
+        /**
+         * The snapshot of the most recent refresh, or null.
+         */
+        MetricsSnapshot latest;
+
+        /**
+         * The System.currentTimeMillis() value when latest was refreshed.
+         */
+        long latestMillis;
+    } // class Family
+
+    // ------------------------------------------------------------------------
+    /**
+     * Schedule a family to be refreshed at the specified interval.
+     *
+     * @param family the family.
+     * @param intervalSeconds the interval in seconds, or 0 to not schedule
+     *        the family.
+     */
+    protected void schedule(Family family, int intervalSeconds) {
+        if (intervalSeconds > 0) {
+            long periodTicks = intervalSeconds * 20L;
+            family.taskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(NerdPerf.PLUGIN,
+                                                                            () -> refresh(family), 1, periodTicks);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Start a refresh of a family, unless the previous one is still in
+     * progress.
+     *
+     * This method must be called in the main thread.
+     *
+     * @param family the family.
+     */
+    protected void refresh(Family family) {
+        CompletableFuture<MetricsSnapshot> scan = new CompletableFuture<MetricsSnapshot>();
+        synchronized (this) {
+            if (family.scan != null) {
+                if (NerdPerf.CONFIG.DEBUG_OVERHEAD) {
+                    NerdPerf.PLUGIN.getLogger().info("Refresh of " + family.name + " skipped: still in progress.");
+                }
+                return;
+            }
+            family.scan = scan;
+        }
+
+        scan.whenComplete((metrics, ex) -> refreshCompleted(family, scan, metrics, ex));
+        int fields = family.field | (NerdPerf.CONFIG.HOTSPOTS ? MetricsSelection.HOTSPOTS : 0);
+        MetricsSelection selection = new MetricsSelection(0,
+                                                          Collections.singletonMap(MetricsSelection.ANY_WORLD, fields));
+        NerdPerf.PLUGIN.scanMetrics(scan, selection, false);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Handle completion of a refresh, whether successful or not, retaining
+     * its snapshot as the family's latest.
+     *
+     * @param family the family.
+     * @param scan the refresh scan.
+     * @param metrics the refreshed metrics, or null if the scan was cancelled
+     *        or failed.
+     * @param ex the reason the scan failed, or null if it succeeded.
+     */
+    protected synchronized void refreshCompleted(Family family, CompletableFuture<MetricsSnapshot> scan,
+                                                 MetricsSnapshot metrics, Throwable ex) {
+        if (family.scan != scan) {
+            // Cancelled by cancel() after completing.
+            if (metrics != null) {
+                metrics.release();
+            }
+            return;
+        }
+        family.scan = null;
+
+        if (metrics == null) {
+            if (NerdPerf.CONFIG.DEBUG_OVERHEAD) {
+                NerdPerf.PLUGIN.getLogger().info("Refresh of " + family.name + " failed: " + ex);
+            }
+            return;
+        }
+        if (family.latest != null) {
+            family.latest.release();
+        }
+        family.latest = metrics;
+        family.latestMillis = System.currentTimeMillis();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Index of the entity count family.
+     */
+    public static final int ENTITIES = 0;
+
+    /**
+     * Index of the tile entity count family, which includes hoppers.
+     */
+    public static final int TILE_ENTITIES = 1;
+
+    /**
+     * The families, indexed by {@link #ENTITIES} and {@link #TILE_ENTITIES}.
+     */
+    protected final Family[] _families = {
+        new Family("entities", MetricsSelection.ENTITIES),
+        new Family("tile entities", MetricsSelection.TILE_ENTITIES)
+    };
+} // class RefreshScheduler
@@ -0,0 +1,333 @@
+package nu.nerd.perf;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+
+// ----------------------------------------------------------------------------
+/**
+ * A time-limited task that captures ChunkSnapshots of every loaded chunk in a
+ * specified world, and counts the tile entities of the types listed in
+ * {@link Configuration#TILE_ENTITY_TYPES} in them in parallel, in a
+ * ForkJoinPool, storing the result in a {@link MetricsSnapshot.WorldMetrics}.
+ *
+ * Only capturing the snapshots happens in the main thread. Each batch of
+ * snapshots is counted as soon as it has been captured, so counting overlaps
+ * capture, and the counts are totalled once every batch has been counted.
+ * The future returned by {@link #getResult()} completes when the results have
+ * been stored.
+ *
+ * ChunkSnapshots do not hold tile entities, so blocks of the counted types
+ * are counted instead; every such block has exactly one tile entity.
+ *
+ * If a reload shuts the pool down during the scan, the remaining batches and
+ * the totals are counted in the main thread instead.
+ */
+public class SnapshotTileEntitiesTask implements BooleanSupplier {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * If the metrics have non-null
+     * {@link MetricsSnapshot.WorldMetrics#tileEntityHotspots}, the densest
+     * chunks are also found. If they have a non-null
+     * {@link MetricsSnapshot.WorldMetrics#attribution}, which must already be
+     * reset, chunks and their tile entities are also attributed to players,
+     * in the pool.
+     *
+     * @param world the World to be counted.
+     * @param metrics the metrics of the World, where the results will be
+     *        stored.
+     * @param pool the pool that counts the snapshots.
+     */
+    public SnapshotTileEntitiesTask(World world, MetricsSnapshot.WorldMetrics metrics, ForkJoinPool pool) {
+        _world = world;
+        _metrics = metrics;
+        _pool = pool;
+        _typeIndex = NerdPerf.CONFIG.TILE_ENTITY_INDEX;
+        _typeCount = NerdPerf.CONFIG.TILE_ENTITY_TYPES.size();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the future that is completed when the counts have been stored in
+     * the metrics.
+     *
+     * @return the future.
+     */
+    public CompletableFuture<Void> getResult() {
+        return _result;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @see java.util.function.BooleanSupplier#getAsBoolean()
+     *
+     *      This method must return true if there is more work to be done.
+     */
+    @Override
+    public boolean getAsBoolean() {
+        if (_chunks == null) {
+            _chunks = _world.getLoadedChunks();
+            _snapshots = new ChunkSnapshot[_chunks.length];
+            _chunkCounts = new int[_chunks.length * _typeCount];
+            return true;
+        }
+
+        long start = System.nanoTime();
+        int startIndex = _index;
+        int iterations = Math.min(_chunks.length - _index, NerdPerf.BUDGET.getChunkBatch());
+        for (int i = 0; i < iterations; ++i) {
+            Chunk chunk = _chunks[_index];
+            // Don't reload chunks unloaded since the scan began.
+            if (chunk.isLoaded()) {
+                _snapshots[_index] = chunk.getChunkSnapshot(false, false, false);
+            }
+            ++_index;
+        }
+        NerdPerf.BUDGET.recordChunks(iterations, System.nanoTime() - start);
+        if (iterations > 0) {
+            try {
+                _batches.add(_pool.submit(new CountAction(startIndex, _index)));
+            } catch (RejectedExecutionException ex) {
+                countRange(startIndex, _index);
+            }
+        }
+
+        if (NerdPerf.CONFIG.DEBUG_COUNTS) {
+            NerdPerf.PLUGIN.getLogger().info("Tile entity snapshot in " + _world.getName() +
+                                              " progressed " + (_index - startIndex) + " chunks");
+        }
+
+        boolean more = (_index < _chunks.length);
+        if (!more) {
+            _chunks = null;
+            Runnable finish = () -> {
+                try {
+                    aggregate();
+                    _result.complete(null);
+                } catch (RuntimeException ex) {
+                    _result.completeExceptionally(ex);
+                }
+            };
+            try {
+                _pool.execute(finish);
+            } catch (RejectedExecutionException ex) {
+                // The pool still finishes the batches submitted to it.
+                finish.run();
+            }
+        }
+        return more;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Counts the tile entities in a range of snapshots, splitting the range
+     * among the pool's threads.
+     */
+    protected class CountAction extends RecursiveAction {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param from the index of the first snapshot.
+         * @param to the index after the last snapshot.
+         */
+        CountAction(int from, int to) {
+            _from = from;
+            _to = to;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * @see java.util.concurrent.RecursiveAction#compute()
+         */
+        @Override
+        protected void compute() {
+            if (_to - _from > CHUNKS_PER_ACTION) {
+                int mid = (_from + _to) >>> 1;
+                invokeAll(new CountAction(_from, mid), new CountAction(mid, _to));
+            } else {
+                countRange(_from, _to);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The index of the first snapshot.
+         */
+        final int _from;
+
+        /**
+         * The index after the last snapshot.
+         */
+        final int _to;
+    } // class CountAction
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count the tile entities in a range of snapshots, in the calling thread.
+     *
+     * @param from the index of the first snapshot.
+     * @param to the index after the last snapshot.
+     */
+    protected void countRange(int from, int to) {
+        for (int i = from; i < to; ++i) {
+            if (_snapshots[i] != null) {
+                countChunk(_snapshots[i], i * _typeCount);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count the tile entities in one snapshot.
+     *
+     * @param snapshot the snapshot.
+     * @param offset the offset of the chunk's counts in _chunkCounts.
+     */
+    protected void countChunk(ChunkSnapshot snapshot, int offset) {
+        for (int section = 0; section < SECTIONS; ++section) {
+            if (snapshot.isSectionEmpty(section)) {
+                continue;
+            }
+            for (int y = section << 4, yEnd = y + 16; y < yEnd; ++y) {
+                for (int z = 0; z < 16; ++z) {
+                    for (int x = 0; x < 16; ++x) {
+                        Material material = snapshot.getBlockType(x, y, z);
+                        int type = _typeIndex[material.ordinal()];
+                        if (type >= 0) {
+                            ++_chunkCounts[offset + type];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Wait for every batch to be counted, then total the per-chunk counts and
+     * store the results.
+     */
+    protected void aggregate() {
+        for (ForkJoinTask<?> batch : _batches) {
+            batch.join();
+        }
+
+        int[] counts = new int[_typeCount];
+        LongIntHashMap hotspots = (_metrics.tileEntityHotspots != null) ? new LongIntHashMap(1024) : null;
+        Attribution attribution = _metrics.attribution;
+        for (int i = 0; i < _snapshots.length; ++i) {
+            ChunkSnapshot snapshot = _snapshots[i];
+            if (snapshot == null) {
+                continue;
+            }
+            long chunkKey = ChunkKeys.of(snapshot.getX(), snapshot.getZ());
+            int chunkTotal = 0;
+            for (int type = 0; type < _typeCount; ++type) {
+                int count = _chunkCounts[i * _typeCount + type];
+                counts[type] += count;
+                chunkTotal += count;
+                if (hotspots != null && count > 0) {
+                    hotspots.put(ChunkKeys.withType(chunkKey, type), count);
+                }
+            }
+            if (attribution != null) {
+                attribution.addChunk(snapshot.getX(), snapshot.getZ(), chunkTotal);
+            }
+        }
+
+        _metrics.setTileEntities(_snapshots.length, counts);
+        if (hotspots != null) {
+            _metrics.tileEntityHotspots.compute(hotspots, _typeCount, NerdPerf.CONFIG.HOTSPOTS_LIMIT);
+        }
+        if (attribution != null) {
+            attribution.tileEntitiesCounted = true;
+        }
+        _snapshots = null;
+        _chunkCounts = null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Number of 16 block high sections in a chunk.
+     */
+    protected static final int SECTIONS = 16;
+
+    /**
+     * Largest number of snapshots counted by one CountAction without
+     * splitting.
+     */
+    protected static final int CHUNKS_PER_ACTION = 2;
+
+    /**
+     * The World whose tile entities will be counted.
+     */
+    protected World _world;
+
+    /**
+     * Metrics where results will be stored.
+     */
+    protected final MetricsSnapshot.WorldMetrics _metrics;
+
+    /**
+     * The pool that counts the snapshots.
+     */
+    protected final ForkJoinPool _pool;
+
+    /**
+     * Lookup table from Material ordinal to the index of the type in the
+     * counts, or -1 if not counted; the {@link Configuration#TILE_ENTITY_INDEX}
+     * published when the task was created, which a reload replaces rather
+     * than modifies.
+     */
+    protected final int[] _typeIndex;
+
+    /**
+     * Number of counted tile entity types, read with _typeIndex.
+     */
+    protected final int _typeCount;
+
+    /**
+     * Array of loaded chunks in the World, until all have been captured.
+     */
+    protected Chunk[] _chunks;
+
+    /**
+     * Index (into _chunks) of next Chunk to capture.
+     */
+    protected int _index;
+
+    /**
+     * Snapshots of the loaded chunks, indexed as _chunks; null for chunks
+     * that were unloaded before they were captured.
+     */
+    protected ChunkSnapshot[] _snapshots;
+
+    /**
+     * Counts of each type of tile entity in each chunk, at index (chunk index
+     * * number of types + type index). Each chunk's counts are only written
+     * by the action that counts it.
+     */
+    protected int[] _chunkCounts;
+
+    /**
+     * Submitted counting batches.
+     */
+    protected final ArrayList<ForkJoinTask<?>> _batches = new ArrayList<ForkJoinTask<?>>();
+
+    /**
+     * Completed when the results have been stored.
+     */
+    protected final CompletableFuture<Void> _result = new CompletableFuture<Void>();
+} // class SnapshotTileEntitiesTask
@@ -0,0 +1,330 @@
+package nu.nerd.perf;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// ----------------------------------------------------------------------------
+/**
+ * A watchdog that captures stack samples of the main thread during lag
+ * spikes.
+ *
+ * A background thread watches the start time of the current tick, as recorded
+ * by the {@link TPSTask}. It sleeps until the current tick would exceed the
+ * configured threshold, so that while the server keeps up it wakes only a few
+ * times per second and does nothing else. If the tick is still in progress
+ * when it wakes, it samples the main thread's stack at the configured
+ * interval until the next tick starts, or until the configured maximum number
+ * of samples has been taken.
+ *
+ * The samples of each spike are aggregated into a {@link Capture} holding the
+ * number of times each distinct stack was seen, and the most recent captures
+ * are retained in a bounded ring. Captures can be written in the "folded
+ * stacks" format read by flame graph tools: one line per distinct stack, with
+ * its frames separated by semicolons from the outermost to the innermost,
+ * followed by a space and the sample count.
+ *
+ * The start of a tick is the point where the TPSTask runs, so a capture covers
+ * the remainder of the tick in which the threshold was exceeded and may
+ * include the start of the next. Stack samples are only taken at safepoints,
+ * so frames in tight loops may be under-represented.
+ */
+public class SpikeSampler {
+    // ------------------------------------------------------------------------
+    /**
+     * The aggregated stack samples of one lag spike.
+     *
+     * A capture is not modified once it has been retained.
+     */
+    public static class Capture {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         *
+         * @param startMillis the start time of the tick, in milliseconds since
+         *        the epoch.
+         */
+        public Capture(long startMillis) {
+            this.startMillis = startMillis;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Return the innermost frame seen in the most samples, which is where
+         * the main thread spent the most time.
+         *
+         * @return the frame, or null if there are no samples.
+         */
+        public String getHottestFrame() {
+            HashMap<String, Integer> frames = new HashMap<String, Integer>();
+            for (Map.Entry<String, Integer> stack : stacks.entrySet()) {
+                String frame = stack.getKey().substring(stack.getKey().lastIndexOf(';') + 1);
+                frames.merge(frame, stack.getValue(), Integer::sum);
+            }
+
+            String hottest = null;
+            int hottestCount = 0;
+            for (Map.Entry<String, Integer> frame : frames.entrySet()) {
+                if (frame.getValue() > hottestCount) {
+                    hottest = frame.getKey();
+                    hottestCount = frame.getValue();
+                }
+            }
+            return hottest;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Add a stack sample.
+         *
+         * @param stack the stack, innermost frame first.
+         */
+        void add(StackTraceElement[] stack) {
+            StringBuilder folded = new StringBuilder();
+            for (int i = stack.length - 1; i >= 0; --i) {
+                folded.append(stack[i].getClassName()).append('.').append(stack[i].getMethodName());
+                if (i > 0) {
+                    folded.append(';');
+                }
+            }
+            stacks.merge(folded.toString(), 1, Integer::sum);
+            ++samples;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * The start time of the tick, in milliseconds since the epoch.
+         */
+        public final long startMillis;
+
+        /**
+         * The duration of the tick in milliseconds, or the time until sampling
+         * stopped, if truncated.
+         */
+        public long durationMillis;
+
+        /**
+         * The number of samples taken.
+         */
+        public int samples;
+
+        /**
+         * True if sampling stopped at the maximum number of samples before the
+         * tick ended.
+         */
+        public boolean truncated;
+
+        /**
+         * Map from folded stack to the number of samples of that stack.
+         */
+        public final HashMap<String, Integer> stacks = new HashMap<String, Integer>();
+    } // class Capture
+
+    // ------------------------------------------------------------------------
+    /**
+     * Apply the current configuration, restarting the watchdog thread if
+     * enabled and discarding the oldest captures if fewer are now retained.
+     *
+     * This method must be called in the main thread, which is the thread that
+     * will be sampled.
+     *
+     * @param tpsTask the task recording the start of each tick.
+     */
+    public void configure(TPSTask tpsTask) {
+        stop();
+        synchronized (this) {
+            while (_captures.size() > NerdPerf.CONFIG.SPIKES_CAPTURES) {
+                _captures.removeLast();
+            }
+        }
+        if (!NerdPerf.CONFIG.SPIKES_ENABLED) {
+            return;
+        }
+
+        _tpsTask = tpsTask;
+        _mainThread = Thread.currentThread();
+        _thresholdNanos = NerdPerf.CONFIG.SPIKES_THRESHOLD_MILLIS * 1_000_000L;
+        _intervalMillis = NerdPerf.CONFIG.SPIKES_SAMPLE_INTERVAL_MILLIS;
+        _maxSamples = NerdPerf.CONFIG.SPIKES_MAX_SAMPLES;
+        _thread = new Thread(this::watch, "NerdPerf Spike Sampler");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop the watchdog thread, if started, discarding any capture in
+     * progress.
+     */
+    public void stop() {
+        if (_thread != null) {
+            _thread.interrupt();
+            try {
+                _thread.join();
+            } catch (InterruptedException ex) {
+            }
+            _thread = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the retained captures.
+     *
+     * This method can be called from any thread.
+     *
+     * @return the captures, most recent first.
+     */
+    public synchronized List<Capture> getCaptures() {
+        return new ArrayList<Capture>(_captures);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write retained captures as folded stacks.
+     *
+     * When all captures are written, each stack is prefixed with a frame
+     * naming its spike, such as {@code spike_2019-08-01_12:34:56_812ms}, so
+     * that each spike is a separate tower in the flame graph.
+     *
+     * This method can be called from any thread.
+     *
+     * @param out the buffer to append to.
+     * @param index the index of the capture to write, where 0 is the most
+     *        recent, or -1 to write all captures.
+     * @return false if there is no capture at the specified index.
+     */
+    public synchronized boolean writeFolded(TextBuffer out, int index) {
+        if (index >= _captures.size()) {
+            return false;
+        }
+
+        int i = 0;
+        for (Capture capture : _captures) {
+            if (index == -1) {
+                String root = String.format("spike_%tF_%<tT_%dms;", capture.startMillis, capture.durationMillis);
+                for (Map.Entry<String, Integer> stack : capture.stacks.entrySet()) {
+                    out.append(root).append(stack.getKey()).append(' ').append(stack.getValue()).append('\n');
+                }
+            } else if (i == index) {
+                for (Map.Entry<String, Integer> stack : capture.stacks.entrySet()) {
+                    out.append(stack.getKey()).append(' ').append(stack.getValue()).append('\n');
+                }
+                break;
+            }
+            ++i;
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Watch the progress of ticks and capture samples when one exceeds the
+     * threshold, until interrupted.
+     *
+     * This method runs in the watchdog thread.
+     */
+    protected void watch() {
+        long capturedTickNanos = 0;
+        try {
+            for (;;) {
+                long tickNanos = _tpsTask.getLastTickNanos();
+                long waitNanos = tickNanos + _thresholdNanos - System.nanoTime();
+                if (tickNanos == 0 || tickNanos == capturedTickNanos) {
+                    // Before the first tick, or still in a truncated spike.
+                    Thread.sleep(_thresholdNanos / 1_000_000L);
+                } else if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1_000_000L + 1);
+                } else {
+                    capture(tickNanos);
+                    capturedTickNanos = tickNanos;
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Stopped.
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Sample the main thread until the tick that started at the specified
+     * time ends, or the maximum number of samples is reached, and retain the
+     * capture.
+     *
+     * This method runs in the watchdog thread.
+     *
+     * @param tickNanos the System.nanoTime() value at the start of the tick.
+     * @throws InterruptedException if the watchdog is stopped.
+     */
+    protected void capture(long tickNanos) throws InterruptedException {
+        long nowNanos = System.nanoTime();
+        Capture capture = new Capture(System.currentTimeMillis() - (nowNanos - tickNanos) / 1_000_000L);
+        long endNanos;
+        for (;;) {
+            endNanos = _tpsTask.getLastTickNanos();
+            if (endNanos != tickNanos) {
+                break;
+            }
+            if (capture.samples >= _maxSamples) {
+                capture.truncated = true;
+                endNanos = System.nanoTime();
+                break;
+            }
+            capture.add(_mainThread.getStackTrace());
+            Thread.sleep(_intervalMillis);
+        }
+
+        if (capture.samples == 0) {
+            return;
+        }
+        capture.durationMillis = (endNanos - tickNanos) / 1_000_000L;
+        synchronized (this) {
+            _captures.addFirst(capture);
+            while (_captures.size() > NerdPerf.CONFIG.SPIKES_CAPTURES) {
+                _captures.removeLast();
+            }
+        }
+        if (NerdPerf.CONFIG.DEBUG_OVERHEAD) {
+            NerdPerf.PLUGIN.getLogger().info("Captured " + capture.samples + " samples of a " +
+                                             capture.durationMillis + " ms tick.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Retained captures, most recent first; guarded by this instance.
+     */
+    protected final ArrayDeque<Capture> _captures = new ArrayDeque<Capture>();
+
+    /**
+     * The watchdog thread, or null if not started.
+     */
+    protected Thread _thread;
+
+    /**
+     * The task recording the start of each tick.
+     */
+    protected TPSTask _tpsTask;
+
+    /**
+     * The thread that is sampled.
+     */
+    protected Thread _mainThread;
+
+    /**
+     * Tick duration, in nanoseconds, above which samples are captured.
+     */
+    protected long _thresholdNanos;
+
+    /**
+     * Interval between samples, in milliseconds.
+     */
+    protected int _intervalMillis;
+
+    /**
+     * Maximum number of samples per capture.
+     */
+    protected int _maxSamples;
+} // class SpikeSampler
@@ -1,6 +1,7 @@
 package nu.nerd.perf;
 
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BooleanSupplier;
 
 import org.bukkit.Bukkit;
@@ -11,7 +12,15 @@ import org.bukkit.Bukkit;
  * one tick and automatically re-schedules itself to run in the next tick until
  * the work is done.
  *
- * The time limit is taken from {@link NerdPerf#CONFIG}.
+ * The time limit is taken from {@link NerdPerf#BUDGET}. While the budget is
+ * paused, the task does no work and simply reschedules itself.
+ *
+ * If the task has an associated future, the remaining steps are abandoned when
+ * the future is cancelled, and the future is completed exceptionally if a step
+ * throws an exception.
+ *
+ * The main thread time of every slice of work is recorded by
+ * {@link NerdPerf#OVERHEAD}.
  */
 public class SynchronousTimeLimitedTask implements Runnable {
     // ------------------------------------------------------------------------
@@ -24,7 +33,23 @@ public class SynchronousTimeLimitedTask implements Runnable {
      *
      */
     public SynchronousTimeLimitedTask(Queue<BooleanSupplier> steps) {
+        this(steps, null);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Construct a SynchronousTimeLimitedTask from a list of steps to be
+     * performed, on behalf of the specified future.
+     *
+     * @param steps the list of steps, in the order they should be performed.
+     *        Each step should return true if there is more work to be done.
+     * @param future the future that the final step will complete; if it is
+     *        cancelled or otherwise completed before then, the remaining steps
+     *        are abandoned. Can be null.
+     */
+    public SynchronousTimeLimitedTask(Queue<BooleanSupplier> steps, CompletableFuture<?> future) {
         _steps = steps;
+        _future = future;
     }
 
     // ------------------------------------------------------------------------
@@ -37,14 +62,39 @@ public class SynchronousTimeLimitedTask implements Runnable {
      */
     @Override
     public void run() {
+        if (_future != null && _future.isDone()) {
+            if (NerdPerf.CONFIG.DEBUG_OVERHEAD) {
+                NerdPerf.PLUGIN.getLogger().info("Measurement task abandoned.");
+            }
+            return;
+        }
+
+        if (NerdPerf.BUDGET.isPaused()) {
+            Bukkit.getScheduler().scheduleSyncDelayedTask(NerdPerf.PLUGIN, this);
+            return;
+        }
+
         long start = System.nanoTime();
+        long timeLimit = NerdPerf.BUDGET.getTimeLimitNanos();
         long elapsed;
         boolean more;
-        do {
-            more = process();
-            elapsed = System.nanoTime() - start;
-        } while (more && elapsed < NerdPerf.CONFIG.TASK_TIME_LIMIT_MILLIS * 1_000_000);
+        ++_slices;
+        try {
+            do {
+                more = process();
+                elapsed = System.nanoTime() - start;
+            } while (more && elapsed < timeLimit);
+        } catch (RuntimeException ex) {
+            NerdPerf.OVERHEAD.recordSlice(System.nanoTime() - start);
+            if (_future == null) {
+                throw ex;
+            }
+            NerdPerf.PLUGIN.getLogger().severe("Measurement task failed: " + ex);
+            _future.completeExceptionally(ex);
+            return;
+        }
 
+        NerdPerf.OVERHEAD.recordSlice(elapsed);
         if (more) {
             Bukkit.getScheduler().scheduleSyncDelayedTask(NerdPerf.PLUGIN, this);
         }
@@ -55,6 +105,17 @@ public class SynchronousTimeLimitedTask implements Runnable {
         }
     }
 
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of slices in which this task has done work, including
+     * the one in progress, if any.
+     *
+     * @return the number of slices.
+     */
+    public int getSlices() {
+        return _slices;
+    }
+
     // ------------------------------------------------------------------------
     /**
      * Run the next step and return true if it has more work to do or if there
@@ -80,4 +141,14 @@ public class SynchronousTimeLimitedTask implements Runnable {
      * Steps, in sequence.
      */
     protected Queue<BooleanSupplier> _steps;
+
+    /**
+     * The future completed by the final step, or null.
+     */
+    protected CompletableFuture<?> _future;
+
+    /**
+     * Number of slices in which this task has done work.
+     */
+    protected int _slices;
 } // class SynchronousTimeLimitedTask
\ No newline at end of file
@@ -1,59 +1,222 @@
 package nu.nerd.perf;
 
-import java.util.LinkedList;
-
 // ----------------------------------------------------------------------------
 /**
- * A synchronous task that measures the TPS.
+ * A synchronous task that measures the duration of every tick.
+ *
+ * This task runs every tick and records the elapsed time since the previous
+ * run in a ring buffer that covers the longest reporting window (15 minutes at
+ * 20 TPS). Recording a tick does not allocate. Statistics for a window are
+ * computed on demand by walking back through the ring buffer from the most
+ * recent tick until the window's duration is covered, accumulating the
+ * intervals into a {@link LogLinearHistogram}.
  *
- * This task runs every 20 ticks and measures the elapsed time since the last
- * run, which it stores in a queue that it uses to compute a rolling average TPS
- * over the last 10 task invocations.
+ * Bukkit does not report how long the server spends processing each tick, so
+ * the duration of a tick is measured from the start of one tick to the start of
+ * the next. On a server with time to spare, this is close to 50 ms; spikes and
+ * sustained lag show up as longer intervals.
+ *
+ * All methods other than {@link #getLastTickNanos()} must be called in the
+ * main thread.
  */
 public class TPSTask implements Runnable {
+    // ------------------------------------------------------------------------
+    /**
+     * Statistics describing tick durations over a window of time.
+     */
+    public static class Stats {
+        /**
+         * Number of ticks in the window.
+         */
+        public long ticks;
+
+        /**
+         * Average ticks per second over the window, at most 20.
+         */
+        public double tps;
+
+        /**
+         * Mean tick duration in milliseconds.
+         */
+        public double meanMillis;
+
+        /**
+         * Median tick duration in milliseconds.
+         */
+        public double p50Millis;
+
+        /**
+         * 95th percentile tick duration in milliseconds.
+         */
+        public double p95Millis;
+
+        /**
+         * 99th percentile tick duration in milliseconds.
+         */
+        public double p99Millis;
+
+        /**
+         * Longest tick duration in milliseconds.
+         */
+        public double maxMillis;
+    } // class Stats
+
     // ------------------------------------------------------------------------
     /**
      * @see java.lang.Runnable#run()
+     *
+     *      Record the interval since the previous tick and pass it on to
+     *      {@link NerdPerf#BUDGET}.
      */
     @Override
     public void run() {
-        long now = System.currentTimeMillis();
-        float elapsedSeconds = 0.001f * (now - _lastTime);
-        _elapsedTimes.add(elapsedSeconds);
-        if (_elapsedTimes.size() > NUM_SAMPLES) {
-            _elapsedTimes.poll();
+        long now = System.nanoTime();
+        if (_lastTickNanos != 0) {
+            long interval = now - _lastTickNanos;
+            _intervalsMicros[_head] = (int) Math.min(Integer.MAX_VALUE, interval / 1000);
+            _head = (_head + 1) % _intervalsMicros.length;
+            if (_size < _intervalsMicros.length) {
+                ++_size;
+            }
+            NerdPerf.BUDGET.tickCompleted(interval);
         }
-        _lastTime = now;
+        _lastTickNanos = now;
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Return the average TPS for the sample period.
+     * Return the average TPS over the last 10 seconds.
      *
      * @return the average TPS.
      */
     public float getTPS() {
-        float totalElapsed = 0;
-        for (Float elapsed : _elapsedTimes) {
-            totalElapsed += elapsed;
+        long elapsedMicros = 0;
+        int ticks = 0;
+        for (; ticks < _size && elapsedMicros < TPS_WINDOW_MICROS; ++ticks) {
+            elapsedMicros += intervalAgo(ticks);
+        }
+        return (elapsedMicros == 0) ? 20.0f : (float) Math.min(20.0, ticks * 1e6 / elapsedMicros);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return statistics describing tick durations over the specified window.
+     *
+     * If the server has not been running for the whole window, the statistics
+     * cover the ticks recorded so far.
+     *
+     * @param windowSeconds the duration of the window in seconds, at most
+     *        {@link #MAX_WINDOW_SECONDS}.
+     * @return the statistics.
+     */
+    public Stats getStats(int windowSeconds) {
+        return getStats(windowSeconds, new Stats());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Compute statistics describing tick durations over the specified window
+     * into an existing Stats instance.
+     *
+     * @param windowSeconds the duration of the window in seconds, at most
+     *        {@link #MAX_WINDOW_SECONDS}.
+     * @param stats the instance to fill.
+     * @return stats.
+     */
+    public Stats getStats(int windowSeconds, Stats stats) {
+        long windowMicros = windowSeconds * 1_000_000L;
+        long elapsedMicros = 0;
+        _histogram.reset();
+        for (int ticks = 0; ticks < _size && elapsedMicros < windowMicros; ++ticks) {
+            int interval = intervalAgo(ticks);
+            elapsedMicros += interval;
+            _histogram.record(interval);
         }
-        return Math.min(20.0f, 20 * _elapsedTimes.size() / totalElapsed);
+
+        stats.ticks = _histogram.getCount();
+        stats.tps = (elapsedMicros == 0) ? 20.0 : Math.min(20.0, stats.ticks * 1e6 / elapsedMicros);
+        stats.meanMillis = _histogram.getMean() / 1000;
+        stats.p50Millis = _histogram.getQuantile(0.50) / 1000.0;
+        stats.p95Millis = _histogram.getQuantile(0.95) / 1000.0;
+        stats.p99Millis = _histogram.getQuantile(0.99) / 1000.0;
+        stats.maxMillis = _histogram.getMax() / 1000.0;
+        return stats;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the time when the most recent tick started.
+     *
+     * This method can be called from any thread, to watch the progress of
+     * ticks.
+     *
+     * @return the System.nanoTime() value at the start of the most recent
+     *         tick, or 0 before the first tick.
+     */
+    public long getLastTickNanos() {
+        return _lastTickNanos;
     }
 
     // ------------------------------------------------------------------------
     /**
-     * Maximum number of elapsed time samples to retain and average into the TPS
-     * value.
+     * Return the duration of a recent tick.
+     *
+     * @param ticksAgo the number of ticks before the most recent one; 0 is the
+     *        most recent tick. Must be less than _size.
+     * @return the duration of the tick in microseconds.
+     */
+    protected int intervalAgo(int ticksAgo) {
+        int index = _head - 1 - ticksAgo;
+        return _intervalsMicros[(index < 0) ? index + _intervalsMicros.length : index];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Longest window, in seconds, for which statistics can be computed.
+     */
+    public static final int MAX_WINDOW_SECONDS = 15 * 60;
+
+    /**
+     * Durations, in seconds, of the windows over which tick statistics are
+     * reported.
+     */
+    public static final int[] WINDOW_SECONDS = { 60, 5 * 60, MAX_WINDOW_SECONDS };
+
+    /**
+     * Names of the windows in WINDOW_SECONDS, used as JSON keys and labels.
+     */
+    public static final String[] WINDOW_NAMES = { "1m", "5m", "15m" };
+
+    /**
+     * Duration, in microseconds, of the window averaged by getTPS().
+     */
+    protected static final long TPS_WINDOW_MICROS = 10_000_000L;
+
+    /**
+     * Ring buffer of tick durations in microseconds, sized to hold
+     * MAX_WINDOW_SECONDS of ticks at 20 TPS.
+     */
+    protected final int[] _intervalsMicros = new int[MAX_WINDOW_SECONDS * 20];
+
+    /**
+     * Index in _intervalsMicros where the next duration will be written.
+     */
+    protected int _head;
+
+    /**
+     * Number of valid durations in _intervalsMicros.
      */
-    protected static int NUM_SAMPLES = 10;
+    protected int _size;
 
     /**
-     * Instant when this task was last run.
+     * The System.nanoTime() value at the start of the previous tick, or 0
+     * before the first tick. Volatile so that the {@link SpikeSampler} can
+     * watch it.
      */
-    protected long _lastTime = System.currentTimeMillis();
+    protected volatile long _lastTickNanos;
 
     /**
-     * Measured elapsed times between task runs in seconds.
+     * Histogram reused to compute statistics.
      */
-    protected LinkedList<Float> _elapsedTimes = new LinkedList<Float>();
-} // class TPSTask
\ No newline at end of file
+    protected final LogLinearHistogram _histogram = new LogLinearHistogram();
+} // class TPSTask
@@ -0,0 +1,263 @@
+package nu.nerd.perf;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// ----------------------------------------------------------------------------
+/**
+ * A growable byte buffer that text is encoded into as UTF-8.
+ *
+ * The buffer is intended to be cleared and reused for each encoding, so that
+ * once it has grown to the size of the largest output, appending text does not
+ * allocate. Numbers are formatted directly into the buffer.
+ *
+ * This class is not thread-safe.
+ */
+public class TextBuffer {
+    // ------------------------------------------------------------------------
+    /**
+     * Constructor.
+     *
+     * @param initialCapacity the initial capacity in bytes.
+     */
+    public TextBuffer(int initialCapacity) {
+        _bytes = new byte[Math.max(16, initialCapacity)];
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Discard the contents of the buffer, retaining its capacity.
+     */
+    public void clear() {
+        _size = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of bytes in the buffer.
+     *
+     * @return the number of bytes in the buffer.
+     */
+    public int size() {
+        return _size;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Copy the contents of the buffer into a ByteBuffer.
+     *
+     * @param out the destination, which must have at least size() bytes
+     *        remaining.
+     */
+    public void writeTo(ByteBuffer out) {
+        out.put(_bytes, 0, _size);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a ByteBuffer, ready for reading, that shares a range of the
+     * buffer's contents without copying them. It is only valid until the
+     * buffer is next modified.
+     *
+     * @param start the index of the first byte.
+     * @param end the index after the last byte.
+     * @return the ByteBuffer.
+     */
+    public ByteBuffer wrap(int start, int end) {
+        return ByteBuffer.wrap(_bytes, start, end - start);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the index of the last occurrence of an ASCII character in a range
+     * of the buffer.
+     *
+     * @param c the character.
+     * @param start the index of the first byte searched.
+     * @param end the index after the last byte searched.
+     * @return the index, or -1 if the character does not occur in the range.
+     */
+    public int lastIndexOf(char c, int start, int end) {
+        for (int i = end - 1; i >= start; --i) {
+            if (_bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a new ByteBuffer, ready for reading, containing a copy of the
+     * contents of the buffer.
+     *
+     * @return the new ByteBuffer.
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(Arrays.copyOf(_bytes, _size));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a character that is known to be ASCII.
+     *
+     * @param c the character.
+     * @return this.
+     */
+    public TextBuffer append(char c) {
+        ensureCapacity(1);
+        _bytes[_size++] = (byte) c;
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append text, encoded as UTF-8.
+     *
+     * @param text the text.
+     * @return this.
+     */
+    public TextBuffer append(CharSequence text) {
+        return append(text, 0, text.length());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append part of some text, encoded as UTF-8.
+     *
+     * @param text the text.
+     * @param start the index of the first character to append.
+     * @param end the index after the last character to append.
+     * @return this.
+     */
+    public TextBuffer append(CharSequence text, int start, int end) {
+        ensureCapacity(end - start);
+        for (int i = start; i < end; ++i) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                ensureCapacity(1);
+                _bytes[_size++] = (byte) c;
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                _bytes[_size++] = (byte) (0xC0 | (c >> 6));
+                _bytes[_size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end &&
+                       Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                ensureCapacity(4);
+                _bytes[_size++] = (byte) (0xF0 | (codePoint >> 18));
+                _bytes[_size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                _bytes[_size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                _bytes[_size++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                ensureCapacity(3);
+                _bytes[_size++] = (byte) (0xE0 | (c >> 12));
+                _bytes[_size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                _bytes[_size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append an integer in decimal.
+     *
+     * @param value the integer.
+     * @return this.
+     */
+    public TextBuffer append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append("-9223372036854775808");
+        }
+
+        ensureCapacity(20);
+        if (value < 0) {
+            _bytes[_size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long limit = 10; digits < 19 && value >= limit; limit *= 10) {
+            ++digits;
+        }
+        for (int i = _size + digits - 1; i >= _size; --i) {
+            _bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        _size += digits;
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Append a finite floating point number in decimal, rounded to
+     * {@link #DECIMAL_PLACES} decimal places, without trailing zeroes.
+     *
+     * Numbers too large to format exactly as a long are formatted by
+     * Double.toString(), which allocates.
+     *
+     * @param value the number, which must be finite.
+     * @return this.
+     */
+    public TextBuffer append(double value) {
+        if (Math.abs(value) >= 1e15) {
+            return append(Double.toString(value));
+        }
+
+        long scaled = Math.round(Math.abs(value) * DECIMAL_SCALE);
+        if (value < 0 && scaled != 0) {
+            append('-');
+        }
+        append(scaled / DECIMAL_SCALE);
+        long fraction = scaled % DECIMAL_SCALE;
+        if (fraction != 0) {
+            int places = DECIMAL_PLACES;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                --places;
+            }
+            ensureCapacity(places + 1);
+            _bytes[_size++] = '.';
+            for (int i = _size + places - 1; i >= _size; --i) {
+                _bytes[i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            _size += places;
+        }
+        return this;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Ensure that the specified number of bytes can be appended without
+     * growing the buffer again.
+     *
+     * @param extra the number of bytes to be appended.
+     */
+    protected void ensureCapacity(int extra) {
+        if (_size + extra > _bytes.length) {
+            _bytes = Arrays.copyOf(_bytes, Math.max(_bytes.length * 2, _size + extra));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Number of decimal places retained when formatting floating point numbers.
+     */
+    public static final int DECIMAL_PLACES = 6;
+
+    /**
+     * 10 to the power of DECIMAL_PLACES.
+     */
+    protected static final long DECIMAL_SCALE = 1_000_000L;
+
+    /**
+     * The buffer contents; only the first _size bytes are valid.
+     */
+    protected byte[] _bytes;
+
+    /**
+     * Number of valid bytes in _bytes.
+     */
+    protected int _size;
+} // class TextBuffer
@@ -0,0 +1,203 @@
+package nu.nerd.perf;
+
+// ----------------------------------------------------------------------------
+/**
+ * Decides how much main thread time the counting tasks may use in each tick,
+ * and how many objects they should count in each step.
+ *
+ * When adaptive scheduling is disabled, the fixed limits in the configuration
+ * are used. When enabled, the interval between ticks measured by
+ * {@link TPSTask} is used to adapt the budget. Bukkit does not report how
+ * long the server spends processing each tick, so the spare time in a tick is
+ * inferred from the interval: if ticks arrive on schedule (every 50 ms) the
+ * server has time to spare and the budget grows gradually; if they arrive
+ * late, the budget is cut sharply. Below the configured TPS floor, counting is
+ * paused altogether.
+ *
+ * Batch sizes are derived from the budget and the measured cost of counting
+ * each kind of object, so that several steps fit in each tick's budget and
+ * the budget is never overrun by more than a fraction of itself.
+ *
+ * All methods must be called in the main thread.
+ */
+public class TickBudget {
+    // ------------------------------------------------------------------------
+    /**
+     * Reset the budget to the configured initial time limit.
+     *
+     * This should be called whenever the configuration is loaded.
+     */
+    public void configure() {
+        _budgetNanos = NerdPerf.CONFIG.TASK_TIME_LIMIT_MILLIS * 1_000_000L;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Adapt the budget according to the duration of the tick that just ended.
+     *
+     * @param interval the interval since the start of the previous tick in
+     *        nanoseconds.
+     */
+    public void tickCompleted(long interval) {
+        _intervalNanos = (_intervalNanos == 0) ? interval : _intervalNanos + (interval - _intervalNanos) / 8;
+
+        long minNanos = NerdPerf.CONFIG.ADAPTIVE_MIN_MILLIS * 1_000_000L;
+        long maxNanos = NerdPerf.CONFIG.ADAPTIVE_MAX_MILLIS * 1_000_000L;
+        if (interval <= TICK_NANOS + TOLERANCE_NANOS) {
+            _budgetNanos = Math.min(maxNanos, _budgetNanos + _budgetNanos / 16 + 1);
+        } else {
+            _budgetNanos = Math.max(minNanos, _budgetNanos - _budgetNanos / 4);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the maximum time that counting tasks should run in the current
+     * tick, in nanoseconds.
+     *
+     * @return the time limit in nanoseconds.
+     */
+    public long getTimeLimitNanos() {
+        return NerdPerf.CONFIG.ADAPTIVE ? _budgetNanos : NerdPerf.CONFIG.TASK_TIME_LIMIT_MILLIS * 1_000_000L;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return true if counting tasks should do no work in the current tick
+     * because the server is running below the configured TPS floor.
+     *
+     * @return true if counting is paused.
+     */
+    public boolean isPaused() {
+        return NerdPerf.CONFIG.ADAPTIVE && _intervalNanos != 0 &&
+               1e9 / _intervalNanos < NerdPerf.CONFIG.ADAPTIVE_TPS_FLOOR;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of entities to count in one step.
+     *
+     * @return the number of entities to count in one step.
+     */
+    public int getEntityBatch() {
+        return NerdPerf.CONFIG.ADAPTIVE ? getBatch(_nanosPerEntity, NerdPerf.CONFIG.BATCH_ENTITIES)
+                                        : NerdPerf.CONFIG.BATCH_ENTITIES;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of chunks in which to count tile entities in one step.
+     *
+     * @return the number of chunks to count in one step.
+     */
+    public int getChunkBatch() {
+        return NerdPerf.CONFIG.ADAPTIVE ? getBatch(_nanosPerChunk, NerdPerf.CONFIG.BATCH_CHUNKS)
+                                        : NerdPerf.CONFIG.BATCH_CHUNKS;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the time taken to count a batch of entities.
+     *
+     * @param entities the number of entities counted.
+     * @param nanos the elapsed time in nanoseconds.
+     */
+    public void recordEntities(int entities, long nanos) {
+        _nanosPerEntity = updateCost(_nanosPerEntity, entities, nanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Record the time taken to count tile entities in a batch of chunks.
+     *
+     * @param chunks the number of chunks counted.
+     * @param nanos the elapsed time in nanoseconds.
+     */
+    public void recordChunks(int chunks, long nanos) {
+        _nanosPerChunk = updateCost(_nanosPerChunk, chunks, nanos);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the batch size that fits STEPS_PER_SLICE steps into the current
+     * budget.
+     *
+     * @param nanosPerItem the average cost of one item, or 0 if not yet
+     *        measured.
+     * @param initial the batch size to use before the cost is measured.
+     * @return the batch size.
+     */
+    protected int getBatch(double nanosPerItem, int initial) {
+        if (nanosPerItem <= 0) {
+            return initial;
+        }
+        double batch = _budgetNanos / STEPS_PER_SLICE / nanosPerItem;
+        return (int) Math.max(MIN_BATCH, Math.min(MAX_BATCH, batch));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Update an exponentially weighted moving average of the cost of one item.
+     *
+     * @param average the current average, or 0 if not yet measured.
+     * @param items the number of items in the batch.
+     * @param nanos the elapsed time of the batch in nanoseconds.
+     * @return the new average.
+     */
+    protected static double updateCost(double average, int items, long nanos) {
+        if (items <= 0) {
+            return average;
+        }
+        double cost = (double) nanos / items;
+        return (average <= 0) ? cost : average + (cost - average) * 0.25;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Nominal duration of a tick in nanoseconds.
+     */
+    protected static final long TICK_NANOS = 50_000_000L;
+
+    /**
+     * Lateness of a tick, in nanoseconds, that is tolerated as jitter rather
+     * than treated as a sign of load.
+     */
+    protected static final long TOLERANCE_NANOS = 2_000_000L;
+
+    /**
+     * Number of steps that a batch size should allow in one tick's budget.
+     */
+    protected static final int STEPS_PER_SLICE = 4;
+
+    /**
+     * Minimum adaptive batch size.
+     */
+    protected static final int MIN_BATCH = 10;
+
+    /**
+     * Maximum adaptive batch size.
+     */
+    protected static final int MAX_BATCH = 100_000;
+
+    /**
+     * The current budget in nanoseconds.
+     */
+    protected long _budgetNanos;
+
+    /**
+     * Moving average of the interval between ticks in nanoseconds, or 0
+     * before it is measured.
+     */
+    protected long _intervalNanos;
+
+    /**
+     * Moving average of the cost of counting one entity in nanoseconds.
+     */
+    protected double _nanosPerEntity;
+
+    /**
+     * Moving average of the cost of counting tile entities in one chunk in
+     * nanoseconds.
+     */
+    protected double _nanosPerChunk;
+} // class TickBudget
@@ -0,0 +1,449 @@
+package nu.nerd.perf;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BooleanSupplier;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+// ----------------------------------------------------------------------------
+/**
+ * Maintains per-chunk counts of the tile entity types listed in
+ * {@link Configuration#TILE_ENTITY_TYPES} in each configured world, updated
+ * from chunk and block events, so that a query can read per-world totals
+ * without taking a BlockState snapshot of every tile entity.
+ *
+ * A chunk's tile entities are counted once when it loads, and its counts are
+ * discarded when it unloads. In between, placed, broken, burnt, exploded and
+ * pushed blocks adjust the counts. Changes that raise no event (such as those
+ * made by world editing plugins) are corrected by a periodic time-limited
+ * recount of all loaded chunks.
+ *
+ * The chunks already loaded when indexing starts are counted by the same
+ * time-limited recount, so that enabling the index or reloading the
+ * configuration does not take a BlockState snapshot of every tile entity in
+ * a single tick. Until that first recount of a world completes, its counts
+ * are not reported and queries count its tile entities as usual.
+ *
+ * All methods must be called in the main thread.
+ */
+public class TileEntityIndex implements Listener {
+    // ------------------------------------------------------------------------
+    /**
+     * Start or stop indexing according to the current configuration.
+     *
+     * When enabled, the loaded chunks of each configured world are indexed
+     * by a time-limited task, spread over as many ticks as necessary. A
+     * recount still in progress is abandoned.
+     */
+    public void configure() {
+        if (_reconcileTaskId != -1) {
+            Bukkit.getScheduler().cancelTask(_reconcileTaskId);
+            _reconcileTaskId = -1;
+        }
+        if (_reconcile != null) {
+            _reconcile.cancel(false);
+            _reconcile = null;
+        }
+        _worlds.clear();
+
+        if (NerdPerf.CONFIG.INCREMENTAL_TILE_ENTITIES) {
+            for (World world : NerdPerf.CONFIG.WORLDS) {
+                _worlds.put(world, new WorldIndex());
+            }
+            reconcile();
+
+            long periodTicks = 20L * NerdPerf.CONFIG.INCREMENTAL_RECONCILE_SECONDS;
+            _reconcileTaskId = Bukkit.getScheduler().scheduleSyncRepeatingTask(NerdPerf.PLUGIN, this::reconcile,
+                                                                               periodTicks, periodTicks);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the total counts of indexed tile entities in the specified world.
+     *
+     * The returned array must not be modified.
+     *
+     * @param world the World.
+     * @return the counts, indexed in the same order as
+     *         {@link Configuration#TILE_ENTITY_TYPES}, or null if the world is
+     *         not indexed or is still being indexed.
+     */
+    public int[] getCounts(World world) {
+        WorldIndex index = _worlds.get(world);
+        return index != null && index._filled ? index._totals : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the number of loaded chunks in the specified world.
+     *
+     * @param world the World.
+     * @return the number of loaded chunks, or 0 if the world is not indexed
+     *         or is still being indexed.
+     */
+    public int getLoadedChunks(World world) {
+        WorldIndex index = _worlds.get(world);
+        return index != null && index._filled ? index._loadedChunks : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return the per-chunk counts of indexed tile entities in the specified
+     * world.
+     *
+     * The map's keys are typed keys formed by {@link ChunkKeys#withType(long,
+     * int)}, where the type is an index into
+     * {@link Configuration#TILE_ENTITY_TYPES}. The returned map must not be
+     * modified.
+     *
+     * @param world the World.
+     * @return the per-chunk counts, or null if the world is not indexed or is
+     *         still being indexed.
+     */
+    public LongIntHashMap getChunkCounts(World world) {
+        WorldIndex index = _worlds.get(world);
+        return index != null && index._filled ? index._chunkCounts : null;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Recount the tile entities in every loaded chunk of all indexed worlds,
+     * spread over as many ticks as necessary, to fill new indexes and correct
+     * drift in the counts.
+     */
+    protected void reconcile() {
+        if (_reconcile != null) {
+            return;
+        }
+
+        LinkedList<BooleanSupplier> steps = new LinkedList<BooleanSupplier>();
+        for (World world : _worlds.keySet()) {
+            WorldIndex index = _worlds.get(world);
+            steps.add(new CountTileEntitiesTask(world, null) {
+                @Override
+                protected void chunkCounted(Chunk chunk, int[] chunkCounts) {
+                    index.set(ChunkKeys.of(chunk.getX(), chunk.getZ()), chunkCounts);
+                }
+
+                @Override
+                protected void storeCounts(int chunks, int[] counts) {
+                    // Chunks may have loaded or unloaded during the recount.
+                    index._loadedChunks = world.getLoadedChunks().length;
+                    index._filled = true;
+                }
+            });
+        }
+        CompletableFuture<Void> reconcile = new CompletableFuture<Void>();
+        steps.add(() -> {
+            reconcile.complete(null);
+            return false;
+        });
+        reconcile.whenComplete((ignored, ex) -> {
+            if (_reconcile == reconcile) {
+                _reconcile = null;
+            }
+        });
+
+        _reconcile = reconcile;
+        Bukkit.getScheduler().scheduleSyncDelayedTask(NerdPerf.PLUGIN,
+                                                      new SynchronousTimeLimitedTask(steps, reconcile));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Adjust the count of tile entities in the specified block's chunk, if the
+     * block is of an indexed type in an indexed world.
+     *
+     * @param block the block.
+     * @param delta the amount to add to the count.
+     */
+    protected void adjust(Block block, int delta) {
+        WorldIndex index = _worlds.get(block.getWorld());
+        if (index != null) {
+            int type = index._typeIndex[block.getType().ordinal()];
+            if (type >= 0) {
+                index.add(ChunkKeys.of(block.getX() >> 4, block.getZ() >> 4), type, delta);
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move the counts of blocks pushed or pulled by a piston.
+     *
+     * Vanilla pistons cannot move tile entities, but plugins may allow it.
+     *
+     * @param blocks the moved blocks.
+     * @param direction the direction of movement.
+     */
+    protected void move(List<Block> blocks, BlockFace direction) {
+        for (Block block : blocks) {
+            WorldIndex index = _worlds.get(block.getWorld());
+            if (index != null) {
+                int type = index._typeIndex[block.getType().ordinal()];
+                if (type >= 0) {
+                    Block destination = block.getRelative(direction);
+                    index.add(ChunkKeys.of(block.getX() >> 4, block.getZ() >> 4), type, -1);
+                    index.add(ChunkKeys.of(destination.getX() >> 4, destination.getZ() >> 4), type, +1);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Index chunks when they load.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkLoad(ChunkLoadEvent event) {
+        WorldIndex index = _worlds.get(event.getWorld());
+        if (index != null) {
+            index.load(event.getChunk());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Discard chunk counts when chunks unload.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        WorldIndex index = _worlds.get(event.getWorld());
+        if (index != null) {
+            index.unload(event.getChunk());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop indexing unloaded worlds.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        _worlds.remove(event.getWorld());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Count placed blocks.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        adjust(event.getBlockPlaced(), +1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount broken blocks.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        adjust(event.getBlock(), -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount burnt blocks.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        adjust(event.getBlock(), -1);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount blocks destroyed by exploding entities.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        for (Block block : event.blockList()) {
+            adjust(block, -1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Uncount blocks destroyed by exploding blocks, such as beds in the nether.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        for (Block block : event.blockList()) {
+            adjust(block, -1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move the counts of blocks pushed by a piston.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPistonExtend(BlockPistonExtendEvent event) {
+        move(event.getBlocks(), event.getDirection());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Move the counts of blocks pulled by a piston.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPistonRetract(BlockPistonRetractEvent event) {
+        move(event.getBlocks(), event.getDirection());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Tile entity counts for one world.
+     *
+     * Each index counts the tile entity types configured when it was created.
+     * Reloading the configuration replaces every index.
+     */
+    protected static class WorldIndex {
+        // --------------------------------------------------------------------
+        /**
+         * Constructor.
+         */
+        WorldIndex() {
+            _typeIndex = NerdPerf.CONFIG.TILE_ENTITY_INDEX;
+            _totals = new int[NerdPerf.CONFIG.TILE_ENTITY_TYPES.size()];
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Count the tile entities in a newly loaded chunk.
+         *
+         * @param chunk the Chunk.
+         */
+        void load(Chunk chunk) {
+            long chunkKey = ChunkKeys.of(chunk.getX(), chunk.getZ());
+            for (BlockState tileEntity : chunk.getTileEntities()) {
+                int type = _typeIndex[tileEntity.getType().ordinal()];
+                if (type >= 0) {
+                    add(chunkKey, type, +1);
+                }
+            }
+            ++_loadedChunks;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Discard the counts of an unloading chunk.
+         *
+         * @param chunk the Chunk.
+         */
+        void unload(Chunk chunk) {
+            long chunkKey = ChunkKeys.of(chunk.getX(), chunk.getZ());
+            for (int type = 0; type < _totals.length; ++type) {
+                _totals[type] -= _chunkCounts.remove(ChunkKeys.withType(chunkKey, type));
+            }
+            --_loadedChunks;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Adjust the count of one type of tile entity in a chunk.
+         *
+         * @param chunkKey the chunk key.
+         * @param type the index of the type in
+         *        {@link Configuration#TILE_ENTITY_TYPES}.
+         * @param delta the amount to add to the count.
+         */
+        void add(long chunkKey, int type, int delta) {
+            long key = ChunkKeys.withType(chunkKey, type);
+            int count = _chunkCounts.add(key, delta);
+            if (count <= 0) {
+                _chunkCounts.remove(key);
+                // Blocks in chunks not yet counted have no count to remove.
+                delta -= count;
+            }
+            _totals[type] += delta;
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Replace the counts of all types of tile entity in a chunk.
+         *
+         * @param chunkKey the chunk key.
+         * @param counts the new counts, indexed in the same order as
+         *        {@link Configuration#TILE_ENTITY_TYPES}.
+         */
+        void set(long chunkKey, int[] counts) {
+            for (int type = 0; type < _totals.length; ++type) {
+                long key = ChunkKeys.withType(chunkKey, type);
+                _totals[type] += counts[type] - _chunkCounts.get(key);
+                if (counts[type] > 0) {
+                    _chunkCounts.put(key, counts[type]);
+                } else {
+                    _chunkCounts.remove(key);
+                }
+            }
+        }
+
+        // --------------------------------------------------------------------
+        /**
+         * Counts of each type of tile entity in each chunk, keyed by typed
+         * chunk key. Only non-zero counts are stored.
+         */
+        final LongIntHashMap _chunkCounts = new LongIntHashMap(1024);
+
+        /**
+         * Lookup table from Material ordinal to the index of the type in the
+         * counts, or -1 if not counted.
+         */
+        final int[] _typeIndex;
+
+        /**
+         * Total counts of each type of tile entity in the world.
+         */
+        final int[] _totals;
+
+        /**
+         * Number of loaded chunks.
+         */
+        int _loadedChunks;
+
+        /**
+         * True once every chunk that was loaded when indexing started has
+         * been counted.
+         */
+        boolean _filled;
+    } // class WorldIndex
+
+    // ------------------------------------------------------------------------
+    /**
+     * Index of each configured World.
+     */
+    protected HashMap<World, WorldIndex> _worlds = new HashMap<World, WorldIndex>();
+
+    /**
+     * Completed when the reconciliation in progress finishes, or null if
+     * there is none. Cancelling it abandons the reconciliation.
+     */
+    protected CompletableFuture<Void> _reconcile;
+
+    /**
+     * ID of the repeating reconciliation task, or -1 if not scheduled.
+     */
+    protected int _reconcileTaskId = -1;
+} // class TileEntityIndex
@@ -0,0 +1,226 @@
+package nu.nerd.perf;
+
+import static nu.nerd.perf.Fixtures.section;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of {@link AlertRule} parsing and state transitions.
+ */
+public class AlertRuleTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Start each test with a fresh snapshot and the worlds that rules may
+     * name.
+     */
+    @Before
+    public void setUp() {
+        MetricsSnapshot.POOL.clear();
+        _metrics = MetricsSnapshot.obtain();
+        _worldNames = NerdPerf.CONFIG.WORLD_NAMES;
+        NerdPerf.CONFIG.WORLD_NAMES = new HashSet<String>(Arrays.asList("world", "my.world"));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Release the snapshot and restore the configuration.
+     */
+    @After
+    public void tearDown() {
+        NerdPerf.CONFIG.WORLD_NAMES = _worldNames;
+        _metrics.release();
+        MetricsSnapshot.POOL.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A rule fires only after the metric stays in breach for the configured
+     * time, and resolves only when the metric crosses the clear level.
+     */
+    @Test
+    public void testForSecondsAndHysteresis() {
+        AlertRule rule = AlertRule.parse(section("low-tps", "metric", "tps", "below", 15, "clear", 17,
+                                                 "for-seconds", 30));
+        assertEquals(AlertRule.UNCHANGED, evaluate(rule, 14, 0));
+        assertEquals(AlertRule.UNCHANGED, evaluate(rule, 14, 29));
+        assertFalse(rule.isFiring());
+        assertEquals(AlertRule.FIRED, evaluate(rule, 14, 30));
+        assertTrue(rule.isFiring());
+
+        // Back within the threshold, but not past the clear level.
+        assertEquals(AlertRule.UNCHANGED, evaluate(rule, 16, 40));
+        assertTrue(rule.isFiring());
+        assertEquals(AlertRule.RESOLVED, evaluate(rule, 18, 50));
+        assertFalse(rule.isFiring());
+        assertEquals(18.0, rule.getValue(), 0.0);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A breach that ends before the for-seconds time restarts the timer.
+     */
+    @Test
+    public void testPendingReset() {
+        AlertRule rule = AlertRule.parse(section("low-tps", "metric", "tps", "below", 15, "for-seconds", 30));
+        assertEquals(AlertRule.UNCHANGED, evaluate(rule, 14, 0));
+        assertEquals(AlertRule.UNCHANGED, evaluate(rule, 19, 20));
+        assertEquals(AlertRule.UNCHANGED, evaluate(rule, 14, 25));
+        assertEquals(AlertRule.UNCHANGED, evaluate(rule, 14, 50));
+        assertEquals(AlertRule.FIRED, evaluate(rule, 14, 55));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Firing within the cooldown is not notified, and neither is its
+     * resolution.
+     */
+    @Test
+    public void testCooldown() {
+        AlertRule rule = AlertRule.parse(section("low-tps", "metric", "tps", "below", 15,
+                                                 "cooldown-seconds", 300));
+        assertEquals(AlertRule.FIRED, evaluate(rule, 10, 0));
+        assertEquals(AlertRule.RESOLVED, evaluate(rule, 20, 10));
+
+        assertEquals(AlertRule.UNCHANGED, evaluate(rule, 10, 100));
+        assertTrue(rule.isFiring());
+        assertEquals(AlertRule.UNCHANGED, evaluate(rule, 20, 110));
+        assertFalse(rule.isFiring());
+
+        assertEquals(AlertRule.FIRED, evaluate(rule, 10, 300));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A metric missing from the snapshot leaves the state unchanged.
+     */
+    @Test
+    public void testMissingMetric() {
+        AlertRule rule = AlertRule.parse(section("heap", "metric", "memory.old_gen_after_gc", "above", 100));
+        _metrics.gc.oldGenAfterGC = -1;
+        assertEquals(AlertRule.UNCHANGED, rule.evaluate(_metrics, SECOND));
+        assertTrue(Double.isNaN(rule.getValue()));
+
+        _metrics.gc.oldGenAfterGC = 200L * 1048576;
+        assertEquals(AlertRule.FIRED, rule.evaluate(_metrics, 2 * SECOND));
+
+        _metrics.selection = MetricsSelection.parse("players", WORLDS);
+        _metrics.gc.oldGenAfterGC = 0;
+        assertEquals(AlertRule.UNCHANGED, rule.evaluate(_metrics, 3 * SECOND));
+        assertTrue(rule.isFiring());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Metric paths set the selection flags of the metric.
+     */
+    @Test
+    public void testMetricPaths() {
+        AlertRule rule = AlertRule.parse(section("tick", "metric", "tick.1m.p95_ms", "above", 50));
+        assertEquals(MetricsSelection.TICK, rule.getFlag());
+        assertNull(rule.getWorld());
+        assertEquals(AlertRule.LOG, rule.getActions());
+
+        rule = AlertRule.parse(section("chunks", "metric", "worlds.my.world.chunks", "above", 1,
+                                       "actions", Arrays.asList("broadcast", "push")));
+        assertEquals(0, rule.getFlag());
+        assertEquals("my.world", rule.getWorld());
+        assertEquals(MetricsSelection.CHUNKS, rule.getField());
+        assertEquals(AlertRule.BROADCAST | AlertRule.PUSH, rule.getActions());
+
+        rule = AlertRule.parse(section("loads", "metric", "worlds.my.world.chunk_rates.loads", "above", 1));
+        assertEquals("my.world", rule.getWorld());
+        assertEquals(MetricsSelection.CHUNK_RATES, rule.getField());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Invalid rules are rejected.
+     */
+    @Test
+    public void testInvalidRules() {
+        assertRejected(section("r", "metric", "memory.nope", "above", 1), "unknown metric: memory.nope");
+        assertRejected(section("r", "metric", "tick.2m.tps", "above", 1), "unknown metric: tick.2m.tps");
+        assertRejected(section("r", "metric", "worlds.entities", "above", 1), "unknown metric: worlds.entities");
+        assertRejected(section("r", "metric", "worlds.nether.chunks", "above", 1), "unknown world: nether");
+        assertRejected(section("r", "metric", "worlds.my.nether.entities.ZOMBIE", "above", 1),
+                       "unknown world: my.nether");
+        assertRejected(section("r", "above", 1), "no metric");
+        assertRejected(section("r", "metric", "tps"), "exactly one of above or below must be set");
+        assertRejected(section("r", "metric", "tps", "above", 1, "below", 2),
+                       "exactly one of above or below must be set");
+        assertRejected(section("r", "metric", "tps", "below", 15, "clear", 10),
+                       "clear must not be below the threshold");
+        assertRejected(section("r", "metric", "tps", "below", 15, "actions", Arrays.asList("email")),
+                       "unknown action: email");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Set the TPS of the snapshot and evaluate a rule.
+     *
+     * @param rule the rule.
+     * @param tps the TPS.
+     * @param seconds the time of evaluation in seconds.
+     * @return the result of evaluation.
+     */
+    protected int evaluate(AlertRule rule, float tps, long seconds) {
+        _metrics.tps = tps;
+        return rule.evaluate(_metrics, START_NANOS + seconds * SECOND);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Assert that parsing a rule fails with the specified message.
+     *
+     * @param section the rule's section.
+     * @param message the expected message.
+     */
+    protected static void assertRejected(ConfigurationSection section, String message) {
+        try {
+            AlertRule.parse(section);
+            fail("accepted " + section.getString("metric"));
+        } catch (IllegalArgumentException ex) {
+            assertEquals(message, ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Nanoseconds per second.
+     */
+    protected static final long SECOND = 1_000_000_000L;
+
+    /**
+     * An arbitrary System.nanoTime() value at the start of each test.
+     */
+    protected static final long START_NANOS = 1000 * SECOND;
+
+    /**
+     * Names of the worlds that may be selected.
+     */
+    protected static final Set<String> WORLDS = Collections.singleton("world");
+
+    /**
+     * The snapshot that rules are evaluated against.
+     */
+    protected MetricsSnapshot _metrics;
+
+    /**
+     * The configured world names, restored after each test.
+     */
+    protected Set<String> _worldNames;
+} // class AlertRuleTest
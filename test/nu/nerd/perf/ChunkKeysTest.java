@@ -0,0 +1,69 @@
+package nu.nerd.perf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of {@link ChunkKeys}.
+ */
+public class ChunkKeysTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Coordinates survive packing, including negative coordinates and the
+     * limits of the world.
+     */
+    @Test
+    public void testRoundTrip() {
+        int[] coordinates = { 0, 1, -1, 15, -16, 12345, -12345, MAX_CHUNK, -MAX_CHUNK };
+        for (int x : coordinates) {
+            for (int z : coordinates) {
+                long key = ChunkKeys.of(x, z);
+                assertEquals(x, ChunkKeys.x(key));
+                assertEquals(z, ChunkKeys.z(key));
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Typed keys carry both the chunk and the type.
+     */
+    @Test
+    public void testTypedKeys() {
+        long chunkKey = ChunkKeys.of(-MAX_CHUNK, MAX_CHUNK);
+        for (int type : new int[] { 0, 1, 127, 65535 }) {
+            long typedKey = ChunkKeys.withType(chunkKey, type);
+            assertEquals(chunkKey, ChunkKeys.chunkOf(typedKey));
+            assertEquals(type, ChunkKeys.typeOf(typedKey));
+            assertEquals(-MAX_CHUNK, ChunkKeys.x(ChunkKeys.chunkOf(typedKey)));
+            assertEquals(MAX_CHUNK, ChunkKeys.z(ChunkKeys.chunkOf(typedKey)));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Distinct chunks and types have distinct keys.
+     */
+    @Test
+    public void testDistinct() {
+        HashSet<Long> keys = new HashSet<Long>();
+        for (int x = -20; x <= 20; ++x) {
+            for (int z = -20; z <= 20; ++z) {
+                for (int type = 0; type < 3; ++type) {
+                    assertTrue(keys.add(ChunkKeys.withType(ChunkKeys.of(x, z), type)));
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The largest chunk coordinate in a world bounded at 30 million blocks.
+     */
+    protected static final int MAX_CHUNK = 30_000_000 >> 4;
+} // class ChunkKeysTest
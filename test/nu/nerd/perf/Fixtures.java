@@ -0,0 +1,86 @@
+package nu.nerd.perf;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+
+// ----------------------------------------------------------------------------
+/**
+ * Minimal Bukkit objects for unit tests.
+ *
+ * The Bukkit types are interfaces, implemented here by dynamic proxies that
+ * answer only the methods the code under test calls, and throw
+ * UnsupportedOperationException for any other.
+ */
+public final class Fixtures {
+    // ------------------------------------------------------------------------
+    /**
+     * Return a World that answers only the methods that
+     * {@link MetricsSnapshot#addWorld(World)} calls.
+     *
+     * @param name the world name.
+     * @return the World.
+     */
+    public static World world(String name) {
+        return (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] { World.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                case "getName":
+                    return name;
+                case "getViewDistance":
+                    return 10;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a ConfigurationSection that answers only the methods that
+     * {@link AlertRule#parse(ConfigurationSection)} calls.
+     *
+     * @param name the section name.
+     * @param keysAndValues alternating keys and values.
+     * @return the section.
+     */
+    public static ConfigurationSection section(String name, Object... keysAndValues) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            values.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return (ConfigurationSection) Proxy.newProxyInstance(ConfigurationSection.class.getClassLoader(),
+                                                             new Class<?>[] { ConfigurationSection.class },
+            (proxy, method, args) -> {
+                Object value = (args == null) ? null : values.get(args[0]);
+                switch (method.getName()) {
+                case "getName":
+                    return name;
+                case "contains":
+                    return values.containsKey(args[0]);
+                case "isList":
+                    return value instanceof List;
+                case "getString":
+                case "getStringList":
+                    return value;
+                case "getDouble":
+                    return (value != null) ? ((Number) value).doubleValue() : (args.length > 1) ? args[1] : 0.0;
+                case "getInt":
+                    return (value != null) ? ((Number) value).intValue() : (args.length > 1) ? args[1] : 0;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Not instantiable.
+     */
+    private Fixtures() {
+    }
+} // class Fixtures
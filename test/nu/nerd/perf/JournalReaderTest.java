@@ -0,0 +1,254 @@
+package nu.nerd.perf;
+
+import static nu.nerd.perf.Fixtures.world;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests that records written by {@link MetricsJournal} are read back by
+ * {@link JournalReader}.
+ *
+ * The journal is configured and written directly, in the test thread, since
+ * configure() and append() need the plugin's data folder.
+ */
+public class JournalReaderTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Create a journal writing to a temporary directory.
+     */
+    @Before
+    public void setUp() throws IOException {
+        MetricsSnapshot.POOL.clear();
+        _directory = Files.createTempDirectory("journal").toFile();
+        _journal = new MetricsJournal();
+        _journal._enabled = true;
+        _journal._directory = _directory;
+        _journal._maxFileBytes = 64 * 1024;
+        _journal._maxFileAgeMillis = 3_600_000L;
+        _journal._maxFiles = 3;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Stop the journal thread and delete the journal files.
+     */
+    @After
+    public void tearDown() {
+        _journal.shutdown();
+        for (File file : _directory.listFiles()) {
+            file.delete();
+        }
+        _directory.delete();
+        MetricsSnapshot.POOL.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Every field of every record survives the round trip.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (int i = 0; i < 3; ++i) {
+            write(START + i * 1000L, i, "world", "my.world");
+        }
+
+        List<File> files = MetricsJournal.listFiles(_directory);
+        assertEquals(1, files.size());
+        JournalReader reader = new JournalReader(files.get(0));
+        assertEquals(START, reader.getCreated());
+        assertArrayEquals(new String[] { "world", "my.world" }, reader.getWorldNames());
+        assertEquals(3, reader.getRecordCount());
+        for (int r = 0; r < 3; ++r) {
+            assertEquals(START + r * 1000L, reader.getTime(r));
+            assertEquals(19.5f - r, reader.getTPS(r), 0.0f);
+            assertEquals(40.25f + r, reader.getTickP95Millis(r), 0.0f);
+            assertEquals(10 + r, reader.getPlayers(r));
+            assertEquals(2048 + r, reader.getMemoryUsed(r));
+            assertEquals(8192, reader.getMemoryMax(r));
+            for (int w = 0; w < 2; ++w) {
+                assertEquals(100 * w + r, reader.getChunks(r, w));
+                assertEquals(7 + w + r, reader.getEntities(r, w));
+                assertEquals(5 * (w + 1), reader.getTileEntities(r, w));
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * findRecord() and writeJSON() start at the first record at or after the
+     * requested time.
+     */
+    @Test
+    public void testSince() throws IOException {
+        for (int i = 0; i < 5; ++i) {
+            write(START + i * 1000L, i, "world");
+        }
+
+        JournalReader reader = new JournalReader(MetricsJournal.listFiles(_directory).get(0));
+        assertEquals(0, reader.findRecord(0));
+        assertEquals(2, reader.findRecord(START + 1500));
+        assertEquals(2, reader.findRecord(START + 2000));
+        assertEquals(5, reader.findRecord(START + 10000));
+
+        TextBuffer text = new TextBuffer(256);
+        JSONWriter out = new JSONWriter(text);
+        out.beginArray();
+        reader.writeJSON(out, START + 3000);
+        out.endArray();
+        String json = StandardCharsets.UTF_8.decode(text.toByteBuffer()).toString();
+        assertTrue(json, json.startsWith("[{\"time\":" + (START + 3000) + ","));
+        assertEquals(2, json.split("\"time\"").length - 1);
+        assertTrue(json, json.contains("\"worlds\":{\"world\":{\"chunks\":3,"));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A new file is started when the current one is full or the worlds
+     * change, and only the newest files are kept.
+     */
+    @Test
+    public void testRollover() throws IOException {
+        _journal._maxFileBytes = JournalReader.HEADER_BYTES + 2 * JournalReader.recordBytes(1);
+        for (int i = 0; i < 6; ++i) {
+            write(START + i * 1000L, i, "world");
+        }
+        write(START + 6000L, 6, "world", "world_nether");
+
+        List<File> files = MetricsJournal.listFiles(_directory);
+        assertEquals(3, files.size());
+        JournalReader oldest = new JournalReader(files.get(0));
+        assertEquals(2, oldest.getRecordCount());
+        assertEquals(START + 2000L, oldest.getTime(0));
+        JournalReader newest = new JournalReader(files.get(2));
+        assertEquals(1, newest.getRecordCount());
+        assertArrayEquals(new String[] { "world", "world_nether" }, newest.getWorldNames());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Files that are not journals are rejected.
+     */
+    @Test
+    public void testNotAJournal() throws IOException {
+        File file = new File(_directory, "metrics-bogus.journal");
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.setLength(JournalReader.HEADER_BYTES);
+        }
+        try {
+            new JournalReader(file);
+            fail("accepted " + file);
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().endsWith("is not a journal file"));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Headers whose world count or name lengths overrun the header are
+     * rejected.
+     */
+    @Test
+    public void testCorruptHeader() throws IOException {
+        write(START, 0, "world");
+        File file = MetricsJournal.listFiles(_directory).get(0);
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.seek(JournalReader.WORLDS_OFFSET);
+            output.writeInt(JournalReader.HEADER_BYTES);
+        }
+        assertCorruptHeader(file);
+
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.seek(JournalReader.WORLDS_OFFSET);
+            output.writeInt(1);
+            output.writeShort(JournalReader.HEADER_BYTES);
+        }
+        assertCorruptHeader(file);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * World names that do not fit in the header are detected before a file
+     * is created.
+     */
+    @Test
+    public void testFitsHeader() {
+        assertTrue(MetricsJournal.fitsHeader(new String[] { "world", "my.world" }));
+        String[] worldNames = new String[40];
+        Arrays.fill(worldNames, String.join("", Collections.nCopies(100, "w")));
+        assertFalse(MetricsJournal.fitsHeader(worldNames));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Assert that opening a file fails because of its header.
+     *
+     * @param file the file.
+     */
+    protected static void assertCorruptHeader(File file) {
+        try {
+            new JournalReader(file);
+            fail("accepted " + file);
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().endsWith("has a corrupt journal header"));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Write a record of metrics derived from a sequence number.
+     *
+     * @param time the time of the sample.
+     * @param i the sequence number.
+     * @param worldNames the names of the worlds in the sample.
+     */
+    protected void write(long time, int i, String... worldNames) {
+        MetricsSnapshot metrics = MetricsSnapshot.obtain();
+        metrics.tps = 19.5f - i;
+        metrics.tick[0].p95Millis = 40.25 + i;
+        metrics.players = 10 + i;
+        metrics.memoryUsed = 2048 + i;
+        metrics.memoryMax = 8192;
+        for (int w = 0; w < worldNames.length; ++w) {
+            MetricsSnapshot.WorldMetrics world = metrics.addWorld(world(worldNames[w]));
+            world.chunks = 100 * w + i;
+            world.entities[0] = 7 + w;
+            world.entities[world.entities.length - 1] += i;
+            world.tileEntities = new int[] { 2 * (w + 1), 3 * (w + 1) };
+        }
+        _journal.write(time, metrics);
+        metrics.release();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Time of the first sample in each test.
+     */
+    protected static final long START = 1_700_000_000_000L;
+
+    /**
+     * Directory of journal files, deleted after each test.
+     */
+    protected File _directory;
+
+    /**
+     * The journal under test.
+     */
+    protected MetricsJournal _journal;
+} // class JournalReaderTest
@@ -0,0 +1,128 @@
+package nu.nerd.perf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of {@link LogLinearHistogram}.
+ */
+public class LogLinearHistogramTest {
+    // ------------------------------------------------------------------------
+    /**
+     * An empty histogram reports zeroes.
+     */
+    @Test
+    public void testEmpty() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0.0, histogram.getMean(), 0.0);
+        assertEquals(0, histogram.getQuantile(0.5));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Values below 16 are recorded exactly and negative values as 0.
+     */
+    @Test
+    public void testSmallValuesExact() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        histogram.record(-5);
+        for (int value = 1; value < 16; ++value) {
+            histogram.record(value);
+        }
+        for (int value = 0; value < 16; ++value) {
+            assertEquals(value, histogram.getQuantile((value + 1) / 16.0));
+        }
+        assertEquals(120, histogram.getSum());
+        assertEquals(15, histogram.getMax());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Every bucket is contiguous with the next and contains its own bounds.
+     */
+    @Test
+    public void testBuckets() {
+        for (int index = 1; index < 64 * LogLinearHistogram.SUB_BUCKETS; ++index) {
+            long lower = LogLinearHistogram.bucketLowerBound(index);
+            long upper = LogLinearHistogram.bucketUpperBound(index);
+            if (upper < 0) {
+                break;
+            }
+            assertEquals(LogLinearHistogram.bucketUpperBound(index - 1) + 1, lower);
+            assertEquals(index, LogLinearHistogram.bucketIndex(lower));
+            assertEquals(index, LogLinearHistogram.bucketIndex(upper));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Quantiles of random values are within the documented relative error of
+     * the exact quantiles.
+     */
+    @Test
+    public void testQuantileError() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        Random random = new Random(1);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; ++i) {
+            // Spread values over many powers of two, as tick times in ns are.
+            values[i] = (long) Math.exp(random.nextDouble() * 25);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double quantile : new double[] { 0.01, 0.25, 0.5, 0.9, 0.95, 0.99, 1.0 }) {
+            long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+            long estimate = histogram.getQuantile(quantile);
+            assertTrue(quantile + ": " + estimate + " vs " + exact,
+                       Math.abs(estimate - exact) <= exact / 32.0 + 1);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Quantiles never exceed the largest recorded value.
+     */
+    @Test
+    public void testQuantileCappedAtMax() {
+        LogLinearHistogram histogram = new LogLinearHistogram();
+        histogram.record(1000);
+        assertEquals(1000, histogram.getQuantile(1.0));
+        assertEquals(1000, histogram.getQuantile(0.5));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Adding histograms combines their values, and reset() discards them.
+     */
+    @Test
+    public void testAddAndReset() {
+        LogLinearHistogram a = new LogLinearHistogram();
+        LogLinearHistogram b = new LogLinearHistogram();
+        for (int i = 0; i < 100; ++i) {
+            a.record(10);
+            b.record(100000);
+        }
+
+        a.add(b);
+        assertEquals(200, a.getCount());
+        assertEquals(100 * 10 + 100 * 100000, a.getSum());
+        assertEquals(100000, a.getMax());
+        assertEquals(10, a.getQuantile(0.5));
+        assertTrue(Math.abs(a.getQuantile(0.51) - 100000) <= 100000 / 32);
+
+        a.reset();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getSum());
+        assertEquals(0, a.getMax());
+        assertEquals(0, a.getQuantile(0.99));
+    }
+} // class LogLinearHistogramTest
@@ -0,0 +1,156 @@
+package nu.nerd.perf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of {@link LongIntHashMap}.
+ */
+public class LongIntHashMapTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Absent keys have the value 0.
+     */
+    @Test
+    public void testEmpty() {
+        LongIntHashMap map = new LongIntHashMap();
+        assertEquals(0, map.size());
+        assertEquals(0, map.get(42));
+        assertFalse(map.containsKey(42));
+        assertEquals(0, map.remove(42));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * put() and add() keep every entry while the tables grow, including when
+     * the put that triggers growth is the first use of its key.
+     */
+    @Test
+    public void testGrow() {
+        LongIntHashMap map = new LongIntHashMap();
+        int initialCapacity = map.capacity();
+        for (int i = 0; i < 10000; ++i) {
+            if (i % 2 == 0) {
+                map.put(key(i), i);
+            } else {
+                assertEquals(i, map.add(key(i), i));
+            }
+        }
+        assertTrue(map.capacity() > initialCapacity);
+        assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; ++i) {
+            assertEquals(i, map.get(key(i)));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A map sized for its entries does not grow.
+     */
+    @Test
+    public void testExpectedSize() {
+        LongIntHashMap map = new LongIntHashMap(1000);
+        int capacity = map.capacity();
+        for (int i = 0; i < 1000; ++i) {
+            map.put(key(i), 1);
+        }
+        assertEquals(capacity, map.capacity());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Removal keeps the remaining entries reachable, compared against a
+     * HashMap over a random mix of operations on colliding keys.
+     */
+    @Test
+    public void testRemove() {
+        LongIntHashMap map = new LongIntHashMap();
+        HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; ++i) {
+            // A small key space makes removals and reinsertions frequent.
+            long key = key(random.nextInt(500));
+            switch (random.nextInt(3)) {
+            case 0:
+                map.put(key, i);
+                expected.put(key, i);
+                break;
+            case 1:
+                assertEquals(expected.merge(key, 1, Integer::sum).intValue(), map.add(key, 1));
+                break;
+            default:
+                Integer value = expected.remove(key);
+                assertEquals(value == null ? 0 : value, map.remove(key));
+                break;
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertTrue(map.containsKey(entry.getKey()));
+            assertEquals(entry.getValue().intValue(), map.get(entry.getKey()));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Iteration by slot visits every entry exactly once.
+     */
+    @Test
+    public void testIteration() {
+        LongIntHashMap map = new LongIntHashMap();
+        for (int i = 0; i < 300; ++i) {
+            map.put(key(i), i + 1);
+        }
+        for (int i = 0; i < 300; i += 3) {
+            map.remove(key(i));
+        }
+
+        HashMap<Long, Integer> seen = new HashMap<Long, Integer>();
+        for (int slot = 0; slot < map.capacity(); ++slot) {
+            if (map.isUsed(slot)) {
+                assertEquals(null, seen.put(map.keyAt(slot), map.valueAt(slot)));
+            }
+        }
+        assertEquals(200, seen.size());
+        for (int i = 0; i < 300; ++i) {
+            assertEquals(i % 3 == 0 ? null : Integer.valueOf(i + 1), seen.get(key(i)));
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * clear() removes every entry and the map remains usable.
+     */
+    @Test
+    public void testClear() {
+        LongIntHashMap map = new LongIntHashMap();
+        for (int i = 0; i < 100; ++i) {
+            map.put(key(i), i);
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(map.containsKey(key(1)));
+        map.put(key(1), 7);
+        assertEquals(7, map.get(key(1)));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Return a typed chunk key for a test index, as the counting tasks use.
+     *
+     * @param i the index.
+     * @return the key.
+     */
+    protected static long key(int i) {
+        return ChunkKeys.withType(ChunkKeys.of(i % 37 - 18, i / 37 - 100), i % 5);
+    }
+} // class LongIntHashMapTest
@@ -0,0 +1,139 @@
+package nu.nerd.perf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of {@link MetricsSelection}.
+ */
+public class MetricsSelectionTest {
+    // ------------------------------------------------------------------------
+    /**
+     * A missing or blank selection selects everything.
+     */
+    @Test
+    public void testEmptySelectsAll() {
+        assertSame(MetricsSelection.ALL, MetricsSelection.parse(null, WORLDS));
+        assertSame(MetricsSelection.ALL, MetricsSelection.parse("  ", WORLDS));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Overall metrics and per-world fields are selected independently.
+     */
+    @Test
+    public void testPaths() {
+        MetricsSelection selection = MetricsSelection.parse("tps, players,worlds.world.entities", WORLDS);
+        assertTrue(selection.includes(MetricsSelection.TPS));
+        assertTrue(selection.includes(MetricsSelection.PLAYERS));
+        assertFalse(selection.includes(MetricsSelection.MEMORY));
+        assertEquals(MetricsSelection.ENTITIES, selection.getWorldFields("world"));
+        assertEquals(0, selection.getWorldFields("world_nether"));
+        assertEquals("players,tps,worlds.world.entities", selection.toString());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The world name * selects the fields in every world, and worlds selects
+     * every field of every world.
+     */
+    @Test
+    public void testAnyWorld() {
+        MetricsSelection selection = MetricsSelection.parse("worlds.*.chunks,worlds.world.hoppers", WORLDS);
+        assertEquals(MetricsSelection.CHUNKS | MetricsSelection.HOPPERS, selection.getWorldFields("world"));
+        assertEquals(MetricsSelection.CHUNKS, selection.getWorldFields("world_nether"));
+
+        selection = MetricsSelection.parse("worlds", WORLDS);
+        assertEquals(MetricsSelection.ALL_FIELDS, selection.getWorldFields("world_nether"));
+        assertEquals(MetricsSelection.ALL_FIELDS, MetricsSelection.parse("worlds.*", WORLDS)
+                                                                   .getWorldFields("world"));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * World names may contain dots.
+     */
+    @Test
+    public void testDottedWorldName() {
+        assertEquals(MetricsSelection.ALL_FIELDS,
+                     MetricsSelection.parse("worlds.my.world", WORLDS).getWorldFields("my.world"));
+        assertEquals(MetricsSelection.TILE_ENTITIES,
+                     MetricsSelection.parse("worlds.my.world.tile_entities", WORLDS).getWorldFields("my.world"));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Misspelled fields, unknown worlds and unknown overall metrics are
+     * rejected rather than selecting nothing.
+     */
+    @Test
+    public void testUnknownPaths() {
+        assertRejected("worlds.world.entites", "unknown field: entites");
+        assertRejected("worlds.*.entites", "unknown field: entites");
+        assertRejected("worlds.the_end", "unknown world: the_end");
+        assertRejected("worlds.the_end.entities", "unknown world: the_end");
+        assertRejected("worlds.my.wrld.entities", "unknown world: my.wrld");
+        assertRejected("worlds.", "unknown metric: worlds.");
+        assertRejected("tpss", "unknown metric: tpss");
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A selection covers those whose metrics it includes.
+     */
+    @Test
+    public void testCovers() {
+        MetricsSelection wide = MetricsSelection.parse("tps,worlds.*.entities,worlds.world.chunks", WORLDS);
+        assertTrue(MetricsSelection.ALL.covers(wide));
+        assertTrue(wide.covers(MetricsSelection.parse("worlds.world.entities,worlds.world.chunks", WORLDS)));
+        assertTrue(wide.covers(MetricsSelection.parse("worlds.*.entities", WORLDS)));
+        assertFalse(wide.covers(MetricsSelection.parse("worlds.*.chunks", WORLDS)));
+        assertFalse(wide.covers(MetricsSelection.parse("players", WORLDS)));
+        assertFalse(wide.covers(MetricsSelection.ALL));
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Equal selections are equal however they are written.
+     */
+    @Test
+    public void testEquals() {
+        MetricsSelection a = MetricsSelection.parse("tps,worlds.world.entities,worlds.world.chunks", WORLDS);
+        MetricsSelection b = MetricsSelection.parse("worlds.world.chunks, worlds.world.entities, tps", WORLDS);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Assert that parsing a selection fails with the specified message.
+     *
+     * @param paths the selection.
+     * @param message the expected message.
+     */
+    protected static void assertRejected(String paths, String message) {
+        try {
+            MetricsSelection.parse(paths, WORLDS);
+            fail("accepted " + paths);
+        } catch (IllegalArgumentException ex) {
+            assertEquals(message, ex.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Names of the worlds that may be selected.
+     */
+    protected static final Set<String> WORLDS = new HashSet<String>(Arrays.asList("world", "world_nether",
+                                                                                  "my.world"));
+} // class MetricsSelectionTest
@@ -0,0 +1,99 @@
+package nu.nerd.perf;
+
+import static nu.nerd.perf.Fixtures.world;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// ----------------------------------------------------------------------------
+/**
+ * Tests of {@link MetricsSnapshot} reuse.
+ */
+public class MetricsSnapshotTest {
+    // ------------------------------------------------------------------------
+    /**
+     * Start each test with an empty pool and hotspots enabled.
+     */
+    @Before
+    public void setUp() {
+        MetricsSnapshot.POOL.clear();
+        _hotspots = NerdPerf.CONFIG.HOTSPOTS;
+        NerdPerf.CONFIG.HOTSPOTS = true;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Restore the configuration.
+     */
+    @After
+    public void tearDown() {
+        NerdPerf.CONFIG.HOTSPOTS = _hotspots;
+        MetricsSnapshot.POOL.clear();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A scan that selects only entity hotspots discards the tile entity
+     * Hotspots of the pooled WorldMetrics; the next scan must have both.
+     */
+    @Test
+    public void testHotspotsRecreatedAfterEntityOnlyScan() {
+        MetricsSnapshot snapshot = MetricsSnapshot.obtain();
+        snapshot.addWorld(world("world")).tileEntityHotspots = null;
+        snapshot.release();
+
+        MetricsSnapshot reused = MetricsSnapshot.obtain();
+        assertSame(snapshot, reused);
+        MetricsSnapshot.WorldMetrics metrics = reused.addWorld(world("world"));
+        assertNotNull(metrics.entityHotspots);
+        assertNotNull(metrics.tileEntityHotspots);
+        reused.release();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The converse of {@link #testHotspotsRecreatedAfterEntityOnlyScan()}.
+     */
+    @Test
+    public void testHotspotsRecreatedAfterTileEntityOnlyScan() {
+        MetricsSnapshot snapshot = MetricsSnapshot.obtain();
+        snapshot.addWorld(world("world")).entityHotspots = null;
+        snapshot.release();
+
+        MetricsSnapshot reused = MetricsSnapshot.obtain();
+        assertSame(snapshot, reused);
+        MetricsSnapshot.WorldMetrics metrics = reused.addWorld(world("world"));
+        assertNotNull(metrics.entityHotspots);
+        assertNotNull(metrics.tileEntityHotspots);
+        reused.release();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Hotspots are discarded from reused snapshots when they are disabled.
+     */
+    @Test
+    public void testHotspotsDiscardedWhenDisabled() {
+        MetricsSnapshot snapshot = MetricsSnapshot.obtain();
+        snapshot.addWorld(world("world"));
+        snapshot.release();
+
+        NerdPerf.CONFIG.HOTSPOTS = false;
+        MetricsSnapshot reused = MetricsSnapshot.obtain();
+        assertSame(snapshot, reused);
+        MetricsSnapshot.WorldMetrics metrics = reused.addWorld(world("world"));
+        assertNull(metrics.entityHotspots);
+        assertNull(metrics.tileEntityHotspots);
+        reused.release();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * The configured hotspots setting, restored after each test.
+     */
+    protected boolean _hotspots;
+} // class MetricsSnapshotTest